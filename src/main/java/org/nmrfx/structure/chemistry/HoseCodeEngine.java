@@ -0,0 +1,566 @@
+/*
+ * NMRFx Structure : A Program for Calculating Structures
+ * Copyright (C) 2004-2017 One Moon Scientific, Inc., Westfield, N.J., USA
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.nmrfx.structure.chemistry;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+/**
+ * HOSE code generator that works on a primitive adjacency graph of an entity.
+ * The graph is built once, with the bond orders and atom types looked up in
+ * advance, and the codes of the start atoms are then calculated in parallel,
+ * each thread with its own breadth first search buffers. The codes are the
+ * same as those made with the MTree based search in HoseCodeGenerator.
+ *
+ * Codes are cached by the connection table of the entity (atom types,
+ * hybridization, aromaticity and bonds), written in atom order and with the
+ * neighbors of each atom in bond order. This is not a canonical form: two
+ * entities share a cache entry only if their atoms and bonds are also in the
+ * same order, as for residues of one type built from the same residue library
+ * template. The order matters for the codes too, as branches with equal
+ * values are written in the order they are found.
+ *
+ * @author brucejohnson
+ */
+public class HoseCodeEngine {
+
+    static final int CHUNK_SIZE = 16;
+    static int parallelThreshold = 64;
+    static int cacheSize = 1024;
+    static final Map<String, String[]> CODE_CACHE = Collections.synchronizedMap(
+            new LinkedHashMap<String, String[]>(64, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String[]> eldest) {
+            return size() > cacheSize;
+        }
+    });
+
+    final Entity entity;
+    final Atom[] atoms;
+    final boolean[] targets;
+    final boolean[] aromatic;
+    final String[] elementNames;
+    final String[] centerNames;
+    final int[] symValues;
+    // neighbors of each atom in the order of its bond list, and the order of
+    // the bond to each (null if the bond isn't in the entity)
+    final int[][] nbrAtoms;
+    final Order[][] nbrOrders;
+    final int nAdjacent;
+    boolean parallel = true;
+
+    /**
+     * Build the search graph of an entity. Atoms with atomic number 0, atoms
+     * of other entities and all but the first atom of each methyl group are
+     * skipped and hydrogens are not connected.
+     *
+     * @param entity the entity
+     */
+    public HoseCodeEngine(Entity entity) {
+        this.entity = entity;
+        List<Atom> atomList = new ArrayList<>();
+        Map<Atom, Integer> atomMap = new HashMap<>();
+        for (Atom atom : entity.atoms) {
+            if (atom.getAtomicNumber() == 0) {
+                continue;
+            }
+            if (atom.entity == entity) {
+                if (atom.isMethyl() && !atom.isFirstInMethyl()) {
+                    continue;
+                }
+                atomMap.put(atom, atomList.size());
+                atomList.add(atom);
+            }
+        }
+        int nAtoms = atomList.size();
+        atoms = atomList.toArray(new Atom[nAtoms]);
+        targets = new boolean[nAtoms];
+        aromatic = new boolean[nAtoms];
+        elementNames = new String[nAtoms];
+        centerNames = new String[nAtoms];
+        symValues = new int[nAtoms];
+        for (int i = 0; i < nAtoms; i++) {
+            Atom atom = atoms[i];
+            targets[i] = atom.getAtomicNumber() == 6;
+            aromatic[i] = atom.getFlag(Atom.AROMATIC);
+            elementNames[i] = getHoseCodeElement(atom.getElementName());
+            symValues[i] = (getSymNumber(atom.getElementName()) + 1) * 100;
+            if (targets[i]) {
+                Integer hyb = (Integer) atom.getProperty("hyb");
+                if (hyb == null) {
+                    hyb = 3;
+                }
+                if (aromatic[i]) {
+                    hyb = hyb + 4;
+                }
+                centerNames[i] = atom.getElementName() + hyb;
+            }
+        }
+        // the entity bond between two atoms, the last one if there are several
+        Map<Long, Order> bondOrders = new HashMap<>();
+        for (Bond bond : entity.bonds) {
+            Integer iBegin = atomMap.get(bond.begin);
+            Integer iEnd = atomMap.get(bond.end);
+            if ((iBegin != null) && (iEnd != null)) {
+                bondOrders.put(pairKey(iBegin, iEnd), bond.order);
+            }
+        }
+        List<List<Integer>> nbrLists = new ArrayList<>();
+        for (int i = 0; i < nAtoms; i++) {
+            nbrLists.add(new ArrayList<>());
+        }
+        for (Atom atom : entity.atoms) {
+            if (atom.getAtomicNumber() == 0) {
+                continue;
+            }
+            for (Bond bond : atom.bonds) {
+                if ((bond.begin.getAtomicNumber() == 1) || (bond.end.getAtomicNumber() == 1)) {
+                    continue;
+                }
+                Integer iBegin = atomMap.get(bond.begin);
+                Integer iEnd = atomMap.get(bond.end);
+                if ((iBegin != null) && (iEnd != null)) {
+                    if (bond.begin == atom) {
+                        nbrLists.get(iBegin).add(iEnd);
+                    } else {
+                        nbrLists.get(iEnd).add(iBegin);
+                    }
+                }
+            }
+        }
+        nbrAtoms = new int[nAtoms][];
+        nbrOrders = new Order[nAtoms][];
+        int nAdj = 0;
+        for (int i = 0; i < nAtoms; i++) {
+            List<Integer> nbrList = nbrLists.get(i);
+            nbrAtoms[i] = new int[nbrList.size()];
+            nbrOrders[i] = new Order[nbrList.size()];
+            for (int j = 0; j < nbrAtoms[i].length; j++) {
+                nbrAtoms[i][j] = nbrList.get(j);
+                nbrOrders[i][j] = bondOrders.get(pairKey(i, nbrAtoms[i][j]));
+            }
+            nAdj += nbrAtoms[i].length;
+        }
+        nAdjacent = nAdj;
+    }
+
+    static long pairKey(int i, int j) {
+        return i < j ? ((long) i << 32) | j : ((long) j << 32) | i;
+    }
+
+    static int getSymNumber(String sym) {
+        switch (sym) {
+            case "C":
+                return 10;
+            case "O":
+                return 9;
+            case "N":
+                return 8;
+            case "S":
+                return 7;
+            case "P":
+                return 6;
+            case "Si":
+                return 5;
+            case "B":
+                return 4;
+            case "F":
+                return 3;
+            case "Cl":
+                return 2;
+            case "Br":
+                return 1;
+            default:
+                return 0;
+        }
+    }
+
+    static String getHoseCodeElement(String elementName) {
+        switch (elementName) {
+            case "Si":
+                return "Q";
+            case "Cl":
+                return "X";
+            case "Br":
+                return "Y";
+            default:
+                return elementName;
+        }
+    }
+
+    public void setParallel(boolean value) {
+        parallel = value;
+    }
+
+    public static void setParallelThreshold(int nTargets) {
+        parallelThreshold = nTargets;
+    }
+
+    /**
+     * Set the maximum number of entities whose codes are kept in the cache.
+     *
+     * @param size the cache size
+     */
+    public static void setCacheSize(int size) {
+        cacheSize = size;
+        synchronized (CODE_CACHE) {
+            while (CODE_CACHE.size() > cacheSize) {
+                CODE_CACHE.remove(CODE_CACHE.keySet().iterator().next());
+            }
+        }
+    }
+
+    public static void clearCache() {
+        CODE_CACHE.clear();
+    }
+
+    public Atom[] getAtoms() {
+        return atoms.clone();
+    }
+
+    /**
+     * Get the key used to cache the codes. It describes everything the codes
+     * depend on, including the order of the atoms and of their neighbors,
+     * with atoms identified by their position in the graph.
+     *
+     * @param nShells the number of shells
+     * @return the key
+     */
+    public String getKey(int nShells) {
+        StringBuilder sBuilder = new StringBuilder();
+        sBuilder.append(nShells);
+        for (int i = 0; i < atoms.length; i++) {
+            sBuilder.append(';').append(atoms[i].getAtomicNumber()).append(elementNames[i]);
+            if (aromatic[i]) {
+                sBuilder.append('*');
+            }
+            if (targets[i]) {
+                sBuilder.append('^').append(centerNames[i]);
+            }
+            for (int j = 0; j < nbrAtoms[i].length; j++) {
+                Order order = nbrOrders[i][j];
+                sBuilder.append(',').append(nbrAtoms[i][j]).append(':');
+                sBuilder.append(order == null ? 0 : order.getOrderNum());
+            }
+        }
+        return sBuilder.toString();
+    }
+
+    /**
+     * Get the HOSE codes of the carbon atoms of an entity, using the cache
+     * if possible.
+     *
+     * @param nShells the number of shells
+     * @return the codes of each atom in getAtoms() order, null for atoms that
+     * have no code
+     */
+    public String[] getCodes(int nShells) {
+        String key = getKey(nShells);
+        String[] codes = CODE_CACHE.get(key);
+        if (codes == null) {
+            codes = genCodes(nShells);
+            CODE_CACHE.put(key, codes);
+        }
+        return codes.clone();
+    }
+
+    /**
+     * Calculate the HOSE codes of the carbon atoms of the entity without
+     * using the cache.
+     *
+     * @param nShells the number of shells
+     * @return the codes of each atom in getAtoms() order, null for atoms that
+     * have no code
+     */
+    public String[] genCodes(int nShells) {
+        int nAtoms = atoms.length;
+        int[] starts = IntStream.range(0, nAtoms).filter(i -> targets[i]).toArray();
+        String[] codes = new String[nAtoms];
+        int nChunks = (starts.length + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        IntStream chunks = IntStream.range(0, nChunks);
+        if (parallel && (starts.length >= parallelThreshold)) {
+            chunks = chunks.parallel();
+        }
+        chunks.forEach(iChunk -> {
+            Search search = new Search();
+            int last = Math.min(starts.length, (iChunk + 1) * CHUNK_SIZE);
+            for (int i = iChunk * CHUNK_SIZE; i < last; i++) {
+                codes[starts[i]] = search.genCode(starts[i], nShells);
+            }
+        });
+        return codes;
+    }
+
+    /**
+     * The breadth first search buffers of one thread. The search tree is kept
+     * as a list of nodes, each an atom (or a ring closure to an atom already
+     * in the tree) with its shell, the position of its parent node and its
+     * value.
+     */
+    class Search {
+
+        final int[] nodeAtoms;
+        final int[] nodeShells;
+        final int[] nodeParents;
+        final Order[] nodeOrders;
+        final boolean[] ringClosures;
+        final int[] values;
+        // the shell, parent atom and node of each atom, -1 if not reached
+        final int[] atomShells;
+        final int[] atomParents;
+        final int[] atomNodes;
+        final int[] queue;
+        // lists of node positions for the shells
+        final int[] shellNodes;
+        final int[] thisShell;
+        final int[] lastShell;
+        final int[] lastShellAtoms;
+        final int[] shellSizes;
+        final int[] shellStarts;
+        final int[] sortedNodes;
+        final StringBuilder sBuilder = new StringBuilder();
+        int nNodes = 0;
+
+        Search() {
+            int nAtoms = atoms.length;
+            int maxNodes = nAtoms + nAdjacent;
+            nodeAtoms = new int[maxNodes];
+            nodeShells = new int[maxNodes];
+            nodeParents = new int[maxNodes];
+            nodeOrders = new Order[maxNodes];
+            ringClosures = new boolean[maxNodes];
+            values = new int[maxNodes];
+            atomShells = new int[nAtoms];
+            atomParents = new int[nAtoms];
+            atomNodes = new int[nAtoms];
+            queue = new int[nAtoms];
+            shellNodes = new int[maxNodes];
+            thisShell = new int[maxNodes];
+            lastShell = new int[maxNodes];
+            lastShellAtoms = new int[maxNodes];
+            shellSizes = new int[maxNodes];
+            shellStarts = new int[maxNodes];
+            sortedNodes = new int[maxNodes];
+        }
+
+        void addNode(int iAtom, int shell, int parent, Order order, boolean ringClosure) {
+            nodeAtoms[nNodes] = iAtom;
+            nodeShells[nNodes] = shell;
+            nodeParents[nNodes] = parent;
+            nodeOrders[nNodes] = order;
+            ringClosures[nNodes] = ringClosure;
+            nNodes++;
+        }
+
+        boolean areNthCousins(int iAtom, int jAtom) {
+            int shell = atomShells[iAtom];
+            if (shell != atomShells[jAtom]) {
+                return false;
+            }
+            int temp1 = atomParents[iAtom];
+            int temp2 = atomParents[jAtom];
+            for (int i = 0; i < shell; i++) {
+                if (temp1 == temp2) {
+                    return true;
+                }
+                temp1 = atomParents[temp1];
+                temp2 = atomParents[temp2];
+            }
+            return false;
+        }
+
+        /**
+         * Breadth first search from an atom, making the same tree as
+         * MTree.broad_path.
+         */
+        void search(int start) {
+            Arrays.fill(atomShells, -1);
+            Arrays.fill(atomParents, -1);
+            nNodes = 0;
+            atomShells[start] = 0;
+            atomNodes[start] = 0;
+            addNode(start, 0, -1, null, false);
+            queue[0] = start;
+            int nQueued = 1;
+            for (int j = 0; j < nQueued; j++) {
+                int iAtom = queue[j];
+                int cNode = atomNodes[iAtom];
+                int cShell = atomShells[iAtom];
+                int[] nbrs = nbrAtoms[iAtom];
+                for (int i = 0; i < nbrs.length; i++) {
+                    int next = nbrs[i];
+                    if (atomShells[next] == -1) {
+                        queue[nQueued++] = next;
+                        atomShells[next] = cShell + 1;
+                        atomParents[next] = iAtom;
+                        atomNodes[next] = nNodes;
+                        addNode(next, cShell + 1, cNode, nbrOrders[iAtom][i], false);
+                    } else if ((atomParents[next] != iAtom) && (atomParents[iAtom] != next)) {
+                        if ((atomShells[next] == cShell + 1) || areNthCousins(next, iAtom)) {
+                            addNode(next, atomShells[next], cNode, nbrOrders[iAtom][i], true);
+                        }
+                    }
+                }
+            }
+        }
+
+        void calcValues() {
+            for (int i = 0; i < nNodes; i++) {
+                int value = 0;
+                if (nodeParents[i] >= 0) {
+                    Order order = nodeOrders[i];
+                    if (order != null) {
+                        value += order.getOrderNum() * 5000;
+                    }
+                    value += ringClosures[i] ? 100 : symValues[nodeAtoms[i]];
+                }
+                values[i] = value;
+            }
+            for (int i = nNodes - 1; i >= 0; i--) {
+                int parent = nodeParents[i];
+                if (parent >= 0) {
+                    values[parent] += values[i];
+                }
+            }
+        }
+
+        /**
+         * Calculate the code of an atom, with the same shell ordering as
+         * HoseCodeGenerator.genHOSECodesWithTree.
+         */
+        String genCode(int start, int nShells) {
+            search(start);
+            calcValues();
+            int nSorted = 0;
+            int nShellsFound = 0;
+            int lastNodeIndex = 0;
+            int nLast = 0;
+            for (int iShell = 0; iShell < nShells; iShell++) {
+                int nShellNodes = 0;
+                for (int i = lastNodeIndex; i < nNodes; i++) {
+                    if (nodeShells[i] > iShell) {
+                        break;
+                    } else if (nodeShells[i] == iShell) {
+                        shellNodes[nShellNodes++] = i;
+                    }
+                }
+                lastNodeIndex += nShellNodes;
+                if (nShellNodes == 0) {
+                    break;
+                }
+                int nThis = 0;
+                if (nLast == 0) {
+                    System.arraycopy(shellNodes, 0, thisShell, 0, nShellNodes);
+                    nThis = nShellNodes;
+                } else {
+                    for (int j = 0; j < nLast; j++) {
+                        int lastNode = lastShell[j];
+                        if (ringClosures[lastNode]) {
+                            continue;
+                        }
+                        int branchStart = nThis;
+                        for (int k = 0; k < nShellNodes; k++) {
+                            int node = shellNodes[k];
+                            if (nodeParents[node] == lastNode) {
+                                // stable insertion, largest value first
+                                int pos = nThis;
+                                while ((pos > branchStart) && (values[thisShell[pos - 1]] < values[node])) {
+                                    thisShell[pos] = thisShell[pos - 1];
+                                    pos--;
+                                }
+                                thisShell[pos] = node;
+                                nThis++;
+                            }
+                        }
+                    }
+                }
+                System.arraycopy(thisShell, 0, lastShell, 0, nThis);
+                nLast = nThis;
+                shellStarts[nShellsFound] = nSorted;
+                shellSizes[nShellsFound] = nThis;
+                System.arraycopy(thisShell, 0, sortedNodes, nSorted, nThis);
+                nSorted += nThis;
+                nShellsFound++;
+            }
+            return dumpCode(nShellsFound);
+        }
+
+        String dumpCode(int nShellsFound) {
+            sBuilder.setLength(0);
+            if ((nShellsFound == 0) || (shellSizes[0] == 0)) {
+                return "";
+            }
+            sBuilder.append(centerNames[nodeAtoms[sortedNodes[shellStarts[0]]]]);
+            int nLastAtoms = 0;
+            for (int iShell = 1; iShell < nShellsFound; iShell++) {
+                sBuilder.append('/');
+                int nThisAtoms = 0;
+                int lastIndex = 0;
+                int first = shellStarts[iShell];
+                for (int k = first, last = first + shellSizes[iShell]; k < last; k++) {
+                    int node = sortedNodes[k];
+                    int iAtom = nodeAtoms[node];
+                    int parentAtom = nodeAtoms[nodeParents[node]];
+                    Order order = nodeOrders[node];
+                    int index = -1;
+                    for (int i = 0; i < nLastAtoms; i++) {
+                        if (lastShellAtoms[i] == parentAtom) {
+                            index = i;
+                            break;
+                        }
+                    }
+                    if (atoms[iAtom].aNum != 1) {
+                        if (index != -1) {
+                            while (lastIndex < index) {
+                                sBuilder.append(',');
+                                lastIndex++;
+                            }
+                        }
+                        thisShell[nThisAtoms++] = iAtom;
+                        if (aromatic[iAtom] && aromatic[parentAtom]) {
+                            sBuilder.append('*');
+                        } else if (order == Order.TRIPLE) {
+                            sBuilder.append('%');
+                        } else if (order == Order.DOUBLE) {
+                            sBuilder.append('=');
+                        }
+                        if (ringClosures[node]) {
+                            sBuilder.append('&');
+                        } else {
+                            sBuilder.append(elementNames[iAtom]);
+                        }
+                        lastIndex = index;
+                    }
+                }
+                while ((lastIndex + 1) < nLastAtoms) {
+                    sBuilder.append(',');
+                    lastIndex++;
+                }
+                System.arraycopy(thisShell, 0, lastShellAtoms, 0, nThisAtoms);
+                nLastAtoms = nThisAtoms;
+            }
+            return sBuilder.toString();
+        }
+    }
+}
@@ -110,7 +110,40 @@ public class HoseCodeGenerator {
         mNode.setValue(value);
     }
 
+    /**
+     * Generate the HOSE codes of the carbon atoms of an entity, storing each
+     * as the "hose" property of the atom. Codes are calculated with
+     * HoseCodeEngine, and cached by the ordered connection table of the
+     * entity.
+     *
+     * @param entity the entity
+     * @param nShells the number of shells
+     * @return map from atom ID to code
+     */
     public Map<Integer, String> genHOSECodes(Entity entity, int nShells) {
+        HoseCodeEngine engine = new HoseCodeEngine(entity);
+        Atom[] atoms = engine.getAtoms();
+        String[] codes = engine.getCodes(nShells);
+        Map<Integer, String> result = new HashMap<>();
+        for (int i = 0; i < atoms.length; i++) {
+            if (codes[i] != null) {
+                atoms[i].setProperty("hose", codes[i]);
+                result.put(atoms[i].getID(), codes[i]);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Generate the HOSE codes of the carbon atoms of an entity with an MTree
+     * search from each atom in turn. This is the original implementation,
+     * kept for reference and testing.
+     *
+     * @param entity the entity
+     * @param nShells the number of shells
+     * @return map from atom ID to code
+     */
+    public Map<Integer, String> genHOSECodesWithTree(Entity entity, int nShells) {
         int targetElement = 6;
         Set<Integer> targetSet = new HashSet<>();
         targetSet.add(6);
@@ -27,6 +27,7 @@ import java.lang.reflect.InvocationTargetException;
 import org.apache.commons.math3.geometry.euclidean.threed.Vector3D;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
@@ -224,6 +225,7 @@ public class Molecule implements Serializable, ITree {
     Map<String, Atom> atomMap = new HashMap<>();
     List<Atom> atoms;
     List<Atom> treeAtoms;
+    PDBModelWriter pdbModelWriter = null;
 
     ArrayList<Bond> bonds = new ArrayList<Bond>();
     int genVecs[][] = null;
@@ -4439,7 +4441,40 @@ public class Molecule implements Serializable, ITree {
         }
     }
 
+    /**
+     * Write the active structures in PDB format. The records are formatted
+     * with a PDBModelWriter, which is kept while the topology of the molecule
+     * is unchanged.
+     *
+     * @param fileName the name of the file
+     * @param whichStruct the structure to write, or -1 for all active
+     * structures
+     * @throws IOException if the file can't be written
+     */
     public void writeXYZToPDB(String fileName, int whichStruct) throws IOException {
+        updateAtomArray();
+        int[] structureList = getActiveStructures();
+        if (structureList.length == 0) {
+            structureList = new int[1];
+            structureList[0] = 0;
+        }
+        if (whichStruct >= 0) {
+            int nMatch = 0;
+            for (int iStruct : structureList) {
+                if (iStruct == whichStruct) {
+                    nMatch++;
+                }
+            }
+            structureList = new int[nMatch];
+            Arrays.fill(structureList, whichStruct);
+        }
+        if ((pdbModelWriter == null) || !pdbModelWriter.isCurrent()) {
+            pdbModelWriter = new PDBModelWriter(this);
+        }
+        pdbModelWriter.write(fileName, structureList);
+    }
+
+    public void writeXYZToPDBByAtom(String fileName, int whichStruct) throws IOException {
         int i;
         try (PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(fileName)))) {
 
@@ -28,6 +28,7 @@ import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Random;
+import java.util.stream.IntStream;
 import java.util.stream.Collectors;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.math3.geometry.euclidean.threed.NotARotationMatrixException;
@@ -679,6 +680,20 @@ public class OrderSVD {
         return vector;
     }
 
+    /**
+     * Get the maximum static dipolar coupling for a pair of atoms, based on
+     * the element (first character) of each atom name.
+     *
+     * @param atomName1 name of the first atom (e.g. H)
+     * @param atomName2 name of the second atom (e.g. N)
+     * @return the maximum RDC value, or 1.0 if the pair isn't known
+     */
+    public static double getMaxRDC(String atomName1, String atomName2) {
+        String key = atomName1.substring(0, 1) + atomName2.substring(0, 1);
+        Double maxRDC = maxRDCDict.get(key);
+        return maxRDC == null ? 1.0 : maxRDC;
+    }
+
     /**
      * Calculates the maximum RDC value associated with two atoms in a Molecule
      * object.
@@ -945,6 +960,297 @@ public class OrderSVD {
         return orderSVD;
     }
     
+    /**
+     * Results of fitting alignment tensors to the models of an ensemble. Tensor
+     * elements are stored in the order used for the x vector of the SVD: Syy,
+     * Szz, Sxy, Sxz, Syz. Residuals are calculated - experimental values, in
+     * the order of the RDCs returned by getRDCIndices.
+     */
+    public static class EnsembleResult {
+
+        final int[] models;
+        final int[] rdcIndices;
+        final double[] values;
+        final double[][] tensors;
+        final double[] qFactors;
+        final double[][] residuals;
+        final double[] ensembleTensor;
+        final double[] ensembleResiduals;
+        double ensembleQ;
+
+        EnsembleResult(int[] models, int[] rdcIndices, double[] values) {
+            this.models = models;
+            this.rdcIndices = rdcIndices;
+            this.values = values;
+            tensors = new double[models.length][5];
+            qFactors = new double[models.length];
+            residuals = new double[models.length][rdcIndices.length];
+            ensembleTensor = new double[5];
+            ensembleResiduals = new double[rdcIndices.length];
+        }
+
+        public int[] getModels() {
+            return models;
+        }
+
+        /**
+         * Get the indices (in the RDC set) of the RDCs used in the fit. RDCs
+         * with missing coordinates in any of the models are skipped.
+         *
+         * @return the indices
+         */
+        public int[] getRDCIndices() {
+            return rdcIndices;
+        }
+
+        public double[] getValues() {
+            return values;
+        }
+
+        public double[] getTensor(int iModel) {
+            return tensors[iModel];
+        }
+
+        public double getQ(int iModel) {
+            return qFactors[iModel];
+        }
+
+        public double[] getQFactors() {
+            return qFactors;
+        }
+
+        public double[] getResiduals(int iModel) {
+            return residuals[iModel];
+        }
+
+        /**
+         * Get the tensor fit to the ensemble average of the RDCs, with one
+         * tensor shared by all models.
+         *
+         * @return the tensor elements
+         */
+        public double[] getEnsembleTensor() {
+            return ensembleTensor;
+        }
+
+        public double getEnsembleQ() {
+            return ensembleQ;
+        }
+
+        public double[] getEnsembleResiduals() {
+            return ensembleResiduals;
+        }
+    }
+
+    /**
+     * Fit alignment tensors for a set of models of a molecule. A tensor is fit
+     * to each model independently and one tensor is fit to the ensemble
+     * averaged RDCs. Bond vectors are copied directly from the atom
+     * coordinates into arrays and the models are fit in parallel. The maximum
+     * RDC values are taken from the atom types, as in calcRDCs without
+     * calcMaxRDC or scale.
+     *
+     * @param molecule the molecule
+     * @param rdcSet the experimental RDCs
+     * @param models the structure numbers of the models, or null to use the
+     * active structures of the molecule
+     * @return the Q factors, tensors and residuals
+     */
+    public static EnsembleResult calcEnsembleRDCs(Molecule molecule, RDCConstraintSet rdcSet, int[] models) {
+        if (models == null) {
+            models = molecule.getActiveStructures();
+        }
+        final int[] modelNums = models;
+        int nModels = modelNums.length;
+        int nAll = rdcSet.getSize();
+        SpatialSet[] spSets1 = new SpatialSet[nAll];
+        SpatialSet[] spSets2 = new SpatialSet[nAll];
+        for (int i = 0; i < nAll; i++) {
+            RDC rdc = rdcSet.get(i);
+            spSets1[i] = rdc.getSpSets()[0];
+            spSets2[i] = rdc.getSpSets()[1];
+        }
+        // unit bond vectors, 3 per RDC, NaN where coordinates are missing
+        double[][] vecs = new double[nModels][3 * nAll];
+        IntStream.range(0, nModels).parallel().forEach(iModel -> {
+            double[] vec = vecs[iModel];
+            int iStruct = modelNums[iModel];
+            for (int i = 0; i < nAll; i++) {
+                Point3 pt1 = spSets1[i].getPoint(iStruct);
+                Point3 pt2 = spSets2[i].getPoint(iStruct);
+                double vx = Double.NaN;
+                double vy = Double.NaN;
+                double vz = Double.NaN;
+                if ((pt1 != null) && (pt2 != null) && (spSets1[i] != spSets2[i])) {
+                    vx = pt1.getX() - pt2.getX();
+                    vy = pt1.getY() - pt2.getY();
+                    vz = pt1.getZ() - pt2.getZ();
+                    double len = Math.sqrt(vx * vx + vy * vy + vz * vz);
+                    if (len == 0.0) {
+                        vx = Double.NaN;
+                    } else {
+                        vx /= len;
+                        vy /= len;
+                        vz /= len;
+                    }
+                }
+                vec[3 * i] = vx;
+                vec[3 * i + 1] = vy;
+                vec[3 * i + 2] = vz;
+            }
+        });
+        int nRDC = 0;
+        int[] use = new int[nAll];
+        for (int i = 0; i < nAll; i++) {
+            boolean ok = true;
+            for (int iModel = 0; iModel < nModels; iModel++) {
+                if (Double.isNaN(vecs[iModel][3 * i])) {
+                    ok = false;
+                    break;
+                }
+            }
+            if (ok) {
+                use[nRDC++] = i;
+            }
+        }
+        int[] rdcIndices = Arrays.copyOf(use, nRDC);
+        double[] values = new double[nRDC];
+        double[] maxRDC = new double[nRDC];
+        double[] bNorm = new double[nRDC];
+        double sumSq = 0.0;
+        for (int j = 0; j < nRDC; j++) {
+            int i = rdcIndices[j];
+            values[j] = rdcSet.get(i).getValue();
+            maxRDC[j] = getMaxRDC(spSets1[i].atom.getName(), spSets2[i].atom.getName());
+            bNorm[j] = values[j] / maxRDC[j];
+            sumSq += values[j] * values[j];
+        }
+        final double rmsObs = Math.sqrt(sumSq / Math.max(nRDC, 1));
+        EnsembleResult result = new EnsembleResult(modelNums, rdcIndices, values);
+        double[][] aRows = new double[nModels][5 * nRDC];
+        IntStream.range(0, nModels).parallel().forEach(iModel -> {
+            double[] a = aRows[iModel];
+            fillRows(vecs[iModel], rdcIndices, a);
+            if (fitTensor(a, bNorm, null, nRDC, result.tensors[iModel])) {
+                result.qFactors[iModel] = calcResiduals(a, result.tensors[iModel], values, maxRDC, result.residuals[iModel]) / rmsObs;
+            } else {
+                result.qFactors[iModel] = Double.NaN;
+            }
+        });
+        double[] aAvg = new double[5 * nRDC];
+        for (int iModel = 0; iModel < nModels; iModel++) {
+            double[] a = aRows[iModel];
+            for (int k = 0; k < aAvg.length; k++) {
+                aAvg[k] += a[k];
+            }
+        }
+        for (int k = 0; k < aAvg.length; k++) {
+            aAvg[k] /= nModels;
+        }
+        if ((nModels > 0) && fitTensor(aAvg, bNorm, null, nRDC, result.ensembleTensor)) {
+            result.ensembleQ = calcResiduals(aAvg, result.ensembleTensor, values, maxRDC, result.ensembleResiduals) / rmsObs;
+        } else {
+            result.ensembleQ = Double.NaN;
+        }
+        return result;
+    }
+
+    static void fillRows(double[] vec, int[] rdcIndices, double[] a) {
+        for (int j = 0; j < rdcIndices.length; j++) {
+            int i = rdcIndices[j];
+            double ux = vec[3 * i];
+            double uy = vec[3 * i + 1];
+            double uz = vec[3 * i + 2];
+            int k = 5 * j;
+            a[k] = uy * uy - ux * ux;
+            a[k + 1] = uz * uz - ux * ux;
+            a[k + 2] = 2.0 * ux * uy;
+            a[k + 3] = 2.0 * ux * uz;
+            a[k + 4] = 2.0 * uy * uz;
+        }
+    }
+
+    /**
+     * Calculate the residuals (calculated - experimental) for a tensor.
+     *
+     * @return the rms residual
+     */
+    static double calcResiduals(double[] a, double[] tensor, double[] values, double[] maxRDC, double[] residuals) {
+        double sumSq = 0.0;
+        for (int j = 0; j < values.length; j++) {
+            int k = 5 * j;
+            double dNorm = 0.0;
+            for (int m = 0; m < 5; m++) {
+                dNorm += a[k + m] * tensor[m];
+            }
+            double diff = maxRDC[j] * dNorm - values[j];
+            residuals[j] = diff;
+            sumSq += diff * diff;
+        }
+        return Math.sqrt(sumSq / Math.max(values.length, 1));
+    }
+
+    /**
+     * Fit the five independent order matrix elements by linear least squares,
+     * minimizing sum(w^2 (a.x - b)^2) with a Cholesky solution of the normal
+     * equations.
+     *
+     * @param aRows the direction cosine rows, 5 per RDC, as in the A matrix
+     * @param b the normalized RDC values
+     * @param weights the weight of each row, or null for equal weights
+     * @param n the number of RDCs
+     * @param tensor array of length 5 to store the result in
+     * @return true if the fit succeeded, false if the normal matrix is
+     * singular
+     */
+    public static boolean fitTensor(double[] aRows, double[] b, double[] weights, int n, double[] tensor) {
+        double[] normalMatrix = new double[25];
+        double[] normalVector = new double[5];
+        for (int i = 0; i < n; i++) {
+            int k = 5 * i;
+            double w2 = weights == null ? 1.0 : weights[i] * weights[i];
+            for (int r = 0; r < 5; r++) {
+                double ar = aRows[k + r] * w2;
+                normalVector[r] += ar * b[i];
+                for (int c = 0; c <= r; c++) {
+                    normalMatrix[r * 5 + c] += ar * aRows[k + c];
+                }
+            }
+        }
+        // Cholesky factor in the lower triangle
+        for (int r = 0; r < 5; r++) {
+            for (int c = 0; c <= r; c++) {
+                double sum = normalMatrix[r * 5 + c];
+                for (int m = 0; m < c; m++) {
+                    sum -= normalMatrix[r * 5 + m] * normalMatrix[c * 5 + m];
+                }
+                if (r == c) {
+                    if (sum <= 1.0e-12) {
+                        return false;
+                    }
+                    normalMatrix[r * 5 + r] = Math.sqrt(sum);
+                } else {
+                    normalMatrix[r * 5 + c] = sum / normalMatrix[c * 5 + c];
+                }
+            }
+        }
+        for (int r = 0; r < 5; r++) {
+            double sum = normalVector[r];
+            for (int m = 0; m < r; m++) {
+                sum -= normalMatrix[r * 5 + m] * tensor[m];
+            }
+            tensor[r] = sum / normalMatrix[r * 5 + r];
+        }
+        for (int r = 4; r >= 0; r--) {
+            double sum = tensor[r];
+            for (int m = r + 1; m < 5; m++) {
+                sum -= normalMatrix[m * 5 + r] * tensor[m];
+            }
+            tensor[r] = sum / normalMatrix[r * 5 + r];
+        }
+        return true;
+    }
+
     /**
      * Saves SVD RDC results to a file.
      * 
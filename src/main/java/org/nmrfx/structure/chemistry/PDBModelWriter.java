@@ -0,0 +1,503 @@
+/*
+ * NMRFx Structure : A Program for Calculating Structures
+ * Copyright (C) 2004-2017 One Moon Scientific, Inc., Westfield, N.J., USA
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.nmrfx.structure.chemistry;
+
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.stream.IntStream;
+import org.nmrfx.structure.chemistry.SpatialSet.Coords;
+
+/**
+ * Writes the structures of a molecule in PDB format, with the same output as
+ * SpatialSet.toPDBString and SpatialSet.toTERString (as used by
+ * Molecule.writeXYZToPDBByAtom). The columns that don't change between
+ * structures (record, atom, residue and chain names, residue numbers,
+ * elements, the TER records and the CONECT partners) are formatted once, when
+ * the writer is created, so for each structure only the serial numbers,
+ * coordinates, occupancies and B factors are formatted, into a byte buffer.
+ * Structures are formatted in parallel into separate buffers, which are
+ * written in structure order.
+ *
+ * A writer is only valid while the topology of the molecule is unchanged, which
+ * can be checked with isCurrent.
+ *
+ * @author brucejohnson
+ */
+public class PDBModelWriter {
+
+    static final String FLOAT3_FORMAT = "%8.3f";
+    static final String FLOAT2_FORMAT = "%6.2f";
+    static final double ROUND_TOLERANCE = 1.0e-6;
+    static final double MAX_FAST_VALUE = 1.0e6;
+
+    final Molecule molecule;
+    final Charset charset = Charset.defaultCharset();
+    final List<Object> signature;
+    // the atoms written (all atoms that aren't coarse grained)
+    final Atom[] atoms;
+    final SpatialSet[] spatialSets;
+    final Entity[] topEntities;
+    final boolean[] hasElement;
+    final boolean[] isHetero;
+    final byte[][] atomHeads;
+    final byte[][] atomBodies;
+    final byte[][] atomTails;
+    final byte[][] terTails;
+    // for each hetero atom, indices of the bonded atoms with an element, or
+    // -1 - j for external atom j (atoms that aren't written, whose current
+    // iAtom value is used)
+    final int[][] connected;
+    final boolean[] hasConnected;
+    final Atom[] externalAtoms;
+    final boolean fastFormat;
+    boolean parallel = true;
+    int batchSize = 2 * Runtime.getRuntime().availableProcessors();
+
+    /**
+     * A buffer the records of one structure are formatted into.
+     */
+    static class ModelBuffer {
+
+        byte[] data;
+        int size = 0;
+        final int[] iAtoms;
+        final int[] conect = new int[8];
+        int[] partners = new int[8];
+
+        ModelBuffer(int nAtoms) {
+            data = new byte[Math.max(1024, nAtoms * 82)];
+            iAtoms = new int[nAtoms];
+        }
+
+        void ensure(int n) {
+            if (size + n > data.length) {
+                data = Arrays.copyOf(data, Math.max(data.length * 2, size + n));
+            }
+        }
+
+        void put(byte[] bytes) {
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, data, size, bytes.length);
+            size += bytes.length;
+        }
+
+        void put(byte value) {
+            ensure(1);
+            data[size++] = value;
+        }
+
+        void putSpaces(int n) {
+            ensure(n);
+            for (int i = 0; i < n; i++) {
+                data[size++] = ' ';
+            }
+        }
+
+        /**
+         * Append a non-negative integer right justified in a field (as with
+         * %5d).
+         */
+        void putInt(long value, int width) {
+            int nDigits = 1;
+            for (long v = value / 10; v > 0; v /= 10) {
+                nDigits++;
+            }
+            putSpaces(width - nDigits);
+            ensure(nDigits);
+            int pos = size + nDigits;
+            for (int i = 0; i < nDigits; i++) {
+                data[--pos] = (byte) ('0' + (value % 10));
+                value /= 10;
+            }
+            size += nDigits;
+        }
+
+        /**
+         * Append a fixed point value right justified in a field (as with
+         * %8.3f). Returns false, without appending anything, if the value
+         * can't be formatted exactly as String.format would (not finite, very
+         * large, or so near a rounding tie that the decimal digits
+         * String.format rounds from could round the other way).
+         */
+        boolean putFixed(double value, int width, int decimals, long scale) {
+            if (Double.isNaN(value) || Double.isInfinite(value)) {
+                return false;
+            }
+            double absValue = Math.abs(value);
+            if (absValue >= MAX_FAST_VALUE) {
+                return false;
+            }
+            double scaled = absValue * scale;
+            long units = (long) scaled;
+            double frac = scaled - units;
+            if (Math.abs(frac - 0.5) < ROUND_TOLERANCE) {
+                return false;
+            }
+            if (frac > 0.5) {
+                units++;
+            }
+            boolean negative = Double.doubleToRawLongBits(value) < 0;
+            long whole = units / scale;
+            long fraction = units % scale;
+            int nDigits = 1;
+            for (long v = whole / 10; v > 0; v /= 10) {
+                nDigits++;
+            }
+            int length = (negative ? 1 : 0) + nDigits + 1 + decimals;
+            putSpaces(width - length);
+            if (negative) {
+                put((byte) '-');
+            }
+            putInt(whole, 0);
+            put((byte) '.');
+            ensure(decimals);
+            int pos = size + decimals;
+            for (int i = 0; i < decimals; i++) {
+                data[--pos] = (byte) ('0' + (fraction % 10));
+                fraction /= 10;
+            }
+            size += decimals;
+            return true;
+        }
+    }
+
+    /**
+     * Create a writer for the current atoms of the molecule.
+     *
+     * @param molecule the molecule
+     */
+    public PDBModelWriter(Molecule molecule) {
+        this.molecule = molecule;
+        signature = getSignature(molecule);
+        List<Atom> atomList = new ArrayList<>();
+        for (Atom atom : molecule.atoms) {
+            if (!atom.isCoarse()) {
+                atomList.add(atom);
+            }
+        }
+        int nAtoms = atomList.size();
+        atoms = atomList.toArray(new Atom[nAtoms]);
+        spatialSets = new SpatialSet[nAtoms];
+        topEntities = new Entity[nAtoms];
+        hasElement = new boolean[nAtoms];
+        isHetero = new boolean[nAtoms];
+        atomHeads = new byte[nAtoms][];
+        atomBodies = new byte[nAtoms][];
+        atomTails = new byte[nAtoms][];
+        terTails = new byte[nAtoms][];
+        connected = new int[nAtoms][];
+        hasConnected = new boolean[nAtoms];
+        // if an atom occurs more than once its last iAtom value is used, so
+        // map it to its last index
+        Map<Atom, Integer> indices = new IdentityHashMap<>();
+        for (int i = 0; i < nAtoms; i++) {
+            indices.put(atoms[i], i);
+        }
+        List<Atom> external = new ArrayList<>();
+        Map<Atom, Integer> externalIndices = new IdentityHashMap<>();
+        for (int i = 0; i < nAtoms; i++) {
+            Atom atom = atoms[i];
+            SpatialSet spSet = atom.spatialSet;
+            spatialSets[i] = spSet;
+            topEntities[i] = atom.getTopEntity();
+            String eName = atom.getElementName();
+            hasElement[i] = eName != null;
+            isHetero[i] = !(atom.entity instanceof Residue) || !((Residue) atom.entity).isStandard();
+            String resName = ((Compound) atom.entity).name;
+            if (resName.length() > 3) {
+                resName = resName.substring(0, 3);
+            }
+            char chainID = ' ';
+            if (atom.entity instanceof Residue) {
+                String polymerName = ((Residue) atom.entity).polymer.getName();
+                chainID = polymerName.charAt(0);
+            }
+            String residue = String.format("%3s", resName) + ' ' + chainID
+                    + String.format("%4s", (((Compound) atom.entity).number));
+            terTails[i] = (' ' + String.format("%-4s", " ") + ' ' + residue
+                    + "                                                    \n").getBytes(charset);
+            if (eName != null) {
+                String aname = atom.name;
+                if (eName.length() == 1) {
+                    if (eName.equals("H")) {
+                        if (aname.length() <= 3) {
+                            aname = ' ' + aname;
+                        }
+                    } else {
+                        aname = ' ' + aname;
+                    }
+                }
+                atomHeads[i] = (isHetero[i] ? "HETATM" : "ATOM  ").getBytes(charset);
+                atomBodies[i] = (' ' + String.format("%-4s", aname) + ' ' + residue + "    ").getBytes(charset);
+                atomTails[i] = ("      " + "    " + String.format("%2s", eName) + "\n").getBytes(charset);
+                if (isHetero[i]) {
+                    List<Atom> bondedAtoms = atom.getConnected();
+                    hasConnected[i] = !bondedAtoms.isEmpty();
+                    List<Integer> partners = new ArrayList<>();
+                    for (Atom bAtom2 : bondedAtoms) {
+                        if (bAtom2.getElementName() != null) {
+                            Integer index = indices.get(bAtom2);
+                            if (index == null) {
+                                index = externalIndices.get(bAtom2);
+                                if (index == null) {
+                                    index = -1 - external.size();
+                                    external.add(bAtom2);
+                                    externalIndices.put(bAtom2, index);
+                                }
+                            }
+                            partners.add(index);
+                        }
+                    }
+                    connected[i] = partners.stream().mapToInt(Integer::intValue).toArray();
+                }
+            }
+        }
+        externalAtoms = external.toArray(new Atom[external.size()]);
+        // the fast formatting assumes '.' as decimal separator and ASCII digits
+        fastFormat = String.format(FLOAT3_FORMAT, -1234.5).equals("-1234.500")
+                && String.format("%5d", 1234567890).equals("1234567890");
+    }
+
+    /**
+     * Get the values the records depend on, other than the coordinates.
+     */
+    static List<Object> getSignature(Molecule molecule) {
+        List<Object> values = new ArrayList<>();
+        for (Atom atom : molecule.atoms) {
+            values.add(atom);
+            values.add(atom.name);
+            values.add(atom.entity);
+            values.add(atom.getElementName());
+            if (atom.entity instanceof Compound) {
+                values.add(((Compound) atom.entity).name);
+                values.add(((Compound) atom.entity).number);
+            }
+            if (atom.entity instanceof Residue) {
+                Residue residue = (Residue) atom.entity;
+                values.add(residue.polymer);
+                values.add(residue.polymer.getName());
+                values.add(residue.isStandard());
+            }
+            values.add(atom.bonds.size());
+            for (Atom partner : atom.getConnected()) {
+                values.add(partner);
+                values.add(partner.getElementName());
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Check whether the writer still matches the atoms of the molecule (their
+     * names, residues, elements and bonds).
+     *
+     * @return true if the writer can be used
+     */
+    public boolean isCurrent() {
+        List<Object> current = getSignature(molecule);
+        if (current.size() != signature.size()) {
+            return false;
+        }
+        for (int i = 0; i < current.size(); i++) {
+            if (!Objects.equals(current.get(i), signature.get(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public void setParallel(boolean value) {
+        parallel = value;
+    }
+
+    /**
+     * Set the number of structures formatted (in parallel) before they are
+     * written. Larger batches use more memory.
+     *
+     * @param value the number of structures
+     */
+    public void setBatchSize(int value) {
+        batchSize = Math.max(1, value);
+    }
+
+    /**
+     * Write structures to a file.
+     *
+     * @param fileName the name of the file
+     * @param structures the structures to write, in order
+     * @throws IOException if the file can't be written
+     */
+    public void write(String fileName, int[] structures) throws IOException {
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(fileName), 1 << 16)) {
+            write(out, structures);
+        }
+    }
+
+    /**
+     * Write structures to a stream. As with the atom by atom writer, the
+     * iAtom field of the atoms is left with the (zero based) serial numbers
+     * of the last structure written.
+     *
+     * @param out the stream
+     * @param structures the structures to write, in order
+     * @throws IOException if the stream can't be written
+     */
+    public void write(OutputStream out, int[] structures) throws IOException {
+        int nStructures = structures.length;
+        if (nStructures == 0) {
+            return;
+        }
+        // the TER record at the start of a structure depends on the last
+        // atom written in the previous ones
+        int[] startLast = new int[nStructures];
+        int lastAtom = -1;
+        for (int k = 0; k < nStructures; k++) {
+            startLast[k] = lastAtom;
+            int last = getLastAtom(structures[k]);
+            if (last >= 0) {
+                lastAtom = last;
+            }
+            if (lastAtom < 0) {
+                throw new IllegalStateException("No atoms with coordinates in structure " + structures[k]);
+            }
+        }
+        int nBuffers = Math.min(batchSize, nStructures);
+        ModelBuffer[] buffers = new ModelBuffer[nBuffers];
+        for (int i = 0; i < nBuffers; i++) {
+            buffers[i] = new ModelBuffer(atoms.length);
+        }
+        ModelBuffer lastBuffer = null;
+        for (int start = 0; start < nStructures; start += nBuffers) {
+            int first = start;
+            int n = Math.min(nBuffers, nStructures - start);
+            IntStream range = IntStream.range(0, n);
+            if (parallel && (n > 1)) {
+                range = range.parallel();
+            }
+            range.forEach(k -> formatStructure(buffers[k], structures[first + k], startLast[first + k]));
+            for (int k = 0; k < n; k++) {
+                out.write(buffers[k].data, 0, buffers[k].size);
+            }
+            lastBuffer = buffers[n - 1];
+        }
+        for (int i = 0; i < atoms.length; i++) {
+            atoms[i].iAtom = lastBuffer.iAtoms[i];
+        }
+    }
+
+    int getLastAtom(int iStruct) {
+        for (int i = atoms.length - 1; i >= 0; i--) {
+            if (hasElement[i] && (spatialSets[i].getCoords(iStruct) != null)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    void formatStructure(ModelBuffer buffer, int iStruct, int lastAtom) {
+        buffer.size = 0;
+        int[] iAtoms = buffer.iAtoms;
+        int nHetero = 0;
+        int[] hetero = buffer.partners;
+        int i = 0;
+        for (int j = 0; j < atoms.length; j++) {
+            iAtoms[j] = i;
+            if (!hasElement[j]) {
+                continue;
+            }
+            Coords coord = spatialSets[j].getCoords(iStruct);
+            if (coord == null) {
+                continue;
+            }
+            if ((lastAtom >= 0) && (topEntities[j] != topEntities[lastAtom])) {
+                formatTER(buffer, lastAtom, i + 1);
+                i++;
+            }
+            if (isHetero[j]) {
+                if (nHetero == hetero.length) {
+                    hetero = Arrays.copyOf(hetero, hetero.length * 2);
+                }
+                hetero[nHetero++] = j;
+            }
+            buffer.put(atomHeads[j]);
+            putInteger(buffer, i + 1, 5);
+            buffer.put(atomBodies[j]);
+            putFixed(buffer, coord.pt.getX(), 8, 3, 1000, FLOAT3_FORMAT);
+            putFixed(buffer, coord.pt.getY(), 8, 3, 1000, FLOAT3_FORMAT);
+            putFixed(buffer, coord.pt.getZ(), 8, 3, 1000, FLOAT3_FORMAT);
+            putFixed(buffer, coord.occupancy, 6, 2, 100, FLOAT2_FORMAT);
+            putFixed(buffer, coord.bfactor, 6, 2, 100, FLOAT2_FORMAT);
+            buffer.put(atomTails[j]);
+            i++;
+            lastAtom = j;
+        }
+        formatTER(buffer, lastAtom, i + 1);
+        buffer.partners = hetero;
+        for (int k = 0; k < nHetero; k++) {
+            int j = hetero[k];
+            if (!hasConnected[j]) {
+                continue;
+            }
+            int[] partners = connected[j];
+            int[] values = partners.length <= buffer.conect.length ? buffer.conect : new int[partners.length];
+            for (int m = 0; m < partners.length; m++) {
+                int index = partners[m];
+                values[m] = index >= 0 ? iAtoms[index] : externalAtoms[-1 - index].iAtom;
+            }
+            Arrays.sort(values, 0, partners.length);
+            buffer.put(CONECT);
+            putInteger(buffer, iAtoms[j] + 1L, 5);
+            for (int m = 0; m < partners.length; m++) {
+                putInteger(buffer, values[m] + 1L, 5);
+            }
+            buffer.put((byte) '\n');
+        }
+    }
+
+    static final byte[] CONECT = {'C', 'O', 'N', 'E', 'C', 'T'};
+    static final byte[] TER = {'T', 'E', 'R', ' ', ' ', ' '};
+
+    void formatTER(ModelBuffer buffer, int atom, int serial) {
+        buffer.put(TER);
+        putInteger(buffer, serial, 5);
+        buffer.put(terTails[atom]);
+    }
+
+    void putInteger(ModelBuffer buffer, long value, int width) {
+        if (fastFormat && (value >= 0)) {
+            buffer.putInt(value, width);
+        } else {
+            buffer.put(String.format("%" + width + "d", value).getBytes(charset));
+        }
+    }
+
+    void putFixed(ModelBuffer buffer, double value, int width, int decimals, long scale, String format) {
+        if (!fastFormat || !buffer.putFixed(value, width, decimals, scale)) {
+            buffer.put(String.format(format, value).getBytes(charset));
+        }
+    }
+}
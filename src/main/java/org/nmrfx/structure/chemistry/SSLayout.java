@@ -7,6 +7,8 @@ package org.nmrfx.structure.chemistry;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 import org.apache.commons.math3.optim.nonlinear.scalar.noderiv.CMAESOptimizer;
 import org.apache.commons.math3.optim.SimpleValueChecker;
 import org.apache.commons.math3.random.RandomGenerator;
@@ -55,6 +57,12 @@ public class SSLayout implements MultivariateFunction {
     int nLoops = 0;
     List<List<String>> sequences;
     public static final RandomGenerator DEFAULT_RANDOMGENERATOR = new MersenneTwister(1);
+    // value() uses the cell grid when at least this many nucleotides are
+    // active, and compares all pairs otherwise
+    static int gridThreshold = 48;
+    private int[] gridHeads = new int[0];
+    private int[] gridNext = new int[0];
+    private int[] gridCandidates = new int[0];
 
     public SSLayout(int... nValues) {
         int n = 0;
@@ -96,6 +104,36 @@ public class SSLayout implements MultivariateFunction {
         }
     }
 
+    /**
+     * Create a layout that shares the base pairing of another one, and has
+     * its own copy of everything the refinement changes, so that several
+     * refinements can run at once.
+     */
+    private SSLayout(SSLayout layout) {
+        nNuc = layout.nNuc;
+        nucChain = layout.nucChain;
+        interactions = layout.interactions;
+        basePairs = layout.basePairs.clone();
+        basePairs2 = layout.basePairs2.clone();
+        baseBondLength = layout.baseBondLength.clone();
+        values = layout.values.clone();
+        coords = new double[][]{layout.coords[0].clone(), layout.coords[1].clone()};
+        coordsSet = layout.coordsSet.clone();
+        angleTargets = layout.angleTargets.clone();
+        angleFixed = layout.angleFixed.clone();
+        angleRelations = layout.angleRelations.clone();
+        angleValues = layout.angleValues.clone();
+        nAngles = layout.nAngles.clone();
+        structureTypes = layout.structureTypes.clone();
+        ssClass = layout.ssClass.clone();
+        nFree = layout.nFree;
+        nSet = layout.nSet;
+        limit = layout.limit;
+        nHelices = layout.nHelices;
+        nLoops = layout.nLoops;
+        sequences = layout.sequences;
+    }
+
     public static SSLayout createLayout(Molecule mol) throws InvalidMoleculeException {
         List<List<String>> sequences = setupSequence(mol);
         int[] seqLens = new int[sequences.size()];
@@ -669,6 +707,158 @@ public class SSLayout implements MultivariateFunction {
 
     @Override
     public double value(final double[] pars) {
+        if (limit < gridThreshold) {
+            return valueAllPairs(pars);
+        }
+        getFullCoordinates(pars);
+        double sumPairError = 0.0;
+        for (int i = 0; i < limit; i++) {
+            if (basePairs[i] != -1) {
+                int j = basePairs[i];
+                if (j < limit) {
+                    if (i < j) {
+                        double x1 = values[i * 2];
+                        double y1 = values[i * 2 + 1];
+                        double x2 = values[j * 2];
+                        double y2 = values[j * 2 + 1];
+                        double deltaX = x2 - x1;
+                        double deltaY = y2 - y1;
+                        double distance = Math.sqrt(deltaX * deltaX + deltaY * deltaY);
+                        double delta = Math.abs(distance - targetPairDistance);
+                        sumPairError += delta * delta;
+                    }
+                }
+            }
+            if (basePairs2[i] != -1) {
+                int j = basePairs2[i];
+                if (j < limit) {
+                    double x1 = values[i * 2];
+                    double y1 = values[i * 2 + 1];
+                    double x2 = values[j * 2];
+                    double y2 = values[j * 2 + 1];
+                    double deltaX = x2 - x1;
+                    double deltaY = y2 - y1;
+                    double distance = Math.sqrt(deltaX * deltaX + deltaY * deltaY);
+                    double delta = Math.abs(distance - targetPair2Distance);
+                    sumPairError += delta * delta;
+                }
+            }
+        }
+        double sumNBError = 0.0;
+        int nIntersections = 0;
+        // crossings are only tested, and clashes only occur, for nucleotides
+        // closer than this, so only neighboring grid cells need be searched
+        double cellSize = Math.max(2 * targetSeqDistance, targetNBDistance);
+        int mask = fillGrid(cellSize);
+        for (int i = 0; i < limit; i++) {
+            double x1 = values[i * 2];
+            double y1 = values[i * 2 + 1];
+            int nCandidates = getGridCandidates(i, cellSize, mask);
+            boolean intersects = false;
+            int lastJ = -1;
+            for (int k = 0; k < nCandidates; k++) {
+                int j = gridCandidates[k];
+                if (j == lastJ) {
+                    continue;
+                }
+                lastJ = j;
+                double deltaX = values[j * 2] - x1;
+                double deltaY = values[j * 2 + 1] - y1;
+                double distance = Math.sqrt(deltaX * deltaX + deltaY * deltaY);
+                if ((distance < 2 * targetSeqDistance) && !intersects && (j < (limit - 1))) {
+                    if (nIntersections(i, j)) {
+                        intersects = true;
+                        nIntersections++;
+                    }
+                }
+                if (interactions[i][j] == 0) {
+                    if (distance < targetNBDistance) {
+                        double delta = Math.abs(distance - targetNBDistance);
+                        sumNBError += delta * delta;
+                    }
+                }
+            }
+        }
+        double sumAngle = 0.0;
+        double value = sumPairError + sumNBError + sumAngle + nIntersections * 100.0;
+        return value;
+    }
+
+    static int gridBucket(int cellX, int cellY, int mask) {
+        return ((cellX * 73856093) ^ (cellY * 19349663)) & mask;
+    }
+
+    /**
+     * Put the active nucleotides in a hashed grid of square cells. Each
+     * bucket holds its nucleotides in increasing order.
+     *
+     * @return the mask used to get the bucket of a cell
+     */
+    private int fillGrid(double cellSize) {
+        int nBuckets = Integer.highestOneBit(Math.max(limit, 2) * 2);
+        if (gridHeads.length < nBuckets) {
+            gridHeads = new int[nBuckets];
+        }
+        if (gridNext.length < nNuc) {
+            gridNext = new int[nNuc];
+            gridCandidates = new int[nNuc];
+        }
+        int mask = nBuckets - 1;
+        Arrays.fill(gridHeads, 0, nBuckets, -1);
+        for (int i = limit - 1; i >= 0; i--) {
+            int cellX = (int) Math.floor(values[i * 2] / cellSize);
+            int cellY = (int) Math.floor(values[i * 2 + 1] / cellSize);
+            int bucket = gridBucket(cellX, cellY, mask);
+            gridNext[i] = gridHeads[bucket];
+            gridHeads[bucket] = i;
+        }
+        return mask;
+    }
+
+    /**
+     * Get the nucleotides, from i + 3 on, that are closer to nucleotide i
+     * than the cell size. They are sorted so that they are compared in the
+     * same order as in valueAllPairs, but may contain duplicates when cells
+     * share a bucket.
+     *
+     * @return the number of candidates in gridCandidates
+     */
+    private int getGridCandidates(int i, double cellSize, int mask) {
+        double x1 = values[i * 2];
+        double y1 = values[i * 2 + 1];
+        int cellX = (int) Math.floor(x1 / cellSize);
+        int cellY = (int) Math.floor(y1 / cellSize);
+        int nCandidates = 0;
+        for (int dX = -1; dX <= 1; dX++) {
+            for (int dY = -1; dY <= 1; dY++) {
+                int j = gridHeads[gridBucket(cellX + dX, cellY + dY, mask)];
+                for (; j != -1; j = gridNext[j]) {
+                    if (j < i + 3) {
+                        continue;
+                    }
+                    double deltaX = values[j * 2] - x1;
+                    double deltaY = values[j * 2 + 1] - y1;
+                    if (deltaX * deltaX + deltaY * deltaY < cellSize * cellSize) {
+                        if (nCandidates == gridCandidates.length) {
+                            gridCandidates = Arrays.copyOf(gridCandidates, nCandidates * 2);
+                        }
+                        gridCandidates[nCandidates++] = j;
+                    }
+                }
+            }
+        }
+        Arrays.sort(gridCandidates, 0, nCandidates);
+        return nCandidates;
+    }
+
+    /**
+     * Calculate the layout error, comparing every pair of nucleotides for
+     * crossings and clashes. value gives the same result.
+     *
+     * @param pars the free angles
+     * @return the error
+     */
+    public double valueAllPairs(final double[] pars) {
         getFullCoordinates(pars);
         double sumPairError = 0.0;
         double sumNBError = 0.0;
@@ -767,6 +957,24 @@ public class SSLayout implements MultivariateFunction {
     }
 
     public PointValuePair refineCMAES(int nSteps, double stopFitness, final double sigma, final double lambdaMul, final int diagOnly) {
+        return refineCMAES(nSteps, stopFitness, sigma, lambdaMul, diagOnly, DEFAULT_RANDOMGENERATOR, 1);
+    }
+
+    /**
+     * Refine the layout with CMA-ES, using a specified random generator.
+     *
+     * @param nSteps the maximum number of iterations
+     * @param stopFitness the value at which to stop
+     * @param sigma not used, the step sizes are set from the boundaries
+     * @param lambdaMul multiplier of the default population size
+     * @param diagOnly number of iterations using only the covariance
+     * diagonal
+     * @param random the random generator
+     * @param seed the seed the generator is reset to at each stage
+     * @return the best angles and their value
+     */
+    public PointValuePair refineCMAES(int nSteps, double stopFitness, final double sigma, final double lambdaMul, final int diagOnly,
+            RandomGenerator random, int seed) {
         setBoundaries(0.1);
         double[] guess = new double[nFree];
         for (int i = 0; i < guess.length; i++) {
@@ -787,7 +995,7 @@ public class SSLayout implements MultivariateFunction {
                     stopFitness = stopFitness / 12.0;
                     nSteps = nSteps * 4;
                 }
-                DEFAULT_RANDOMGENERATOR.setSeed(1);
+                random.setSeed(seed);
                 if (nAngles[limit - 3] == 0) {
                     continue;
                 }
@@ -813,7 +1021,7 @@ public class SSLayout implements MultivariateFunction {
                 int lambda = (int) (lambdaMul * FastMath.round(4 + 3 * FastMath.log(lguess.length)));
 
                 CMAESOptimizer optimizer = new CMAESOptimizer(nSteps, stopFitness, true, diagOnly, 0,
-                        DEFAULT_RANDOMGENERATOR, true,
+                        random, true,
                         new SimpleValueChecker(100 * Precision.EPSILON, 100 * Precision.SAFE_MIN));
 
                 try {
@@ -846,6 +1054,43 @@ public class SSLayout implements MultivariateFunction {
         getFullCoordinates(result.getPoint());
     }
 
+    /**
+     * Calculate the layout with several CMA-ES refinements run at once,
+     * each with its own random seed, and keep the best. The first uses the
+     * same seed as calcLayout(nSteps), so the result is never worse.
+     *
+     * @param nSteps the maximum number of iterations of each refinement
+     * @param nStarts the number of refinements
+     */
+    public void calcLayout(int nSteps, int nStarts) {
+        setBoundaries(0.1);
+        List<PointValuePair> results = IntStream.range(0, nStarts).parallel().mapToObj(iStart -> {
+            SSLayout layout = new SSLayout(this);
+            return layout.refineCMAES(nSteps, 0.0, 0.5, 1.0, 0, new MersenneTwister(iStart + 1), iStart + 1);
+        }).collect(Collectors.toList());
+        PointValuePair best = null;
+        for (PointValuePair result : results) {
+            if ((best == null) || (result.getValue() < best.getValue())) {
+                best = result;
+            }
+        }
+        if (best != null) {
+            getFullCoordinates(best.getPoint());
+        }
+    }
+
+    /**
+     * Calculate the layouts of a set of molecules in parallel.
+     *
+     * @param layouts the layouts, which must not share base pairs being
+     * changed
+     * @param nSteps the maximum number of iterations of each refinement
+     * @param nStarts the number of refinements of each layout
+     */
+    public static void calcLayouts(List<SSLayout> layouts, int nSteps, int nStarts) {
+        layouts.parallelStream().forEach(layout -> layout.calcLayout(nSteps, nStarts));
+    }
+
     public void dumpCoordinates(double[] pars) {
         getFullCoordinates(pars);
     }
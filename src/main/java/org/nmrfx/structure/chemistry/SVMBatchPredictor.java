@@ -0,0 +1,288 @@
+/*
+ * NMRFx Structure : A Program for Calculating Structures
+ * Copyright (C) 2004-2017 One Moon Scientific, Inc., Westfield, N.J., USA
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.nmrfx.structure.chemistry;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.IntStream;
+import libsvm.svm;
+import libsvm.svm_model;
+import libsvm.svm_node;
+import libsvm.svm_parameter;
+
+/**
+ * Shift prediction with the RNA support vector regression models, for
+ * batches of attribute vectors. Each model is loaded once, into a cache
+ * shared by all predictors, and the support vectors of RBF regression models
+ * are stored as compressed arrays of their non-zero values. Since the
+ * attributes are mostly zero, the kernel only needs to visit the non-zero
+ * values of the attributes and of each support vector. The terms are summed
+ * in the same order as by libsvm, and zero terms do not change the sums, so
+ * the predictions are identical to those of svm.svm_predict. Other model
+ * types are passed to libsvm, with node arrays reused by each thread.
+ *
+ * The vectors of a batch are predicted in parallel.
+ *
+ * @author brucejohnson
+ */
+public class SVMBatchPredictor {
+
+    static final String MODEL_PREFIX = "data/rnasvm/svr_in_";
+    static final String MODEL_SUFFIX = ".txt.trim.model";
+    static final Map<String, Model> MODELS = new ConcurrentHashMap<>();
+    static int parallelThreshold = 32;
+
+    static final ThreadLocal<Buffers> BUFFERS = ThreadLocal.withInitial(Buffers::new);
+
+    /**
+     * Attribute and node buffers owned by one thread.
+     */
+    static class Buffers {
+
+        int[] indices = new int[0];
+        double[] values = new double[0];
+        svm_node[] nodes = new svm_node[0];
+
+        void ensureSize(int size) {
+            if (indices.length < size) {
+                indices = new int[size];
+                values = new double[size];
+            }
+        }
+
+        svm_node[] getNodes(int size) {
+            if (nodes.length != size) {
+                nodes = new svm_node[size];
+                for (int i = 0; i < size; i++) {
+                    nodes[i] = new svm_node();
+                }
+            }
+            return nodes;
+        }
+    }
+
+    /**
+     * An immutable model. RBF regression models have their support vectors
+     * in compressed sparse row form.
+     */
+    static class Model {
+
+        final svm_model svmModel;
+        final boolean rbfRegression;
+        final double gamma;
+        final double rho;
+        final double[] coefs;
+        final int[] svStarts;
+        final int[] svIndices;
+        final double[] svValues;
+
+        Model(svm_model svmModel) {
+            this.svmModel = svmModel;
+            svm_parameter param = svmModel.param;
+            rbfRegression = (param.kernel_type == svm_parameter.RBF)
+                    && ((param.svm_type == svm_parameter.EPSILON_SVR) || (param.svm_type == svm_parameter.NU_SVR));
+            gamma = param.gamma;
+            rho = svmModel.rho[0];
+            int nSV = svmModel.l;
+            coefs = svmModel.sv_coef[0].clone();
+            svStarts = new int[nSV + 1];
+            int nValues = 0;
+            for (int i = 0; i < nSV; i++) {
+                for (svm_node node : svmModel.SV[i]) {
+                    if (node.value != 0.0) {
+                        nValues++;
+                    }
+                }
+            }
+            svIndices = new int[nValues];
+            svValues = new double[nValues];
+            int k = 0;
+            for (int i = 0; i < nSV; i++) {
+                svStarts[i] = k;
+                for (svm_node node : svmModel.SV[i]) {
+                    if (node.value != 0.0) {
+                        svIndices[k] = node.index;
+                        svValues[k] = node.value;
+                        k++;
+                    }
+                }
+            }
+            svStarts[nSV] = k;
+        }
+
+        /**
+         * Predict from the non-zero attributes, with the kernel summation of
+         * libsvm's Kernel.k_function.
+         */
+        double predictRBF(int[] xIndices, double[] xValues, int xLen) {
+            double sum = 0.0;
+            for (int iSV = 0, nSV = coefs.length; iSV < nSV; iSV++) {
+                double dis2 = 0.0;
+                int i = 0;
+                int j = svStarts[iSV];
+                int jEnd = svStarts[iSV + 1];
+                while ((i < xLen) && (j < jEnd)) {
+                    if (xIndices[i] == svIndices[j]) {
+                        double d = xValues[i++] - svValues[j++];
+                        dis2 += d * d;
+                    } else if (xIndices[i] > svIndices[j]) {
+                        dis2 += svValues[j] * svValues[j];
+                        j++;
+                    } else {
+                        dis2 += xValues[i] * xValues[i];
+                        i++;
+                    }
+                }
+                while (i < xLen) {
+                    dis2 += xValues[i] * xValues[i];
+                    i++;
+                }
+                while (j < jEnd) {
+                    dis2 += svValues[j] * svValues[j];
+                    j++;
+                }
+                sum += coefs[iSV] * Math.exp(-gamma * dis2);
+            }
+            sum -= rho;
+            return sum;
+        }
+
+        double predict(double[] attributes) {
+            Buffers buffers = BUFFERS.get();
+            if (rbfRegression) {
+                buffers.ensureSize(attributes.length);
+                int xLen = 0;
+                for (int j = 0; j < attributes.length; j++) {
+                    if (attributes[j] != 0.0) {
+                        buffers.indices[xLen] = j + 1;
+                        buffers.values[xLen] = attributes[j];
+                        xLen++;
+                    }
+                }
+                return predictRBF(buffers.indices, buffers.values, xLen);
+            } else {
+                svm_node[] x = buffers.getNodes(attributes.length);
+                for (int j = 0; j < attributes.length; j++) {
+                    x[j].index = j + 1;
+                    x[j].value = attributes[j];
+                }
+                return svm.svm_predict(svmModel, x);
+            }
+        }
+    }
+
+    static Model loadModel(String atomName) {
+        InputStream modelStream = ClassLoader.getSystemResourceAsStream(MODEL_PREFIX + atomName + MODEL_SUFFIX);
+        if (modelStream == null) {
+            throw new IllegalArgumentException("No model for " + atomName);
+        }
+        try (BufferedReader modelReader = new BufferedReader(new InputStreamReader(modelStream))) {
+            return new Model(svm.svm_load_model(modelReader));
+        } catch (IOException ioE) {
+            throw new IllegalArgumentException("Can't load model for " + atomName + " " + ioE.getMessage());
+        }
+    }
+
+    static Model getModel(String atomName) {
+        return MODELS.computeIfAbsent(atomName, SVMBatchPredictor::loadModel);
+    }
+
+    /**
+     * Get the libsvm model for an atom, loading it if necessary.
+     *
+     * @param atomName the atom name, for example AH8
+     * @return the model
+     * @throws IllegalArgumentException if there is no model for the atom
+     */
+    public static svm_model getSVMModel(String atomName) {
+        return getModel(atomName).svmModel;
+    }
+
+    /**
+     * Load the models for a set of atoms, so they are ready before a
+     * refinement starts.
+     *
+     * @param atomNames the atom names
+     */
+    public static void preload(Collection<String> atomNames) {
+        atomNames.parallelStream().forEach(SVMBatchPredictor::getModel);
+    }
+
+    public static void clearCache() {
+        MODELS.clear();
+    }
+
+    /**
+     * Predict the shift of one atom.
+     *
+     * @param atomName the atom name
+     * @param attributes the attribute values, for indices 1 to n
+     * @return the predicted shift
+     */
+    public static double predict(String atomName, double[] attributes) {
+        return getModel(atomName).predict(attributes);
+    }
+
+    /**
+     * Predict the shifts of one atom type for a batch of attribute vectors,
+     * for example for each residue of each model of an ensemble.
+     *
+     * @param atomName the atom name
+     * @param attributes the attribute values of each vector
+     * @return the predicted shift for each vector
+     */
+    public static double[] predict(String atomName, double[][] attributes) {
+        Model model = getModel(atomName);
+        double[] result = new double[attributes.length];
+        IntStream rows = IntStream.range(0, attributes.length);
+        if (attributes.length >= parallelThreshold) {
+            rows = rows.parallel();
+        }
+        rows.forEach(i -> result[i] = model.predict(attributes[i]));
+        return result;
+    }
+
+    /**
+     * Predict the shifts of a batch of atoms of mixed types.
+     *
+     * @param atomNames the atom name of each vector
+     * @param attributes the attribute values of each vector
+     * @return the predicted shift for each vector
+     */
+    public static double[] predict(String[] atomNames, double[][] attributes) {
+        if (atomNames.length != attributes.length) {
+            throw new IllegalArgumentException("Arguments don't have same length");
+        }
+        Model[] models = new Model[atomNames.length];
+        for (int i = 0; i < atomNames.length; i++) {
+            models[i] = getModel(atomNames[i]);
+        }
+        double[] result = new double[attributes.length];
+        IntStream rows = IntStream.range(0, attributes.length);
+        if (attributes.length >= parallelThreshold) {
+            rows = rows.parallel();
+        }
+        rows.forEach(i -> result[i] = models[i].predict(attributes[i]));
+        return result;
+    }
+}
@@ -23,21 +23,19 @@ import java.util.*;
 
 public class SVMPredict {
 
-    HashMap<String, svm_model> models = new HashMap<String, svm_model>();
-
+    /**
+     * Get the model for an atom, from the cache shared with
+     * SVMBatchPredictor.
+     *
+     * @param atomName the atom name
+     * @return the model, or null if it can't be loaded
+     */
     public svm_model getModel(String atomName) {
-        if (!models.containsKey(atomName)) {
-            InputStream modelStream = this.getClass().getClassLoader().getSystemResourceAsStream("data/rnasvm/svr_in_" + atomName + ".txt.trim.model");
-            BufferedReader modelReader = new BufferedReader(new InputStreamReader(modelStream));
-            svm_model model;
-            try {
-                model = svm.svm_load_model(modelReader);
-            } catch (IOException ioE) {
-                return null;
-            }
-            models.put(atomName, model);
+        try {
+            return SVMBatchPredictor.getSVMModel(atomName);
+        } catch (IllegalArgumentException iaE) {
+            return null;
         }
-        return models.get(atomName);
     }
 
     private static double atof(String s) {
@@ -49,20 +47,15 @@ public class SVMPredict {
     }
 
     public double predict(String atomName, double[] attributes) throws IllegalArgumentException {
-        int m = attributes.length;
-        svm_node[] x = new svm_node[m];
-        for (int j = 0; j < m; j++) {
-            x[j] = new svm_node();
-            x[j].index = j + 1;
-            x[j].value = attributes[j];
-        }
-        svm_model model = getModel(atomName);
-        if (model == null) {
-            throw new IllegalArgumentException("No model for " + atomName);
-        }
-        double v = svm.svm_predict(model, x);
-        return v;
+        return SVMBatchPredictor.predict(atomName, attributes);
+    }
+
+    public double[] predict(String atomName, double[][] attributes) throws IllegalArgumentException {
+        return SVMBatchPredictor.predict(atomName, attributes);
+    }
 
+    public double[] predict(String[] atomNames, double[][] attributes) throws IllegalArgumentException {
+        return SVMBatchPredictor.predict(atomNames, attributes);
     }
 
     private static void predict(BufferedReader input, DataOutputStream output, svm_model model) throws IOException {
@@ -266,4 +266,13 @@ public class SuperMol {
 
         return;
     }
+
+    /**
+     * Get the RMS deviation of the last superposition.
+     *
+     * @return the RMS deviation
+     */
+    public double getRMS() {
+        return rms;
+    }
 }
@@ -0,0 +1,254 @@
+/*
+ * NMRFx Structure : A Program for Calculating Structures
+ * Copyright (C) 2004-2017 One Moon Scientific, Inc., Westfield, N.J., USA
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.nmrfx.structure.chemistry.energy;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.nmrfx.structure.chemistry.Atom;
+import org.nmrfx.structure.chemistry.Bond;
+
+/**
+ * Cache of the torsion trees built by AngleTreeGenerator, keyed by a hash of
+ * the topology the tree depends on (the atoms, their bonds in order, which
+ * bonds are ring closures, and the start and end atoms). A tree is stored as
+ * the sequence of steps genTree takes: the ring closures it marks (which
+ * become non-rotatable), and the order of the atoms in each branch. Replaying
+ * the steps gives the same tree without searching the bond graph, and any
+ * change to the topology changes the key, so stale trees are never used.
+ *
+ * Trees are kept in memory, and if a directory is set (with setDirectory or
+ * the nmrfx.treecache system property) also written there in a compact
+ * binary form, so other processes (such as the ones calculating each
+ * structure) can read them.
+ *
+ * @author brucejohnson
+ */
+public class AngleTreeCache {
+
+    static final int MAGIC = 0x4e465454;
+    static final int VERSION = 1;
+    static final String SUFFIX = ".tree";
+    // step types
+    static final int CLOSURE = 0;
+    static final int ROOT = 1;
+    static final int BRANCH_ATOM = 2;
+    static final int NEW_BRANCH_ATOM = 3;
+    static final int STEP_SIZE = 5;
+
+    private static final Map<Long, Tree> TREES = new ConcurrentHashMap<>();
+    private static volatile boolean enabled = true;
+    private static volatile File directory = initDirectory();
+
+    /**
+     * The steps of one tree. Each step has a type and the indices of atom3,
+     * its parent atom2, and (for the first atom of a branch) atom1 and
+     * atom0, with -1 for missing atoms.
+     */
+    public static class Tree {
+
+        final long key;
+        final int nAtoms;
+        final int[] steps;
+
+        Tree(long key, int nAtoms, int[] steps) {
+            this.key = key;
+            this.nAtoms = nAtoms;
+            this.steps = steps;
+        }
+
+        public int getNSteps() {
+            return steps.length / STEP_SIZE;
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(key);
+            out.writeInt(nAtoms);
+            out.writeInt(steps.length);
+            for (int value : steps) {
+                out.writeInt(value);
+            }
+        }
+
+        static Tree read(DataInputStream in) throws IOException {
+            if ((in.readInt() != MAGIC) || (in.readInt() != VERSION)) {
+                return null;
+            }
+            long key = in.readLong();
+            int nAtoms = in.readInt();
+            int nValues = in.readInt();
+            if ((nValues < 0) || ((nValues % STEP_SIZE) != 0)) {
+                return null;
+            }
+            int[] steps = new int[nValues];
+            for (int i = 0; i < nValues; i++) {
+                steps[i] = in.readInt();
+                if ((i % STEP_SIZE) == 0) {
+                    if ((steps[i] < CLOSURE) || (steps[i] > NEW_BRANCH_ATOM)) {
+                        return null;
+                    }
+                } else if ((steps[i] < -1) || (steps[i] >= nAtoms)) {
+                    return null;
+                }
+            }
+            return new Tree(key, nAtoms, steps);
+        }
+    }
+
+    private static File initDirectory() {
+        String dirName = System.getProperty("nmrfx.treecache");
+        return dirName == null ? null : new File(dirName);
+    }
+
+    /**
+     * Set the directory the trees are saved in.
+     *
+     * @param dir the directory, or null to only keep trees in memory
+     */
+    public static void setDirectory(File dir) {
+        directory = dir;
+    }
+
+    public static File getDirectory() {
+        return directory;
+    }
+
+    public static void setEnabled(boolean state) {
+        enabled = state;
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    public static void clear() {
+        TREES.clear();
+    }
+
+    /**
+     * Calculate the key of a tree, a 64 bit FNV-1a hash of the topology.
+     *
+     * @param atoms the atoms, in the order of the tree's atom indices
+     * @param indices the index of each atom
+     * @param startIndex the index of the start atom
+     * @param endIndex the index of the end atom, -1 if none was specified or
+     * -2 if it isn't in the atoms
+     * @return the key
+     */
+    static long topologyKey(List<Atom> atoms, Map<Atom, Integer> indices, int startIndex, int endIndex) {
+        long hash = 0xcbf29ce484222325L;
+        hash = mix(hash, atoms.size());
+        hash = mix(hash, startIndex);
+        hash = mix(hash, endIndex);
+        for (Atom atom : atoms) {
+            hash = mix(hash, atom.getAtomicNumber());
+            hash = mix(hash, atom.bonds.size());
+            for (Bond bond : atom.bonds) {
+                hash = mix(hash, indices.getOrDefault(bond.begin, -1));
+                hash = mix(hash, indices.getOrDefault(bond.end, -1));
+                hash = mix(hash, bond.isRingClosure() ? 1 : 0);
+            }
+        }
+        return hash;
+    }
+
+    static long mix(long hash, int value) {
+        for (int i = 0; i < 4; i++) {
+            hash ^= (value >>> (8 * i)) & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    static File getFile(File dir, long key) {
+        return new File(dir, String.format("%016x", key) + SUFFIX);
+    }
+
+    /**
+     * Get a cached tree, from memory or from the cache directory.
+     *
+     * @param key the topology key
+     * @param nAtoms the number of atoms
+     * @return the tree, or null if there isn't one for the key
+     */
+    static Tree get(long key, int nAtoms) {
+        if (!enabled) {
+            return null;
+        }
+        Tree tree = TREES.get(key);
+        File dir = directory;
+        if ((tree == null) && (dir != null)) {
+            File file = getFile(dir, key);
+            if (file.canRead()) {
+                try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+                    tree = Tree.read(in);
+                } catch (IOException ioE) {
+                    tree = null;
+                }
+                if (tree != null) {
+                    TREES.put(key, tree);
+                }
+            }
+        }
+        if ((tree != null) && ((tree.key != key) || (tree.nAtoms != nAtoms))) {
+            tree = null;
+        }
+        return tree;
+    }
+
+    /**
+     * Add a tree to the cache, saving it in the cache directory if one is
+     * set.
+     *
+     * @param tree the tree
+     */
+    static void put(Tree tree) {
+        if (!enabled) {
+            return;
+        }
+        TREES.put(tree.key, tree);
+        File dir = directory;
+        if (dir != null) {
+            File file = getFile(dir, tree.key);
+            if (!file.exists() && (dir.isDirectory() || dir.mkdirs())) {
+                // write to a temporary file and rename, so readers in other
+                // processes never see a partial tree
+                File tmpFile = new File(dir, file.getName() + "." + System.nanoTime() + ".tmp");
+                try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)))) {
+                    tree.write(out);
+                } catch (IOException ioE) {
+                    tmpFile.delete();
+                    return;
+                }
+                if (!tmpFile.renameTo(file)) {
+                    tmpFile.delete();
+                }
+            }
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package org.nmrfx.structure.chemistry.energy;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -67,9 +68,18 @@ public class AngleTreeGenerator {
         return startAtom;
     }
 
+    /**
+     * Generate the torsion tree of the atoms. The branch order and ring
+     * closures are taken from the AngleTreeCache if a tree was already built
+     * for the same topology, otherwise they are found by a breadth first
+     * search of the bonds and added to the cache.
+     *
+     * @param itree the atoms
+     * @param startAtom the root atom, or null to find one
+     * @param endAtom the atom at the end of the main chain, or null
+     * @return the branches of the tree
+     */
     public List<List<Atom>> genTree(ITree itree, Atom startAtom, Atom endAtom) {
-        MTree mTree = new MTree();
-
         Map<Atom, Integer> hash = new HashMap<>();
         int i = 0;
         int startIndex = -1;
@@ -90,13 +100,31 @@ public class AngleTreeGenerator {
                 startIndex = i;
             }
             hash.put(atom, i);
-            MNode mNode = mTree.addNode();
-            mNode.setAtom(atom);
             i++;
         }
         if (startIndex == -1) {
             throw new IllegalArgumentException("Didnt' find start atom\"" + startAtom.getShortName() + "\"");
         }
+        int endIndex = endAtom == null ? -1 : hash.getOrDefault(endAtom, -2);
+        long key = AngleTreeCache.topologyKey(atoms, hash, startIndex, endIndex);
+        AngleTreeCache.Tree tree = AngleTreeCache.get(key, atoms.size());
+        if (tree == null) {
+            tree = buildTree(atoms, hash, startIndex, endAtom, key);
+            AngleTreeCache.put(tree);
+        }
+        return applyTree(itree, atoms, tree);
+    }
+
+    /**
+     * Find the steps of the torsion tree by a breadth first search of the
+     * bonds. The atoms are not modified.
+     */
+    AngleTreeCache.Tree buildTree(List<Atom> atoms, Map<Atom, Integer> hash, int startIndex, Atom endAtom, long key) {
+        MTree mTree = new MTree();
+        for (Atom atom : atoms) {
+            MNode mNode = mTree.addNode();
+            mNode.setAtom(atom);
+        }
 
         for (Atom atom : atoms) {
             for (int iBond = 0; iBond < atom.bonds.size(); iBond++) {
@@ -106,8 +134,6 @@ public class AngleTreeGenerator {
 
                 if (!bond.isRingClosure() && (iNodeBegin != null) && (iNodeEnd != null)) {
                     mTree.addEdge(iNodeBegin, iNodeEnd);
-                } else if (bond.isRingClosure()) {
-                    closureBonds.add(bond);
                 }
             }
         }
@@ -138,14 +164,10 @@ public class AngleTreeGenerator {
         pathNodes = mTree.getPathNodes();
 
         MNode lastNode = null;
-        boolean firstAtom = true;
-
         int lastNodeIndex = 0;
         int nShells = pathNodes.get(pathNodes.size() - 1).getShell() + 1;
-        int iAtom = 0;
-        atomPathList = new ArrayList<>();
-        List<List<Atom>> atomTree = new ArrayList<>();
-        List<Atom> branchList = null;
+        int[] steps = new int[pathNodes.size() * AngleTreeCache.STEP_SIZE];
+        int nValues = 0;
         for (int iShell = 0; iShell < nShells; iShell++) {
             List<MNode> shellNodes = getShellNodes(pathNodes, iShell, lastNodeIndex);
             lastNodeIndex += shellNodes.size();
@@ -153,71 +175,108 @@ public class AngleTreeGenerator {
                 break;
             }
             for (MNode mNode3 : shellNodes) {
+                MNode mNode2 = mNode3.getParent();
+                MNode mNode1 = mNode2 != null ? mNode2.getParent() : null;
+                MNode mNode0 = mNode1 != null ? mNode1.getParent() : null;
+                int type;
                 if (mNode3.isRingClosure()) {
-                    Atom atom3 = mNode3.getAtom();
-                    atom3.rotActive = false;
-                    MNode mNode2 = mNode3.getParent();
-                    if (mNode2 != null) {
-                        Atom atom2 = mNode2.getAtom();
-                        Optional<Bond> oBond = atom2.getBond(atom3);
-                        if (oBond.isPresent()) {
-                            oBond.get().setRingClosure(true);
-                            closureBonds.add(oBond.get());
-                        }
-                    }
-                    continue;
+                    type = AngleTreeCache.CLOSURE;
+                } else if (iShell == 0) {
+                    type = AngleTreeCache.ROOT;
+                } else if ((lastNode == null) || (mNode2 != lastNode)) {
+                    lastNode = mNode2;
+                    type = AngleTreeCache.NEW_BRANCH_ATOM;
+                } else {
+                    type = AngleTreeCache.BRANCH_ATOM;
                 }
-                Atom atom3 = mNode3.getAtom();
-                atom3.setTreeIndex(iAtom++);
-                atomPathList.add(atom3);
-                if (iShell == 0) {
+                steps[nValues++] = type;
+                steps[nValues++] = nodeIndex(hash, mNode3);
+                steps[nValues++] = nodeIndex(hash, mNode2);
+                steps[nValues++] = nodeIndex(hash, mNode1);
+                steps[nValues++] = nodeIndex(hash, mNode0);
+                if (type == AngleTreeCache.ROOT) {
                     break;
                 }
-                MNode mNode2 = mNode3.getParent();
-                if ((lastNode == null) || (mNode2 != lastNode)) {
-                    lastNode = mNode2;
-                    firstAtom = true;
-                    branchList = new ArrayList<>();
-                    atomTree.add(branchList);
-                }
+            }
+        }
+        return new AngleTreeCache.Tree(key, atoms.size(), Arrays.copyOf(steps, nValues));
+    }
 
-                Optional<Bond> oBond = Optional.empty();
-                Atom atom2 = null;
-                Atom atom1 = null;
-                Atom atom0 = null;
-                if (mNode2 != null) {
-                    atom2 = mNode2.getAtom();
-                    if (firstAtom) {
-                        atom2.daughterAtom = atom3;
-                    }
-                    atom3.parent = atom2;
-                    Point3 pt2 = atom2.getPoint();
-                    if (atom2.getElementName() != null && atom3.getElementName() != null) {
-                        Bond bond = new Bond(atom2, atom3);
-                        atom2.addBond(bond);
-                        atom3.addBond(bond);
-                    }
-                    oBond = atom2.getBond(atom3);
-                    MNode mNode1 = mNode2.getParent();
-                    if (mNode1 != null) {
-                        atom1 = mNode1.getAtom();
-                        MNode mNode0 = mNode1.getParent();
-                        if (mNode0 != null) {
-                            atom0 = mNode0.getAtom();
-                        }
-                    }
-                } else {
-                    atom2 = null;
+    private static int nodeIndex(Map<Atom, Integer> hash, MNode mNode) {
+        return mNode == null ? -1 : hash.get(mNode.getAtom());
+    }
+
+    private static Atom getStepAtom(List<Atom> atoms, int index) {
+        return index < 0 ? null : atoms.get(index);
+    }
+
+    /**
+     * Set up the atoms with the torsion tree: mark the ring closures, set the
+     * tree indices and parent atoms, and collect the branches.
+     */
+    List<List<Atom>> applyTree(ITree itree, List<Atom> atoms, AngleTreeCache.Tree tree) {
+        for (Atom atom : atoms) {
+            for (Bond bond : atom.bonds) {
+                if (bond.isRingClosure()) {
+                    closureBonds.add(bond);
                 }
-                if (branchList.isEmpty()) {
-                    branchList.add(atom0);
-                    branchList.add(atom1);
-                    branchList.add(atom2);
+            }
+        }
+        boolean firstAtom = true;
+        int iAtom = 0;
+        atomPathList = new ArrayList<>();
+        List<List<Atom>> atomTree = new ArrayList<>();
+        List<Atom> branchList = null;
+        int[] steps = tree.steps;
+        for (int iStep = 0; iStep < steps.length; iStep += AngleTreeCache.STEP_SIZE) {
+            int type = steps[iStep];
+            Atom atom3 = getStepAtom(atoms, steps[iStep + 1]);
+            Atom atom2 = getStepAtom(atoms, steps[iStep + 2]);
+            if (type == AngleTreeCache.CLOSURE) {
+                atom3.rotActive = false;
+                if (atom2 != null) {
+                    Optional<Bond> oBond = atom2.getBond(atom3);
+                    if (oBond.isPresent()) {
+                        oBond.get().setRingClosure(true);
+                        closureBonds.add(oBond.get());
+                    }
                 }
-                branchList.add(atom3);
+                continue;
+            }
+            atom3.setTreeIndex(iAtom++);
+            atomPathList.add(atom3);
+            if (type == AngleTreeCache.ROOT) {
+                continue;
+            }
+            if (type == AngleTreeCache.NEW_BRANCH_ATOM) {
+                firstAtom = true;
+                branchList = new ArrayList<>();
+                atomTree.add(branchList);
+            }
 
-                firstAtom = false;
+            Atom atom1 = null;
+            Atom atom0 = null;
+            if (atom2 != null) {
+                if (firstAtom) {
+                    atom2.daughterAtom = atom3;
+                }
+                atom3.parent = atom2;
+                if (atom2.getElementName() != null && atom3.getElementName() != null) {
+                    Bond bond = new Bond(atom2, atom3);
+                    atom2.addBond(bond);
+                    atom3.addBond(bond);
+                }
+                atom1 = getStepAtom(atoms, steps[iStep + 3]);
+                atom0 = getStepAtom(atoms, steps[iStep + 4]);
             }
+            if (branchList.isEmpty()) {
+                branchList.add(atom0);
+                branchList.add(atom1);
+                branchList.add(atom2);
+            }
+            branchList.add(atom3);
+
+            firstAtom = false;
         }
         if (itree instanceof Molecule) {
             Molecule mol = (Molecule) itree;
@@ -225,19 +284,6 @@ public class AngleTreeGenerator {
             mol.setAtomTree(atomTree);
         }
         ringClosures = new HashMap<>();
-        //        for (MNode mNode : pathNodes) {
-        //            if (mNode.isRingClosure()) {
-        //                Atom atom1 = mNode.getAtom();
-        //                Atom atom2 = mNode.getParent().getAtom();
-        //                if ((ringClosures.containsKey(atom1) && ringClosures.get(atom1).containsKey(atom2)) || (ringClosures.containsKey(atom2) && ringClosures.get(atom2).containsKey(atom1))) {
-        //                } else {
-        //                    addRingClosure(atom1, atom2);
-        //                    addRingClosurePairs(atom1, atom2);
-        //                    addRingClosurePairs(atom2, atom1);
-        //                }
-        //            }
-        //        }
-
         //        dumpAtomTree(atomTree);
         return atomTree;
     }
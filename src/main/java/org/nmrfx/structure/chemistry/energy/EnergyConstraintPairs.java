@@ -66,7 +66,7 @@ public class EnergyConstraintPairs extends EnergyDistancePairs {
             weights[iPair] = weight;
             derivs[iPair] = 0.0;
 
-            if (eCoords.fixed != null) {
+            if (eCoords.fixedPairs != null) {
                 if (isBond) {
                     eCoords.setFixed(j, i, true);
                     eCoords.setFixed(i, j, true);
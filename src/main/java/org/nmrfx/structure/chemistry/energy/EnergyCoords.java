@@ -20,7 +20,6 @@ package org.nmrfx.structure.chemistry.energy;
 import java.io.IOException;
 import org.nmrfx.structure.chemistry.Atom;
 import org.nmrfx.structure.fastlinear.FastVector3D;
-import java.util.Arrays;
 import java.util.Map;
 import java.util.Set;
 import java.util.logging.Level;
@@ -64,7 +63,7 @@ public class EnergyCoords {
     double[] cValues = null;
     int[] cellIndex = null;
     int nAtoms = 0;
-    boolean[][] fixed;
+    FixedPairs fixedPairs = null;
     Map<Integer, Set<Integer>> kSwap = null;
     boolean setupShifts = false;
 
@@ -522,125 +521,71 @@ public class EnergyCoords {
     }
 
     boolean getFixed(int i, int j) {
-        return fixed[i][j];
+        return fixedPairs.isFixed(i, j);
     }
 
     void setFixed(int i, int j, boolean state) {
-        fixed[i][j] = state;
+        fixedPairs.setFixed(i, j, state);
     }
 
-    public double[][][] getFixedRange() {
-        int lastRes = Integer.MIN_VALUE;
-        int nResidues = 0;
-        for (int i = 0; i < nAtoms; i++) {
-            if (resNums[i] != lastRes) {
-                lastRes = resNums[i];
-                nResidues++;
-            }
-        }
-        int[] resCounts = new int[nResidues];
-        int[] resStarts = new int[nResidues];
-        lastRes = Integer.MIN_VALUE;
-        int j = 0;
-        for (int i = 0; i < nAtoms; i++) {
-            resCounts[resNums[i]]++;
-            if (resNums[i] != lastRes) {
-                lastRes = resNums[i];
-                resStarts[j++] = i;
-            }
-        }
-        double[][][] disRange = new double[2][nAtoms][nAtoms];
-        fixed = new boolean[nAtoms][nAtoms];
-        for (int i = 0; i < nAtoms; i++) {
-            int resNum = resNums[i];
-            int lastAtom = i + 500;
-            if (lastAtom >= nAtoms) {
-                lastAtom = nAtoms - 1;
-            }
-            int nResAtoms = lastAtom - i;
-//            int nResAtoms = resCounts[resNum];
-//            nResAtoms -= (i - resStarts[resNum]) + 1;
-//            if (resNum < (nResidues - 1)) {
-//                nResAtoms += resCounts[resNum + 1];
-//            }
-            Arrays.fill(disRange[0][i], Double.MAX_VALUE);
-            Arrays.fill(disRange[1][i], Double.NEGATIVE_INFINITY);
-
-        }
-        return disRange;
+    /**
+     * Set up the sparse table used to find atom pairs whose separation is
+     * unchanged by rotation of the torsion angles. Only pairs closer than the
+     * cutoff in the current coordinates are tracked.
+     *
+     * @param cutoff the largest distance at which the fixed state of a pair
+     * is needed
+     * @return the table of candidate pairs
+     */
+    public FixedPairs getFixedRange(double cutoff) {
+        fixedPairs = FixedPairs.build(vecCoords, nAtoms, cutoff);
+        return fixedPairs;
     }
 
-    public void updateRanges(double[][][] disRanges) {
-        for (int i = 0; i < nAtoms; i++) {
-            FastVector3D v1 = vecCoords[i];
-            for (int j = 0; j < nAtoms; j++) {
-                FastVector3D v2 = vecCoords[j];
-                double dis = v1.dis(v2);
-                disRanges[0][i][j] = Math.min(dis, disRanges[0][i][j]);
-                disRanges[1][i][j] = Math.max(dis, disRanges[1][i][j]);
-            }
-        }
+    public void updateRanges(FixedPairs disRanges) {
+        disRanges.updateRanges(vecCoords);
     }
 
-    public void updateFixed(double[][][] disRanges) {
+    public void updateFixed(FixedPairs disRanges) {
         double tol = 0.2;
-        int nFixed = 0;
-        for (int i = 0; i < nAtoms; i++) {
-            for (int j = 0; j < nAtoms; j++) {
-                double delta = Math.abs(disRanges[1][i][j] - disRanges[0][i][j]);
-                //System.out.println(i + " " + j + " " + atoms[i].getShortName() + " " + atoms[i + j + 1].getShortName() + " " + delta);
-                if (delta < tol) {
-                    setFixed(i, j, true);
-                }
-                if (getFixed(i, j)) {
-                    nFixed++;
-                }
-//                if (fixed[i][j]) {
-//                    System.out.print(" " + j);
-//                }
-            }
-//            System.out.println("");
-        }
+        disRanges.updateFixed(tol);
         //dumpFixed();
     }
 
     public void dumpFixed() {
-        for (int i = 0; i < fixed.length; i++) {
-            String rName1 = ((Residue) atoms[i].getEntity()).getName();
-            String aName1 = atoms[i].getName();
-            String name1;
-            if (aName1.contains("'")) {
-                name1 = aName1;
+        int[] pairs = fixedPairs.getFixedPairs();
+        for (int k = 0; k < pairs.length; k += 2) {
+            int i = pairs[k];
+            int j = pairs[k + 1];
+            String name1 = getFixedName(i);
+            String name2 = getFixedName(j);
+            if (name1.compareTo(name2) <= 0) {
+                System.out.println("fix " + name1 + " " + name2);
             } else {
-                name1 = rName1 + "." + aName1;
+                System.out.println("fix " + name2 + " " + name1);
             }
-            for (int j = 0; j < fixed[i].length; j++) {
-
-                if ((i != j) && fixed[i][j]) {
-                    String rName2 = ((Residue) atoms[j].getEntity()).getName();
-                    String aName2 = atoms[j].getName();
-                    String name2;
-                    if (aName2.contains("'")) {
-                        name2 = aName2;
-                    } else {
-                        name2 = rName2 + "." + aName2;
-                    }
-                    if (name1.compareTo(name2) <= 0) {
-                        System.out.println("fix " + name1 + " " + name2);
-                    } else {
-                        System.out.println("fix " + name2 + " " + name1);
+        }
+    }
 
-                    }
-                }
-            }
+    private String getFixedName(int i) {
+        String rName = ((Residue) atoms[i].getEntity()).getName();
+        String aName = atoms[i].getName();
+        if (aName.contains("'")) {
+            return aName;
+        } else {
+            return rName + "." + aName;
         }
     }
 
     public boolean fixedCurrent() {
-        boolean status = (fixed != null) && (fixed.length == nAtoms);
+        boolean status = (fixedPairs != null) && (fixedPairs.getAtomCount() == nAtoms);
         return status;
     }
 
+    public boolean fixedCurrent(double cutoff) {
+        return fixedCurrent() && (fixedPairs.getCutoff() >= cutoff);
+    }
+
     public boolean checkCloseAtoms(Atom atom1, Atom atom2) {
         boolean close = false;
         if ((atom1.getAtomicNumber() != 1) || (atom2.getAtomicNumber() != 1)) {
@@ -27,6 +27,7 @@ import org.nmrfx.structure.chemistry.Point3;
 import org.nmrfx.structure.chemistry.Polymer;
 import org.nmrfx.structure.chemistry.Residue;
 import org.nmrfx.structure.chemistry.SpatialSet;
+import org.nmrfx.structure.chemistry.constraints.RDCConstraintSet;
 import org.nmrfx.structure.fastlinear.FastVector;
 import org.nmrfx.structure.fastlinear.FastVector3D;
 import java.io.BufferedOutputStream;
@@ -57,6 +58,9 @@ public class EnergyLists {
     private ArrayList<BondPair> bondList = new ArrayList<BondPair>();
     private ArrayList<DistancePair> distanceList = new ArrayList<DistancePair>();
     private ArrayList<AngleBoundary> angleBoundList = new ArrayList<AngleBoundary>();
+    private TorsionTerms torsionTerms = null;
+    private boolean parallelTorsions = false;
+    private EnergyRDCs rdcTerms = null;
     private Map<String, Double> distanceMap = new HashMap<>();
     private int iStruct = 0;
     private ArrayList<Atom> angleAtoms = new ArrayList<Atom>();
@@ -78,8 +82,13 @@ public class EnergyLists {
     static final double toDeg = 180.0 / FastMath.PI;
     static final double toRad = FastMath.PI / 180;
     static boolean REPORTBAD = false;
+    public static final int FAST_TERMS = 1;
+    public static final int SLOW_TERMS = 2;
+    public static final int ALL_TERMS = FAST_TERMS | SLOW_TERMS;
     boolean stochasticMode = false;
     boolean[] stochasticResidues = null;
+    // the index of each residue in the stochastic selection
+    Map<Entity, Integer> stochasticIndices = null;
     boolean constraintsSetup = false;
     public static double[][][] irpTable;
     private Map<Integer, List<DistancePair>> distancePairMap = new HashMap<>();
@@ -91,12 +100,58 @@ public class EnergyLists {
         this.molecule = molecule;
     }
 
+    /**
+     * Limit the distance restraints to pairs of residues that are both
+     * selected, as a minibatch for stochastic minimization. The restraint
+     * pairs are rebuilt at the next energy evaluation.
+     *
+     * @param residuesStates the selection state of each residue, indexed by
+     * the residue indices set up by indexStochasticResidues, or null to use
+     * all restraints
+     */
     public void setStochasticResidues(boolean[] residuesStates) {
+        if ((residuesStates != null) && (stochasticIndices == null)) {
+            indexStochasticResidues();
+        }
         stochasticResidues = residuesStates;
+        stochasticMode = residuesStates != null;
+        constraintsSetup = false;
+    }
+
+    /**
+     * Give each residue of the molecule an index, in the order of the atoms,
+     * for selecting residues with setStochasticResidues. Residue numbers
+     * can't be used as indices, as they can be negative, have insertion codes
+     * or be repeated in different polymers.
+     *
+     * @return the number of residues
+     */
+    public int indexStochasticResidues() {
+        stochasticIndices = new HashMap<>();
+        for (Atom atom : molecule.getAtomArray()) {
+            if (!stochasticIndices.containsKey(atom.entity)) {
+                stochasticIndices.put(atom.entity, stochasticIndices.size());
+            }
+        }
+        return stochasticIndices.size();
+    }
+
+    /**
+     * Check whether the residues of both atoms are in the stochastic
+     * selection. Atoms of residues without an index are always included.
+     */
+    boolean isStochasticSelected(Atom atom1, Atom atom2) {
+        return isStochasticSelected(atom1) && isStochasticSelected(atom2);
+    }
+
+    private boolean isStochasticSelected(Atom atom) {
+        Integer index = stochasticIndices.get(atom.entity);
+        return (index == null) || (index >= stochasticResidues.length) || stochasticResidues[index];
     }
 
     void clearAngleBoundaries() {
         angleBoundList.clear();
+        torsionTerms = null;
     }
 
     public void setCourseGrain(final boolean value) {
@@ -175,6 +230,7 @@ public class EnergyLists {
 
     void addAngleBoundary(AngleBoundary angleBoundary) {
         angleBoundList.add(angleBoundary);
+        torsionTerms = null;
     }
 
     public void addAtomRef(Atom atom) {
@@ -629,6 +685,7 @@ public class EnergyLists {
         //used to rotate angles to minimize energy
         //building list of angles that can be rotated
         angleAtoms = molecule.setupAngles();
+        torsionTerms = null;
         molecule.setupRotGroups();
         makeAtomList2();
     }
@@ -639,7 +696,9 @@ public class EnergyLists {
         }
         dihedrals.saveDihedrals();
         EnergyCoords eCoords = molecule.getEnergyCoords();
-        double[][][] dRange = eCoords.getFixedRange();
+        // candidate pairs are found from the starting coordinates
+        molecule.genCoordsFastVec3D(null);
+        FixedPairs dRange = eCoords.getFixedRange(getFixedCutoff());
         int nUpdates = 10;
         for (int i = 0; i < nUpdates; i++) {
             dihedrals.randomizeAngles();
@@ -651,6 +710,18 @@ public class EnergyLists {
         molecule.genCoordsFastVec3D(null);
     }
 
+    /**
+     * The largest distance at which setCells needs to know if a pair is
+     * fixed: the contact limit, the shift prediction limit (used as the cell
+     * limit for the shift pairs) or the base stacking limit, whichever is
+     * largest, plus the tolerance used to decide that a pair is fixed.
+     *
+     * @return the cutoff
+     */
+    double getFixedCutoff() {
+        return Math.max(Math.max(distanceLimit, Predictor.getRMax()), 6.0) + 0.2;
+    }
+
     public void clear() {
         atomList.clear();
         bondList.clear();
@@ -893,25 +964,7 @@ public class EnergyLists {
 
     public double calcDihedralEnergyFast(double[] gradient) {
         EnergyCoords eCoords = molecule.getEnergyCoords();
-        double energyTotal = 0.0;
-        for (AngleBoundary angleBoundary : angleBoundList) {
-            double dihedral;
-            Atom[] atoms = angleBoundary.getAtoms();
-            if (atoms.length == 1) {
-                dihedral = atoms[0].dihedralAngle;
-            } else {
-                dihedral = eCoords.calcDihedral(atoms[0].eAtom, atoms[1].eAtom, atoms[2].eAtom, atoms[3].eAtom);
-            }
-            AtomEnergy energy = AtomMath.calcDihedralEnergy(dihedral, angleBoundary.lower, angleBoundary.upper, forceWeight,
-                    gradient != null);
-            energyTotal += energy.getEnergy();
-            if (gradient != null) {
-                gradient[angleBoundary.getIndex()] -= energy.getDeriv();
-            }
-        }
-
-        return energyTotal;
-
+        return getTorsionTerms().calcDihedralEnergy(eCoords.getVecCoords(), forceWeight.getDihedral(), gradient);
     }
 
     public double calcIRP(Atom atom) {
@@ -947,43 +1000,44 @@ public class EnergyLists {
 
     public double calcIRPFast(double[] gradient) {
         EnergyCoords eCoords = molecule.getEnergyCoords();
-        double energyTotal = 0.0;
-        int i = 0;
-        Atom[] atoms = new Atom[4];
-        double weight = forceWeight.getIrp();
-        for (Atom atom : angleAtoms) {
-            atoms[3] = atom.daughterAtom;
-            if (atoms[3] != null) {
-                atoms[2] = atom;
-                atoms[1] = atom.parent;
-                if (atoms[1] != null) {
-                    atoms[0] = atoms[1].parent;
-                }
-            }
-            if (atoms[0] != null) {
-                int irpIndex = atom.irpIndex;
-                if ((irpIndex > 0) && (irpIndex < 9999)) {
-                    double angle = eCoords.calcDihedral(atoms[0].eAtom, atoms[1].eAtom, atoms[2].eAtom, atoms[3].eAtom);
-                    angle = Dihedral.reduceAngle(angle);
-                    double[][] irpValues = irpTable[irpIndex - 1];
-                    for (double[] irpVal : irpValues) {
-                        double v = irpVal[0];
-                        double n = irpVal[1];
-                        double phi = irpVal[2];
-                        double energy = weight * v * (1.0 + Math.cos(n * angle - phi));
-                        energyTotal += energy;
-                        double deriv = 0.0;
-                        if (gradient != null) {
-                            deriv = -weight * v * n * Math.sin(n * angle - phi);
-                            gradient[i] += deriv;
-                        }
-                    }
-                }
-            }
-            i++;
+        return getTorsionTerms().calcIRP(eCoords.getVecCoords(), forceWeight.getIrp(), gradient);
+    }
+
+    /**
+     * Get the flat tables used for the IRP and dihedral restraint terms,
+     * building them if the angles or boundaries have changed since they were
+     * last built.
+     *
+     * @return the torsion tables
+     */
+    public TorsionTerms getTorsionTerms() {
+        if (torsionTerms == null) {
+            torsionTerms = TorsionTerms.build(angleAtoms, angleBoundList, irpTable);
+            torsionTerms.setParallel(parallelTorsions);
         }
-        return energyTotal;
+        return torsionTerms;
+    }
+
+    /**
+     * Use a set of residual dipolar couplings as a restraint term. The
+     * alignment tensor is fit to the current structure as the energy is
+     * calculated.
+     *
+     * @param rdcSet the RDCs, or null to remove the term
+     */
+    public void setRDCs(RDCConstraintSet rdcSet) {
+        rdcTerms = rdcSet == null ? null : new EnergyRDCs(molecule.getEnergyCoords(), rdcSet);
+    }
 
+    public EnergyRDCs getRDCTerms() {
+        return rdcTerms;
+    }
+
+    public void setParallelTorsions(boolean value) {
+        parallelTorsions = value;
+        if (torsionTerms != null) {
+            torsionTerms.setParallel(value);
+        }
     }
 
     public double calcRobsen(boolean calcDeriv) {
@@ -1079,6 +1133,7 @@ public class EnergyLists {
     public double calcProbDih(boolean calcDeriv, double[] derivs) {
         EnergyCoords eCoords = molecule.getEnergyCoords();
         double totalEnergy = 0;
+        Atom[] angleAtoms = new Atom[7];
         List<Polymer> polymers = molecule.getPolymers();
         for (Polymer polymer : polymers) {
             if (polymer.isRNA()) {
@@ -1088,11 +1143,11 @@ public class EnergyLists {
                         i++;
                         continue;
                     }
-                    RotamerScore[] rotamerScores = RNARotamer.getNBest(polymer, i, 3, eCoords);
+                    RotamerScore[] rotamerScores = RNARotamer.getNBest(polymer, i, 3, eCoords, angleAtoms);
                     double rotamerEnergy = RNARotamer.calcEnergy(rotamerScores);
                     //System.out.printf("%5.3g  ", rotamerEnergy);
                     if (calcDeriv) {
-                        Map<Integer, Double> rotDerivs = RNARotamer.calcDerivs(rotamerScores, rotamerEnergy);
+                        Map<Integer, Double> rotDerivs = RNARotamer.calcDerivs(rotamerScores, rotamerEnergy, angleAtoms);
                         for (int atomIndex : rotDerivs.keySet()) {
                             double deriv = forceWeight.getDihedralProb() * rotDerivs.get(atomIndex);
                             derivs[atomIndex] += (deriv);
@@ -1140,11 +1195,7 @@ public class EnergyLists {
             if (stochasticMode) {
                 Atom atom1 = distancePair.atomPairs[0].atoms1[0];
                 Atom atom2 = distancePair.atomPairs[0].atoms2[0];
-                Compound compound1 = (Compound) atom1.entity;
-                Compound compound2 = (Compound) atom2.entity;
-                int iRes = Integer.parseInt(compound1.number);
-                int jRes = Integer.parseInt(compound2.number);
-                if ((stochasticResidues != null) && (!stochasticResidues[iRes] || !stochasticResidues[jRes])) {
+                if (!isStochasticSelected(atom1, atom2)) {
                     continue;
                 }
             }
@@ -1208,11 +1259,7 @@ public class EnergyLists {
             if (stochasticMode) {
                 Atom atom1 = distancePair.atomPairs[0].atoms1[0];
                 Atom atom2 = distancePair.atomPairs[0].atoms2[0];
-                Compound compound1 = (Compound) atom1.entity;
-                Compound compound2 = (Compound) atom2.entity;
-                int iRes = Integer.parseInt(compound1.number);
-                int jRes = Integer.parseInt(compound2.number);
-                if ((stochasticResidues != null) && (!stochasticResidues[iRes] || !stochasticResidues[jRes])) {
+                if (!isStochasticSelected(atom1, atom2)) {
                     continue;
                 }
             }
@@ -1307,47 +1354,75 @@ public class EnergyLists {
     }
 
     public EnergyDeriv energy(boolean calcDeriv) {
+        return energy(calcDeriv, ALL_TERMS);
+    }
+
+    /**
+     * Calculate a subset of the energy terms. The fast terms (bonds, torsion
+     * angle restraints and probabilities and IRP) depend only on the torsion
+     * angles or on bonded atoms. The slow terms (repulsion, distance
+     * restraints, stacking and shifts) need the contact lists. The gradient,
+     * and the branch forces, only include the selected terms.
+     *
+     * @param calcDeriv calculate derivatives if true
+     * @param terms FAST_TERMS, SLOW_TERMS or ALL_TERMS
+     * @return the energy and derivatives of the selected terms
+     */
+    public EnergyDeriv energy(boolean calcDeriv, int terms) {
         if (!constraintsSetup) {
             setupConstraints();
         }
+        boolean fastTerms = (terms & FAST_TERMS) != 0;
+        boolean slowTerms = (terms & SLOW_TERMS) != 0;
         double energyTotal = 0.0;
         double[] gradient = null;
         if (calcDeriv) {
             if (branches == null) {
                 setupDihedrals();
             }
-            zeroBranches();
+            if (slowTerms) {
+                zeroBranches();
+            }
         }
         try {
-            //two ways to calculate whether atoms are bumping into one another - 1) calc repel, 2)calc robsen
-            if (forceWeight.getRobson() > 0.0) {
-                energyTotal += calcRepelFast(calcDeriv);
-            } else if (forceWeight.getRepel() > 0.0) {
-                energyTotal += calcRepelFast(calcDeriv);
+            if (slowTerms) {
+                //two ways to calculate whether atoms are bumping into one another - 1) calc repel, 2)calc robsen
+                if (forceWeight.getRobson() > 0.0) {
+                    energyTotal += calcRepelFast(calcDeriv);
+                } else if (forceWeight.getRepel() > 0.0) {
+                    energyTotal += calcRepelFast(calcDeriv);
+                }
             }
-            energyTotal += calcbondEnergy(calcDeriv);
-
-            if (forceWeight.getNOE() > 0.0) {
-                energyTotal += calcNOEFast(calcDeriv);
+            if (fastTerms) {
+                energyTotal += calcbondEnergy(calcDeriv);
             }
-            if (forceWeight.getStacking() > 0.0) {
-                energyTotal += calcStackingFast(calcDeriv);
+
+            if (slowTerms) {
+                if (forceWeight.getNOE() > 0.0) {
+                    energyTotal += calcNOEFast(calcDeriv);
+                }
+                if (forceWeight.getStacking() > 0.0) {
+                    energyTotal += calcStackingFast(calcDeriv);
+                }
+                if ((rdcTerms != null) && (forceWeight.getRDC() > 0.0)) {
+                    energyTotal += rdcTerms.calcEnergy(calcDeriv, forceWeight.getRDC(), branches);
+                }
             }
             if (calcDeriv) {
-                gradient = recurrentDerivative();
+                gradient = slowTerms ? recurrentDerivative() : new double[branches.length];
             }
 
-            if (forceWeight.getShift() > 0.0) {
+            if (slowTerms && (forceWeight.getShift() > 0.0)) {
                 energyTotal += calcShiftsFast(calcDeriv);
             }
 
-            if (forceWeight.getDihedralProb() > 0.0) {
+            if (fastTerms && (forceWeight.getDihedralProb() > 0.0)) {
                 energyTotal += calcProbDih(calcDeriv, gradient);
             }
-            if (forceWeight.getDihedral() > 0.0) {
+            if (fastTerms && (forceWeight.getDihedral() > 0.0)) {
                 energyTotal += calcDihedralEnergyFast(gradient);
             }
-            if (forceWeight.getIrp() > 0.0) {
+            if (fastTerms && (forceWeight.getIrp() > 0.0)) {
                 if (true) {  // placeholder for new fast mode
                     if (forceWeight.getIrp() > 0.0) {
                         energyTotal += calcIRPFast(gradient);
@@ -1540,6 +1615,11 @@ public class EnergyLists {
                     }
                 }
             }
+            torsionTerms = null;
+            getTorsionTerms();
+            if (rdcTerms != null) {
+                rdcTerms.reset();
+            }
         } catch (Exception e) {
             e.printStackTrace();
             System.exit(1);
@@ -1716,11 +1796,13 @@ public class EnergyLists {
     public void makeAtomListFast() {
         // molecule.updateVecCoords();
         EnergyCoords eCoords = molecule.getEnergyCoords();
-        if (!eCoords.fixedCurrent()) {
+        if (!eCoords.fixedCurrent(getFixedCutoff())) {
             if (molecule.getDihedrals() == null) {
                 return;
             }
             updateFixed(molecule.getDihedrals());
+            // bond constraints mark their pairs as fixed in the new table
+            constraintsSetup = false;
         }
         if (!constraintsSetup) {
             updateNOEPairs();
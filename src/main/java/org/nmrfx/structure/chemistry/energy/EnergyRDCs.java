@@ -0,0 +1,267 @@
+/*
+ * NMRFx Structure : A Program for Calculating Structures
+ * Copyright (C) 2004-2017 One Moon Scientific, Inc., Westfield, N.J., USA
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.nmrfx.structure.chemistry.energy;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.nmrfx.structure.chemistry.Atom;
+import org.nmrfx.structure.chemistry.OrderSVD;
+import org.nmrfx.structure.chemistry.constraints.RDC;
+import org.nmrfx.structure.chemistry.constraints.RDCConstraintSet;
+import org.nmrfx.structure.fastlinear.FastVector3D;
+
+/**
+ * Residual dipolar coupling energy term for torsion angle refinement. The
+ * five independent elements of the Saupe order matrix are refit to the
+ * current structure by weighted linear least squares (OrderSVD.fitTensor)
+ * every fitInterval evaluations. The energy is the same weighted sum
+ * of squared residuals that the fit minimizes, so when the tensor is refit on
+ * every evaluation the derivatives calculated with the tensor held fixed are
+ * the exact derivatives of the energy.
+ *
+ * @author brucejohnson
+ */
+public class EnergyRDCs {
+
+    final EnergyCoords eCoords;
+    final Atom[] atoms1;
+    final Atom[] atoms2;
+    final int nRDC;
+    final int[] iAtoms;
+    final int[] jAtoms;
+    final int[] iUnits;
+    final int[] jUnits;
+    final double[] values;
+    final double[] errs;
+    final double[] maxRDCs;
+    final double[] calcValues;
+    // values / maxRDC and maxRDC / err, the fit target and weights
+    final double[] normValues;
+    final double[] fitWeights;
+    // direction cosine products, five per RDC, as in OrderSVD
+    final double[] aRows;
+    final double[] tensor = new double[5];
+    final double[] g = new double[3];
+    final double[] f = new double[3];
+    int fitInterval = 1;
+    int nEvaluations = 0;
+    boolean indicesValid = false;
+    boolean tensorValid = false;
+
+    public EnergyRDCs(EnergyCoords eCoords, RDCConstraintSet rdcSet) {
+        this.eCoords = eCoords;
+        List<RDC> rdcs = new ArrayList<>();
+        for (RDC rdc : rdcSet.get()) {
+            Atom atom1 = rdc.getSpSets()[0].getAtom();
+            Atom atom2 = rdc.getSpSets()[1].getAtom();
+            if (rdc.isUserActive() && (atom1 != atom2)) {
+                rdcs.add(rdc);
+            }
+        }
+        nRDC = rdcs.size();
+        atoms1 = new Atom[nRDC];
+        atoms2 = new Atom[nRDC];
+        iAtoms = new int[nRDC];
+        jAtoms = new int[nRDC];
+        iUnits = new int[nRDC];
+        jUnits = new int[nRDC];
+        values = new double[nRDC];
+        errs = new double[nRDC];
+        maxRDCs = new double[nRDC];
+        calcValues = new double[nRDC];
+        normValues = new double[nRDC];
+        fitWeights = new double[nRDC];
+        aRows = new double[5 * nRDC];
+        for (int i = 0; i < nRDC; i++) {
+            RDC rdc = rdcs.get(i);
+            atoms1[i] = rdc.getSpSets()[0].getAtom();
+            atoms2[i] = rdc.getSpSets()[1].getAtom();
+            values[i] = rdc.getValue();
+            errs[i] = rdc.getErr() > 0.0 ? rdc.getErr() : 1.0;
+            maxRDCs[i] = OrderSVD.getMaxRDC(atoms1[i].getName(), atoms2[i].getName());
+            normValues[i] = values[i] / maxRDCs[i];
+            fitWeights[i] = maxRDCs[i] / errs[i];
+        }
+    }
+
+    /**
+     * Set how often the alignment tensor is refit.
+     *
+     * @param fitInterval refit the tensor every this many evaluations
+     */
+    public void setFitInterval(int fitInterval) {
+        this.fitInterval = Math.max(1, fitInterval);
+    }
+
+    public int getFitInterval() {
+        return fitInterval;
+    }
+
+    public int getSize() {
+        return nRDC;
+    }
+
+    /**
+     * Get the current order matrix elements in the order used by OrderSVD:
+     * Syy, Szz, Sxy, Sxz, Syz.
+     *
+     * @return the tensor elements
+     */
+    public double[] getTensor() {
+        return tensor.clone();
+    }
+
+    public double[] getCalcValues() {
+        return calcValues.clone();
+    }
+
+    /**
+     * Mark the EnergyCoords atom indices as invalid, so they are looked up
+     * again on the next evaluation.
+     */
+    public void reset() {
+        indicesValid = false;
+        tensorValid = false;
+    }
+
+    void updateIndices() {
+        for (int i = 0; i < nRDC; i++) {
+            iAtoms[i] = atoms1[i].eAtom;
+            jAtoms[i] = atoms2[i].eAtom;
+            iUnits[i] = atoms1[i].rotGroup != null ? atoms1[i].rotGroup.rotUnit : -1;
+            jUnits[i] = atoms2[i].rotGroup != null ? atoms2[i].rotGroup.rotUnit : -1;
+        }
+        indicesValid = true;
+    }
+
+    /**
+     * Calculate the RDC energy and, optionally, add the derivatives to the
+     * branch force accumulators.
+     *
+     * @param calcDeriv calculate derivatives if true
+     * @param weight the RDC force weight
+     * @param branches the branches to add derivatives to
+     * @return the energy
+     */
+    public double calcEnergy(boolean calcDeriv, double weight, AtomBranch[] branches) {
+        if (nRDC < 5) {
+            return 0.0;
+        }
+        if (!indicesValid) {
+            updateIndices();
+        }
+        FastVector3D[] vecCoords = eCoords.getVecCoords();
+        for (int i = 0; i < nRDC; i++) {
+            double[] p1 = vecCoords[iAtoms[i]].getValues();
+            double[] p2 = vecCoords[jAtoms[i]].getValues();
+            double vx = p1[0] - p2[0];
+            double vy = p1[1] - p2[1];
+            double vz = p1[2] - p2[2];
+            double len = Math.sqrt(vx * vx + vy * vy + vz * vz);
+            double ux = vx / len;
+            double uy = vy / len;
+            double uz = vz / len;
+            int k = 5 * i;
+            aRows[k] = uy * uy - ux * ux;
+            aRows[k + 1] = uz * uz - ux * ux;
+            aRows[k + 2] = 2.0 * ux * uy;
+            aRows[k + 3] = 2.0 * ux * uz;
+            aRows[k + 4] = 2.0 * uy * uz;
+        }
+        if (!tensorValid || ((nEvaluations % fitInterval) == 0)) {
+            tensorValid = OrderSVD.fitTensor(aRows, normValues, fitWeights, nRDC, tensor);
+        }
+        nEvaluations++;
+        if (!tensorValid) {
+            return 0.0;
+        }
+        double syy = tensor[0];
+        double szz = tensor[1];
+        double sxx = -syy - szz;
+        double sxy = tensor[2];
+        double sxz = tensor[3];
+        double syz = tensor[4];
+        double energy = 0.0;
+        for (int i = 0; i < nRDC; i++) {
+            int k = 5 * i;
+            double dNorm = 0.0;
+            for (int j = 0; j < 5; j++) {
+                dNorm += aRows[k + j] * tensor[j];
+            }
+            calcValues[i] = maxRDCs[i] * dNorm;
+            double delta = (calcValues[i] - values[i]) / errs[i];
+            energy += weight * delta * delta;
+            if (calcDeriv && (branches != null)) {
+                FastVector3D v1 = vecCoords[iAtoms[i]];
+                FastVector3D v2 = vecCoords[jAtoms[i]];
+                double[] p1 = v1.getValues();
+                double[] p2 = v2.getValues();
+                double vx = p1[0] - p2[0];
+                double vy = p1[1] - p2[1];
+                double vz = p1[2] - p2[2];
+                double len = Math.sqrt(vx * vx + vy * vy + vz * vz);
+                double ux = vx / len;
+                double uy = vy / len;
+                double uz = vz / len;
+                // S u
+                double sux = sxx * ux + sxy * uy + sxz * uz;
+                double suy = sxy * ux + syy * uy + syz * uz;
+                double suz = sxz * ux + syz * uy + szz * uz;
+                // dE/dD * dD/dv, with dD/dv = 2 Dmax (S u - (u.S.u) u) / |v|
+                double scale = 2.0 * weight * delta / errs[i] * 2.0 * maxRDCs[i] / len;
+                g[0] = scale * (sux - dNorm * ux);
+                g[1] = scale * (suy - dNorm * uy);
+                g[2] = scale * (suz - dNorm * uz);
+                // g is the gradient on the first atom, -g on the second
+                if (iUnits[i] >= 0) {
+                    cross(g, p1, f);
+                    branches[iUnits[i]].addToF(f);
+                    branches[iUnits[i]].addToG(g);
+                }
+                if (jUnits[i] >= 0) {
+                    cross(g, p2, f);
+                    branches[jUnits[i]].subtractToF(f);
+                    branches[jUnits[i]].subtractToG(g);
+                }
+            }
+        }
+        return energy;
+    }
+
+    static void cross(double[] a, double[] b, double[] result) {
+        result[0] = a[1] * b[2] - a[2] * b[1];
+        result[1] = a[2] * b[0] - a[0] * b[2];
+        result[2] = a[0] * b[1] - a[1] * b[0];
+    }
+
+    /**
+     * Calculate the RMS quality factor of the current fit.
+     *
+     * @return the Q factor
+     */
+    public double getQ() {
+        double sumDiff = 0.0;
+        double sumSq = 0.0;
+        for (int i = 0; i < nRDC; i++) {
+            double diff = calcValues[i] - values[i];
+            sumDiff += diff * diff;
+            sumSq += values[i] * values[i];
+        }
+        return sumSq == 0.0 ? 0.0 : Math.sqrt(sumDiff / sumSq);
+    }
+}
@@ -0,0 +1,307 @@
+/*
+ * NMRFx Structure : A Program for Calculating Structures
+ * Copyright (C) 2004-2017 One Moon Scientific, Inc., Westfield, N.J., USA
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.nmrfx.structure.chemistry.energy;
+
+import java.util.Arrays;
+import org.nmrfx.structure.fastlinear.FastVector3D;
+
+/**
+ * Sparse table of atom pairs whose separation does not change when the
+ * torsion angles change. Candidate pairs are those closer than a cutoff
+ * (pairs of fixed atoms further apart than the cutoff can never be within the
+ * contact limit, so their state is never needed). The candidates are stored
+ * in compressed sparse row form, ordered by atom and therefore by residue,
+ * along with the range of distances seen while sampling torsion angles.
+ * Pairs found to be fixed are kept in an open addressing hash so that
+ * {@link #isFixed(int, int)} is constant time.
+ *
+ * @author brucejohnson
+ */
+public class FixedPairs {
+
+    private static final int[][] OFFSETS = {{0, 0, 0}, {1, 0, 0}, {1, 1, 0}, {0, 1, 0}, {-1, 1, 0}, {0, 0, 1},
+    {1, 0, 1}, {1, 1, 1}, {0, 1, 1}, {-1, 1, 1}, {-1, 0, 1},
+    {-1, -1, 1}, {0, -1, 1}, {1, -1, 1}
+    };
+    private static final long EMPTY = -1L;
+
+    final int nAtoms;
+    final double cutoff;
+    int[] rowStarts;
+    int[] partners;
+    float[] disMin;
+    float[] disMax;
+    long[] fixedKeys = new long[1024];
+    int nFixed = 0;
+
+    private FixedPairs(int nAtoms, double cutoff) {
+        this.nAtoms = nAtoms;
+        this.cutoff = cutoff;
+        Arrays.fill(fixedKeys, EMPTY);
+    }
+
+    /**
+     * Build the table of candidate pairs from the current coordinates.
+     *
+     * @param vecCoords the atom coordinates
+     * @param nAtoms the number of atoms in use
+     * @param cutoff pairs further apart than this are not candidates
+     * @return the new table
+     */
+    public static FixedPairs build(FastVector3D[] vecCoords, int nAtoms, double cutoff) {
+        FixedPairs fixedPairs = new FixedPairs(nAtoms, cutoff);
+        fixedPairs.findCandidates(vecCoords);
+        return fixedPairs;
+    }
+
+    public int getAtomCount() {
+        return nAtoms;
+    }
+
+    public double getCutoff() {
+        return cutoff;
+    }
+
+    public int getCandidateCount() {
+        return partners.length;
+    }
+
+    public int getFixedCount() {
+        return nFixed;
+    }
+
+    private void findCandidates(FastVector3D[] vecCoords) {
+        double[] mins = {Double.MAX_VALUE, Double.MAX_VALUE, Double.MAX_VALUE};
+        double[] maxs = {Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY};
+        for (int i = 0; i < nAtoms; i++) {
+            double[] data = vecCoords[i].getValues();
+            for (int k = 0; k < 3; k++) {
+                mins[k] = Math.min(mins[k], data[k]);
+                maxs[k] = Math.max(maxs[k], data[k]);
+            }
+        }
+        int[] nCells = new int[3];
+        for (int k = 0; k < 3; k++) {
+            nCells[k] = nAtoms == 0 ? 1 : 1 + (int) Math.floor((maxs[k] - mins[k]) / cutoff);
+        }
+        int nCellsTotal = nCells[0] * nCells[1] * nCells[2];
+        int[] cellIndex = new int[nAtoms];
+        int[] cellStarts = new int[nCellsTotal + 1];
+        for (int i = 0; i < nAtoms; i++) {
+            double[] data = vecCoords[i].getValues();
+            int ix = (int) Math.floor((data[0] - mins[0]) / cutoff);
+            int iy = (int) Math.floor((data[1] - mins[1]) / cutoff);
+            int iz = (int) Math.floor((data[2] - mins[2]) / cutoff);
+            cellIndex[i] = ix + iy * nCells[0] + iz * nCells[0] * nCells[1];
+            cellStarts[cellIndex[i] + 1]++;
+        }
+        for (int i = 0; i < nCellsTotal; i++) {
+            cellStarts[i + 1] += cellStarts[i];
+        }
+        int[] cellAtoms = new int[nAtoms];
+        int[] nAdded = new int[nCellsTotal];
+        for (int i = 0; i < nAtoms; i++) {
+            int cell = cellIndex[i];
+            cellAtoms[cellStarts[cell] + nAdded[cell]++] = i;
+        }
+
+        // first pass counts the partners of each atom, second pass fills them
+        double cutoff2 = cutoff * cutoff;
+        rowStarts = new int[nAtoms + 1];
+        for (int pass = 0; pass < 2; pass++) {
+            int[] rowFill = pass == 0 ? null : Arrays.copyOf(rowStarts, nAtoms);
+            for (int iCell = 0; iCell < nCellsTotal; iCell++) {
+                int ix = iCell % nCells[0];
+                int iy = (iCell / nCells[0]) % nCells[1];
+                int iz = iCell / (nCells[0] * nCells[1]);
+                for (int[] offset : OFFSETS) {
+                    int jx = ix + offset[0];
+                    int jy = iy + offset[1];
+                    int jz = iz + offset[2];
+                    if ((jx < 0) || (jx >= nCells[0]) || (jy < 0) || (jy >= nCells[1]) || (jz < 0) || (jz >= nCells[2])) {
+                        continue;
+                    }
+                    int jCell = jx + jy * nCells[0] + jz * nCells[0] * nCells[1];
+                    for (int i = cellStarts[iCell]; i < cellStarts[iCell + 1]; i++) {
+                        int ip = cellAtoms[i];
+                        int jStart = iCell == jCell ? i + 1 : cellStarts[jCell];
+                        for (int j = jStart; j < cellStarts[jCell + 1]; j++) {
+                            int jp = cellAtoms[j];
+                            if (vecCoords[ip].disSq(vecCoords[jp]) < cutoff2) {
+                                int iAtom = Math.min(ip, jp);
+                                int jAtom = Math.max(ip, jp);
+                                if (pass == 0) {
+                                    rowStarts[iAtom + 1]++;
+                                } else {
+                                    partners[rowFill[iAtom]++] = jAtom;
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+            if (pass == 0) {
+                for (int i = 0; i < nAtoms; i++) {
+                    rowStarts[i + 1] += rowStarts[i];
+                }
+                partners = new int[rowStarts[nAtoms]];
+            }
+        }
+        for (int i = 0; i < nAtoms; i++) {
+            Arrays.sort(partners, rowStarts[i], rowStarts[i + 1]);
+        }
+        disMin = new float[partners.length];
+        disMax = new float[partners.length];
+        Arrays.fill(disMin, Float.MAX_VALUE);
+        Arrays.fill(disMax, Float.NEGATIVE_INFINITY);
+    }
+
+    /**
+     * Update the range of distances seen for each candidate pair with the
+     * current coordinates.
+     *
+     * @param vecCoords the atom coordinates
+     */
+    public void updateRanges(FastVector3D[] vecCoords) {
+        for (int i = 0; i < nAtoms; i++) {
+            FastVector3D v1 = vecCoords[i];
+            for (int k = rowStarts[i]; k < rowStarts[i + 1]; k++) {
+                float dis = (float) v1.dis(vecCoords[partners[k]]);
+                disMin[k] = Math.min(dis, disMin[k]);
+                disMax[k] = Math.max(dis, disMax[k]);
+            }
+        }
+    }
+
+    /**
+     * Mark as fixed all candidate pairs whose sampled distance range is below
+     * the tolerance.
+     *
+     * @param tol the distance tolerance
+     * @return the number of fixed pairs
+     */
+    public int updateFixed(double tol) {
+        for (int i = 0; i < nAtoms; i++) {
+            for (int k = rowStarts[i]; k < rowStarts[i + 1]; k++) {
+                if (Math.abs(disMax[k] - disMin[k]) < tol) {
+                    setFixed(i, partners[k], true);
+                }
+            }
+        }
+        return nFixed;
+    }
+
+    public int getPartnerStart(int i) {
+        return rowStarts[i];
+    }
+
+    public int getPartnerEnd(int i) {
+        return rowStarts[i + 1];
+    }
+
+    public int getPartner(int k) {
+        return partners[k];
+    }
+
+    public double getMinDistance(int k) {
+        return disMin[k];
+    }
+
+    public double getMaxDistance(int k) {
+        return disMax[k];
+    }
+
+    private long key(int i, int j) {
+        return i < j ? (long) i * nAtoms + j : (long) j * nAtoms + i;
+    }
+
+    private int slot(long key, long[] keys) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        int mask = keys.length - 1;
+        int index = (int) (h ^ (h >>> 32)) & mask;
+        while ((keys[index] != EMPTY) && (keys[index] != key)) {
+            index = (index + 1) & mask;
+        }
+        return index;
+    }
+
+    public boolean isFixed(int i, int j) {
+        if (i == j) {
+            return true;
+        }
+        long key = key(i, j);
+        return fixedKeys[slot(key, fixedKeys)] == key;
+    }
+
+    public void setFixed(int i, int j, boolean state) {
+        if (i == j) {
+            return;
+        }
+        long key = key(i, j);
+        int index = slot(key, fixedKeys);
+        if (state) {
+            if (fixedKeys[index] != key) {
+                fixedKeys[index] = key;
+                nFixed++;
+                if (nFixed * 2 > fixedKeys.length) {
+                    rehash(fixedKeys.length * 2);
+                }
+            }
+        } else if (fixedKeys[index] == key) {
+            fixedKeys[index] = EMPTY;
+            nFixed--;
+            // reinsert the rest of the cluster so probing stays correct
+            rehash(fixedKeys.length);
+        }
+    }
+
+    private void rehash(int newSize) {
+        long[] oldKeys = fixedKeys;
+        long[] newKeys = new long[newSize];
+        Arrays.fill(newKeys, EMPTY);
+        for (long key : oldKeys) {
+            if (key != EMPTY) {
+                newKeys[slot(key, newKeys)] = key;
+            }
+        }
+        fixedKeys = newKeys;
+    }
+
+    /**
+     * Get the fixed pairs as a flat array of atom indices (i0, j0, i1, j1
+     * ...), with i &lt; j, sorted by first and then second atom.
+     *
+     * @return the fixed pairs
+     */
+    public int[] getFixedPairs() {
+        long[] keys = new long[nFixed];
+        int n = 0;
+        for (long key : fixedKeys) {
+            if (key != EMPTY) {
+                keys[n++] = key;
+            }
+        }
+        Arrays.sort(keys);
+        int[] pairs = new int[2 * n];
+        for (int k = 0; k < n; k++) {
+            pairs[2 * k] = (int) (keys[k] / nAtoms);
+            pairs[2 * k + 1] = (int) (keys[k] % nAtoms);
+        }
+        return pairs;
+    }
+}
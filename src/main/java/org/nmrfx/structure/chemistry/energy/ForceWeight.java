@@ -30,6 +30,7 @@ public class ForceWeight {
     private final double bondWt;
     private final double irp;
     private final double stacking;
+    private final double rdc;
     final double cutoffSq = 64.0;
     final double cutoffSwitchSq = 36.0;
     final double cutoffDem = 28.0;
@@ -42,6 +43,13 @@ public class ForceWeight {
             final double repel, final double noe, double tortionAngle,
             double dihedral, double irp, double shift, double bond,
             double stacking) {
+        this(electrostatic, robson, repel, noe, tortionAngle, dihedral, irp, shift, bond, stacking, -1.0);
+    }
+
+    public ForceWeight(final double electrostatic, final double robson,
+            final double repel, final double noe, double tortionAngle,
+            double dihedral, double irp, double shift, double bond,
+            double stacking, double rdc) {
         this.electrostatic = electrostatic;
         this.robson = robson;
         this.repel = repel;
@@ -52,6 +60,7 @@ public class ForceWeight {
         this.shift = shift;
         this.bondWt = bond;
         this.stacking = stacking;
+        this.rdc = rdc;
     }
 
     /**
@@ -100,4 +109,8 @@ public class ForceWeight {
     public double getStacking() {
         return stacking;
     }
+
+    public double getRDC() {
+        return rdc;
+    }
 }
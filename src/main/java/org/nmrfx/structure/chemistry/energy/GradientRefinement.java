@@ -41,6 +41,7 @@ public class GradientRefinement extends Refinement {
     private boolean useNumericDerivatives = false;
     public TrajectoryWriter trajectoryWriter = null;
     private static ProgressUpdater progressUpdater = null;
+    private int lastReport = -1;
 
     public class Checker extends SimpleValueChecker {
 
@@ -54,6 +55,7 @@ public class GradientRefinement extends Refinement {
                 long time = System.currentTimeMillis();
                 long deltaTime = time - startTime;
                 report(iteration, nEvaluations, deltaTime, dihedrals.energyList.atomList.size(), current.getValue());
+                lastReport = iteration;
                 if (trajectoryWriter != null) {
                     if ((progressUpdater != null) || (trajectoryWriter != null)) {
                         molecule.updateFromVecCoords();
@@ -126,6 +128,79 @@ public class GradientRefinement extends Refinement {
         molecule.genCoords(false, null);
     }
 
+    public void lbfgsMinimize(int nSteps, double tolerance) {
+        lbfgsMinimize(nSteps, tolerance, 7);
+    }
+
+    /**
+     * Minimize the energy in torsion angle space with limited memory BFGS.
+     * Energy and analytic gradient are calculated together at every point
+     * so the line search needs far fewer energy evaluations than gradMinimize.
+     *
+     * @param nSteps maximum number of iterations
+     * @param tolerance relative and absolute energy convergence threshold
+     * @param memory number of correction pairs kept for the inverse Hessian
+     */
+    public void lbfgsMinimize(int nSteps, double tolerance, int memory) {
+        LBFGSOptimizer optimizer = new LBFGSOptimizer(memory, new Checker(tolerance, tolerance, nSteps));
+        prepareAngles(false);
+        dihedrals.setBoundaries(0.1, false);
+        getDihedrals();
+
+        dihedrals.energyList.makeAtomListFast();
+        startTime = System.currentTimeMillis();
+        nEvaluations = 0;
+        lastReport = -1;
+        double[] point = dihedrals.angleValues.clone();
+        EnergyDeriv startDeriv = nonNormEnergyAndDeriv(point);
+        report(0, 0, 0, dihedrals.energyList.atomList.size(), startDeriv.getEnergy());
+        reportAt = 20;
+        if (trajectoryWriter != null) {
+            try {
+                trajectoryWriter.writeStructure();
+            } catch (MissingCoordinatesException ex) {
+                Logger.getLogger(GradientRefinement.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+        optimizer.setUpdater(iteration -> {
+            if ((iteration % updateAt) == 0) {
+                dihedrals.energyList.makeAtomListFast();
+                return true;
+            }
+            return false;
+        });
+        PointValuePair result = optimizer.optimize(this::nonNormEnergyAndDeriv, point, nSteps, nSteps * 100);
+        // the checker has already reported if it stopped the search
+        if (lastReport != optimizer.getIterations()) {
+            long deltaTime = System.currentTimeMillis() - startTime;
+            report(optimizer.getIterations(), nEvaluations, deltaTime, dihedrals.energyList.atomList.size(), result.getValue());
+        }
+        double[] resultPoint = result.getPoint();
+        for (int i = 0; i < resultPoint.length; i++) {
+            dihedrals.angleValues[i] = Dihedral.reduceAngle(resultPoint[i]);
+        }
+        putDihedrals();
+        molecule.genCoords(false, null);
+    }
+
+    /**
+     * Calculate energy and derivatives at a set of (non normalized) torsion
+     * angles in one pass. The angles passed in are not modified.
+     *
+     * @param dihAngles the torsion angles
+     * @return the energy and its derivatives
+     */
+    public EnergyDeriv nonNormEnergyAndDeriv(final double[] dihAngles) {
+        for (int i = 0; i < dihAngles.length; i++) {
+            dihedrals.angleValues[i] = Dihedral.reduceAngle(dihAngles[i]);
+        }
+        putDihedrals();
+        molecule.genCoordsFastVec3D(null);
+        EnergyDeriv eDeriv = eDeriv();
+        nEvaluations++;
+        return eDeriv;
+    }
+
     public double[] nonNormDeriv(final double[] dihAngles) {
         System.arraycopy(dihAngles, 0, dihedrals.angleValues, 0, dihedrals.angleValues.length);
         putDihedrals();
@@ -212,6 +287,24 @@ public class GradientRefinement extends Refinement {
         return nDerivatives;
     }
 
+    /**
+     * Calculate the RMS of the energy derivatives with respect to the torsion
+     * angles at the current angles.
+     *
+     * @return the RMS derivative
+     */
+    public double calcRMSDeriv() {
+        prepareAngles(false);
+        getDihedrals();
+        dihedrals.energyList.makeAtomListFast();
+        double[] derivatives = eDeriv().getDerivatives();
+        double sum = 0.0;
+        for (double deriv : derivatives) {
+            sum += deriv * deriv;
+        }
+        return derivatives.length == 0 ? 0.0 : Math.sqrt(sum / derivatives.length);
+    }
+
     public double calcDerivError(final double delta) {
         prepareAngles(false);
         getDihedrals();
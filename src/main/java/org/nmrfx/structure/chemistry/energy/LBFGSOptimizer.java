@@ -0,0 +1,473 @@
+/*
+ * NMRFx Structure : A Program for Calculating Structures
+ * Copyright (C) 2004-2017 One Moon Scientific, Inc., Westfield, N.J., USA
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.nmrfx.structure.chemistry.energy;
+
+import org.apache.commons.math3.optim.ConvergenceChecker;
+import org.apache.commons.math3.optim.PointValuePair;
+
+/**
+ * Limited memory BFGS minimizer. The energy and gradient are always
+ * calculated together (as done by EnergyLists.energyAndDeriv) and the line
+ * search (More and Thuente, ACM TOMS 20, 286-307, 1994) uses both, so the
+ * gradient at the accepted point of each line search is reused for the next
+ * search direction without another evaluation.
+ *
+ * @author brucejohnson
+ */
+public class LBFGSOptimizer {
+
+    /**
+     * Calculates the energy and its gradient at a point.
+     */
+    public interface Evaluator {
+
+        EnergyDeriv value(double[] point);
+    }
+
+    /**
+     * Called at the start of each iteration. If it returns true the energy
+     * function has changed (for example the contact list was rebuilt) and
+     * the current point is re-evaluated.
+     */
+    public interface Updater {
+
+        boolean update(int iteration);
+    }
+
+    static final double FTOL = 1.0e-4;
+    static final double GTOL = 0.9;
+    static final double XTOL = 1.0e-10;
+    static final double XTRAPL = 1.1;
+    static final double XTRAPU = 4.0;
+    static final int MAX_LINE_EVALUATIONS = 20;
+
+    final int memory;
+    final ConvergenceChecker<PointValuePair> checker;
+    double maxStep = 0.5;
+    Updater updater = null;
+    int nEvaluations = 0;
+    int nIterations = 0;
+    int nLineFailures = 0;
+
+    public LBFGSOptimizer(int memory, ConvergenceChecker<PointValuePair> checker) {
+        this.memory = memory;
+        this.checker = checker;
+    }
+
+    /**
+     * Set the largest change allowed in any single variable in one line
+     * search.
+     *
+     * @param maxStep the maximum step (radians for torsion angles)
+     */
+    public void setMaxStep(double maxStep) {
+        this.maxStep = maxStep;
+    }
+
+    public void setUpdater(Updater updater) {
+        this.updater = updater;
+    }
+
+    public int getEvaluations() {
+        return nEvaluations;
+    }
+
+    public int getIterations() {
+        return nIterations;
+    }
+
+    public int getLineSearchFailures() {
+        return nLineFailures;
+    }
+
+    EnergyDeriv evaluate(Evaluator evaluator, double[] point) {
+        nEvaluations++;
+        return evaluator.value(point);
+    }
+
+    /**
+     * Minimize the function starting from the specified point.
+     *
+     * @param evaluator calculates energy and gradient
+     * @param start the starting point (not modified)
+     * @param maxIterations maximum number of iterations
+     * @param maxEvaluations maximum number of energy evaluations
+     * @return the best point found and its energy
+     */
+    public PointValuePair optimize(Evaluator evaluator, double[] start, int maxIterations, int maxEvaluations) {
+        int n = start.length;
+        nEvaluations = 0;
+        nIterations = 0;
+        nLineFailures = 0;
+        double[][] sVecs = new double[memory][n];
+        double[][] yVecs = new double[memory][n];
+        double[] rhos = new double[memory];
+        double[] alphas = new double[memory];
+        int nStored = 0;
+        int newest = -1;
+
+        double[] x = start.clone();
+        double[] direction = new double[n];
+        LineSearch lineSearch = new LineSearch(n);
+        EnergyDeriv eDeriv = evaluate(evaluator, x);
+        double energy = eDeriv.getEnergy();
+        double[] grad = eDeriv.getDerivatives().clone();
+        PointValuePair current = new PointValuePair(x.clone(), energy, false);
+
+        for (int iter = 1; iter <= maxIterations; iter++) {
+            nIterations = iter;
+            if ((updater != null) && updater.update(iter)) {
+                eDeriv = evaluate(evaluator, x);
+                energy = eDeriv.getEnergy();
+                System.arraycopy(eDeriv.getDerivatives(), 0, grad, 0, n);
+                current = new PointValuePair(x.clone(), energy, false);
+            }
+            // two loop recursion for direction = -H * grad
+            for (int i = 0; i < n; i++) {
+                direction[i] = -grad[i];
+            }
+            for (int k = 0, j = newest; k < nStored; k++) {
+                alphas[j] = rhos[j] * dot(sVecs[j], direction);
+                axpy(-alphas[j], yVecs[j], direction);
+                j = (j - 1 + memory) % memory;
+            }
+            if (nStored > 0) {
+                double gamma = dot(sVecs[newest], yVecs[newest]) / dot(yVecs[newest], yVecs[newest]);
+                for (int i = 0; i < n; i++) {
+                    direction[i] *= gamma;
+                }
+            }
+            for (int k = 0, j = (newest - nStored + 1 + memory) % memory; k < nStored; k++) {
+                double beta = rhos[j] * dot(yVecs[j], direction);
+                axpy(alphas[j] - beta, sVecs[j], direction);
+                j = (j + 1) % memory;
+            }
+            double gd = dot(grad, direction);
+            if (!(gd < 0.0)) {
+                // not a descent direction, restart with steepest descent
+                nStored = 0;
+                for (int i = 0; i < n; i++) {
+                    direction[i] = -grad[i];
+                }
+                gd = dot(grad, direction);
+                if (gd == 0.0) {
+                    break;
+                }
+            }
+            double maxDir = 0.0;
+            for (double d : direction) {
+                maxDir = Math.max(maxDir, Math.abs(d));
+            }
+            double stpMax = maxStep / maxDir;
+            double stp = nStored == 0 ? Math.min(1.0 / Math.sqrt(-gd), stpMax) : Math.min(1.0, stpMax);
+
+            int evalLimit = Math.min(MAX_LINE_EVALUATIONS, maxEvaluations - nEvaluations);
+            if (evalLimit <= 0) {
+                break;
+            }
+            boolean ok = lineSearch.search(evaluator, x, energy, grad, direction, stp, 0.0, stpMax, evalLimit);
+            if (!ok || !(lineSearch.bestEnergy < energy)) {
+                nLineFailures++;
+                if (lineSearch.bestEnergy < energy) {
+                    acceptStep(lineSearch, x, grad);
+                    energy = lineSearch.bestEnergy;
+                } else if (nStored == 0) {
+                    break;
+                }
+                // discard the curvature history and restart from steepest descent
+                nStored = 0;
+                continue;
+            }
+            newest = (newest + 1) % memory;
+            double[] s = sVecs[newest];
+            double[] y = yVecs[newest];
+            double[] xNew = lineSearch.bestX;
+            double[] gNew = lineSearch.bestGrad;
+            for (int i = 0; i < n; i++) {
+                s[i] = xNew[i] - x[i];
+                y[i] = gNew[i] - grad[i];
+            }
+            double sy = dot(s, y);
+            if (sy > 1.0e-10 * dot(y, y)) {
+                rhos[newest] = 1.0 / sy;
+                nStored = Math.min(nStored + 1, memory);
+            } else {
+                newest = (newest - 1 + memory) % memory;
+            }
+            acceptStep(lineSearch, x, grad);
+            energy = lineSearch.bestEnergy;
+            PointValuePair previous = current;
+            current = new PointValuePair(x.clone(), energy, false);
+            if ((checker != null) && checker.converged(iter, previous, current)) {
+                break;
+            }
+            if (nEvaluations >= maxEvaluations) {
+                break;
+            }
+        }
+        return current.getValue() <= energy ? current : new PointValuePair(x.clone(), energy, false);
+    }
+
+    void acceptStep(LineSearch lineSearch, double[] x, double[] grad) {
+        System.arraycopy(lineSearch.bestX, 0, x, 0, x.length);
+        System.arraycopy(lineSearch.bestGrad, 0, grad, 0, grad.length);
+    }
+
+    static double dot(double[] a, double[] b) {
+        double sum = 0.0;
+        for (int i = 0; i < a.length; i++) {
+            sum += a[i] * b[i];
+        }
+        return sum;
+    }
+
+    static void axpy(double a, double[] x, double[] y) {
+        for (int i = 0; i < x.length; i++) {
+            y[i] += a * x[i];
+        }
+    }
+
+    /**
+     * More-Thuente line search satisfying the strong Wolfe conditions. The
+     * point with the lowest sufficient-decrease-adjusted energy (stx) is kept
+     * along with its gradient so no re-evaluation is needed when the search
+     * stops early.
+     */
+    class LineSearch {
+
+        final double[] trialX;
+        double[] bestX;
+        double[] bestGrad;
+        double bestEnergy;
+        // state of the bracketing interval
+        double stx;
+        double fx;
+        double gx;
+        double sty;
+        double fy;
+        double gy;
+        boolean brackt;
+
+        LineSearch(int n) {
+            trialX = new double[n];
+            bestX = new double[n];
+            bestGrad = new double[n];
+        }
+
+        boolean search(Evaluator evaluator, double[] x0, double f0, double[] g0, double[] dir,
+                double stp, double stpMin, double stpMax, int maxEval) {
+            int n = x0.length;
+            double ginit = dot(g0, dir);
+            double gtest = FTOL * ginit;
+            double width = stpMax - stpMin;
+            double width1 = 2.0 * width;
+            brackt = false;
+            boolean stage1 = true;
+            stx = 0.0;
+            fx = f0;
+            gx = ginit;
+            sty = 0.0;
+            fy = f0;
+            gy = ginit;
+            double stmin = 0.0;
+            double stmax = stp + XTRAPU * stp;
+            System.arraycopy(x0, 0, bestX, 0, n);
+            System.arraycopy(g0, 0, bestGrad, 0, n);
+            bestEnergy = f0;
+
+            for (int iEval = 0; iEval < maxEval; iEval++) {
+                for (int i = 0; i < n; i++) {
+                    trialX[i] = x0[i] + stp * dir[i];
+                }
+                EnergyDeriv eDeriv = evaluate(evaluator, trialX);
+                double f = eDeriv.getEnergy();
+                double[] grad = eDeriv.getDerivatives();
+                double g = dot(grad, dir);
+                if (Double.isNaN(f) || Double.isInfinite(f)) {
+                    // back off toward the best point
+                    brackt = true;
+                    sty = stp;
+                    fy = Double.MAX_VALUE;
+                    stp = stx + 0.5 * (stp - stx);
+                    continue;
+                }
+                double ftest = f0 + stp * gtest;
+                if (stage1 && (f <= ftest) && (g >= 0.0)) {
+                    stage1 = false;
+                }
+                if (f <= ftest && f < bestEnergy) {
+                    bestEnergy = f;
+                    System.arraycopy(trialX, 0, bestX, 0, n);
+                    System.arraycopy(grad, 0, bestGrad, 0, n);
+                }
+                if ((f <= ftest) && (Math.abs(g) <= GTOL * (-ginit))) {
+                    return true;
+                }
+                if ((stp == stpMax) && (f <= ftest) && (g <= gtest)) {
+                    return true;
+                }
+                if (brackt && ((stp <= stmin) || (stp >= stmax))) {
+                    return false;
+                }
+                if (brackt && (stmax - stmin <= XTOL * stmax)) {
+                    return false;
+                }
+                if ((stp == stpMin) && ((f > ftest) || (g >= gtest))) {
+                    return false;
+                }
+                if (stage1 && (f <= fx) && (f > ftest)) {
+                    // use the modified function until sufficient decrease and curvature hold
+                    double fm = f - stp * gtest;
+                    double gm = g - gtest;
+                    fx -= stx * gtest;
+                    fy -= sty * gtest;
+                    gx -= gtest;
+                    gy -= gtest;
+                    stp = step(stp, fm, gm, stmin, stmax);
+                    fx += stx * gtest;
+                    fy += sty * gtest;
+                    gx += gtest;
+                    gy += gtest;
+                } else {
+                    stp = step(stp, f, g, stmin, stmax);
+                }
+                if (brackt) {
+                    if (Math.abs(sty - stx) >= 0.66 * width1) {
+                        stp = stx + 0.5 * (sty - stx);
+                    }
+                    width1 = width;
+                    width = Math.abs(sty - stx);
+                    stmin = Math.min(stx, sty);
+                    stmax = Math.max(stx, sty);
+                } else {
+                    stmin = stp + XTRAPL * (stp - stx);
+                    stmax = stp + XTRAPU * (stp - stx);
+                }
+                stp = Math.max(stp, stpMin);
+                stp = Math.min(stp, stpMax);
+                if (brackt && ((stp <= stmin) || (stp >= stmax) || (stmax - stmin <= XTOL * stmax))) {
+                    stp = stx;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Safeguarded cubic/quadratic step (dcstep of MINPACK-2). Updates the
+         * interval (stx, sty) and returns the new trial step.
+         */
+        double step(double stp, double fp, double dp, double stpmin, double stpmax) {
+            double sgnd = dp * Math.signum(gx);
+            double stpf;
+            if (fp > fx) {
+                double theta = 3.0 * (fx - fp) / (stp - stx) + gx + dp;
+                double s = max3(theta, gx, dp);
+                double gamma = s * Math.sqrt(Math.max(0.0, (theta / s) * (theta / s) - (gx / s) * (dp / s)));
+                if (stp < stx) {
+                    gamma = -gamma;
+                }
+                double p = (gamma - gx) + theta;
+                double q = ((gamma - gx) + gamma) + dp;
+                double stpc = stx + (p / q) * (stp - stx);
+                double stpq = stx + ((gx / ((fx - fp) / (stp - stx) + gx)) / 2.0) * (stp - stx);
+                if (Math.abs(stpc - stx) < Math.abs(stpq - stx)) {
+                    stpf = stpc;
+                } else {
+                    stpf = stpc + (stpq - stpc) / 2.0;
+                }
+                brackt = true;
+            } else if (sgnd < 0.0) {
+                double theta = 3.0 * (fx - fp) / (stp - stx) + gx + dp;
+                double s = max3(theta, gx, dp);
+                double gamma = s * Math.sqrt(Math.max(0.0, (theta / s) * (theta / s) - (gx / s) * (dp / s)));
+                if (stp > stx) {
+                    gamma = -gamma;
+                }
+                double p = (gamma - dp) + theta;
+                double q = ((gamma - dp) + gamma) + gx;
+                double stpc = stp + (p / q) * (stx - stp);
+                double stpq = stp + (dp / (dp - gx)) * (stx - stp);
+                stpf = Math.abs(stpc - stp) > Math.abs(stpq - stp) ? stpc : stpq;
+                brackt = true;
+            } else if (Math.abs(dp) < Math.abs(gx)) {
+                double theta = 3.0 * (fx - fp) / (stp - stx) + gx + dp;
+                double s = max3(theta, gx, dp);
+                double gamma = s * Math.sqrt(Math.max(0.0, (theta / s) * (theta / s) - (gx / s) * (dp / s)));
+                if (stp > stx) {
+                    gamma = -gamma;
+                }
+                double p = (gamma - dp) + theta;
+                double q = (gamma + (gx - dp)) + gamma;
+                double r = p / q;
+                double stpc;
+                if ((r < 0.0) && (gamma != 0.0)) {
+                    stpc = stp + r * (stx - stp);
+                } else if (stp > stx) {
+                    stpc = stpmax;
+                } else {
+                    stpc = stpmin;
+                }
+                double stpq = stp + (dp / (dp - gx)) * (stx - stp);
+                if (brackt) {
+                    stpf = Math.abs(stpc - stp) < Math.abs(stpq - stp) ? stpc : stpq;
+                    if (stp > stx) {
+                        stpf = Math.min(stp + 0.66 * (sty - stp), stpf);
+                    } else {
+                        stpf = Math.max(stp + 0.66 * (sty - stp), stpf);
+                    }
+                } else {
+                    stpf = Math.abs(stpc - stp) > Math.abs(stpq - stp) ? stpc : stpq;
+                    stpf = Math.min(stpmax, stpf);
+                    stpf = Math.max(stpmin, stpf);
+                }
+            } else if (brackt) {
+                double theta = 3.0 * (fp - fy) / (sty - stp) + gy + dp;
+                double s = max3(theta, gy, dp);
+                double gamma = s * Math.sqrt(Math.max(0.0, (theta / s) * (theta / s) - (gy / s) * (dp / s)));
+                if (stp > sty) {
+                    gamma = -gamma;
+                }
+                double p = (gamma - dp) + theta;
+                double q = ((gamma - dp) + gamma) + gy;
+                stpf = stp + (p / q) * (sty - stp);
+            } else {
+                stpf = stp > stx ? stpmax : stpmin;
+            }
+
+            if (fp > fx) {
+                sty = stp;
+                fy = fp;
+                gy = dp;
+            } else {
+                if (sgnd < 0.0) {
+                    sty = stx;
+                    fy = fx;
+                    gy = gx;
+                }
+                stx = stp;
+                fx = fp;
+                gx = dp;
+            }
+            return stpf;
+        }
+
+        double max3(double a, double b, double c) {
+            return Math.max(Math.abs(a), Math.max(Math.abs(b), Math.abs(c)));
+        }
+    }
+}
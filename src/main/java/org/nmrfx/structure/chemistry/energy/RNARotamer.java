@@ -50,7 +50,6 @@ public class RNARotamer {
     static final int[] subsetIndices = {1, 2, 3, 4};
     static final int[] indices = {0, 1, 2, 3, 4, 5, 6};
     // static final String[] atomNames = {"O3'", "P", "O5'", "C5'", "C4'", "C3'", "O3'"};
-    static Atom[] atoms = {null, null, null, null, null, null, null};
     static final int NPREVIOUS = 1;
 
     static final String[] DELTAP_ATOMS = {"-1:C5'", "-1:C4'", "-1:C3'", "-1:O3'"};
@@ -370,10 +369,12 @@ public class RNARotamer {
 
     public static void clear() {
         ROTAMERS.clear();
+        RotamerIndex.invalidate();
     }
 
     public static void add(String name, int n, double... angles) {
         ROTAMERS.put(name, new RNARotamer(name, n, angles));
+        RotamerIndex.invalidate();
     }
 
     public static void validateDetail() {
@@ -397,13 +398,28 @@ public class RNARotamer {
     }
 
     public static RotamerScore[] getNBest(Polymer polymer, int residueNum, int n, EnergyCoords ec) {
+        return getNBest(polymer, residueNum, n, ec, null);
+    }
+
+    public static RotamerScore[] getNBest(Polymer polymer, int residueNum, int n, EnergyCoords ec, Atom[] angleAtoms) {
         /* getNBest finds n of the best rotamer confirmations and returns a 
            list of rotamer scores containing the type of rotamer and the 
            probability. The function takes the polymer and a residue number.
+           The search uses the rotamer index, and gives the same result as
+           getNBestByScan. If angleAtoms is not null it is filled with the
+           third atom of each suite angle, for use by calcDerivs.
          */
+        double[] testAngles = RNARotamer.getDihedrals(polymer, residueNum, ec, angleAtoms);
+        return RotamerIndex.get().getNBest(testAngles, n);
+    }
 
-        RotamerScore[] bestScores = new RotamerScore[n];
+    public static RotamerScore[] getNBestByScan(Polymer polymer, int residueNum, int n, EnergyCoords ec) {
         double[] testAngles = RNARotamer.getDihedrals(polymer, residueNum, ec);
+        return getNBestByScan(testAngles, n);
+    }
+
+    public static RotamerScore[] getNBestByScan(double[] testAngles, int n) {
+        RotamerScore[] bestScores = new RotamerScore[n];
         List<RotamerScore> rotamerScores = new ArrayList<>();
         for (RNARotamer rotamer : ROTAMERS.values()) {
             double probability = rotamer.probability(testAngles, new int[]{0, 1, 2, 3, 4, 5, 6}, rotamer.fraction);
@@ -472,7 +488,17 @@ public class RNARotamer {
         return -FastMath.log(totalProb);
     }
 
-    public static Map<Integer, Double> calcDerivs(RotamerScore[] scores, double rotEnergy) {
+    /**
+     * Calculate the derivatives of the rotamer energy with respect to the
+     * suite angles.
+     *
+     * @param scores the rotamer scores
+     * @param rotEnergy the rotamer energy
+     * @param angleAtoms the third atom of each suite angle, as filled in by
+     * getNBest or getDihedrals
+     * @return map from angle index to derivative
+     */
+    public static Map<Integer, Double> calcDerivs(RotamerScore[] scores, double rotEnergy, Atom[] angleAtoms) {
         int i = 0;
         Map<Integer, Double> derivMap = new HashMap<>();
         double eRotEnergy = Math.exp(rotEnergy);
@@ -482,7 +508,7 @@ public class RNARotamer {
                 sum += (scores[j].prob * scores[j].normDeltas[i] * (1.0 / scores[j].rotamer.sdev[i]));
             }
             double deriv = eRotEnergy * sum;
-            int angleIndex = atoms[i].aAtom;
+            int angleIndex = angleAtoms[i].aAtom;
             derivMap.put(angleIndex, deriv);
         }
 
@@ -541,6 +567,10 @@ public class RNARotamer {
     }
 
     public static ArrayList<RotamerScore> getHits(double[] angles) {
+        return RotamerIndex.get().getHits(angles);
+    }
+
+    public static ArrayList<RotamerScore> getHitsByScan(double[] angles) {
         double best = Double.MAX_VALUE;
         RNARotamer bestRotamer = null;
         ArrayList<RotamerScore> hits = new ArrayList<>();
@@ -561,6 +591,10 @@ public class RNARotamer {
     }
 
     public static RotamerScore bestProb(double[] angles) {
+        return RotamerIndex.get().bestProb(angles);
+    }
+
+    public static RotamerScore bestProbByScan(double[] angles) {
         double best = 0.0;
         RNARotamer bestRotamer = null;
         String ddG = getDeltaDeltaGamma(angles);
@@ -603,11 +637,27 @@ public class RNARotamer {
     }
 
     public static double[] getDihedrals(Polymer polymer, int residueNum, EnergyCoords ec) {
+        return getDihedrals(polymer, residueNum, ec, null);
+    }
+
+    /**
+     * Calculate the suite dihedral angles of a residue. The atoms are returned
+     * in an array owned by the caller, so calls from different threads (such
+     * as the replicas of a ReplicaExchange) don't interfere.
+     *
+     * @param polymer the polymer
+     * @param residueNum the index of the residue in the polymer
+     * @param ec the energy coordinates to use, or null to use the atom
+     * coordinates
+     * @param angleAtoms if not null, filled with the third atom of each angle
+     * @return the angles
+     */
+    public static double[] getDihedrals(Polymer polymer, int residueNum, EnergyCoords ec, Atom[] angleAtoms) {
         double[] angles = new double[suiteAtoms.length];
         if (residueNum > 0) {
             int i = 0;
             for (String[] atomNames : suiteAtoms) {
-                Atom[] angleAtoms = new Atom[4];
+                Atom[] dihAtoms = new Atom[4];
                 int j = 0;
                 for (String aName : atomNames) {
                     int colonPos = aName.indexOf(':');
@@ -619,17 +669,53 @@ public class RNARotamer {
                     }
                     Residue residue = polymer.getResidue(residueNum + delta);
                     Atom atom = residue.getAtom(aName);
-                    angleAtoms[j++] = atom;
-                    if (j == 3) {
-                        atoms[i] = atom;
+                    dihAtoms[j++] = atom;
+                    if ((j == 3) && (angleAtoms != null)) {
+                        angleAtoms[i] = atom;
                     }
                 }
                 if (ec == null) {
-                    angles[i++] = AtomMath.calcDihedral(angleAtoms[0].getPoint(), angleAtoms[1].getPoint(), angleAtoms[2].getPoint(), angleAtoms[3].getPoint());
+                    angles[i++] = AtomMath.calcDihedral(dihAtoms[0].getPoint(), dihAtoms[1].getPoint(), dihAtoms[2].getPoint(), dihAtoms[3].getPoint());
                 } else {
-                    angles[i++] = ec.calcDihedral(angleAtoms[0].eAtom, angleAtoms[1].eAtom, angleAtoms[2].eAtom, angleAtoms[3].eAtom);
+                    angles[i++] = ec.calcDihedral(dihAtoms[0].eAtom, dihAtoms[1].eAtom, dihAtoms[2].eAtom, dihAtoms[3].eAtom);
+                }
+            }
+        }
+        return angles;
+    }
+
+    /**
+     * Calculate the suite dihedral angles of a residue in one structure. It
+     * can be called from multiple threads.
+     *
+     * @param polymer the polymer
+     * @param residueNum the index of the residue in the polymer (must be
+     * greater than 0)
+     * @param iStructure the structure
+     * @return the angles, or null if an atom or its coordinates are missing
+     */
+    public static double[] getStructureDihedrals(Polymer polymer, int residueNum, int iStructure) {
+        double[] angles = new double[suiteAtoms.length];
+        int i = 0;
+        for (String[] atomNames : suiteAtoms) {
+            Point3[] points = new Point3[4];
+            int j = 0;
+            for (String aName : atomNames) {
+                int colonPos = aName.indexOf(':');
+                int delta = 0;
+                if (colonPos != -1) {
+                    delta = Integer.valueOf(aName.substring(0, colonPos));
+                    aName = aName.substring(colonPos + 1);
+                }
+                Residue residue = polymer.getResidue(residueNum + delta);
+                Atom atom = residue == null ? null : residue.getAtom(aName);
+                Point3 point = atom == null ? null : atom.getPoint(iStructure);
+                if (point == null) {
+                    return null;
                 }
+                points[j++] = point;
             }
+            angles[i++] = AtomMath.calcDihedral(points[0], points[1], points[2], points[3]);
         }
         return angles;
     }
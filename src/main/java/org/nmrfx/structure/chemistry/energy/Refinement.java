@@ -38,6 +38,15 @@ public abstract class Refinement {
         this.dihedrals = dihedrals;
     }
 
+    /**
+     * Set the number of iterations between progress reports.
+     *
+     * @param reportAt the number of iterations
+     */
+    public void setReportAt(int reportAt) {
+        this.reportAt = reportAt;
+    }
+
     public void report(int iteration, int nEvaluations, long time, int nContacts, double energy) {
         System.out.printf("%6d %6d %8d %5d %9.2f\n", iteration, nEvaluations, time, nContacts, energy);
     }
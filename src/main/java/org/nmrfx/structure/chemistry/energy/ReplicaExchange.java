@@ -0,0 +1,244 @@
+/*
+ * NMRFx Structure : A Program for Calculating Structures
+ * Copyright (C) 2004-2017 One Moon Scientific, Inc., Westfield, N.J., USA
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.nmrfx.structure.chemistry.energy;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.nmrfx.structure.chemistry.MissingCoordinatesException;
+import org.python.core.PyFloat;
+
+/**
+ * Replica exchange torsion angle dynamics. Each replica is a
+ * RotationalDynamics instance built on its own Molecule (and so its own
+ * EnergyCoords workspace) and runs at one temperature of a ladder. Replicas
+ * run in parallel threads between exchange attempts. At each attempt
+ * neighboring temperatures are swapped with the Metropolis criterion, and the
+ * velocities of the swapped replicas are rescaled to their new temperature.
+ *
+ * @author brucejohnson
+ */
+public class ReplicaExchange {
+
+    final List<RotationalDynamics> replicas;
+    final double[] temperatures;
+    // temperature index of each replica and replica at each temperature
+    final int[] tempIndex;
+    final int[] replicaAt;
+    // statistics for swaps between temperature i and i + 1
+    final int[] nAttempts;
+    final int[] nAccepted;
+    final Random rand;
+    int nThreads;
+    int nRounds = 0;
+
+    public ReplicaExchange(List<RotationalDynamics> replicas, double[] temperatures, long seed) {
+        if (replicas.size() != temperatures.length) {
+            throw new IllegalArgumentException("Number of replicas (" + replicas.size()
+                    + ") and temperatures (" + temperatures.length + ") differ");
+        }
+        this.replicas = new ArrayList<>(replicas);
+        this.temperatures = temperatures.clone();
+        int n = temperatures.length;
+        tempIndex = new int[n];
+        replicaAt = new int[n];
+        for (int i = 0; i < n; i++) {
+            tempIndex[i] = i;
+            replicaAt[i] = i;
+        }
+        nAttempts = new int[Math.max(n - 1, 0)];
+        nAccepted = new int[Math.max(n - 1, 0)];
+        rand = new Random(seed);
+        nThreads = Math.min(n, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Make a geometric temperature ladder, which gives roughly uniform swap
+     * acceptance when the heat capacity is constant.
+     *
+     * @param tLow the lowest temperature
+     * @param tHigh the highest temperature
+     * @param n the number of temperatures
+     * @return the temperatures, lowest first
+     */
+    public static double[] geometricLadder(double tLow, double tHigh, int n) {
+        double[] temps = new double[n];
+        for (int i = 0; i < n; i++) {
+            temps[i] = n == 1 ? tLow : tLow * Math.pow(tHigh / tLow, (double) i / (n - 1));
+        }
+        return temps;
+    }
+
+    public void setThreads(int nThreads) {
+        this.nThreads = Math.max(1, nThreads);
+    }
+
+    /**
+     * Start dynamics on all replicas, each at its own temperature.
+     *
+     * @param econ the energy conservation target used to adapt the time step
+     * @param nSteps the number of steps each replica will run in total
+     * @param timeStep the initial time step
+     */
+    public void init(double econ, int nSteps, double timeStep) {
+        for (int i = 0; i < replicas.size(); i++) {
+            RotationalDynamics replica = replicas.get(i);
+            double temp = temperatures[tempIndex[i]];
+            replica.initDynamics2(new PyFloat(temp), new PyFloat(econ), nSteps, timeStep);
+        }
+    }
+
+    /**
+     * Run the replicas, attempting temperature swaps every stepsPerExchange
+     * steps.
+     *
+     * @param stepsPerExchange the number of dynamics steps between swap
+     * attempts
+     * @param nExchanges the number of swap attempts
+     * @throws MissingCoordinatesException if a trajectory can't be written
+     * @throws InterruptedException if interrupted while waiting for replicas
+     */
+    public void run(int stepsPerExchange, int nExchanges) throws MissingCoordinatesException, InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(nThreads);
+        try {
+            List<Callable<Object>> tasks = new ArrayList<>();
+            for (RotationalDynamics replica : replicas) {
+                tasks.add(() -> {
+                    replica.runSteps(stepsPerExchange, 0);
+                    return null;
+                });
+            }
+            for (int iExchange = 0; iExchange < nExchanges; iExchange++) {
+                for (Future<Object> future : executor.invokeAll(tasks)) {
+                    try {
+                        future.get();
+                    } catch (ExecutionException eE) {
+                        Throwable cause = eE.getCause();
+                        if (cause instanceof MissingCoordinatesException) {
+                            throw (MissingCoordinatesException) cause;
+                        }
+                        throw new RuntimeException(cause);
+                    }
+                }
+                attemptSwaps();
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Attempt swaps between neighboring temperatures, alternating between
+     * even and odd pairs on successive rounds so every pair is tried.
+     */
+    void attemptSwaps() {
+        for (int iTemp = nRounds % 2; iTemp < temperatures.length - 1; iTemp += 2) {
+            int iRep = replicaAt[iTemp];
+            int jRep = replicaAt[iTemp + 1];
+            RotationalDynamics rDynI = replicas.get(iRep);
+            RotationalDynamics rDynJ = replicas.get(jRep);
+            double tempI = temperatures[iTemp];
+            double tempJ = temperatures[iTemp + 1];
+            double kB = rDynI.getBoltzmannConstant();
+            double betaI = 1.0 / (kB * tempI);
+            double betaJ = 1.0 / (kB * tempJ);
+            double delta = (betaI - betaJ) * (rDynI.getPotentialEnergy() - rDynJ.getPotentialEnergy());
+            nAttempts[iTemp]++;
+            if ((delta >= 0.0) || (rand.nextDouble() < Math.exp(delta))) {
+                nAccepted[iTemp]++;
+                rDynI.setBathTemp(tempJ);
+                rDynI.scaleVelocities(Math.sqrt(tempJ / tempI));
+                rDynJ.setBathTemp(tempI);
+                rDynJ.scaleVelocities(Math.sqrt(tempI / tempJ));
+                replicaAt[iTemp] = jRep;
+                replicaAt[iTemp + 1] = iRep;
+                tempIndex[iRep] = iTemp + 1;
+                tempIndex[jRep] = iTemp;
+            }
+        }
+        nRounds++;
+    }
+
+    public double[] getTemperatures() {
+        return temperatures.clone();
+    }
+
+    /**
+     * Get the replica currently running at a given temperature.
+     *
+     * @param iTemp index of the temperature in the ladder
+     * @return the replica
+     */
+    public RotationalDynamics getReplicaAt(int iTemp) {
+        return replicas.get(replicaAt[iTemp]);
+    }
+
+    /**
+     * Get the fraction of accepted swaps between each temperature and the
+     * next one in the ladder.
+     *
+     * @return the acceptance ratios
+     */
+    public double[] getAcceptanceRatios() {
+        double[] ratios = new double[nAttempts.length];
+        for (int i = 0; i < ratios.length; i++) {
+            ratios[i] = nAttempts[i] == 0 ? 0.0 : (double) nAccepted[i] / nAttempts[i];
+        }
+        return ratios;
+    }
+
+    /**
+     * Get the number of swaps tried between each temperature and the next
+     * one in the ladder.
+     *
+     * @return the number of attempts
+     */
+    public int[] getSwapAttempts() {
+        return nAttempts.clone();
+    }
+
+    /**
+     * Get the number of accepted swaps between each temperature and the next
+     * one in the ladder.
+     *
+     * @return the number of accepted swaps
+     */
+    public int[] getSwapsAccepted() {
+        return nAccepted.clone();
+    }
+
+    public void report() {
+        System.out.printf("%4s %10s %10s %6s %8s %8s\n", "temp", "T", "potE", "rep", "tries", "accept");
+        for (int iTemp = 0; iTemp < temperatures.length; iTemp++) {
+            RotationalDynamics replica = getReplicaAt(iTemp);
+            if (iTemp < nAttempts.length) {
+                double ratio = nAttempts[iTemp] == 0 ? 0.0 : (double) nAccepted[iTemp] / nAttempts[iTemp];
+                System.out.printf("%4d %10.1f %10.2f %6d %8d %8.3f\n", iTemp, temperatures[iTemp],
+                        replica.getPotentialEnergy(), replicaAt[iTemp], nAttempts[iTemp], ratio);
+            } else {
+                System.out.printf("%4d %10.1f %10.2f %6d\n", iTemp, temperatures[iTemp],
+                        replica.getPotentialEnergy(), replicaAt[iTemp]);
+            }
+        }
+    }
+}
@@ -0,0 +1,481 @@
+/*
+ * NMRFx Structure : A Program for Calculating Structures
+ * Copyright (C) 2004-2017 One Moon Scientific, Inc., Westfield, N.J., USA
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.nmrfx.structure.chemistry.energy;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.IntStream;
+import org.nmrfx.structure.chemistry.Molecule;
+import org.nmrfx.structure.chemistry.Polymer;
+import org.nmrfx.structure.chemistry.Residue;
+import org.nmrfx.structure.chemistry.energy.RNARotamer.RotamerScore;
+
+/**
+ * Index of the RNA suite rotamer library for fast rotamer searches. The
+ * rotamers are stored in vantage point trees, using the distance between
+ * torsion angle sets with each angle difference taken around the circle and
+ * scaled. One tree is scaled by the library standard deviations, which the
+ * probabilities depend on, and one by the half widths used for the suite
+ * scores.
+ *
+ * Searches only score the rotamers whose distance bounds allow them to
+ * qualify, and give the same results as the full scans in RNARotamer,
+ * including the order of tied rotamers. The index is rebuilt when the
+ * library changes.
+ *
+ * @author brucejohnson
+ */
+public class RotamerIndex {
+
+    // allows for rounding in the bounds, which must never exclude a rotamer
+    // that the full scan would accept
+    static final double SLOP = 1.0e-6;
+    static final int[] ALL_INDICES = {0, 1, 2, 3, 4, 5, 6};
+    private static volatile RotamerIndex index = null;
+
+    final RNARotamer[] rotamers;
+    final PeriodicTree probTree;
+    final PeriodicTree scoreTree;
+    final double maxPrior;
+    // product over angles of the Gaussian normalization
+    final double probNorm;
+
+    RotamerIndex(List<RNARotamer> library) {
+        rotamers = library.toArray(new RNARotamer[library.size()]);
+        double[][] points = new double[rotamers.length][];
+        double prior = 0.0;
+        for (int i = 0; i < rotamers.length; i++) {
+            points[i] = rotamers[i].angles;
+            prior = Math.max(prior, rotamers[i].fraction);
+        }
+        maxPrior = prior;
+        int nAngles = RNARotamer.sdevs.length;
+        double[] probWeights = new double[nAngles];
+        double[] scoreWeights = new double[nAngles];
+        double norm = 1.0;
+        for (int i = 0; i < nAngles; i++) {
+            probWeights[i] = 1.0 / RNARotamer.sdevs[i];
+            scoreWeights[i] = 1.0 / RNARotamer.halfWidths[i];
+            norm *= 1.0 / (RNARotamer.sdevs[i] * Math.sqrt(2.0 * Math.PI));
+        }
+        probNorm = norm;
+        probTree = new PeriodicTree(points, probWeights);
+        scoreTree = new PeriodicTree(points, scoreWeights);
+    }
+
+    /**
+     * Get the index of the current library, building it if necessary.
+     *
+     * @return the index
+     */
+    public static RotamerIndex get() {
+        RotamerIndex result = index;
+        if (result == null) {
+            synchronized (RotamerIndex.class) {
+                result = index;
+                if (result == null) {
+                    result = new RotamerIndex(new ArrayList<>(RNARotamer.ROTAMERS.values()));
+                    index = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Discard the index, so it is rebuilt on the next search. Called when
+     * the library changes.
+     */
+    public static void invalidate() {
+        index = null;
+    }
+
+    /**
+     * Receives the items of a tree search.
+     */
+    interface Visitor {
+
+        /**
+         * Test whether items at a distance of at least lowerBound could be of
+         * interest.
+         */
+        boolean accept(double lowerBound);
+
+        void visit(int item, double distance);
+    }
+
+    /**
+     * Vantage point tree over points on the torus of torsion angles. The
+     * nodes are stored implicitly in the item array: the node over items lo
+     * to hi - 1 has its vantage point at lo, with the points nearer than the
+     * median distance in the inner range (lo + 1 to mid - 1) and the rest in
+     * the outer range (mid to hi - 1).
+     */
+    static class PeriodicTree {
+
+        final double[][] points;
+        final double[] weights;
+        final int[] items;
+        // distance ranges, from the vantage point at each position, of the
+        // inner and outer subtrees
+        final double[] innerMin;
+        final double[] innerMax;
+        final double[] outerMin;
+        final double[] outerMax;
+
+        PeriodicTree(double[][] points, double[] weights) {
+            this.points = points;
+            this.weights = weights.clone();
+            int n = points.length;
+            items = new int[n];
+            for (int i = 0; i < n; i++) {
+                items[i] = i;
+            }
+            innerMin = new double[n];
+            innerMax = new double[n];
+            outerMin = new double[n];
+            outerMax = new double[n];
+            build(0, n);
+        }
+
+        double distance(double[] a, double[] b) {
+            double sum = 0.0;
+            for (int i = 0; i < weights.length; i++) {
+                double delta = Math.abs(a[i] - b[i]);
+                if (delta > Math.PI) {
+                    delta = 2.0 * Math.PI - delta;
+                }
+                delta *= weights[i];
+                sum += delta * delta;
+            }
+            return Math.sqrt(sum);
+        }
+
+        final void build(int lo, int hi) {
+            if (hi - lo <= 1) {
+                return;
+            }
+            double[] vantage = points[items[lo]];
+            Integer[] rest = new Integer[hi - lo - 1];
+            double[] dis = new double[points.length];
+            for (int i = lo + 1; i < hi; i++) {
+                rest[i - lo - 1] = items[i];
+                dis[items[i]] = distance(vantage, points[items[i]]);
+            }
+            Arrays.sort(rest, (a, b) -> Double.compare(dis[a], dis[b]));
+            for (int i = 0; i < rest.length; i++) {
+                items[lo + 1 + i] = rest[i];
+            }
+            int mid = lo + 1 + rest.length / 2;
+            innerMin[lo] = mid > lo + 1 ? dis[items[lo + 1]] : 0.0;
+            innerMax[lo] = mid > lo + 1 ? dis[items[mid - 1]] : 0.0;
+            outerMin[lo] = dis[items[mid]];
+            outerMax[lo] = dis[items[hi - 1]];
+            build(lo + 1, mid);
+            build(mid, hi);
+        }
+
+        void search(double[] query, Visitor visitor) {
+            search(query, visitor, 0, items.length);
+        }
+
+        void search(double[] query, Visitor visitor, int lo, int hi) {
+            if (hi <= lo) {
+                return;
+            }
+            int item = items[lo];
+            double dis = distance(query, points[item]);
+            visitor.visit(item, dis);
+            if (hi - lo == 1) {
+                return;
+            }
+            int mid = lo + 1 + (hi - lo - 1) / 2;
+            double innerBound = Math.max(0.0, Math.max(innerMin[lo] - dis, dis - innerMax[lo]));
+            double outerBound = Math.max(0.0, Math.max(outerMin[lo] - dis, dis - outerMax[lo]));
+            if (innerBound <= outerBound) {
+                if ((mid > lo + 1) && visitor.accept(innerBound - SLOP)) {
+                    search(query, visitor, lo + 1, mid);
+                }
+                if (visitor.accept(outerBound - SLOP)) {
+                    search(query, visitor, mid, hi);
+                }
+            } else {
+                if (visitor.accept(outerBound - SLOP)) {
+                    search(query, visitor, mid, hi);
+                }
+                if ((mid > lo + 1) && visitor.accept(innerBound - SLOP)) {
+                    search(query, visitor, lo + 1, mid);
+                }
+            }
+        }
+    }
+
+    /**
+     * Find the rotamers within a distance of a set of angles, using the half
+     * width scaled distance used by the suite score.
+     *
+     * @param angles the torsion angles (radians)
+     * @param radius the distance
+     * @return the library indices of the rotamers, in library order
+     */
+    public int[] withinRadius(double[] angles, double radius) {
+        List<Integer> found = new ArrayList<>();
+        scoreTree.search(angles, new Visitor() {
+            @Override
+            public boolean accept(double lowerBound) {
+                return lowerBound <= radius;
+            }
+
+            @Override
+            public void visit(int item, double distance) {
+                if (distance <= radius) {
+                    found.add(item);
+                }
+            }
+        });
+        return found.stream().mapToInt(Integer::intValue).sorted().toArray();
+    }
+
+    /**
+     * Get the library indices of the rotamers that could have a suite score
+     * below 1.0, in library order. The score is a p-norm of the scaled angle
+     * differences, so it bounds the 2-norm used by the tree.
+     */
+    int[] scoreCandidates(double[] angles) {
+        double power = RNARotamer.HPOWER;
+        double nAngles = RNARotamer.halfWidths.length;
+        double radius = power >= 2.0 ? Math.pow(nAngles, 0.5 - 1.0 / power) : 1.0;
+        return withinRadius(angles, radius * (1.0 + SLOP));
+    }
+
+    /**
+     * Find the rotamers with the highest probability, as in
+     * RNARotamer.getNBestByScan.
+     *
+     * @param testAngles the torsion angles (radians)
+     * @param n the number of rotamers
+     * @return the scores of the best rotamers, best first, padded with null
+     * if the library has fewer than n rotamers
+     */
+    public RotamerScore[] getNBest(double[] testAngles, int n) {
+        List<double[]> best = new ArrayList<>();
+        probTree.search(testAngles, new Visitor() {
+            @Override
+            public boolean accept(double lowerBound) {
+                if (best.size() < n) {
+                    return true;
+                }
+                double lb = Math.max(0.0, lowerBound);
+                double bound = maxPrior * probNorm * Math.exp(-lb * lb / 2.0) * (1.0 + SLOP);
+                return Math.min(1.0, bound) >= best.get(n - 1)[1];
+            }
+
+            @Override
+            public void visit(int item, double distance) {
+                RNARotamer rotamer = rotamers[item];
+                double prob = rotamer.probability(testAngles, ALL_INDICES, rotamer.fraction);
+                int pos = 0;
+                while ((pos < best.size()) && ((best.get(pos)[1] > prob)
+                        || ((best.get(pos)[1] == prob) && (best.get(pos)[0] < item)))) {
+                    pos++;
+                }
+                if (pos < n) {
+                    best.add(pos, new double[]{item, prob});
+                    if (best.size() > n) {
+                        best.remove(best.size() - 1);
+                    }
+                }
+            }
+        });
+        RotamerScore[] result = new RotamerScore[n];
+        for (int i = 0; i < best.size(); i++) {
+            RNARotamer rotamer = rotamers[(int) best.get(i)[0]];
+            result[i] = new RotamerScore(rotamer, 0.0, best.get(i)[1], testAngles, null);
+        }
+        return result;
+    }
+
+    /**
+     * Find the rotamers with a suite score below 1.0, as in
+     * RNARotamer.getHitsByScan.
+     *
+     * @param angles the torsion angles (radians)
+     * @return the scores, in library order
+     */
+    public ArrayList<RotamerScore> getHits(double[] angles) {
+        ArrayList<RotamerScore> hits = new ArrayList<>();
+        for (int item : scoreCandidates(angles)) {
+            RNARotamer rotamer = rotamers[item];
+            double score = rotamer.score(angles, RNARotamer.indices, RNARotamer.halfWidths);
+            if (score < 1.0) {
+                double prob = rotamer.probability(angles, RNARotamer.subsetIndices, rotamer.fraction);
+                hits.add(new RotamerScore(rotamer, score, prob, angles));
+            }
+        }
+        return hits;
+    }
+
+    /**
+     * Assign the suite of a set of angles, as in RNARotamer.bestProbByScan.
+     *
+     * @param angles the torsion angles (radians)
+     * @return the score of the best rotamer, or of the outlier rotamer
+     */
+    public RotamerScore bestProb(double[] angles) {
+        String ddG = RNARotamer.getDeltaDeltaGamma(angles);
+        if (ddG.startsWith("-")) {
+            return new RotamerScore(RNARotamer.OUTLIER, 10.0, 0.0, angles, ddG);
+        }
+        int triageResult = RNARotamer.triage(angles);
+        if (triageResult > -1) {
+            return new RotamerScore(RNARotamer.OUTLIER, 10.0, 0.0, angles, "" + triageResult);
+        }
+        double best = 0.0;
+        RNARotamer bestRotamer = null;
+        double bestScore = 1.0;
+        for (int item : scoreCandidates(angles)) {
+            RNARotamer rotamer = rotamers[item];
+            if (!rotamer.deltaDeltaGamma.equals(ddG)) {
+                continue;
+            }
+            double score = rotamer.score(angles, RNARotamer.indices, RNARotamer.halfWidths);
+            if (score < 1.0) {
+                double prob = rotamer.probability(angles, RNARotamer.subsetIndices, rotamer.fraction);
+                if (prob > best) {
+                    best = prob;
+                    bestRotamer = rotamer;
+                    bestScore = score;
+                }
+            }
+        }
+        if (bestRotamer == null) {
+            return new RotamerScore(RNARotamer.OUTLIER, bestScore, 0.0, angles, "score");
+        }
+        return new RotamerScore(bestRotamer, bestScore, best, angles);
+    }
+
+    /**
+     * Suite assignments of each residue in each structure.
+     */
+    public static class SuiteTable {
+
+        final String[] residues;
+        final int[] structures;
+        final String[][] names;
+        final double[][] suiteness;
+        final double[][] probs;
+
+        SuiteTable(String[] residues, int[] structures) {
+            this.residues = residues;
+            this.structures = structures;
+            names = new String[residues.length][structures.length];
+            suiteness = new double[residues.length][structures.length];
+            probs = new double[residues.length][structures.length];
+            for (int i = 0; i < residues.length; i++) {
+                Arrays.fill(suiteness[i], Double.NaN);
+                Arrays.fill(probs[i], Double.NaN);
+            }
+        }
+
+        public int getNResidues() {
+            return residues.length;
+        }
+
+        public String getResidue(int iRes) {
+            return residues[iRes];
+        }
+
+        public int[] getStructures() {
+            return structures.clone();
+        }
+
+        /**
+         * Get the suite name of a residue in a structure.
+         *
+         * @param iRes the row of the residue
+         * @param iStruct the column of the structure
+         * @return the rotamer name, "--" for outliers, or null if the angles
+         * could not be calculated
+         */
+        public String getName(int iRes, int iStruct) {
+            return names[iRes][iStruct];
+        }
+
+        public double getSuiteness(int iRes, int iStruct) {
+            return suiteness[iRes][iStruct];
+        }
+
+        public double getProb(int iRes, int iStruct) {
+            return probs[iRes][iStruct];
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sBuilder = new StringBuilder();
+            for (int i = 0; i < residues.length; i++) {
+                sBuilder.append(residues[i]);
+                for (int j = 0; j < structures.length; j++) {
+                    sBuilder.append(String.format(" %2s %.2f %8.6f", names[i][j], suiteness[i][j], probs[i][j]));
+                }
+                sBuilder.append('\n');
+            }
+            return sBuilder.toString();
+        }
+    }
+
+    /**
+     * Assign the suites of every RNA residue (after the first of each
+     * polymer) in every active structure of a molecule, in parallel.
+     *
+     * @param molecule the molecule
+     * @return the assignments
+     */
+    public static SuiteTable assign(Molecule molecule) {
+        List<Polymer> polymers = new ArrayList<>();
+        List<Integer> residueNums = new ArrayList<>();
+        List<String> labels = new ArrayList<>();
+        for (Polymer polymer : molecule.getPolymers()) {
+            if (polymer.isRNA()) {
+                List<Residue> residues = polymer.getResidues();
+                for (int i = 1; i < residues.size(); i++) {
+                    Residue residue = residues.get(i);
+                    polymers.add(polymer);
+                    residueNums.add(i);
+                    labels.add(polymer.getName() + ":" + residue.getName() + residue.getNumber());
+                }
+            }
+        }
+        int[] structures = molecule.getActiveStructures();
+        SuiteTable table = new SuiteTable(labels.toArray(new String[labels.size()]), structures);
+        RotamerIndex rotamerIndex = get();
+        int nStructures = structures.length;
+        IntStream.range(0, labels.size() * nStructures).parallel().forEach(k -> {
+            int iRes = k / nStructures;
+            int iStruct = k % nStructures;
+            double[] angles = RNARotamer.getStructureDihedrals(polymers.get(iRes), residueNums.get(iRes), structures[iStruct]);
+            if (angles != null) {
+                RotamerScore rotamerScore = rotamerIndex.bestProb(angles);
+                table.names[iRes][iStruct] = rotamerScore.getName();
+                table.suiteness[iRes][iStruct] = rotamerScore.getSuiteness();
+                table.probs[iRes][iStruct] = rotamerScore.getProb();
+            }
+        });
+        return table;
+    }
+}
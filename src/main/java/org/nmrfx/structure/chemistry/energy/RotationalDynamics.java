@@ -77,6 +77,11 @@ public class RotationalDynamics {
     double[][] accStore;
     double[] velStoreAng;
     DynState dynState = null;
+    int respaSteps = 1;
+    double[] slowGradient = null;
+    double slowEnergy = 0.0;
+    double sumSlowError = 0.0;
+    int nSlowEvals = 0;
     static boolean REPORTBAD = false;
 
     public RotationalDynamics(Dihedral dihedrals, Random rand) {
@@ -107,6 +112,54 @@ public class RotationalDynamics {
         return timeStep;
     }
 
+    public double getPotentialEnergy() {
+        return lastPotentialEnergy;
+    }
+
+    public double getKineticEnergy() {
+        return lastKineticEnergy;
+    }
+
+    public double getCurrentTemp() {
+        return currentTemp;
+    }
+
+    public double getBathTemp() {
+        return bathTemp;
+    }
+
+    public int getCurrentStep() {
+        return currentStep;
+    }
+
+    public Molecule getMolecule() {
+        return molecule;
+    }
+
+    /**
+     * Hold the bath at a constant temperature, replacing any temperature
+     * schedule.
+     *
+     * @param temp the bath temperature
+     */
+    public void setBathTemp(double temp) {
+        tempFunction = new PyFloat(temp);
+        bathTemp = temp;
+    }
+
+    /**
+     * Multiply all torsion velocities by a constant and update the atom
+     * velocities to match.
+     *
+     * @param scale the velocity scale factor
+     */
+    public void scaleVelocities(double scale) {
+        adjustTemp(scale);
+        updateVelocitiesRecursive();
+        lastKineticEnergy = calcKineticEnergy();
+        currentTemp = calcTemp2(lastKineticEnergy);
+    }
+
     final void getBranchAtoms() {
         List<Atom> atoms = molecule.getAtomArray();
         int i = 0;
@@ -268,6 +321,16 @@ public class RotationalDynamics {
         return kinE;
     }
 
+    /**
+     * The Boltzmann constant in the units of the potential energy, consistent
+     * with the temperature calculated from the kinetic energy.
+     *
+     * @return the Boltzmann constant
+     */
+    public double getBoltzmannConstant() {
+        return 1.38e-6 * kineticEnergyScale;
+    }
+
     double calcTemp2(double kineticEnergy) {
         kineticEnergy /= kineticEnergyScale;
         double temp = 2.0 * kineticEnergy / ((branches.size() - 1) * 1.38e-6);
@@ -510,7 +573,7 @@ public class RotationalDynamics {
 
         double newKineticEnergy = calcKineticEnergy();
 
-        EnergyDeriv eDeriv = dihedrals.eDeriv();
+        EnergyDeriv eDeriv = calcForces(iStep);
         double potentialEnergy = eDeriv.getEnergy();
         double total = potentialEnergy + kineticEnergy;
 
@@ -524,6 +587,57 @@ public class RotationalDynamics {
         return deltaEnergy;
     }
 
+    /**
+     * Set the number of steps between evaluations of the slow (contact and
+     * restraint) energy terms. The fast torsional terms are evaluated every
+     * step and the most recent slow forces are added to them. A value of 1
+     * evaluates all terms every step.
+     *
+     * @param respaSteps steps between slow force evaluations
+     */
+    public void setRespaSteps(int respaSteps) {
+        this.respaSteps = Math.max(1, respaSteps);
+        slowGradient = null;
+    }
+
+    public int getRespaSteps() {
+        return respaSteps;
+    }
+
+    /**
+     * Get the mean absolute change in the slow energy terms between
+     * successive evaluations. It measures the error from holding slow forces
+     * constant between evaluations.
+     *
+     * @return the mean change in slow energy
+     */
+    public double getSlowEnergyError() {
+        return nSlowEvals == 0 ? 0.0 : sumSlowError / nSlowEvals;
+    }
+
+    EnergyDeriv calcForces(int iStep) {
+        if (respaSteps <= 1) {
+            return dihedrals.eDeriv();
+        }
+        EnergyLists energyList = dihedrals.energyList;
+        if ((slowGradient == null) || ((iStep % respaSteps) == 0)) {
+            EnergyDeriv slowDeriv = energyList.energy(true, EnergyLists.SLOW_TERMS);
+            if (slowGradient != null) {
+                sumSlowError += Math.abs(slowDeriv.getEnergy() - slowEnergy);
+                nSlowEvals++;
+            }
+            slowEnergy = slowDeriv.getEnergy();
+            slowGradient = slowDeriv.getDerivatives();
+        }
+        EnergyDeriv fastDeriv = energyList.energy(true, EnergyLists.FAST_TERMS);
+        double[] gradient = fastDeriv.getDerivatives();
+        for (int i = 0; i < gradient.length; i++) {
+            gradient[i] += slowGradient[i];
+            energyList.branches[i].force = gradient[i];
+        }
+        return new EnergyDeriv(fastDeriv.getEnergy() + slowEnergy, gradient);
+    }
+
     class DynState {
 
         double lastTimeStep;
@@ -575,26 +689,41 @@ public class RotationalDynamics {
     }
 
     public void run(double runFraction) throws MissingCoordinatesException {
-        calcRotInertia2();
-        sumDeltaSq = 0.0;
-        sumMaxDelta = 0.0;
-        sumERef = 0.0;
-        double lastTime = totalTime;
-        int lastSteps = 0;
         int reportAt = nSteps / 20;
 //        reportAt = nSteps / 100;
 ////        reportAt = 1;
-        double eScale = 1.0;
         int stepsToRun = (int) (runFraction * nSteps);
         if ((currentStep + stepsToRun) > nSteps) {
             stepsToRun = nSteps - currentStep;
         }
+        runSteps(stepsToRun, reportAt);
+    }
+
+    /**
+     * Run a number of dynamics steps, continuing from the current step.
+     *
+     * @param stepsToRun the number of steps to run
+     * @param reportAt report progress every this many steps, or never if less
+     * than 1
+     * @throws MissingCoordinatesException if the trajectory can't be written
+     */
+    public void runSteps(int stepsToRun, int reportAt) throws MissingCoordinatesException {
+        calcRotInertia2();
+        sumDeltaSq = 0.0;
+        sumMaxDelta = 0.0;
+        sumERef = 0.0;
+        double lastTime = totalTime;
+        int lastSteps = 0;
+        double eScale = 1.0;
 
         dihedrals.getDihedrals();
         molecule.genCoordsFastVec3D(null);
         dihedrals.energyList.makeAtomListFast();
         updateVelocitiesRecursive();
         EnergyDeriv eDeriv = dihedrals.eDeriv();
+        slowGradient = null;
+        sumSlowError = 0.0;
+        nSlowEvals = 0;
         lastPotentialEnergy = eDeriv.getEnergy();
         lastKineticEnergy = calcKineticEnergy();
         currentTemp = calcTemp2(lastKineticEnergy);
@@ -604,11 +733,14 @@ public class RotationalDynamics {
         firstRun = false;
         SuperMol superMol = new SuperMol(molecule);
 
-        System.out.printf("%6s %10s %8s %8s %8s %8s %10s %10s %8s %8s\n", "step", "time", "temp", "kinE", "potE", "totE", "deltaE", "timeStep", "rmsAngle", "maxAngle");
-        System.out.printf("%6d %10.3f %8.1f %8.1f %8.1f %8.1f %10.6f %10.6f %8.3f %8.3f %6d\n", currentStep, totalTime, currentTemp, lastKineticEnergy * eScale, lastPotentialEnergy * eScale, lastTotalEnergy * eScale, deltaEnergy, 0.0, 0.0, 0.0, molecule.getEnergyCoords().getNContacts());
+        if (reportAt > 0) {
+            System.out.printf("%6s %10s %8s %8s %8s %8s %10s %10s %8s %8s\n", "step", "time", "temp", "kinE", "potE", "totE", "deltaE", "timeStep", "rmsAngle", "maxAngle");
+            System.out.printf("%6d %10.3f %8.1f %8.1f %8.1f %8.1f %10.6f %10.6f %8.3f %8.3f %6d\n", currentStep, totalTime, currentTemp, lastKineticEnergy * eScale, lastPotentialEnergy * eScale, lastTotalEnergy * eScale, deltaEnergy, 0.0, 0.0, 0.0, molecule.getEnergyCoords().getNContacts());
+        }
         for (int iStep = 0; iStep < stepsToRun; iStep++) {
             if (((iStep + 1) % dihedrals.updateAt) == 0) {
                 dihedrals.energyList.makeAtomListFast();
+                slowGradient = null;
             }
             if ((dihedrals.energyList.getSwap() != 0) && (((iStep + 1) % dihedrals.energyList.getSwap()) == 0)) {
                 molecule.getEnergyCoords().doSwaps();
@@ -630,7 +762,7 @@ public class RotationalDynamics {
             }
             timeStep = currentTimeStep;
             //if ((((iStep + 1) % reportAt) == 0) || (deltaEnergy > 0.01)) {
-            if (((iStep + 1) % reportAt) == 0) {
+            if ((reportAt > 0) && (((iStep + 1) % reportAt) == 0)) {
                 if ((progressUpdater != null) || (trajectoryWriter != null)) {
                     molecule.updateFromVecCoords();
 
@@ -644,7 +776,13 @@ public class RotationalDynamics {
                 double rms = 180.0 * (sumDeltaSq / lastSteps) / Math.PI;
                 double maxDelta = 180.0 * (sumMaxDelta / lastSteps) / Math.PI;
                 double avgStep = (totalTime - lastTime) / lastSteps;
-                System.out.printf("%6d %10.3f %8.1f %8.1f %8.1f %8.1f %10.6f %10.6f %8.3f %8.3f %6d\n", currentStep, totalTime, currentTemp, lastKineticEnergy * eScale, lastPotentialEnergy * eScale, lastTotalEnergy * eScale, sumERef / lastSteps, avgStep, rms, maxDelta, molecule.getEnergyCoords().getNContacts());
+                if (respaSteps > 1) {
+                    System.out.printf("%6d %10.3f %8.1f %8.1f %8.1f %8.1f %10.6f %10.6f %8.3f %8.3f %6d %8.3f\n", currentStep, totalTime, currentTemp, lastKineticEnergy * eScale, lastPotentialEnergy * eScale, lastTotalEnergy * eScale, sumERef / lastSteps, avgStep, rms, maxDelta, molecule.getEnergyCoords().getNContacts(), getSlowEnergyError());
+                    sumSlowError = 0.0;
+                    nSlowEvals = 0;
+                } else {
+                    System.out.printf("%6d %10.3f %8.1f %8.1f %8.1f %8.1f %10.6f %10.6f %8.3f %8.3f %6d\n", currentStep, totalTime, currentTemp, lastKineticEnergy * eScale, lastPotentialEnergy * eScale, lastTotalEnergy * eScale, sumERef / lastSteps, avgStep, rms, maxDelta, molecule.getEnergyCoords().getNContacts());
+                }
                 sumDeltaSq = 0.0;
                 sumMaxDelta = 0.0;
                 sumERef = 0.0;
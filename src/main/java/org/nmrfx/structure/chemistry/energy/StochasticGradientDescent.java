@@ -36,9 +36,16 @@ public class StochasticGradientDescent extends GradientRefinement {
 
     public TrajectoryWriter trajectoryWriter = null;
     RandomDataGenerator randomData = new RandomDataGenerator();
+    StochasticOptimizer.Method method = StochasticOptimizer.Method.ADAM;
+    double batchFraction = 0.8;
+    double learningRate = 0.005;
+    private int lastReport = -1;
 
     public class Checker extends SimpleValueChecker {
 
+        // the optimizer being checked, which counts the evaluations
+        StochasticOptimizer optimizer = null;
+
         public Checker(double relativeThreshold, double absoluteThreshold, int maxIter) {
             super(relativeThreshold, absoluteThreshold, maxIter);
         }
@@ -48,7 +55,8 @@ public class StochasticGradientDescent extends GradientRefinement {
             if (converged || (iteration == 1) || ((iteration % reportAt) == 0)) {
                 long time = System.currentTimeMillis();
                 long deltaTime = time - startTime;
-                report(iteration, nEvaluations, deltaTime, dihedrals.energyList.atomList.size(), current.getValue());
+                report(iteration, optimizer.getEvaluations(), deltaTime, dihedrals.energyList.atomList.size(), current.getValue());
+                lastReport = iteration;
                 if (trajectoryWriter != null) {
                     try {
                         trajectoryWriter.writeStructure();
@@ -71,46 +79,85 @@ public class StochasticGradientDescent extends GradientRefinement {
         this.trajectoryWriter = trajectoryWriter;
     }
 
+    public void setMethod(StochasticOptimizer.Method method) {
+        this.method = method;
+    }
+
+    /**
+     * Set the fraction of residues whose distance restraints are included
+     * in each minibatch.
+     *
+     * @param batchFraction the fraction (0 to 1)
+     */
+    public void setBatchFraction(double batchFraction) {
+        this.batchFraction = batchFraction;
+    }
+
+    /**
+     * Set the peak learning rate. The rate rises to this over the first
+     * iterations and then decays to 1% of it.
+     *
+     * @param learningRate the learning rate (radians for the adaptive
+     * methods)
+     */
+    public void setLearningRate(double learningRate) {
+        this.learningRate = learningRate;
+    }
+
+    /**
+     * Minimize the energy in torsion angle space with minibatch gradients.
+     * At each iteration the distance restraints are limited to pairs of
+     * residues in a random selection, and a step is taken with the current
+     * method. The full energy is evaluated, reported and tested for
+     * convergence every reportAt iterations.
+     *
+     * @param nSteps the number of iterations
+     * @param tolerance relative and absolute energy convergence threshold
+     */
     public void gradMinimize(int nSteps, double tolerance) {
         prepareAngles(false);
         dihedrals.setBoundaries(0.1, false);
-        PointValuePair result = null;
         getDihedrals();
 
-        dihedrals.energyList.makeAtomListFast();
-        DihedralEnergy dihEnergy = new DihedralEnergy(dihedrals);
-        DihedralGradient dihGradient = new DihedralGradient(this);
-        report(0, 0, 0, dihedrals.energyList.atomList.size(), dihEnergy.value(dihedrals.angleValues));
-        reportAt = 20;
-        double[] point = new double[dihedrals.angleValues.length];
-        double[] delta = new double[dihedrals.angleValues.length];
-        double[] lastDelta = new double[dihedrals.angleValues.length];
-        System.arraycopy(dihedrals.angleValues, 0, point, 0, point.length);
-        double alpha = 0.000013;
-        double beta = 0.5;
-        boolean[] state = new boolean[77];
-        for (int i = 0; i < nSteps; i++) {
-            for (int j = 0; j < state.length; j++) {
-                if (randomData.nextUniform(0.0, 1.0) < 0.8) {
-                    state[j] = true;
-                } else {
-                    state[j] = false;
+        EnergyLists energyList = dihedrals.energyList;
+        energyList.makeAtomListFast();
+        boolean[] states = new boolean[energyList.indexStochasticResidues()];
+        lastReport = -1;
+        Checker checker = new Checker(tolerance, tolerance, nSteps);
+        StochasticOptimizer optimizer = new StochasticOptimizer(method, checker);
+        checker.optimizer = optimizer;
+        optimizer.setLearningRate(learningRate, learningRate * 0.01, Math.min(10, nSteps / 10));
+        optimizer.setCheckInterval(reportAt);
+        double[] point = dihedrals.angleValues.clone();
+        report(0, 0, 0, energyList.atomList.size(), nonNormEnergyAndDeriv(point).getEnergy());
+        StochasticOptimizer.BatchSelector selector = new StochasticOptimizer.BatchSelector() {
+            @Override
+            public void select(int iteration) {
+                if ((iteration % updateAt) == 0) {
+                    energyList.makeAtomListFast();
                 }
+                for (int j = 0; j < states.length; j++) {
+                    states[j] = randomData.nextUniform(0.0, 1.0) < batchFraction;
+                }
+                energyList.setStochasticResidues(states);
             }
-            dihedrals.energyList.setStochasticResidues(state);
-
-            double[] grad = dihGradient.value(point);
-            double energy = dihEnergy.value(point);
-            System.out.printf("%5d %10.6g %7.1f\n", i, alpha, energy);
-            for (int j = 0; j < point.length; j++) {
-                delta[j] = -alpha * grad[j] + beta * lastDelta[j];
-                point[j] += delta[j];
-                lastDelta[j] = delta[j];
-            }
-            alpha *= 0.99997;
 
+            @Override
+            public void selectAll() {
+                energyList.setStochasticResidues(null);
+            }
+        };
+        PointValuePair result = optimizer.optimize(this::nonNormEnergyAndDeriv, selector, point, nSteps);
+        energyList.setStochasticResidues(null);
+        // the checker has already reported if it stopped the search
+        if (lastReport != optimizer.getIterations()) {
+            long deltaTime = System.currentTimeMillis() - startTime;
+            report(optimizer.getIterations(), optimizer.getEvaluations(), deltaTime, energyList.atomList.size(), result.getValue());
+        }
+        double[] resultPoint = result.getPoint();
+        for (int i = 0; i < resultPoint.length; i++) {
+            dihedrals.angleValues[i] = Dihedral.reduceAngle(resultPoint[i]);
         }
-        System.arraycopy(point, 0, dihedrals.angleValues, 0, point.length);
         putDihedrals();
         molecule.genCoords(false, null);
     }
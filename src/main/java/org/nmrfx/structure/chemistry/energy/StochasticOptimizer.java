@@ -0,0 +1,230 @@
+/*
+ * NMRFx Structure : A Program for Calculating Structures
+ * Copyright (C) 2004-2017 One Moon Scientific, Inc., Westfield, N.J., USA
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.nmrfx.structure.chemistry.energy;
+
+import org.apache.commons.math3.optim.ConvergenceChecker;
+import org.apache.commons.math3.optim.PointValuePair;
+
+/**
+ * First order minimizer for noisy (minibatch) gradients. Each iteration
+ * selects a minibatch of the energy terms, evaluates the energy and gradient
+ * of the batch and takes a momentum, RMSProp or Adam step. The learning rate
+ * rises linearly over the warmup iterations and then follows a cosine decay
+ * to the minimum rate. Since batch energies are noisy, convergence is tested
+ * (and the best point kept) with the full energy, evaluated at a fixed
+ * interval.
+ *
+ * @author brucejohnson
+ */
+public class StochasticOptimizer {
+
+    public enum Method {
+        MOMENTUM,
+        RMSPROP,
+        ADAM;
+    }
+
+    /**
+     * Selects the energy terms used for the following evaluations.
+     */
+    public interface BatchSelector {
+
+        /**
+         * Select a minibatch for an iteration.
+         *
+         * @param iteration the iteration
+         */
+        void select(int iteration);
+
+        /**
+         * Select all the terms, for a full evaluation.
+         */
+        void selectAll();
+    }
+
+    final Method method;
+    final ConvergenceChecker<PointValuePair> checker;
+    double learningRate = 0.005;
+    double minLearningRate = 5.0e-5;
+    int warmup = 10;
+    double beta1 = 0.9;
+    double beta2 = 0.999;
+    double epsilon = 1.0e-8;
+    double maxStep = 0.1;
+    int checkInterval = 20;
+    int nEvaluations = 0;
+    int nIterations = 0;
+
+    public StochasticOptimizer(Method method, ConvergenceChecker<PointValuePair> checker) {
+        this.method = method;
+        this.checker = checker;
+    }
+
+    /**
+     * Set the learning rate schedule.
+     *
+     * @param learningRate the peak learning rate
+     * @param minLearningRate the rate at the last iteration
+     * @param warmup the number of iterations over which the rate rises to
+     * its peak
+     */
+    public void setLearningRate(double learningRate, double minLearningRate, int warmup) {
+        this.learningRate = learningRate;
+        this.minLearningRate = minLearningRate;
+        this.warmup = warmup;
+    }
+
+    /**
+     * Set the decay rates of the first (momentum) and second moment
+     * averages.
+     *
+     * @param beta1 the first moment decay rate (momentum)
+     * @param beta2 the second moment decay rate
+     */
+    public void setMoments(double beta1, double beta2) {
+        this.beta1 = beta1;
+        this.beta2 = beta2;
+    }
+
+    /**
+     * Set the largest change allowed in any single variable in one step.
+     *
+     * @param maxStep the maximum step (radians for torsion angles)
+     */
+    public void setMaxStep(double maxStep) {
+        this.maxStep = maxStep;
+    }
+
+    /**
+     * Set the number of iterations between full energy evaluations, which
+     * are used for the convergence test.
+     *
+     * @param checkInterval the number of iterations
+     */
+    public void setCheckInterval(int checkInterval) {
+        this.checkInterval = Math.max(1, checkInterval);
+    }
+
+    public int getEvaluations() {
+        return nEvaluations;
+    }
+
+    public int getIterations() {
+        return nIterations;
+    }
+
+    /**
+     * Get the learning rate for an iteration.
+     *
+     * @param iteration the iteration (starting at 1)
+     * @param maxIterations the number of iterations
+     * @return the learning rate
+     */
+    public double getLearningRate(int iteration, int maxIterations) {
+        if (iteration <= warmup) {
+            return learningRate * iteration / (warmup + 1);
+        }
+        int nDecay = Math.max(1, maxIterations - warmup);
+        double fraction = Math.min(1.0, (double) (iteration - warmup) / nDecay);
+        return minLearningRate + 0.5 * (learningRate - minLearningRate) * (1.0 + Math.cos(Math.PI * fraction));
+    }
+
+    EnergyDeriv evaluate(LBFGSOptimizer.Evaluator evaluator, double[] point) {
+        nEvaluations++;
+        return evaluator.value(point);
+    }
+
+    PointValuePair evaluateFull(LBFGSOptimizer.Evaluator evaluator, BatchSelector selector, double[] point) {
+        if (selector != null) {
+            selector.selectAll();
+        }
+        return new PointValuePair(point.clone(), evaluate(evaluator, point).getEnergy(), false);
+    }
+
+    /**
+     * Minimize the function starting from the specified point.
+     *
+     * @param evaluator calculates energy and gradient of the current batch
+     * @param selector selects the batch for each iteration, or null to always
+     * use all terms
+     * @param start the starting point (not modified)
+     * @param maxIterations maximum number of iterations
+     * @return the point with the lowest full energy found, and its energy
+     */
+    public PointValuePair optimize(LBFGSOptimizer.Evaluator evaluator, BatchSelector selector,
+            double[] start, int maxIterations) {
+        int n = start.length;
+        nEvaluations = 0;
+        nIterations = 0;
+        double[] x = start.clone();
+        double[] m = new double[n];
+        double[] v = new double[n];
+        PointValuePair current = evaluateFull(evaluator, selector, x);
+        PointValuePair best = current;
+        double beta1Power = 1.0;
+        double beta2Power = 1.0;
+        for (int iter = 1; iter <= maxIterations; iter++) {
+            nIterations = iter;
+            if (selector != null) {
+                selector.select(iter);
+            }
+            double[] grad = evaluate(evaluator, x).getDerivatives();
+            double rate = getLearningRate(iter, maxIterations);
+            beta1Power *= beta1;
+            beta2Power *= beta2;
+            for (int i = 0; i < n; i++) {
+                double g = grad[i];
+                double step;
+                switch (method) {
+                    case ADAM:
+                        m[i] = beta1 * m[i] + (1.0 - beta1) * g;
+                        v[i] = beta2 * v[i] + (1.0 - beta2) * g * g;
+                        double mHat = m[i] / (1.0 - beta1Power);
+                        double vHat = v[i] / (1.0 - beta2Power);
+                        step = -rate * mHat / (Math.sqrt(vHat) + epsilon);
+                        break;
+                    case RMSPROP:
+                        v[i] = beta2 * v[i] + (1.0 - beta2) * g * g;
+                        step = -rate * g / (Math.sqrt(v[i] / (1.0 - beta2Power)) + epsilon);
+                        break;
+                    default:
+                        m[i] = beta1 * m[i] - rate * g;
+                        step = m[i];
+                        break;
+                }
+                if (step > maxStep) {
+                    step = maxStep;
+                } else if (step < -maxStep) {
+                    step = -maxStep;
+                }
+                x[i] += step;
+            }
+            if (((iter % checkInterval) == 0) || (iter == maxIterations)) {
+                PointValuePair previous = current;
+                current = evaluateFull(evaluator, selector, x);
+                if (current.getValue() < best.getValue()) {
+                    best = current;
+                }
+                if ((checker != null) && checker.converged(iter, previous, current)) {
+                    break;
+                }
+            }
+        }
+        return best;
+    }
+}
@@ -0,0 +1,332 @@
+/*
+ * NMRFx Structure : A Program for Calculating Structures
+ * Copyright (C) 2004-2017 One Moon Scientific, Inc., Westfield, N.J., USA
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.nmrfx.structure.chemistry.energy;
+
+import java.util.List;
+import java.util.stream.IntStream;
+import org.nmrfx.structure.chemistry.Atom;
+import org.nmrfx.structure.fastlinear.FastVector3D;
+
+/**
+ * Flat tables for the energy terms that depend on a single torsion angle: the
+ * IRP torsion potentials and the dihedral angle restraints. The four atoms of
+ * each torsion are stored as EnergyCoords indices in an int array (four per
+ * torsion) and the IRP Fourier terms are packed as (v, n, phase) triples, so
+ * the energy and its derivative with respect to the torsion angle can be
+ * calculated without object lookups or allocation. Large tables can be
+ * evaluated in parallel chunks.
+ *
+ * There is no benchmark harness for this class (JMH is not a dependency of
+ * the project). TorsionTermsTest checks that it gives the same energies and
+ * derivatives as the per-atom loops it replaced.
+ *
+ * @author brucejohnson
+ */
+public class TorsionTerms {
+
+    static final int CHUNK_SIZE = 512;
+
+    // IRP torsions
+    final int nIrp;
+    final int[] irpAtoms;
+    final int[] irpAngle;
+    final int[] irpStarts;
+    final double[] irpCoefs;
+    final double[] irpDeriv;
+
+    // dihedral angle restraints
+    final int nDih;
+    final int[] dihAtoms;
+    final Atom[] dihSingle;
+    final int[] dihAngle;
+    final double[] dihLower;
+    final double[] dihUpper;
+    final double[] dihDeriv;
+
+    final double[] chunkEnergy;
+    boolean parallel = false;
+
+    private TorsionTerms(int nIrp, int nIrpTerms, int nDih) {
+        this.nIrp = nIrp;
+        irpAtoms = new int[4 * nIrp];
+        irpAngle = new int[nIrp];
+        irpStarts = new int[nIrp + 1];
+        irpCoefs = new double[3 * nIrpTerms];
+        irpDeriv = new double[nIrp];
+        this.nDih = nDih;
+        dihAtoms = new int[4 * nDih];
+        dihSingle = new Atom[nDih];
+        dihAngle = new int[nDih];
+        dihLower = new double[nDih];
+        dihUpper = new double[nDih];
+        dihDeriv = new double[nDih];
+        int maxN = Math.max(nIrp, nDih);
+        chunkEnergy = new double[(maxN + CHUNK_SIZE - 1) / CHUNK_SIZE];
+    }
+
+    /**
+     * Build the tables for the current rotatable angles and angle
+     * boundaries. Atom indices refer to the current EnergyCoords layout.
+     *
+     * @param angleAtoms the atoms at the start of each rotatable bond, in
+     * gradient order
+     * @param angleBoundaries the dihedral angle restraints
+     * @param irpTable the IRP Fourier terms for each IRP class
+     * @return the new tables
+     */
+    public static TorsionTerms build(List<Atom> angleAtoms, List<AngleBoundary> angleBoundaries, double[][][] irpTable) {
+        int nIrp = 0;
+        int nIrpTerms = 0;
+        for (Atom atom : angleAtoms) {
+            if (hasIrp(atom, irpTable)) {
+                nIrp++;
+                nIrpTerms += irpTable[atom.irpIndex - 1].length;
+            }
+        }
+        TorsionTerms terms = new TorsionTerms(nIrp, nIrpTerms, angleBoundaries.size());
+        int k = 0;
+        int iTerm = 0;
+        int iAngle = 0;
+        for (Atom atom : angleAtoms) {
+            if (hasIrp(atom, irpTable)) {
+                terms.irpAtoms[4 * k] = atom.parent.parent.eAtom;
+                terms.irpAtoms[4 * k + 1] = atom.parent.eAtom;
+                terms.irpAtoms[4 * k + 2] = atom.eAtom;
+                terms.irpAtoms[4 * k + 3] = atom.daughterAtom.eAtom;
+                terms.irpAngle[k] = iAngle;
+                terms.irpStarts[k] = iTerm;
+                for (double[] irpVal : irpTable[atom.irpIndex - 1]) {
+                    terms.irpCoefs[3 * iTerm] = irpVal[0];
+                    terms.irpCoefs[3 * iTerm + 1] = irpVal[1];
+                    terms.irpCoefs[3 * iTerm + 2] = irpVal[2];
+                    iTerm++;
+                }
+                k++;
+            }
+            iAngle++;
+        }
+        terms.irpStarts[nIrp] = iTerm;
+        k = 0;
+        for (AngleBoundary angleBoundary : angleBoundaries) {
+            Atom[] atoms = angleBoundary.getAtoms();
+            if (atoms.length == 1) {
+                terms.dihSingle[k] = atoms[0];
+                terms.dihAtoms[4 * k] = -1;
+            } else {
+                for (int j = 0; j < 4; j++) {
+                    terms.dihAtoms[4 * k + j] = atoms[j].eAtom;
+                }
+            }
+            terms.dihAngle[k] = angleBoundary.getIndex();
+            terms.dihLower[k] = angleBoundary.lower;
+            terms.dihUpper[k] = angleBoundary.upper;
+            k++;
+        }
+        return terms;
+    }
+
+    static boolean hasIrp(Atom atom, double[][][] irpTable) {
+        if ((irpTable == null) || (atom.daughterAtom == null) || (atom.parent == null) || (atom.parent.parent == null)) {
+            return false;
+        }
+        int irpIndex = atom.irpIndex;
+        return (irpIndex > 0) && (irpIndex < 9999);
+    }
+
+    public void setParallel(boolean parallel) {
+        this.parallel = parallel;
+    }
+
+    public int getIrpCount() {
+        return nIrp;
+    }
+
+    public int getDihedralCount() {
+        return nDih;
+    }
+
+    /**
+     * Calculate the dihedral angle of four atoms. Gives the same angle as
+     * EnergyCoords.calcDihedral but without creating any objects.
+     *
+     * @param vecCoords the atom coordinates
+     * @param atoms the atom index table
+     * @param offset the position of the first atom in the table
+     * @return the angle in radians
+     */
+    static double calcDihedral(FastVector3D[] vecCoords, int[] atoms, int offset) {
+        double[] a = vecCoords[atoms[offset]].getValues();
+        double[] b = vecCoords[atoms[offset + 1]].getValues();
+        double[] c = vecCoords[atoms[offset + 2]].getValues();
+        double[] d = vecCoords[atoms[offset + 3]].getValues();
+        double b1x = b[0] - a[0];
+        double b1y = b[1] - a[1];
+        double b1z = b[2] - a[2];
+        double b2x = c[0] - b[0];
+        double b2y = c[1] - b[1];
+        double b2z = c[2] - b[2];
+        double b3x = d[0] - c[0];
+        double b3y = d[1] - c[1];
+        double b3z = d[2] - c[2];
+        double n1x = b1y * b2z - b1z * b2y;
+        double n1y = b1z * b2x - b1x * b2z;
+        double n1z = b1x * b2y - b1y * b2x;
+        double n2x = b2y * b3z - b2z * b3y;
+        double n2y = b2z * b3x - b2x * b3z;
+        double n2z = b2x * b3y - b2y * b3x;
+        double x = n1x * n2x + n1y * n2y + n1z * n2z;
+        double b2Len = Math.sqrt(b2x * b2x + b2y * b2y + b2z * b2z);
+        double y = b2Len * (b1x * n2x + b1y * n2y + b1z * n2z);
+        return Math.atan2(y, x);
+    }
+
+    /**
+     * Calculate the IRP torsion energy and, optionally, add its derivatives
+     * to the gradient.
+     *
+     * @param vecCoords the atom coordinates
+     * @param weight the IRP force weight
+     * @param gradient the torsion angle gradient, or null if derivatives
+     * aren't needed
+     * @return the energy
+     */
+    public double calcIRP(FastVector3D[] vecCoords, double weight, double[] gradient) {
+        double energyTotal;
+        if (parallel && (nIrp > CHUNK_SIZE)) {
+            int nChunks = (nIrp + CHUNK_SIZE - 1) / CHUNK_SIZE;
+            IntStream.range(0, nChunks).parallel().forEach(iChunk -> {
+                int start = iChunk * CHUNK_SIZE;
+                chunkEnergy[iChunk] = calcIRPRange(vecCoords, weight, start, Math.min(start + CHUNK_SIZE, nIrp));
+            });
+            energyTotal = 0.0;
+            for (int i = 0; i < nChunks; i++) {
+                energyTotal += chunkEnergy[i];
+            }
+        } else {
+            energyTotal = calcIRPRange(vecCoords, weight, 0, nIrp);
+        }
+        if (gradient != null) {
+            for (int k = 0; k < nIrp; k++) {
+                gradient[irpAngle[k]] += irpDeriv[k];
+            }
+        }
+        return energyTotal;
+    }
+
+    double calcIRPRange(FastVector3D[] vecCoords, double weight, int start, int end) {
+        double energyTotal = 0.0;
+        for (int k = start; k < end; k++) {
+            double angle = Dihedral.reduceAngle(calcDihedral(vecCoords, irpAtoms, 4 * k));
+            double deriv = 0.0;
+            for (int iTerm = irpStarts[k]; iTerm < irpStarts[k + 1]; iTerm++) {
+                double v = irpCoefs[3 * iTerm];
+                double n = irpCoefs[3 * iTerm + 1];
+                double phi = irpCoefs[3 * iTerm + 2];
+                double arg = n * angle - phi;
+                energyTotal += weight * v * (1.0 + Math.cos(arg));
+                deriv -= weight * v * n * Math.sin(arg);
+            }
+            irpDeriv[k] = deriv;
+        }
+        return energyTotal;
+    }
+
+    /**
+     * Calculate the dihedral angle restraint energy and, optionally, subtract
+     * its derivatives from the gradient.
+     *
+     * @param vecCoords the atom coordinates
+     * @param weight the dihedral force weight
+     * @param gradient the torsion angle gradient, or null if derivatives
+     * aren't needed
+     * @return the energy
+     */
+    public double calcDihedralEnergy(FastVector3D[] vecCoords, double weight, double[] gradient) {
+        double energyTotal;
+        if (parallel && (nDih > CHUNK_SIZE)) {
+            int nChunks = (nDih + CHUNK_SIZE - 1) / CHUNK_SIZE;
+            IntStream.range(0, nChunks).parallel().forEach(iChunk -> {
+                int start = iChunk * CHUNK_SIZE;
+                chunkEnergy[iChunk] = calcDihedralRange(vecCoords, weight, start, Math.min(start + CHUNK_SIZE, nDih));
+            });
+            energyTotal = 0.0;
+            for (int i = 0; i < nChunks; i++) {
+                energyTotal += chunkEnergy[i];
+            }
+        } else {
+            energyTotal = calcDihedralRange(vecCoords, weight, 0, nDih);
+        }
+        if (gradient != null) {
+            // boundaries can share an angle so accumulate serially
+            for (int k = 0; k < nDih; k++) {
+                gradient[dihAngle[k]] -= dihDeriv[k];
+            }
+        }
+        return energyTotal;
+    }
+
+    double calcDihedralRange(FastVector3D[] vecCoords, double weight, int start, int end) {
+        double energyTotal = 0.0;
+        for (int k = start; k < end; k++) {
+            double dihedral;
+            if (dihAtoms[4 * k] < 0) {
+                dihedral = dihSingle[k].dihedralAngle;
+            } else {
+                dihedral = calcDihedral(vecCoords, dihAtoms, 4 * k);
+            }
+            energyTotal += boundaryEnergy(k, Dihedral.reduceAngle(dihedral), weight);
+        }
+        return energyTotal;
+    }
+
+    /**
+     * Flat bottomed restraint energy, as in AtomMath.calcDihedralEnergy. The
+     * derivative is stored in dihDeriv.
+     */
+    double boundaryEnergy(int k, double dihedral, double weight) {
+        double lower = dihLower[k];
+        double upper = dihUpper[k];
+        dihDeriv[k] = 0.0;
+        if ((lower < upper) && ((dihedral <= upper) && (dihedral >= lower))) {
+            return 0.0;
+        } else if ((lower > upper) && ((dihedral >= lower) || (dihedral <= upper))) {
+            return 0.0;
+        }
+        double range = lower < upper ? upper - lower : Math.PI - (lower - upper);
+        double halfRange = Math.PI - (range / 2.0);
+        double halfRange2 = halfRange * halfRange;
+        double deltaU = upper - dihedral;
+        double deltaL = lower - dihedral;
+        if (deltaU > Math.PI) {
+            deltaU = deltaU - 2.0 * Math.PI;
+        }
+        if (deltaL > Math.PI) {
+            deltaL = deltaL - 2.0 * Math.PI;
+        }
+        if (deltaU < -Math.PI) {
+            deltaU = deltaU + 2.0 * Math.PI;
+        }
+        if (deltaL < -Math.PI) {
+            deltaL = deltaL + 2.0 * Math.PI;
+        }
+        double delta = Math.abs(deltaU) < Math.abs(deltaL) ? deltaU : deltaL;
+        double delta2 = delta * delta;
+        dihDeriv[k] = weight * 2.0 * delta * (1.0 - delta2 / halfRange2);
+        return weight * (1.0 - 0.5 * delta2 / halfRange2) * delta2;
+    }
+}
@@ -0,0 +1,303 @@
+/*
+ * NMRFx Structure : A Program for Calculating Structures
+ * Copyright (C) 2004-2017 One Moon Scientific, Inc., Westfield, N.J., USA
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.nmrfx.structure.chemistry.io;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.nmrfx.processor.star.ParseException;
+
+/**
+ * Reads an mmCIF file in two parts: the header (everything before the
+ * <code>_atom_site</code> loop) is returned as text so it can be parsed with
+ * the regular STAR parser, and the <code>_atom_site</code> rows are then
+ * delivered one at a time so coordinates never have to be held as text.
+ *
+ * @author brucejohnson
+ */
+public class MMcifAtomSiteStream implements Closeable {
+
+    static final int BUFFER_SIZE = 1 << 16;
+    static final String ATOM_SITE_PREFIX = "_atom_site.";
+
+    final BufferedReader reader;
+    final Map<String, Integer> columnMap = new HashMap<>();
+    String[] row = new String[0];
+    String pendingLine = null;
+    boolean inAtomSites = false;
+    int nRows = 0;
+
+    public MMcifAtomSiteStream(File cifFile) throws IOException {
+        FileChannel channel = FileChannel.open(cifFile.toPath(), StandardOpenOption.READ);
+        reader = new BufferedReader(Channels.newReader(channel, StandardCharsets.UTF_8.newDecoder(), -1), BUFFER_SIZE);
+    }
+
+    /**
+     * Read the file up to the start of the <code>_atom_site</code> loop and
+     * record the column layout of that loop.
+     *
+     * @return the text preceding the <code>_atom_site</code> loop
+     * @throws IOException if the file can't be read
+     */
+    public String readHeader() throws IOException {
+        StringBuilder sBuilder = new StringBuilder();
+        String line;
+        while ((line = reader.readLine()) != null) {
+            String trimLine = line.trim();
+            if (trimLine.equals("loop_")) {
+                String nextLine = reader.readLine();
+                if ((nextLine != null) && nextLine.trim().startsWith(ATOM_SITE_PREFIX)) {
+                    readColumns(nextLine);
+                    break;
+                }
+                sBuilder.append(line).append('\n');
+                if (nextLine == null) {
+                    break;
+                }
+                line = nextLine;
+            } else if (trimLine.startsWith(ATOM_SITE_PREFIX)) {
+                // single row written in tag/value form
+                readColumns(line);
+                break;
+            }
+            sBuilder.append(line).append('\n');
+        }
+        return sBuilder.toString();
+    }
+
+    void readColumns(String firstTagLine) throws IOException {
+        List<String> values = new ArrayList<>();
+        String line = firstTagLine;
+        while (line != null) {
+            String trimLine = line.trim();
+            if (!trimLine.startsWith(ATOM_SITE_PREFIX)) {
+                break;
+            }
+            int space = indexOfSpace(trimLine);
+            String tag = space < 0 ? trimLine : trimLine.substring(0, space);
+            columnMap.put(tag.substring(ATOM_SITE_PREFIX.length()), columnMap.size());
+            if (space > 0) {
+                // tag/value form, value follows the tag on the same line
+                values.add(trimLine.substring(space).trim());
+            }
+            line = reader.readLine();
+        }
+        row = new String[columnMap.size()];
+        inAtomSites = !columnMap.isEmpty();
+        if (!values.isEmpty()) {
+            StringBuilder sBuilder = new StringBuilder();
+            for (String value : values) {
+                sBuilder.append(value).append(' ');
+            }
+            pendingLine = sBuilder.toString();
+            if (line != null) {
+                pendingLine = pendingLine + "\n" + line;
+            }
+        } else {
+            pendingLine = line;
+        }
+    }
+
+    static int indexOfSpace(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            if (Character.isWhitespace(s.charAt(i))) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public boolean hasAtomSites() {
+        return inAtomSites || (nRows > 0);
+    }
+
+    /**
+     * Get the position of a column in the <code>_atom_site</code> loop.
+     *
+     * @param name the column name without the category prefix (e.g. Cartn_x)
+     * @return the column index, or -1 if the column is not present
+     */
+    public int getColumn(String name) {
+        Integer index = columnMap.get(name);
+        return index == null ? -1 : index;
+    }
+
+    public int getRowCount() {
+        return nRows;
+    }
+
+    public String getValue(int column) {
+        return column < 0 ? null : row[column];
+    }
+
+    public String getValue(int column, String defaultValue) {
+        String value = getValue(column);
+        if ((value == null) || value.equals("?") || value.equals(".")) {
+            value = defaultValue;
+        }
+        return value;
+    }
+
+    public int getInt(int column, int defaultValue) {
+        String value = getValue(column);
+        if ((value == null) || value.equals("?") || value.equals(".")) {
+            return defaultValue;
+        }
+        return Integer.parseInt(value);
+    }
+
+    public float getFloat(int column, float defaultValue) {
+        String value = getValue(column);
+        if ((value == null) || value.equals("?") || value.equals(".")) {
+            return defaultValue;
+        }
+        return Float.parseFloat(value);
+    }
+
+    /**
+     * Advance to the next <code>_atom_site</code> row. The values of the row
+     * are available through the getValue methods until the next call.
+     *
+     * @return true if a row was read, false at the end of the loop
+     * @throws IOException if the file can't be read
+     * @throws ParseException if the row is malformed
+     */
+    public boolean nextRow() throws IOException, ParseException {
+        if (!inAtomSites) {
+            return false;
+        }
+        int nValues = 0;
+        while (nValues < row.length) {
+            String line = nextLine();
+            if (line == null) {
+                break;
+            }
+            if (line.startsWith(";")) {
+                row[nValues++] = readTextField(line);
+                continue;
+            }
+            if (nValues == 0) {
+                String trimLine = line.trim();
+                if (trimLine.isEmpty()) {
+                    continue;
+                }
+                if (isLoopEnd(trimLine)) {
+                    inAtomSites = false;
+                    return false;
+                }
+            }
+            nValues = tokenize(line, nValues);
+        }
+        if (nValues == 0) {
+            inAtomSites = false;
+            return false;
+        }
+        if (nValues != row.length) {
+            throw new ParseException("Incomplete _atom_site row " + (nRows + 1) + ": " + nValues + " of " + row.length + " values");
+        }
+        nRows++;
+        return true;
+    }
+
+    String nextLine() throws IOException {
+        String line;
+        if (pendingLine != null) {
+            line = pendingLine;
+            pendingLine = null;
+            int newLine = line.indexOf('\n');
+            if (newLine >= 0) {
+                pendingLine = line.substring(newLine + 1);
+                line = line.substring(0, newLine);
+            }
+        } else {
+            line = reader.readLine();
+        }
+        return line;
+    }
+
+    static boolean isLoopEnd(String trimLine) {
+        char firstChar = trimLine.charAt(0);
+        return (firstChar == '#') || (firstChar == '_') || trimLine.startsWith("loop_")
+                || trimLine.startsWith("data_") || trimLine.startsWith("save_");
+    }
+
+    String readTextField(String firstLine) throws IOException, ParseException {
+        StringBuilder sBuilder = new StringBuilder(firstLine.substring(1));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (line.startsWith(";")) {
+                return sBuilder.toString();
+            }
+            sBuilder.append('\n').append(line);
+        }
+        throw new ParseException("Unterminated text field in _atom_site loop");
+    }
+
+    int tokenize(String line, int nValues) throws ParseException {
+        int len = line.length();
+        int i = 0;
+        while (i < len) {
+            char c = line.charAt(i);
+            if (Character.isWhitespace(c)) {
+                i++;
+                continue;
+            }
+            if (nValues >= row.length) {
+                throw new ParseException("Too many values in _atom_site row " + (nRows + 1));
+            }
+            int start;
+            int end;
+            if ((c == '\'') || (c == '"')) {
+                // a quote only closes the value when followed by white space
+                start = i + 1;
+                end = start;
+                while (end < len) {
+                    if ((line.charAt(end) == c) && ((end + 1 == len) || Character.isWhitespace(line.charAt(end + 1)))) {
+                        break;
+                    }
+                    end++;
+                }
+                row[nValues++] = line.substring(start, end);
+                i = end + 1;
+            } else {
+                start = i;
+                end = i + 1;
+                while ((end < len) && !Character.isWhitespace(line.charAt(end))) {
+                    end++;
+                }
+                row[nValues++] = line.substring(start, end);
+                i = end;
+            }
+        }
+        return nValues;
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+}
@@ -19,6 +19,7 @@ package org.nmrfx.structure.chemistry.io;
 
 import org.nmrfx.processor.star.ParseException;
 import java.io.*;
+import java.nio.file.NoSuchFileException;
 import java.util.*;
 import org.nmrfx.processor.datasets.peaks.PeakDim;
 import org.nmrfx.processor.star.Loop;
@@ -83,7 +84,40 @@ public class MMcifReader {
         reader.process();
 
     }
-    
+
+    public static void readStreaming(String cifFileName) throws ParseException {
+        File file = new File(cifFileName);
+        readStreaming(file);
+    }
+
+    /**
+     * Read an mmCIF file without loading the <code>_atom_site</code> loop into
+     * the STAR model. Only the categories preceding <code>_atom_site</code>
+     * are parsed as STAR data (entities, sequences, asyms and secondary
+     * structure); the coordinate rows are streamed directly into the atoms of
+     * the molecule, one model at a time.
+     *
+     * @param cifFile the mmCIF file
+     * @throws ParseException if the file can't be parsed
+     */
+    public static void readStreaming(File cifFile) throws ParseException {
+        try (MMcifAtomSiteStream stream = new MMcifAtomSiteStream(cifFile)) {
+            String header = stream.readHeader();
+            BufferedReader bfR = new BufferedReader(new StringReader(header));
+            MMCIF cif = new MMCIF(bfR, "mmcif");
+            try {
+                cif.scanFile();
+            } catch (ParseException parseEx) {
+                throw new ParseException(parseEx.getMessage() + " " + cif.getLastLine());
+            }
+            MMcifReader reader = new MMcifReader(cifFile, cif);
+            reader.processStreaming(stream);
+        } catch (NoSuchFileException ex) {
+        } catch (IOException ioE) {
+            throw new ParseException(ioE.getMessage());
+        }
+    }
+
     public static void readChemComp(String cifFileName, Molecule molecule, String chainCode, String sequenceCode) throws ParseException {
         File file = new File(cifFileName);
         readChemComp(file, molecule, chainCode, sequenceCode);
@@ -658,7 +692,119 @@ public class MMcifReader {
             }
         }
     }
-    
+
+    void streamAtomSites(MMcifAtomSiteStream stream, Molecule molecule) throws ParseException, IOException {
+        int typeSymbolCol = stream.getColumn("type_symbol");
+        int labelAtomIDCol = stream.getColumn("label_atom_id");
+        int labelCompIDCol = stream.getColumn("label_comp_id");
+        int labelAsymIDCol = stream.getColumn("label_asym_id");
+        int labelSeqIDCol = stream.getColumn("label_seq_id");
+        int pdbInsCodeCol = stream.getColumn("pdbx_PDB_ins_code");
+        int cartnXCol = stream.getColumn("Cartn_x");
+        int cartnYCol = stream.getColumn("Cartn_y");
+        int cartnZCol = stream.getColumn("Cartn_z");
+        int occupancyCol = stream.getColumn("occupancy");
+        int bIsoCol = stream.getColumn("B_iso_or_equiv");
+        int authSeqIDCol = stream.getColumn("auth_seq_id");
+        int authCompIDCol = stream.getColumn("auth_comp_id");
+        int authAsymIDCol = stream.getColumn("auth_asym_id");
+        int authAtomIDCol = stream.getColumn("auth_atom_id");
+        int pdbModelNumCol = stream.getColumn("pdbx_PDB_model_num");
+        if ((labelAtomIDCol < 0) || (labelAsymIDCol < 0) || (cartnXCol < 0) || (cartnYCol < 0) || (cartnZCol < 0)) {
+            throw new ParseException("Missing required columns in \"_atom_site\" loop");
+        }
+
+        // rows are grouped by model and residue, so the residue is only
+        // resolved when the chain or sequence code changes
+        Map<String, Map<String, Compound>> residueIndex = new HashMap<>();
+        String lastChainCode = null;
+        String lastSequenceCode = null;
+        Compound compound = null;
+        int lastModelNum = Integer.MIN_VALUE;
+        boolean singleStructure = true;
+        boolean atomsAdded = false;
+
+        while (stream.nextRow()) {
+            String atomName = stream.getValue(labelAtomIDCol);
+            String chainCode = stream.getValue(labelAsymIDCol);
+            String sequenceCode = stream.getValue(labelSeqIDCol, "0");
+            int pdbModelNum = stream.getInt(pdbModelNumCol, 0);
+
+            if (pdbModelNum != lastModelNum) {
+                lastModelNum = pdbModelNum;
+                if (!molecule.structures.contains(pdbModelNum - 1)) {
+                    molecule.structures.add(pdbModelNum - 1);
+                    molecule.setActiveStructures();
+                }
+                singleStructure = molecule.getActiveStructures().length == 1;
+            }
+
+            boolean newResidue = !chainCode.equals(lastChainCode) || !sequenceCode.equals(lastSequenceCode);
+            if (newResidue) {
+                lastChainCode = chainCode;
+                lastSequenceCode = sequenceCode;
+                Map<String, Compound> chainIndex = residueIndex.get(chainCode);
+                if (chainIndex == null) {
+                    chainIndex = new HashMap<>();
+                    residueIndex.put(chainCode, chainIndex);
+                }
+                compound = chainIndex.get(sequenceCode);
+                if (compound == null) {
+                    String mapID = chainCode + "." + sequenceCode;
+                    compound = (Compound) Molecule.compoundMap().get(mapID);
+                    if (compound != null) {
+                        chainIndex.put(sequenceCode, compound);
+                        compound.setPropertyObject("pdbInsCode", stream.getValue(pdbInsCodeCol));
+                        compound.setPropertyObject("authSeqID", stream.getInt(authSeqIDCol, 0));
+                        compound.setPropertyObject("authResName", stream.getValue(authCompIDCol));
+                        compound.setPropertyObject("authChainCode", stream.getValue(authAsymIDCol));
+                    }
+                }
+            }
+            if (compound == null) {
+                if (newResidue) {
+                    System.err.println("invalid compound in assignments saveframe \"" + chainCode + "." + sequenceCode + "\"");
+                }
+                continue;
+            }
+
+            Atom atom = compound.getAtom(atomName);
+            if (atom == null) {
+                atom = Molecule.getAtomByName(chainCode + ":" + sequenceCode + "." + atomName);
+            }
+            if (atom == null) {
+                String atomType = stream.getValue(typeSymbolCol);
+                atom = Atom.genAtomWithElement(atomName, atomType);
+                if (compound.label.equals(chainCode)) {
+                    compound.label = stream.getValue(labelCompIDCol, ".");
+                }
+                compound.addAtom(atom);
+                atom.setAtomicNumber(atomType);
+                atomsAdded = true;
+            }
+            if (authAtomIDCol >= 0) {
+                atom.setProperty("authAtomName", stream.getValue(authAtomIDCol));
+            }
+
+            SpatialSet spSet = atom.getSpatialSet();
+            if (spSet == null) {
+                throw new ParseException("invalid spatial set in assignments saveframe \"" + chainCode + "." + sequenceCode + "." + atomName + "\"");
+            }
+            if (singleStructure) {
+                spSet.clearCoords();
+            }
+            float xCoord = Float.parseFloat(stream.getValue(cartnXCol));
+            float yCoord = Float.parseFloat(stream.getValue(cartnYCol));
+            float zCoord = Float.parseFloat(stream.getValue(cartnZCol));
+            float occupancy = stream.getFloat(occupancyCol, 1.0f);
+            float bFactor = stream.getFloat(bIsoCol, 0.0f);
+            spSet.addCoords(xCoord, yCoord, zCoord, occupancy, bFactor);
+        }
+        if (atomsAdded) {
+            molecule.updateAtomArray();
+        }
+    }
+
     void processChemCompAtom(Saveframe saveframe, int ppmSet, Molecule molecule, String chainCode, String sequenceCode) throws ParseException {
         Loop loop = saveframe.getLoop("_chem_comp_atom");
         if (loop != null) {
@@ -885,7 +1031,25 @@ public class MMcifReader {
             int toSet = Integer.parseInt(argv[4]);
             buildAtomSites(fromSet, toSet);
         }
-        
+
+    }
+
+    void processStreaming(MMcifAtomSiteStream stream) throws ParseException, IOException {
+        hasResonances = false;
+        Molecule.compoundMap().clear();
+        if (DEBUG) {
+            System.err.println("process molecule");
+        }
+        Molecule molecule = buildMolecule();
+        if (molecule == null) {
+            throw new ParseException("No data block in mmCIF file " + cifFile.getName());
+        }
+        molecule.setMethylRotationActive(true);
+        if (DEBUG) {
+            System.err.println("stream atom sites");
+        }
+        molecule.nullCoords(0);
+        streamAtomSites(stream, molecule);
     }
 
 }
@@ -31,7 +31,8 @@ import java.util.logging.Logger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import org.nmrfx.structure.chemistry.energy.AtomEnergyProp;
-import org.nmrfx.structure.chemistry.miner.NodeValidator;
+import org.nmrfx.structure.chemistry.miner.NodeEvaluatorFactory;
+import org.nmrfx.structure.chemistry.miner.NodeValidatorInterface;
 import org.nmrfx.structure.chemistry.miner.PathIterator;
 
 /**
@@ -156,7 +157,7 @@ public class Sequence {
         //molecule.updateBondArray();
         residue.getLastBackBoneAtom().setProperty("connector", true);
         PathIterator pI = new PathIterator(residue);
-        NodeValidator nV = new NodeValidator();
+        NodeValidatorInterface nV = NodeEvaluatorFactory.getDefault();
         pI.init(nV);
         pI.processPatterns();
         pI.setProperties("ar", "AROMATIC");
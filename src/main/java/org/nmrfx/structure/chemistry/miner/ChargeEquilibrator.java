@@ -0,0 +1,414 @@
+package org.nmrfx.structure.chemistry.miner;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.nmrfx.structure.chemistry.Atom;
+import org.nmrfx.structure.chemistry.Bond;
+import org.nmrfx.structure.chemistry.Order;
+
+/**
+ * Charge equilibration on primitive arrays. The bonded (1-2) and 1-3
+ * partners of each atom are stored once in compressed sparse row form, in
+ * the same order as the PCBond lists of PartialChargeCalculator, and the
+ * electronegativities are adjusted by a loop over these arrays.
+ *
+ * The charges minimize the same function that PartialCharge passes to the
+ * optimizer, sum(0.5 * hardness * scale * q^2 + elec * q), subject to the
+ * charges summing to zero. The hardness matrix is diagonal, so the minimum is
+ * found directly from the Lagrange condition rather than by iterating to a
+ * tolerance: q = -(elec + lambda) / (hardness * scale), with lambda chosen to
+ * make the total charge zero.
+ *
+ * Results are cached by a canonical form of the connection table (atom
+ * parameters, partners and bond types) and the hardness scale, so compounds
+ * with the same parameters and connectivity are only solved once, whatever
+ * the order of their atoms.
+ *
+ * @author brucejohnson
+ */
+public class ChargeEquilibrator {
+
+    static final double[] ALPHAS = {1.0, 1.74, 1.67, 0.86, 0.057};
+    static final double BETA = 1.378;
+    static int cacheSize = 1024;
+    static final Map<String, double[]> CHARGE_CACHE = Collections.synchronizedMap(
+            new LinkedHashMap<String, double[]>(64, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, double[]> eldest) {
+            return size() > cacheSize;
+        }
+    });
+
+    final AtomContainer ac;
+    final int nAtoms;
+    final double[] electroNegativities;
+    final double[] hardnesses;
+    final String[] elecValues;
+    final String[] hardValues;
+    // partners of atom i are partners[partnerStarts[i]] to
+    // partners[partnerStarts[i + 1] - 1], with types as in PCBond
+    final int[] partnerStarts;
+    final int[] partners;
+    final int[] types;
+
+    public ChargeEquilibrator(AtomContainer ac) {
+        this.ac = ac;
+        nAtoms = ac.getAtomCount();
+        HashMap<IAtom, Integer> atomMap = new HashMap<>();
+        for (int iAtom = 0; iAtom < nAtoms; iAtom++) {
+            atomMap.put(ac.getAtom(iAtom), iAtom);
+        }
+        electroNegativities = new double[nAtoms];
+        hardnesses = new double[nAtoms];
+        elecValues = new String[nAtoms];
+        hardValues = new String[nAtoms];
+        partnerStarts = new int[nAtoms + 1];
+        List<int[]> pairs = new ArrayList<>();
+        for (int iAtom = 0; iAtom < nAtoms; iAtom++) {
+            IAtom atom1 = ac.getAtom(iAtom);
+            elecValues[iAtom] = (String) atom1.getProperty("elec");
+            hardValues[iAtom] = (String) atom1.getProperty("hard");
+            if (elecValues[iAtom] == null) {
+                electroNegativities[iAtom] = 40.0;
+                System.err.println("no elec " + atom1.getSymbol());
+            } else {
+                electroNegativities[iAtom] = Double.parseDouble(elecValues[iAtom]);
+            }
+            if (hardValues[iAtom] == null) {
+                System.err.println("no hard " + atom1.getSymbol());
+                hardnesses[iAtom] = 100.0;
+            } else {
+                hardnesses[iAtom] = Double.parseDouble(hardValues[iAtom]);
+            }
+            partnerStarts[iAtom] = pairs.size();
+            List<IBond> bonds = ac.getConnectedBondsList(atom1);
+            List<IAtom> bondedAtoms = new ArrayList<>();
+            for (IBond bond : bonds) {
+                IAtom atom = bond.getConnectedAtom(atom1);
+                pairs.add(new int[]{atomMap.get(atom), getBondType(bond)});
+                bondedAtoms.add(atom);
+            }
+            for (IAtom bondedAtom : bondedAtoms) {
+                for (IAtom neighbor : ac.getConnectedAtomsList(bondedAtom)) {
+                    if (neighbor != atom1) {
+                        pairs.add(new int[]{atomMap.get(neighbor), PCBond.ONE_THREE});
+                    }
+                }
+            }
+        }
+        partnerStarts[nAtoms] = pairs.size();
+        partners = new int[pairs.size()];
+        types = new int[pairs.size()];
+        for (int i = 0; i < partners.length; i++) {
+            partners[i] = pairs.get(i)[0];
+            types[i] = pairs.get(i)[1];
+        }
+    }
+
+    static int getBondType(IBond bond) {
+        int bondType = -1;
+        if (bond.getFlag(Bond.ISAROMATIC)) {
+            bondType = PCBond.AROMATIC;
+        } else if (bond.getOrder() == Order.SINGLE) {
+            bondType = PCBond.SINGLE;
+        } else if (bond.getOrder() == Order.DOUBLE) {
+            bondType = PCBond.DOUBLE;
+        } else if (bond.getOrder() == Order.TRIPLE) {
+            bondType = PCBond.TRIPLE;
+        }
+        return bondType;
+    }
+
+    /**
+     * Set the maximum number of compounds whose charges are kept in the
+     * cache.
+     *
+     * @param size the cache size
+     */
+    public static void setCacheSize(int size) {
+        cacheSize = size;
+        synchronized (CHARGE_CACHE) {
+            while (CHARGE_CACHE.size() > cacheSize) {
+                CHARGE_CACHE.remove(CHARGE_CACHE.keySet().iterator().next());
+            }
+        }
+    }
+
+    public static void clearCache() {
+        CHARGE_CACHE.clear();
+    }
+
+    /**
+     * Rank the atoms by their parameters and then repeatedly by their
+     * partners, until the ranks stop changing. Remaining ties, between atoms
+     * that can't be told apart this way, are broken by giving the first atom
+     * of the lowest tied rank a rank of its own and refining again. Atoms
+     * tied by the refinement are in practice symmetry equivalent, so the
+     * order doesn't depend on the order of the atoms in the container. If it
+     * did for some graph, two copies of it would just get different cache
+     * keys.
+     *
+     * @return the atom indices in canonical order
+     */
+    int[] getCanonicalOrder() {
+        Map<String, Integer> labelRanks = new HashMap<>();
+        String[] labels = new String[nAtoms];
+        for (int i = 0; i < nAtoms; i++) {
+            labels[i] = elecValues[i] + " " + hardValues[i];
+            labelRanks.put(labels[i], 0);
+        }
+        List<String> sortedLabels = new ArrayList<>(labelRanks.keySet());
+        Collections.sort(sortedLabels);
+        for (int i = 0; i < sortedLabels.size(); i++) {
+            labelRanks.put(sortedLabels.get(i), i);
+        }
+        int[] ranks = new int[nAtoms];
+        for (int i = 0; i < nAtoms; i++) {
+            ranks[i] = labelRanks.get(labels[i]);
+        }
+        int nRanks = refineRanks(ranks);
+        while (nRanks < nAtoms) {
+            int[] counts = new int[nAtoms];
+            for (int rank : ranks) {
+                counts[rank]++;
+            }
+            int tiedRank = 0;
+            while (counts[tiedRank] < 2) {
+                tiedRank++;
+            }
+            boolean first = true;
+            for (int i = 0; i < nAtoms; i++) {
+                ranks[i] *= 2;
+                if (ranks[i] == 2 * tiedRank) {
+                    if (!first) {
+                        ranks[i]++;
+                    }
+                    first = false;
+                }
+            }
+            nRanks = refineRanks(ranks);
+        }
+        int[] order = new int[nAtoms];
+        for (int i = 0; i < nAtoms; i++) {
+            order[ranks[i]] = i;
+        }
+        return order;
+    }
+
+    /**
+     * Refine the ranks of the atoms with the sorted ranks and types of their
+     * partners until the number of distinct ranks stops growing. The ranks
+     * are replaced with dense ranks from 0.
+     *
+     * @param ranks the ranks, modified in place
+     * @return the number of distinct ranks
+     */
+    int refineRanks(int[] ranks) {
+        Integer[] atomOrder = new Integer[nAtoms];
+        long[][] signatures = new long[nAtoms][];
+        int nRanks = -1;
+        while (true) {
+            for (int i = 0; i < nAtoms; i++) {
+                atomOrder[i] = i;
+                int start = partnerStarts[i];
+                long[] signature = new long[partnerStarts[i + 1] - start];
+                for (int j = 0; j < signature.length; j++) {
+                    // types are from -1 (unknown bond) to ONE_THREE
+                    signature[j] = (long) ranks[partners[start + j]] * 8 + types[start + j] + 1;
+                }
+                Arrays.sort(signature);
+                signatures[i] = signature;
+            }
+            Comparator<Integer> comparator = (a, b) -> {
+                int result = Integer.compare(ranks[a], ranks[b]);
+                if (result == 0) {
+                    long[] sigA = signatures[a];
+                    long[] sigB = signatures[b];
+                    result = Integer.compare(sigA.length, sigB.length);
+                    for (int j = 0; (result == 0) && (j < sigA.length); j++) {
+                        result = Long.compare(sigA[j], sigB[j]);
+                    }
+                }
+                return result;
+            };
+            Arrays.sort(atomOrder, comparator);
+            int[] newRanks = new int[nAtoms];
+            int rank = 0;
+            for (int k = 0; k < nAtoms; k++) {
+                if ((k > 0) && (comparator.compare(atomOrder[k - 1], atomOrder[k]) != 0)) {
+                    rank++;
+                }
+                newRanks[atomOrder[k]] = rank;
+            }
+            int newNRanks = nAtoms == 0 ? 0 : rank + 1;
+            System.arraycopy(newRanks, 0, ranks, 0, nAtoms);
+            if (newNRanks == nRanks) {
+                break;
+            }
+            nRanks = newNRanks;
+        }
+        return nRanks;
+    }
+
+    /**
+     * Get the key used to cache the charges. It describes everything the
+     * charges depend on, with the atoms in the given canonical order and
+     * the partners of each atom sorted.
+     *
+     * @param hardnessScale the hardness scale
+     * @param order the atom indices in canonical order
+     * @return the key
+     */
+    public String getKey(double hardnessScale, int[] order) {
+        int[] positions = new int[nAtoms];
+        for (int k = 0; k < nAtoms; k++) {
+            positions[order[k]] = k;
+        }
+        StringBuilder sBuilder = new StringBuilder();
+        sBuilder.append(hardnessScale);
+        for (int k = 0; k < nAtoms; k++) {
+            int i = order[k];
+            sBuilder.append(';').append(elecValues[i]).append(' ').append(hardValues[i]);
+            int start = partnerStarts[i];
+            long[] sortedPartners = new long[partnerStarts[i + 1] - start];
+            for (int j = 0; j < sortedPartners.length; j++) {
+                sortedPartners[j] = (long) positions[partners[start + j]] * 8 + types[start + j] + 1;
+            }
+            Arrays.sort(sortedPartners);
+            for (long partner : sortedPartners) {
+                sBuilder.append(',').append(partner / 8).append(':').append(partner % 8 - 1);
+            }
+        }
+        return sBuilder.toString();
+    }
+
+    /**
+     * Get the key used to cache the charges, with the atoms in canonical
+     * order.
+     *
+     * @param hardnessScale the hardness scale
+     * @return the key
+     */
+    public String getKey(double hardnessScale) {
+        return getKey(hardnessScale, getCanonicalOrder());
+    }
+
+    double[] adjustElectronegativities() {
+        double[] newElectronegativities = new double[nAtoms];
+        for (int i = 0; i < nAtoms; i++) {
+            double elecI = electroNegativities[i];
+            double value = elecI;
+            for (int j = partnerStarts[i]; j < partnerStarts[i + 1]; j++) {
+                double diff = elecI - electroNegativities[partners[j]];
+                if (diff != 0.0) {
+                    double s = diff > 0.0 ? 1.0 : -1.0;
+                    value += ALPHAS[types[j]] * s * Math.pow(Math.abs(diff), BETA);
+                }
+            }
+            newElectronegativities[i] = value;
+        }
+        return newElectronegativities;
+    }
+
+    /**
+     * Calculate the charges without using the cache.
+     *
+     * @param hardnessScale the scale applied to the hardnesses
+     * @return the charge of each atom
+     */
+    public double[] solve(double hardnessScale) {
+        double[] elecs = adjustElectronegativities();
+        double[] charges = new double[nAtoms];
+        double sumInvHard = 0.0;
+        double sumElecOverHard = 0.0;
+        for (int i = 0; i < nAtoms; i++) {
+            double hard = hardnesses[i] * hardnessScale;
+            sumInvHard += 1.0 / hard;
+            sumElecOverHard += elecs[i] / hard;
+        }
+        double lambda = nAtoms > 0 ? -sumElecOverHard / sumInvHard : 0.0;
+        for (int i = 0; i < nAtoms; i++) {
+            charges[i] = -(elecs[i] + lambda) / (hardnesses[i] * hardnessScale);
+        }
+        return charges;
+    }
+
+    /**
+     * Get the charges, using the cache if possible.
+     *
+     * @param hardnessScale the scale applied to the hardnesses
+     * @return the charge of each atom
+     */
+    public double[] getCharges(double hardnessScale) {
+        int[] order = getCanonicalOrder();
+        String key = getKey(hardnessScale, order);
+        // cached charges are in canonical order
+        double[] canonicalCharges = CHARGE_CACHE.get(key);
+        double[] charges;
+        if (canonicalCharges == null) {
+            charges = solve(hardnessScale);
+            canonicalCharges = new double[nAtoms];
+            for (int k = 0; k < nAtoms; k++) {
+                canonicalCharges[k] = charges[order[k]];
+            }
+            CHARGE_CACHE.put(key, canonicalCharges);
+        } else {
+            charges = new double[nAtoms];
+            for (int k = 0; k < nAtoms; k++) {
+                charges[order[k]] = canonicalCharges[k];
+            }
+        }
+        return charges;
+    }
+
+    /**
+     * Calculate the charges and store them as the "pcharge" property of
+     * each atom, with the sums of the charges of the bonded and 1-3 partners
+     * as the "pcharge1" and "pcharge2" properties.
+     *
+     * @param hardnessScale the scale applied to the hardnesses
+     * @param setAtomCharges if true also set the charge of each Atom, as used
+     * by the electrostatic energy
+     * @return the charge of each atom
+     */
+    public double[] execute(double hardnessScale, boolean setAtomCharges) {
+        double[] charges = getCharges(hardnessScale);
+        for (int iAtom = 0; iAtom < nAtoms; iAtom++) {
+            double sphere1Charges = 0.0;
+            double sphere2Charges = 0.0;
+            for (int j = partnerStarts[iAtom]; j < partnerStarts[iAtom + 1]; j++) {
+                if (types[j] == PCBond.ONE_THREE) {
+                    sphere2Charges += charges[partners[j]];
+                } else {
+                    sphere1Charges += charges[partners[j]];
+                }
+            }
+            IAtom atom1 = ac.getAtom(iAtom);
+            atom1.setProperty("pcharge", charges[iAtom]);
+            atom1.setProperty("pcharge1", sphere1Charges);
+            atom1.setProperty("pcharge2", sphere2Charges);
+            if (setAtomCharges && (atom1 instanceof Atom)) {
+                ((Atom) atom1).setCharge((float) charges[iAtom]);
+            }
+        }
+        return charges;
+    }
+
+    /**
+     * Calculate the charges of a set of compounds in parallel. The compounds
+     * must not share atoms.
+     *
+     * @param acs the compounds
+     * @param hardnessScale the scale applied to the hardnesses
+     * @param setAtomCharges if true also set the charge of each Atom
+     */
+    public static void execute(List<? extends AtomContainer> acs, double hardnessScale, boolean setAtomCharges) {
+        acs.parallelStream().forEach(ac -> new ChargeEquilibrator(ac).execute(hardnessScale, setAtomCharges));
+    }
+}
@@ -5,6 +5,9 @@
  */
 package org.nmrfx.structure.chemistry.miner;
 
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
 import java.io.StringReader;
 import org.codehaus.commons.compiler.CompilerFactoryFactory;
 import org.codehaus.commons.compiler.IClassBodyEvaluator;
@@ -27,7 +30,30 @@ public class NodeEvaluatorFactory {
         return nodeValidator;
     }
 
+    /**
+     * Compile a set of pattern rules (see PatternValidator for the format).
+     *
+     * @param rules the rule text
+     * @return the validator
+     */
+    public static NodeValidatorInterface compile(String rules) {
+        return PatternValidator.compile(rules);
+    }
+
+    /**
+     * Load and compile a set of pattern rules from a file.
+     *
+     * @param fileName the name of the rule file
+     * @return the validator
+     * @throws IOException if the file can't be read
+     */
+    public static NodeValidatorInterface load(String fileName) throws IOException {
+        try (Reader reader = new FileReader(fileName)) {
+            return PatternValidator.compile(reader);
+        }
+    }
+
     public static NodeValidatorInterface getDefault() {
-        return new NodeValidator();
+        return PatternValidator.getDefault();
     }
 }
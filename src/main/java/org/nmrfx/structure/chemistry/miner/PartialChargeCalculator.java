@@ -17,7 +17,34 @@ public class PartialChargeCalculator {
         this.ac = ac;
     }
 
+    /**
+     * Calculate the partial charges with ChargeEquilibrator and store them as
+     * the "pcharge", "pcharge1" and "pcharge2" atom properties.
+     *
+     * @param hardnessScale the scale applied to the hardnesses
+     */
     public void execute(double hardnessScale) {
+        execute(hardnessScale, false);
+    }
+
+    /**
+     * Calculate the partial charges with ChargeEquilibrator.
+     *
+     * @param hardnessScale the scale applied to the hardnesses
+     * @param setAtomCharges if true also set the charges used by the
+     * electrostatic energy
+     */
+    public void execute(double hardnessScale, boolean setAtomCharges) {
+        new ChargeEquilibrator(ac).execute(hardnessScale, setAtomCharges);
+    }
+
+    /**
+     * Calculate the partial charges with the general quadratic optimizer of
+     * PartialCharge. This is the original implementation, kept for reference.
+     *
+     * @param hardnessScale the scale applied to the hardnesses
+     */
+    public void executeWithOptimizer(double hardnessScale) {
         int nAtoms = ac.getAtomCount();
         ArrayList<ArrayList<PCBond>> pcBonds = new ArrayList<>();
         HashMap<IAtom, Integer> atomMap = new HashMap<>();
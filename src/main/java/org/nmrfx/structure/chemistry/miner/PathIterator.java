@@ -26,6 +26,7 @@ public class PathIterator implements Iterator {
     IBond[] bonds;
     int currentPattern = 0;
     int nPatterns = 0;
+    PathMatcher pathMatcher = null;
 
     public PathIterator(AtomContainer ac) {
         this.ac = ac;
@@ -497,7 +498,23 @@ public class PathIterator implements Iterator {
         return ((path != null) && (pathLength != 0));
     }
 
+    /**
+     * Find and apply all the patterns of the node validator. The search is
+     * done with a PathMatcher, which gives the same result as
+     * processPatternsIteratively.
+     */
     public void processPatterns() {
+        if (pathMatcher == null) {
+            pathMatcher = new PathMatcher(ac);
+        }
+        pathMatcher.processPatterns(nodeValidator);
+    }
+
+    /**
+     * Find and apply all the patterns of the node validator by stepping
+     * through the paths with this iterator.
+     */
+    public void processPatternsIteratively() {
         for (currentPattern = 0; currentPattern < nPatterns; currentPattern++) {
             //System.out.println("current pattern " + currentPattern + " of " + nPatterns);
             path = null;
@@ -0,0 +1,331 @@
+package org.nmrfx.structure.chemistry.miner;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
+import org.nmrfx.structure.chemistry.Order;
+
+/**
+ * Depth first substructure matcher for the patterns of a
+ * NodeValidatorInterface. It follows the same search order as PathIterator,
+ * and so finds the same paths in the same order, but keeps the search state
+ * in int arrays and a BitSet, and uses neighbor tables built once from the
+ * AtomContainer.
+ *
+ * Patterns that assign properties (mode 0) change the values later atom
+ * checks depend on, so their matches are applied as they are found, one start
+ * atom at a time. Patterns that set atom parameters (mode 2) don't change
+ * the validator state, so for large molecules the start atoms are searched in
+ * parallel and the matches applied afterwards in start atom order. The
+ * validator's checkAtom and checkBond methods must not modify its state.
+ *
+ * @author brucejohnson
+ */
+public class PathMatcher {
+
+    static final int CHUNK_SIZE = 32;
+    static int parallelThreshold = 256;
+
+    final AtomContainer ac;
+    final IAtom[] atoms;
+    final int[] atomicNumbers;
+    final int[] bondOrders;
+    // neighbors of each atom and the connecting bonds, in the order of
+    // getConnectedBondsList
+    final int[][] nbrAtoms;
+    final int[][] nbrBonds;
+    final HashMap bondMap = new HashMap();
+    final int maxNeighbors;
+    boolean parallel = true;
+
+    public PathMatcher(AtomContainer ac) {
+        this.ac = ac;
+        int nAtoms = ac.getAtomCount();
+        atoms = new IAtom[nAtoms];
+        atomicNumbers = new int[nAtoms];
+        Map<IAtom, Integer> atomMap = new HashMap<>();
+        for (int i = 0; i < nAtoms; i++) {
+            atoms[i] = ac.getAtom(i);
+            atomicNumbers[i] = atoms[i].getAtomicNumber();
+            atomMap.put(atoms[i], i);
+        }
+        int nBonds = ac.getBondCount();
+        bondOrders = new int[nBonds];
+        for (int i = 0; i < nBonds; i++) {
+            IBond bond = ac.getBond(i);
+            bondOrders[i] = getBondOrder(bond);
+            IAtom atom0 = bond.getAtom(0);
+            IAtom atom1 = bond.getAtom(1);
+            if ((atom0.getAtomicNumber() >= 1) && (atom1.getAtomicNumber() >= 1)) {
+                int iAtom0 = atomMap.get(atom0);
+                int iAtom1 = atomMap.get(atom1);
+                Integer order = bondOrders[i];
+                bondMap.put(iAtom0 + " " + iAtom1, order);
+                bondMap.put(iAtom1 + " " + iAtom0, order);
+            }
+        }
+        nbrAtoms = new int[nAtoms][];
+        nbrBonds = new int[nAtoms][];
+        int maxNbrs = 0;
+        for (int i = 0; i < nAtoms; i++) {
+            List<IBond> bonds = ac.getConnectedBondsList(atoms[i]);
+            int[] nAtomList = new int[bonds.size()];
+            int[] nBondList = new int[bonds.size()];
+            int n = 0;
+            for (IBond bond : bonds) {
+                IAtom sAtom = bond.getConnectedAtom(atoms[i]);
+                if (sAtom.getAtomicNumber() > 0) {
+                    int bondNumber = ac.getBondNumber(bond);
+                    if (bondNumber >= 0) {
+                        nAtomList[n] = ac.getAtomNumber(sAtom);
+                        nBondList[n] = bondNumber;
+                        n++;
+                    }
+                }
+            }
+            nbrAtoms[i] = Arrays.copyOf(nAtomList, n);
+            nbrBonds[i] = Arrays.copyOf(nBondList, n);
+            maxNbrs = Math.max(maxNbrs, n);
+        }
+        maxNeighbors = maxNbrs;
+    }
+
+    static int getBondOrder(IBond bond) {
+        Order cOrder = bond.getOrder();
+        int order = 1;
+        if (cOrder == Order.DOUBLE) {
+            order = 2;
+        } else if (cOrder == Order.TRIPLE) {
+            order = 3;
+        }
+        return order;
+    }
+
+    public void setParallel(boolean value) {
+        parallel = value;
+    }
+
+    public static void setParallelThreshold(int nAtoms) {
+        parallelThreshold = nAtoms;
+    }
+
+    /**
+     * Find all the patterns of the validator and apply them, giving the same
+     * result as PathIterator.processPatternsIteratively. The validator must
+     * already have been initialized for the number of atoms.
+     *
+     * @param nodeValidator the validator with the patterns to match
+     */
+    public void processPatterns(NodeValidatorInterface nodeValidator) {
+        int nPatterns = nodeValidator.patternCount();
+        for (int iPattern = 0; iPattern < nPatterns; iPattern++) {
+            int mode = nodeValidator.getMode(iPattern);
+            if (mode == 0) {
+                Search search = new Search(nodeValidator, iPattern);
+                final int pattern = iPattern;
+                for (int start = 0; start < atoms.length; start++) {
+                    search.run(start, path -> nodeValidator.assignProps(toList(path), pattern));
+                }
+            } else if (mode == 2) {
+                List<int[]>[] matches = findMatches(nodeValidator, iPattern);
+                for (List<int[]> startMatches : matches) {
+                    if (startMatches != null) {
+                        for (int[] path : startMatches) {
+                            setParams(nodeValidator, path, iPattern);
+                        }
+                    }
+                }
+            }
+            // other modes only identify paths and have no effect
+        }
+    }
+
+    /**
+     * Find the paths matching a pattern, without applying them.
+     *
+     * @param nodeValidator the validator with the pattern
+     * @param iPattern the index of the pattern
+     * @return the paths found from each start atom (null if none)
+     */
+    public List<int[]>[] findMatches(NodeValidatorInterface nodeValidator, int iPattern) {
+        int nAtoms = atoms.length;
+        @SuppressWarnings("unchecked")
+        List<int[]>[] matches = new List[nAtoms];
+        int nChunks = (nAtoms + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        IntStream chunks = IntStream.range(0, nChunks);
+        if (parallel && (nAtoms >= parallelThreshold)) {
+            chunks = chunks.parallel();
+        }
+        chunks.forEach(iChunk -> {
+            Search search = new Search(nodeValidator, iPattern);
+            int last = Math.min(nAtoms, (iChunk + 1) * CHUNK_SIZE);
+            for (int start = iChunk * CHUNK_SIZE; start < last; start++) {
+                final int iStart = start;
+                search.run(start, path -> {
+                    if (matches[iStart] == null) {
+                        matches[iStart] = new ArrayList<>();
+                    }
+                    matches[iStart].add(path.clone());
+                });
+            }
+        });
+        return matches;
+    }
+
+    void setParams(NodeValidatorInterface nodeValidator, int[] path, int iPattern) {
+        ArrayList params = nodeValidator.getParams(toList(path), iPattern);
+        int atomIndex = (Integer) params.get(0);
+        for (int i = 1; i < params.size(); i += 2) {
+            String name = (String) params.get(i);
+            String value = (String) params.get(i + 1);
+            atoms[atomIndex].setProperty(name, value);
+        }
+    }
+
+    static ArrayList toList(int[] path) {
+        ArrayList<Integer> list = new ArrayList<>(path.length);
+        for (int iAtom : path) {
+            list.add(iAtom);
+        }
+        return list;
+    }
+
+    interface PathConsumer {
+
+        void accept(int[] path);
+    }
+
+    /**
+     * The state of a search for one pattern. One instance is used for each
+     * thread and is reused for each start atom.
+     */
+    class Search {
+
+        final NodeValidatorInterface nodeValidator;
+        final int pattern;
+        final int pathSize;
+        final int[] path;
+        // path copies of each length, passed to the validator
+        final int[][] pathPrefixes;
+        final int[][] sphereAtoms;
+        final int[][] sphereBonds;
+        // number of atoms in the sphere at each path position, -1 if the
+        // sphere hasn't been made
+        final int[] sphereSizes;
+        final BitSet visited;
+        int pathLength = 0;
+        int pathPos = 0;
+
+        Search(NodeValidatorInterface nodeValidator, int pattern) {
+            this.nodeValidator = nodeValidator;
+            this.pattern = pattern;
+            pathSize = nodeValidator.pathSize(pattern);
+            path = new int[pathSize];
+            pathPrefixes = new int[pathSize + 1][];
+            for (int i = 0; i <= pathSize; i++) {
+                pathPrefixes[i] = new int[i];
+            }
+            sphereAtoms = new int[pathSize][maxNeighbors];
+            sphereBonds = new int[pathSize][maxNeighbors];
+            sphereSizes = new int[pathSize];
+            visited = new BitSet(atoms.length);
+        }
+
+        int[] currentPath() {
+            int[] prefix = pathPrefixes[pathLength];
+            System.arraycopy(path, 0, prefix, 0, pathLength);
+            return prefix;
+        }
+
+        boolean checkAtom(int index, int iAtom) {
+            return nodeValidator.checkAtom(atomicNumbers[iAtom], visited.get(iAtom),
+                    currentPath(), pattern, index, iAtom, bondMap);
+        }
+
+        boolean checkBond(int index, int iBond) {
+            return nodeValidator.checkBond(bondOrders[iBond], currentPath(), pattern, index, iBond);
+        }
+
+        /**
+         * Find all the paths that start at an atom, passing each to the
+         * consumer as it is found. The path array is reused, so consumers
+         * that keep it must copy it.
+         */
+        void run(int start, PathConsumer consumer) {
+            visited.clear();
+            pathLength = 0;
+            if (!checkAtom(0, start)) {
+                return;
+            }
+            Arrays.fill(sphereSizes, -1);
+            path[0] = start;
+            visited.set(start);
+            pathLength = 1;
+            pathPos = 0;
+            if (pathSize == 1) {
+                consumer.accept(path);
+            }
+            while (true) {
+                if (pathPos < 0) {
+                    return;
+                }
+                int[] sAtoms = sphereAtoms[pathPos];
+                int[] sBonds = sphereBonds[pathPos];
+                if (sphereSizes[pathPos] < 0) {
+                    int n = 0;
+                    if (pathLength < pathSize) {
+                        int iAtom = path[pathPos];
+                        int[] nAtoms = nbrAtoms[iAtom];
+                        int[] nBonds = nbrBonds[iAtom];
+                        for (int i = 0; i < nAtoms.length; i++) {
+                            if (!visited.get(nAtoms[i])) {
+                                sAtoms[n] = nAtoms[i];
+                                sBonds[n] = nBonds[i];
+                                n++;
+                            }
+                        }
+                    }
+                    sphereSizes[pathPos] = n;
+                }
+                int branchAtom = -1;
+                if (pathLength < pathSize) {
+                    for (int i = 0, n = sphereSizes[pathPos]; i < n; i++) {
+                        boolean aType = checkAtom(pathLength, sAtoms[i]);
+                        boolean bType = checkBond(pathLength, sBonds[i]);
+                        if (aType && bType) {
+                            branchAtom = i;
+                            break;
+                        }
+                    }
+                }
+                if (branchAtom == -1) {
+                    sphereSizes[pathPos] = -1;
+                    pathLength--;
+                    pathPos--;
+                    if (pathLength == 0) {
+                        return;
+                    }
+                } else {
+                    int nextAtom = sAtoms[branchAtom];
+                    visited.set(nextAtom);
+                    path[pathLength] = nextAtom;
+                    pathLength++;
+                    pathPos++;
+                    if (pathPos < pathSize) {
+                        int jumpPos = nodeValidator.getJump(pattern, pathPos);
+                        if (jumpPos != -1) {
+                            pathPos = jumpPos;
+                        }
+                    }
+                }
+                if (pathLength == pathSize) {
+                    consumer.accept(path);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,787 @@
+package org.nmrfx.structure.chemistry.miner;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.nmrfx.structure.chemistry.AtomProperty;
+
+/**
+ * A NodeValidatorInterface built at run time from a text description of the
+ * patterns, instead of a generated class.
+ *
+ * The rule text has one entry per line, and lines starting with # are
+ * comments. A "property" line declares the names of the atom properties (at
+ * most 64) that patterns can assign and test. Each other line is a mode
+ * keyword followed by a pattern. The modes are "assign" (set properties of the
+ * matched atoms), "param" (set parameters of the matched atoms), "type" and
+ * "skip" (match only).
+ *
+ * Patterns are written like SMARTS. Atoms are expressions in brackets, made
+ * of element symbols, property names and X (any atom), combined with !, &amp;
+ * (or &amp;&amp;), | (or ||) and parentheses. Bonds are - (single), =
+ * (double), # (triple), $ (quadruple), : (aromatic) and ~ (any), with single
+ * the default. Branches are in parentheses and a digit after an atom marks a
+ * ring closure, which checks the closing atom is bonded (with any bond
+ * unless a bond symbol is given) to the opening one. Values for the matched
+ * atoms follow the atom in braces: property names for assign patterns and
+ * name=value pairs for param patterns. For example
+ * <pre>
+ * property sp2 sp
+ * assign [X]{sp2}=[X]{sp2}
+ * param [C&amp;sp2]{elec=40.0,hard=98.5}
+ * </pre>
+ *
+ * Atom expressions that are conjunctions of element choices, properties,
+ * negated properties and choices of properties are compiled to an element
+ * table and property bit masks. Other expressions are compiled to a short
+ * postfix program. An instance holds the properties for one molecule; use
+ * newInstance to get an independent validator with the same patterns.
+ *
+ * @author brucejohnson
+ */
+public class PatternValidator implements NodeValidatorInterface {
+
+    public static final String DEFAULT_RULES = "/data/atomtypes.pat";
+    static PatternValidator defaultValidator = null;
+
+    static final int OP_TRUE = 0;
+    static final int OP_ELEM = 1;
+    static final int OP_PROP = 2;
+    static final int OP_NOT = 3;
+    static final int OP_AND = 4;
+    static final int OP_OR = 5;
+    static final int ANY_ORDER = 0xFFFF;
+
+    final String[] propertyNames;
+    final int[] modes;
+    final AtomRule[][] atomRules;
+    // bit i set if bond order i is allowed
+    final int[][] bondMasks;
+    final int[][] jumps;
+    // properties assigned to each path atom (assign patterns)
+    final long[][] assignMasks;
+    // name, value pairs set on each path atom (param patterns)
+    final String[][][] params;
+    long[] props = new long[0];
+
+    PatternValidator(String[] propertyNames, int[] modes, AtomRule[][] atomRules, int[][] bondMasks,
+            int[][] jumps, long[][] assignMasks, String[][][] params) {
+        this.propertyNames = propertyNames;
+        this.modes = modes;
+        this.atomRules = atomRules;
+        this.bondMasks = bondMasks;
+        this.jumps = jumps;
+        this.assignMasks = assignMasks;
+        this.params = params;
+    }
+
+    /**
+     * Get a new validator with the same (shared) patterns and no properties.
+     *
+     * @return the validator
+     */
+    public PatternValidator newInstance() {
+        return new PatternValidator(propertyNames, modes, atomRules, bondMasks, jumps, assignMasks, params);
+    }
+
+    /**
+     * Get a validator for the default atom typing rules.
+     *
+     * @return the validator
+     */
+    public static synchronized PatternValidator getDefault() {
+        if (defaultValidator == null) {
+            InputStream iStream = PatternValidator.class.getResourceAsStream(DEFAULT_RULES);
+            if (iStream == null) {
+                throw new IllegalStateException("Can't find resource " + DEFAULT_RULES);
+            }
+            try (Reader reader = new InputStreamReader(iStream, StandardCharsets.UTF_8)) {
+                defaultValidator = compile(reader);
+            } catch (IOException ioE) {
+                throw new IllegalStateException("Can't read " + DEFAULT_RULES + " " + ioE.getMessage());
+            }
+        }
+        return defaultValidator.newInstance();
+    }
+
+    public static PatternValidator compile(String rules) {
+        try {
+            return compile(new StringReader(rules));
+        } catch (IOException ioE) {
+            throw new IllegalStateException(ioE.getMessage());
+        }
+    }
+
+    /**
+     * Compile a set of rules.
+     *
+     * @param reader the rule text
+     * @return the validator
+     * @throws IOException if the text can't be read
+     * @throws IllegalArgumentException if the rules have an error
+     */
+    public static PatternValidator compile(Reader reader) throws IOException {
+        List<String> propNames = new ArrayList<>();
+        List<Pattern> patterns = new ArrayList<>();
+        BufferedReader bReader = new BufferedReader(reader);
+        int lineNum = 0;
+        String line;
+        while ((line = bReader.readLine()) != null) {
+            lineNum++;
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String[] fields = line.split("\\s+", 2);
+            try {
+                if (fields[0].equals("property")) {
+                    if (fields.length > 1) {
+                        propNames.addAll(Arrays.asList(fields[1].split("\\s+")));
+                    }
+                    if (propNames.size() > 64) {
+                        throw new IllegalArgumentException("More than 64 properties");
+                    }
+                } else {
+                    if (fields.length < 2) {
+                        throw new IllegalArgumentException("No pattern");
+                    }
+                    int mode = getMode(fields[0]);
+                    patterns.add(new PatternParser(fields[1], mode, propNames).parse());
+                }
+            } catch (IllegalArgumentException iaE) {
+                throw new IllegalArgumentException("Error at line " + lineNum + ": " + iaE.getMessage() + " in \"" + line + "\"");
+            }
+        }
+        int nPatterns = patterns.size();
+        int[] modes = new int[nPatterns];
+        AtomRule[][] atomRules = new AtomRule[nPatterns][];
+        int[][] bondMasks = new int[nPatterns][];
+        int[][] jumps = new int[nPatterns][];
+        long[][] assignMasks = new long[nPatterns][];
+        String[][][] params = new String[nPatterns][][];
+        for (int i = 0; i < nPatterns; i++) {
+            Pattern pattern = patterns.get(i);
+            modes[i] = pattern.mode;
+            atomRules[i] = pattern.atomRules;
+            bondMasks[i] = pattern.bondMasks;
+            jumps[i] = pattern.jumps;
+            assignMasks[i] = pattern.assignMasks;
+            params[i] = pattern.params;
+        }
+        return new PatternValidator(propNames.toArray(new String[propNames.size()]), modes, atomRules,
+                bondMasks, jumps, assignMasks, params);
+    }
+
+    static int getMode(String keyword) {
+        switch (keyword) {
+            case "assign":
+                return 0;
+            case "type":
+                return 1;
+            case "param":
+                return 2;
+            case "skip":
+                return -1;
+            default:
+                throw new IllegalArgumentException("Unknown mode " + keyword);
+        }
+    }
+
+    @Override
+    public boolean checkAtom(int aNum, boolean visited, final int[] currentPath, final int patternIndex, final int pathIndex, final int atomIndex, HashMap bondMap) {
+        if (visited) {
+            return false;
+        }
+        return atomRules[patternIndex][pathIndex].matches(aNum, props[atomIndex], currentPath, atomIndex, bondMap);
+    }
+
+    @Override
+    public boolean checkBond(int order, final int[] currentPath, final int patternIndex, final int pathIndex, final int bondIndex) {
+        return (order >= 0) && (order < 16) && ((bondMasks[patternIndex][pathIndex] & (1 << order)) != 0);
+    }
+
+    @Override
+    public ArrayList getParams(ArrayList path, final int patternIndex) {
+        ArrayList<Object> result = new ArrayList<>();
+        String[][] patternParams = params[patternIndex];
+        for (int i = 0; i < patternParams.length; i++) {
+            if (patternParams[i] != null) {
+                result.add(path.get(i));
+                result.addAll(Arrays.asList(patternParams[i]));
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public void assignProps(ArrayList path, final int patternIndex) {
+        long[] masks = assignMasks[patternIndex];
+        for (int i = 0; i < masks.length; i++) {
+            if (masks[i] != 0) {
+                int atomIndex = (Integer) path.get(i);
+                props[atomIndex] |= masks[i];
+            }
+        }
+    }
+
+    @Override
+    public String[] getPropertyNames() {
+        return propertyNames;
+    }
+
+    /**
+     * Get the properties of the atoms. The array is a copy made from the
+     * property masks.
+     *
+     * @return the properties, indexed by atom and then property
+     */
+    @Override
+    public boolean[][] getProperties() {
+        boolean[][] p = new boolean[props.length][propertyNames.length];
+        for (int i = 0; i < props.length; i++) {
+            for (int j = 0; j < propertyNames.length; j++) {
+                p[i][j] = (props[i] & (1L << j)) != 0;
+            }
+        }
+        return p;
+    }
+
+    public long getPropertyMask(int atomIndex) {
+        return props[atomIndex];
+    }
+
+    @Override
+    public void init(int nAtoms) {
+        props = new long[nAtoms];
+    }
+
+    @Override
+    public int patternCount() {
+        return modes.length;
+    }
+
+    @Override
+    public int getMode(int index) {
+        return modes[index];
+    }
+
+    @Override
+    public int pathSize(int patternIndex) {
+        return atomRules[patternIndex].length;
+    }
+
+    @Override
+    public void dumpProps() {
+        for (String propertyName : propertyNames) {
+            System.out.print(propertyName + " ");
+        }
+        System.out.println("");
+        for (long prop : props) {
+            for (int j = 0; j < propertyNames.length; j++) {
+                if ((prop & (1L << j)) != 0) {
+                    System.out.print(propertyNames[j] + " ");
+                }
+            }
+            System.out.println("");
+        }
+    }
+
+    @Override
+    public int getJump(int patternIndex, final int pathIndex) {
+        return jumps[patternIndex][pathIndex];
+    }
+
+    static boolean ringClosed(final int[] currentPath, final int bondOrder, final int atomIndex, final int ringIndex, HashMap bondMap) {
+        String key = currentPath[ringIndex] + " " + atomIndex;
+        Integer order = (Integer) bondMap.get(key);
+        return (order != null) && ((bondOrder == 0) || (order == bondOrder));
+    }
+
+    /**
+     * The compiled test for one atom of a pattern.
+     */
+    static class AtomRule {
+
+        // allowed atomic numbers, null if any is allowed
+        boolean[] elements = null;
+        long required = 0;
+        long forbidden = 0;
+        // at least one property of each mask must be set
+        long[] anyOf = new long[0];
+        // postfix program for expressions that don't reduce to masks
+        int[] program = null;
+        int ringIndex = -1;
+        int ringOrder = 0;
+
+        boolean matches(int aNum, long p, int[] currentPath, int atomIndex, HashMap bondMap) {
+            if ((elements != null) && ((aNum < 0) || (aNum >= elements.length) || !elements[aNum])) {
+                return false;
+            }
+            if (((p & required) != required) || ((p & forbidden) != 0)) {
+                return false;
+            }
+            for (long mask : anyOf) {
+                if ((p & mask) == 0) {
+                    return false;
+                }
+            }
+            if ((program != null) && !run(aNum, p)) {
+                return false;
+            }
+            return (ringIndex < 0) || ringClosed(currentPath, ringOrder, atomIndex, ringIndex, bondMap);
+        }
+
+        boolean run(int aNum, long p) {
+            boolean[] stack = new boolean[program.length / 2];
+            int top = -1;
+            for (int i = 0; i < program.length; i += 2) {
+                int arg = program[i + 1];
+                switch (program[i]) {
+                    case OP_TRUE:
+                        stack[++top] = true;
+                        break;
+                    case OP_ELEM:
+                        stack[++top] = aNum == arg;
+                        break;
+                    case OP_PROP:
+                        stack[++top] = (p & (1L << arg)) != 0;
+                        break;
+                    case OP_NOT:
+                        stack[top] = !stack[top];
+                        break;
+                    case OP_AND:
+                        top--;
+                        stack[top] = stack[top] && stack[top + 1];
+                        break;
+                    case OP_OR:
+                        top--;
+                        stack[top] = stack[top] || stack[top + 1];
+                        break;
+                    default:
+                        break;
+                }
+            }
+            return stack[0];
+        }
+    }
+
+    /**
+     * A node of a parsed atom expression.
+     */
+    static class Expr {
+
+        final int op;
+        final int value;
+        final List<Expr> args = new ArrayList<>();
+
+        Expr(int op, int value) {
+            this.op = op;
+            this.value = value;
+        }
+
+        Expr(int op, Expr... exprs) {
+            this.op = op;
+            this.value = 0;
+            for (Expr expr : exprs) {
+                // flatten nested and/or
+                if ((expr.op == op) && ((op == OP_AND) || (op == OP_OR))) {
+                    args.addAll(expr.args);
+                } else {
+                    args.add(expr);
+                }
+            }
+        }
+
+        boolean allOp(int testOp) {
+            for (Expr arg : args) {
+                if (arg.op != testOp) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        long propMask() {
+            long mask = 0;
+            for (Expr arg : args) {
+                mask |= 1L << arg.value;
+            }
+            return mask;
+        }
+
+        void emit(List<Integer> code) {
+            if ((op == OP_AND) || (op == OP_OR)) {
+                args.get(0).emit(code);
+                for (int i = 1; i < args.size(); i++) {
+                    args.get(i).emit(code);
+                    code.add(op);
+                    code.add(0);
+                }
+            } else if (op == OP_NOT) {
+                args.get(0).emit(code);
+                code.add(op);
+                code.add(0);
+            } else {
+                code.add(op);
+                code.add(value);
+            }
+        }
+
+        /**
+         * Compile the expression, to masks if it is a conjunction of simple
+         * terms, otherwise to a program.
+         */
+        AtomRule compile() {
+            AtomRule rule = new AtomRule();
+            List<Expr> factors = op == OP_AND ? args : Arrays.asList(this);
+            List<Long> anyOf = new ArrayList<>();
+            for (Expr factor : factors) {
+                if (factor.op == OP_TRUE) {
+                    continue;
+                } else if (factor.op == OP_ELEM) {
+                    rule.elements = restrict(rule.elements, factor.value);
+                } else if ((factor.op == OP_OR) && factor.allOp(OP_ELEM)) {
+                    boolean[] allowed = new boolean[128];
+                    for (Expr arg : factor.args) {
+                        allowed[arg.value] = true;
+                    }
+                    rule.elements = restrict(rule.elements, allowed);
+                } else if (factor.op == OP_PROP) {
+                    rule.required |= 1L << factor.value;
+                } else if ((factor.op == OP_NOT) && (factor.args.get(0).op == OP_PROP)) {
+                    rule.forbidden |= 1L << factor.args.get(0).value;
+                } else if ((factor.op == OP_NOT) && (factor.args.get(0).op == OP_OR) && factor.args.get(0).allOp(OP_PROP)) {
+                    rule.forbidden |= factor.args.get(0).propMask();
+                } else if ((factor.op == OP_OR) && factor.allOp(OP_PROP)) {
+                    anyOf.add(factor.propMask());
+                } else {
+                    rule = new AtomRule();
+                    List<Integer> code = new ArrayList<>();
+                    emit(code);
+                    rule.program = code.stream().mapToInt(Integer::intValue).toArray();
+                    return rule;
+                }
+            }
+            rule.anyOf = anyOf.stream().mapToLong(Long::longValue).toArray();
+            return rule;
+        }
+
+        static boolean[] restrict(boolean[] current, int aNum) {
+            boolean[] allowed = new boolean[128];
+            allowed[aNum] = true;
+            return restrict(current, allowed);
+        }
+
+        static boolean[] restrict(boolean[] current, boolean[] allowed) {
+            if (current != null) {
+                for (int i = 0; i < allowed.length; i++) {
+                    allowed[i] = allowed[i] && current[i];
+                }
+            }
+            return allowed;
+        }
+    }
+
+    /**
+     * A compiled pattern.
+     */
+    static class Pattern {
+
+        int mode;
+        AtomRule[] atomRules;
+        int[] bondMasks;
+        int[] jumps;
+        long[] assignMasks;
+        String[][] params;
+    }
+
+    /**
+     * Parser for one pattern.
+     */
+    static class PatternParser {
+
+        final String text;
+        final int mode;
+        final List<String> propNames;
+        int pos = 0;
+        final List<AtomRule> atomRules = new ArrayList<>();
+        final List<Integer> bondMasks = new ArrayList<>();
+        final List<Integer> parents = new ArrayList<>();
+        final List<Long> assignMasks = new ArrayList<>();
+        final List<String[]> params = new ArrayList<>();
+        final Map<Character, int[]> openRings = new HashMap<>();
+
+        PatternParser(String text, int mode, List<String> propNames) {
+            this.text = text.replaceAll("\\s+", "");
+            this.mode = mode;
+            this.propNames = propNames;
+        }
+
+        boolean atEnd() {
+            return pos >= text.length();
+        }
+
+        char peek() {
+            return text.charAt(pos);
+        }
+
+        static int bondMask(char c) {
+            switch (c) {
+                case '-':
+                    return 1 << 1;
+                case '=':
+                    return 1 << 2;
+                case '#':
+                    return 1 << 3;
+                case '$':
+                    return 1 << 4;
+                case ':':
+                    return 1 << 5;
+                case '~':
+                    return ANY_ORDER;
+                default:
+                    return 0;
+            }
+        }
+
+        static int bondOrder(char c) {
+            int mask = bondMask(c);
+            return mask == ANY_ORDER ? 0 : Integer.numberOfTrailingZeros(mask);
+        }
+
+        Pattern parse() {
+            List<Integer> branchStack = new ArrayList<>();
+            int prev = -1;
+            char bond = 0;
+            while (!atEnd()) {
+                char c = peek();
+                if (c == '(') {
+                    if (prev < 0) {
+                        throw new IllegalArgumentException("Branch before first atom");
+                    }
+                    branchStack.add(prev);
+                    pos++;
+                } else if (c == ')') {
+                    if (branchStack.isEmpty()) {
+                        throw new IllegalArgumentException("Unbalanced )");
+                    }
+                    prev = branchStack.remove(branchStack.size() - 1);
+                    pos++;
+                } else if (bondMask(c) != 0) {
+                    bond = c;
+                    pos++;
+                } else if (Character.isDigit(c)) {
+                    if (prev < 0) {
+                        throw new IllegalArgumentException("Ring closure before first atom");
+                    }
+                    ringClosure(c, prev, bond);
+                    bond = 0;
+                    pos++;
+                } else if (c == '{') {
+                    if (prev < 0) {
+                        throw new IllegalArgumentException("Values before first atom");
+                    }
+                    annotate(prev);
+                } else {
+                    int index = atomRules.size();
+                    atomRules.add(parseAtom().compile());
+                    parents.add(prev);
+                    bondMasks.add(prev < 0 ? 0 : bondMask(bond == 0 ? '-' : bond));
+                    assignMasks.add(0L);
+                    params.add(null);
+                    prev = index;
+                    bond = 0;
+                }
+            }
+            if (!branchStack.isEmpty()) {
+                throw new IllegalArgumentException("Unbalanced (");
+            }
+            if (!openRings.isEmpty()) {
+                throw new IllegalArgumentException("Unclosed ring");
+            }
+            if (atomRules.isEmpty()) {
+                throw new IllegalArgumentException("No atoms");
+            }
+            Pattern pattern = new Pattern();
+            int n = atomRules.size();
+            pattern.mode = mode;
+            pattern.atomRules = atomRules.toArray(new AtomRule[n]);
+            pattern.bondMasks = bondMasks.stream().mapToInt(Integer::intValue).toArray();
+            pattern.assignMasks = assignMasks.stream().mapToLong(Long::longValue).toArray();
+            pattern.params = params.toArray(new String[n][]);
+            pattern.jumps = makeJumps();
+            return pattern;
+        }
+
+        /**
+         * Make the jump table used by the path search to continue from an
+         * earlier atom, and check that the search will attach each atom to
+         * its parent.
+         */
+        int[] makeJumps() {
+            int n = parents.size();
+            int[] jumps = new int[n];
+            Arrays.fill(jumps, -1);
+            for (int k = 0; k < n - 1; k++) {
+                if (parents.get(k + 1) != k) {
+                    jumps[k] = parents.get(k + 1);
+                }
+            }
+            int pathPos = 0;
+            for (int k = 1; k < n; k++) {
+                if (pathPos != parents.get(k)) {
+                    throw new IllegalArgumentException("Branch layout not supported by the path search");
+                }
+                pathPos++;
+                if ((pathPos < n) && (jumps[pathPos] != -1)) {
+                    pathPos = jumps[pathPos];
+                }
+            }
+            return jumps;
+        }
+
+        void ringClosure(char digit, int atom, char bond) {
+            int[] open = openRings.remove(digit);
+            if (open == null) {
+                openRings.put(digit, new int[]{atom, bond});
+            } else {
+                AtomRule rule = atomRules.get(atom);
+                if (rule.ringIndex >= 0) {
+                    throw new IllegalArgumentException("Only one ring closure per atom is supported");
+                }
+                rule.ringIndex = open[0];
+                char ringBond = bond != 0 ? bond : (char) open[1];
+                rule.ringOrder = ringBond == 0 ? 0 : bondOrder(ringBond);
+            }
+        }
+
+        void annotate(int atom) {
+            int end = text.indexOf('}', pos);
+            if (end < 0) {
+                throw new IllegalArgumentException("Unbalanced {");
+            }
+            String[] items = text.substring(pos + 1, end).split(",");
+            pos = end + 1;
+            if (mode == 0) {
+                long mask = assignMasks.get(atom);
+                for (String item : items) {
+                    mask |= 1L << propIndex(item);
+                }
+                assignMasks.set(atom, mask);
+            } else if (mode == 2) {
+                List<String> values = new ArrayList<>();
+                for (String item : items) {
+                    String[] nameValue = item.split("=");
+                    if (nameValue.length != 2) {
+                        throw new IllegalArgumentException("Parameter " + item + " is not name=value");
+                    }
+                    values.add(nameValue[0]);
+                    values.add(nameValue[1]);
+                }
+                params.set(atom, values.toArray(new String[values.size()]));
+            } else {
+                throw new IllegalArgumentException("Values are only allowed in assign and param patterns");
+            }
+        }
+
+        int propIndex(String name) {
+            int index = propNames.indexOf(name);
+            if (index < 0) {
+                throw new IllegalArgumentException("Unknown property " + name);
+            }
+            return index;
+        }
+
+        Expr parseAtom() {
+            char c = peek();
+            if (c == '[') {
+                pos++;
+                Expr expr = parseOr();
+                if (atEnd() || (peek() != ']')) {
+                    throw new IllegalArgumentException("Missing ]");
+                }
+                pos++;
+                return expr;
+            } else if (Character.isUpperCase(c)) {
+                return parseName();
+            } else {
+                throw new IllegalArgumentException("Unexpected " + c);
+            }
+        }
+
+        Expr parseOr() {
+            Expr expr = parseAnd();
+            while (!atEnd() && (peek() == '|')) {
+                pos += text.startsWith("||", pos) ? 2 : 1;
+                expr = new Expr(OP_OR, expr, parseAnd());
+            }
+            return expr;
+        }
+
+        Expr parseAnd() {
+            Expr expr = parseFactor();
+            while (!atEnd() && (peek() == '&')) {
+                pos += text.startsWith("&&", pos) ? 2 : 1;
+                expr = new Expr(OP_AND, expr, parseFactor());
+            }
+            return expr;
+        }
+
+        Expr parseFactor() {
+            if (atEnd()) {
+                throw new IllegalArgumentException("Incomplete atom");
+            }
+            char c = peek();
+            if (c == '!') {
+                pos++;
+                return new Expr(OP_NOT, parseFactor());
+            } else if (c == '(') {
+                pos++;
+                Expr expr = parseOr();
+                if (atEnd() || (peek() != ')')) {
+                    throw new IllegalArgumentException("Missing )");
+                }
+                pos++;
+                return expr;
+            } else {
+                return parseName();
+            }
+        }
+
+        Expr parseName() {
+            int start = pos;
+            if (!atEnd() && Character.isUpperCase(peek())) {
+                // element: upper case letter and optional lower case letter
+                pos++;
+                if (!atEnd() && Character.isLowerCase(peek())) {
+                    pos++;
+                }
+                String symbol = text.substring(start, pos);
+                if (symbol.equals("X")) {
+                    return new Expr(OP_TRUE, 0);
+                }
+                int aNum = AtomProperty.getElementNumber(symbol);
+                if (aNum <= 0) {
+                    throw new IllegalArgumentException("Unknown element " + symbol);
+                }
+                return new Expr(OP_ELEM, aNum);
+            }
+            while (!atEnd() && (Character.isLetterOrDigit(peek()) || (peek() == '_'))) {
+                pos++;
+            }
+            if (pos == start) {
+                throw new IllegalArgumentException("Unexpected " + (atEnd() ? "end" : String.valueOf(peek())));
+            }
+            return new Expr(OP_PROP, propIndex(text.substring(start, pos)));
+        }
+    }
+}
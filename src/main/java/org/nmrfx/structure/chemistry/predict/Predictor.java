@@ -69,6 +69,26 @@ public class Predictor {
 
     NodeValidatorInterface nodeValidator = null;
 
+    /**
+     * Set the atom typing rules used when predicting with HOSE codes.
+     *
+     * @param nodeValidator the rules
+     */
+    public void setNodeValidator(NodeValidatorInterface nodeValidator) {
+        this.nodeValidator = nodeValidator;
+    }
+
+    /**
+     * Load the atom typing rules used when predicting with HOSE codes from a
+     * pattern file.
+     *
+     * @param fileName the name of the pattern file
+     * @throws IOException if the file can't be read
+     */
+    public void loadAtomTypeRules(String fileName) throws IOException {
+        nodeValidator = NodeEvaluatorFactory.load(fileName);
+    }
+
     static final Map<String, Double> RNA_REF_SHIFTS = new HashMap<>();
 //    static final Map<String, Double> RNA_REF_DIST_SHIFTS = new HashMap<>();
     static final Map<String, Double> RNA_MAE_SHIFTS = new HashMap<>();
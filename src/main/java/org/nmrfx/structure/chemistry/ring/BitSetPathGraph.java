@@ -0,0 +1,257 @@
+/*
+ * MX - Essential Cheminformatics
+ * 
+ * Copyright (c) 2007-2009 Metamolecular, LLC
+ * 
+ * http://metamolecular.com/mx
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.nmrfx.structure.chemistry.ring;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import org.nmrfx.structure.chemistry.Atom;
+import org.nmrfx.structure.chemistry.Bond;
+import org.nmrfx.structure.chemistry.Entity;
+import org.nmrfx.structure.chemistry.ITree;
+import org.nmrfx.structure.chemistry.Molecule;
+
+/**
+ * The Hanser path graph of PathGraph, with atoms stored as indices. Each
+ * atom keeps a list of the path edges that end at it (or, for cycles,
+ * contain it), so removing an atom doesn't search all the edges, and the
+ * paths are checked for repeated atoms with a bitset. Edges are kept in the
+ * order PathGraph keeps them, so the same cycles are found in the same
+ * order.
+ *
+ * @author Bruce A. Johnson <bruce at onemoonscientific.com>
+ */
+public class BitSetPathGraph {
+
+    static class Edge {
+
+        final int[] path;
+        boolean live = true;
+
+        Edge(int[] path) {
+            this.path = path;
+        }
+
+        int getSource() {
+            return path[0];
+        }
+
+        int getTarget() {
+            return path[path.length - 1];
+        }
+
+        boolean isCycle() {
+            return (path.length > 2) && (path[0] == path[path.length - 1]);
+        }
+    }
+
+    private final List<Atom> atoms = new ArrayList<>();
+    private final Map<Atom, Integer> atomIndices = new IdentityHashMap<>();
+    private final List<List<Edge>> atomEdges = new ArrayList<>();
+    private long[] used = new long[1];
+    private int maxRingSize = -1;
+
+    public BitSetPathGraph(ITree itree) {
+        for (Atom atom : itree.getAtomArray()) {
+            getIndex(atom);
+        }
+        loadEdges(itree);
+    }
+
+    public void setMaximumRingSize(int maxRingSize) {
+        this.maxRingSize = maxRingSize;
+    }
+
+    private int getIndex(Atom atom) {
+        Integer index = atomIndices.get(atom);
+        if (index == null) {
+            index = atoms.size();
+            atomIndices.put(atom, index);
+            atoms.add(atom);
+            atomEdges.add(new ArrayList<>());
+        }
+        return index;
+    }
+
+    private void loadEdges(ITree itree) {
+        Molecule molecule;
+        if (itree instanceof Molecule) {
+            molecule = (Molecule) itree;
+        } else {
+            Entity entity = (Entity) itree;
+            molecule = entity.molecule;
+        }
+        molecule.updateBondArray();
+        List<Bond> bonds = itree.getBondList();
+        for (Bond bond : bonds) {
+            addEdge(new Edge(new int[]{getIndex(bond.begin), getIndex(bond.end)}));
+        }
+        used = new long[(atoms.size() + 63) / 64];
+    }
+
+    private void addEdge(Edge edge) {
+        if (edge.isCycle()) {
+            // a cycle is listed once for each distinct atom it contains
+            for (int i = 0; i < edge.path.length - 1; i++) {
+                int atom = edge.path[i];
+                boolean listed = false;
+                for (int j = 0; j < i; j++) {
+                    if (edge.path[j] == atom) {
+                        listed = true;
+                        break;
+                    }
+                }
+                if (!listed) {
+                    atomEdges.get(atom).add(edge);
+                }
+            }
+        } else {
+            atomEdges.get(edge.getSource()).add(edge);
+            if (edge.getTarget() != edge.getSource()) {
+                atomEdges.get(edge.getTarget()).add(edge);
+            }
+        }
+    }
+
+    /**
+     * Remove an atom from the graph, splicing the paths that end at it.
+     *
+     * @param atom the atom
+     * @return the atoms of the cycles through the atom, each with the first
+     * atom repeated at the end
+     */
+    public List<List<Atom>> remove(Atom atom) {
+        List<List<Atom>> result = new ArrayList<>();
+        Integer index = atomIndices.get(atom);
+        if (index == null) {
+            return result;
+        }
+        List<Edge> oldEdges = getEdges(index);
+        List<Edge> paths = new ArrayList<>();
+        for (Edge edge : oldEdges) {
+            edge.live = false;
+            if (edge.isCycle()) {
+                List<Atom> cycleAtoms = new ArrayList<>(edge.path.length);
+                for (int i : edge.path) {
+                    cycleAtoms.add(atoms.get(i));
+                }
+                result.add(cycleAtoms);
+            } else {
+                paths.add(edge);
+            }
+        }
+        for (int i = 0; i < paths.size(); i++) {
+            for (int j = i + 1; j < paths.size(); j++) {
+                Edge splice = splice(paths.get(j), paths.get(i), maxRingSize + 1);
+                if (splice != null) {
+                    addEdge(splice);
+                }
+            }
+        }
+        atomEdges.get(index).clear();
+        return result;
+    }
+
+    private List<Edge> getEdges(int atom) {
+        List<Edge> edges = atomEdges.get(atom);
+        List<Edge> result = new ArrayList<>();
+        for (Edge edge : edges) {
+            if (edge.live) {
+                result.add(edge);
+            }
+        }
+        edges.clear();
+        edges.addAll(result);
+        return result;
+    }
+
+    /**
+     * Join two paths at a shared end atom, as in PathEdge.splice.
+     *
+     * @return the new path, or null if it is too long or repeats an atom
+     */
+    private Edge splice(Edge edge, Edge other, int maxLength) {
+        int[] atoms = edge.path;
+        int[] others = other.path;
+        int intersection;
+        if ((atoms[atoms.length - 1] == others[0]) || (atoms[atoms.length - 1] == others[others.length - 1])) {
+            intersection = atoms[atoms.length - 1];
+        } else if ((atoms[0] == others[0]) || (atoms[0] == others[others.length - 1])) {
+            intersection = atoms[0];
+        } else {
+            throw new RuntimeException("Couldn't splice - no intersection.");
+        }
+        int newLength = atoms.length + others.length - 1;
+        if (newLength > maxLength && maxLength > 0) {
+            return null;
+        }
+        int[] newAtoms = new int[newLength];
+        if (atoms[0] == intersection) {
+            for (int i = 0; i < atoms.length; i++) {
+                newAtoms[i] = atoms[atoms.length - 1 - i];
+            }
+        } else {
+            System.arraycopy(atoms, 0, newAtoms, 0, atoms.length);
+        }
+        int k = atoms.length;
+        if (others[0] == intersection) {
+            for (int i = 1; i < others.length; i++) {
+                newAtoms[k++] = others[i];
+            }
+        } else {
+            for (int i = others.length - 2; i >= 0; i--) {
+                newAtoms[k++] = others[i];
+            }
+        }
+        if (!isRealPath(newAtoms)) {
+            return null;
+        }
+        return new Edge(newAtoms);
+    }
+
+    /**
+     * Check that no atom is repeated within the path, excluding its ends.
+     */
+    private boolean isRealPath(int[] path) {
+        boolean ok = true;
+        int last = path.length - 1;
+        int i = 1;
+        for (; i < last; i++) {
+            int word = path[i] >> 6;
+            long bit = 1L << path[i];
+            if ((used[word] & bit) != 0) {
+                ok = false;
+                break;
+            }
+            used[word] |= bit;
+        }
+        for (int j = 1; j < i; j++) {
+            used[path[j] >> 6] = 0;
+        }
+        return ok;
+    }
+}
@@ -28,13 +28,19 @@ package org.nmrfx.structure.chemistry.ring;
 ;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.WeakHashMap;
 import org.nmrfx.structure.chemistry.Atom;
 import org.nmrfx.structure.chemistry.Bond;
+import org.nmrfx.structure.chemistry.Entity;
 import org.nmrfx.structure.chemistry.ITree;
 import org.nmrfx.structure.chemistry.Molecule;
 
@@ -45,8 +51,72 @@ import org.nmrfx.structure.chemistry.Molecule;
 
 public class HanserRingFinder implements RingFinder {
 
+    /**
+     * How findSmallestRings reduces the set of all rings. SMALLEST removes
+     * rings whose bonds are the sum of those of two smaller rings, SSSR keeps
+     * a smallest set of smallest rings (a minimum cycle basis), and RELEVANT
+     * keeps every ring that isn't a sum of smaller rings.
+     */
+    public enum Mode {
+        SMALLEST,
+        SSSR,
+        RELEVANT;
+    }
+
+    /**
+     * The rings found for a molecule, with the atoms stored as their indices
+     * in the atom array, so the cache holds no reference to the molecule
+     * (the key of the weak map) and entries can be collected.
+     */
+    static class CachedRings {
+
+        final Mode mode;
+        final int maxRingSize;
+        final int[] signature;
+        final int[][] ringAtoms;
+
+        CachedRings(Mode mode, int maxRingSize, int[] signature, List<Ring> rings, List<Atom> atoms) {
+            this.mode = mode;
+            this.maxRingSize = maxRingSize;
+            this.signature = signature;
+            Map<Atom, Integer> atomIndices = new IdentityHashMap<>();
+            for (Atom atom : atoms) {
+                atomIndices.put(atom, atomIndices.size());
+            }
+            ringAtoms = new int[rings.size()][];
+            for (int i = 0; i < ringAtoms.length; i++) {
+                List<Atom> cycleAtoms = rings.get(i).getAtoms();
+                ringAtoms[i] = new int[cycleAtoms.size()];
+                for (int j = 0; j < cycleAtoms.size(); j++) {
+                    ringAtoms[i][j] = atomIndices.get(cycleAtoms.get(j));
+                }
+            }
+        }
+
+        boolean matches(Mode mode, int maxRingSize, int[] signature) {
+            return (this.mode == mode) && (this.maxRingSize == maxRingSize)
+                    && Arrays.equals(this.signature, signature);
+        }
+
+        List<Ring> getRings(List<Atom> atoms) {
+            List<Ring> rings = new ArrayList<>(ringAtoms.length);
+            for (int[] indices : ringAtoms) {
+                List<Atom> cycleAtoms = new ArrayList<>(indices.length);
+                for (int index : indices) {
+                    cycleAtoms.add(atoms.get(index));
+                }
+                rings.add(new Ring(cycleAtoms));
+            }
+            return rings;
+        }
+    }
+
+    static final Map<ITree, CachedRings> RING_CACHE = Collections.synchronizedMap(new WeakHashMap<>());
+
     private List<Ring> rings;
     private int maxRingSize;
+    private Mode mode = Mode.SMALLEST;
+    private boolean useCache = false;
 
     public HanserRingFinder() {
         rings = new ArrayList<Ring>();
@@ -61,6 +131,32 @@ public class HanserRingFinder implements RingFinder {
         return this.maxRingSize;
     }
 
+    public void setMode(Mode mode) {
+        this.mode = mode;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * Set whether findSmallestRings reuses the rings found for a molecule by
+     * an earlier call, if its atoms and bonds haven't changed.
+     *
+     * @param useCache true to use the cache
+     */
+    public void setUseCache(boolean useCache) {
+        this.useCache = useCache;
+    }
+
+    public boolean getUseCache() {
+        return useCache;
+    }
+
+    public static void clearCache() {
+        RING_CACHE.clear();
+    }
+
     public List<Bond> getAllEdges(List<Ring> rings) {
         List<Bond> edges = new ArrayList<>();
         for (Ring ring : rings) {
@@ -164,6 +260,185 @@ public class HanserRingFinder implements RingFinder {
         return ringSubset;
     }
 
+    /**
+     * Get the bonds of each ring as a bitset, with the bonds numbered in the
+     * order of getAllEdges.
+     *
+     * @param rings the rings
+     * @return the bitset of each ring
+     */
+    public long[][] generateEdgeBits(List<Ring> rings) {
+        Map<Bond, Integer> edgeIndices = new HashMap<>();
+        List<List<Bond>> ringBonds = new ArrayList<>();
+        for (Ring ring : rings) {
+            List<Bond> bonds = new ArrayList<>();
+            int ringSize = ring.size();
+            for (int i = 0; i < ringSize; i++) {
+                Atom atom1 = ring.getAtom(i);
+                Atom atom2 = ring.getAtom(i + 1);
+                // for ring closures (like in phe) need to check both atoms
+                // for the bond
+                Optional<Bond> bondOpt = atom1.getBond(atom2);
+                if (!bondOpt.isPresent()) {
+                    bondOpt = atom2.getBond(atom1);
+                }
+                if (bondOpt.isPresent()) {
+                    Bond bond = bondOpt.get();
+                    edgeIndices.putIfAbsent(bond, edgeIndices.size());
+                    bonds.add(bond);
+                }
+            }
+            ringBonds.add(bonds);
+        }
+        int nWords = (edgeIndices.size() + 63) / 64;
+        long[][] edgeBits = new long[rings.size()][nWords];
+        for (int i = 0; i < rings.size(); i++) {
+            for (Bond bond : ringBonds.get(i)) {
+                int index = edgeIndices.get(bond);
+                edgeBits[i][index >> 6] |= 1L << index;
+            }
+        }
+        return edgeBits;
+    }
+
+    /**
+     * Remove the rings whose bonds are the sum of the bonds of two smaller
+     * rings. Gives the same result as removeLargeRings(edgeMap), using bond
+     * bitsets.
+     *
+     * @param edgeBits the bond bitset of each ring
+     * @return the remaining rings
+     */
+    public List<Ring> removeLargeRings(long[][] edgeBits) {
+        boolean hasEdges = false;
+        for (long[] row : edgeBits) {
+            if (row.length > 0) {
+                hasEdges = true;
+                break;
+            }
+        }
+        List<Ring> ringSubset = new ArrayList<>();
+        for (int i = 0; i < rings.size(); i++) {
+            Ring largeRing = rings.get(i);
+            boolean isLargerRing = false;
+            for (int j = 0; hasEdges && (j < i - 1) && !isLargerRing; j++) {
+                Ring smallRing1 = rings.get(j);
+                for (int k = j + 1; (k < i) && !isLargerRing; k++) {
+                    Ring smallRing2 = rings.get(k);
+                    int difference = smallRing1.size() + smallRing2.size() - largeRing.size();
+                    if (difference < 0 || difference % 2 != 0) {
+                        continue;
+                    }
+                    isLargerRing = isSum(edgeBits[j], edgeBits[k], edgeBits[i]);
+                }
+            }
+            if ((i <= 1) || !isLargerRing) {
+                ringSubset.add(largeRing);
+            }
+        }
+        return ringSubset;
+    }
+
+    static boolean isSum(long[] row1, long[] row2, long[] sumRow) {
+        for (int i = 0; i < sumRow.length; i++) {
+            if ((row1[i] ^ row2[i]) != sumRow[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Select rings, in order of size, whose bonds are independent (over
+     * GF(2)) of those of the rings selected so far (for an SSSR) or of all
+     * smaller rings (for the relevant rings). The rings must be sorted by
+     * size.
+     *
+     * @param edgeBits the bond bitset of each ring
+     * @param relevant true to select the relevant rings
+     * @return the selected rings
+     */
+    public List<Ring> selectIndependentRings(long[][] edgeBits, boolean relevant) {
+        int nBits = edgeBits.length == 0 ? 0 : edgeBits[0].length * 64;
+        // basis rows, indexed by their highest bit
+        long[][] pivots = new long[nBits][];
+        List<Ring> selected = new ArrayList<>();
+        int start = 0;
+        while (start < rings.size()) {
+            int end = start + 1;
+            while ((end < rings.size()) && (rings.get(end).size() == rings.get(start).size())) {
+                end++;
+            }
+            boolean[] independent = new boolean[end - start];
+            if (relevant) {
+                for (int i = start; i < end; i++) {
+                    independent[i - start] = reduce(edgeBits[i].clone(), pivots) >= 0;
+                }
+            }
+            for (int i = start; i < end; i++) {
+                long[] row = edgeBits[i].clone();
+                int pivot = reduce(row, pivots);
+                if (pivot >= 0) {
+                    pivots[pivot] = row;
+                }
+                if (relevant ? independent[i - start] : pivot >= 0) {
+                    selected.add(rings.get(i));
+                }
+            }
+            start = end;
+        }
+        return selected;
+    }
+
+    /**
+     * Reduce a row by the basis rows.
+     *
+     * @return the highest bit of the reduced row, or -1 if it is zero
+     */
+    static int reduce(long[] row, long[][] pivots) {
+        for (int word = row.length - 1; word >= 0; word--) {
+            while (row[word] != 0) {
+                int pivot = word * 64 + 63 - Long.numberOfLeadingZeros(row[word]);
+                long[] basisRow = pivots[pivot];
+                if (basisRow == null) {
+                    return pivot;
+                }
+                for (int i = 0; i <= word; i++) {
+                    row[i] ^= basisRow[i];
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Get the atom indices of each bond, identifying the ring structure of a
+     * molecule for the cache.
+     */
+    static int[] getSignature(ITree itree) {
+        Molecule molecule;
+        if (itree instanceof Molecule) {
+            molecule = (Molecule) itree;
+        } else {
+            molecule = ((Entity) itree).molecule;
+        }
+        molecule.updateBondArray();
+        List<Atom> atoms = itree.getAtomArray();
+        Map<Atom, Integer> atomIndices = new IdentityHashMap<>();
+        for (Atom atom : atoms) {
+            atomIndices.put(atom, atomIndices.size());
+        }
+        List<Bond> bonds = itree.getBondList();
+        int[] signature = new int[2 * bonds.size() + 1];
+        signature[0] = atoms.size();
+        int i = 1;
+        for (Bond bond : bonds) {
+            signature[i++] = atomIndices.getOrDefault(bond.begin, -1);
+            signature[i++] = atomIndices.getOrDefault(bond.end, -1);
+        }
+        return signature;
+    }
+
     public void setAtomRings(List<Atom> atoms) {
         int ringNumber = 0;
         for (Ring ring : rings) {
@@ -185,16 +460,34 @@ public class HanserRingFinder implements RingFinder {
     }
 
     public Collection<Ring> findSmallestRings(ITree itree) {
-        findRings(itree);
+        int[] signature = useCache ? getSignature(itree) : null;
+        CachedRings cachedRings = useCache ? RING_CACHE.get(itree) : null;
+        if ((cachedRings != null) && cachedRings.matches(mode, maxRingSize, signature)) {
+            rings = cachedRings.getRings(itree.getAtomArray());
+        } else {
+            findRings(itree);
 
-        Collections.sort(rings, new Comparator<Ring>() {
-            public int compare(Ring ring1, Ring ring2) {
-                return ring1.size() - ring2.size();
+            Collections.sort(rings, new Comparator<Ring>() {
+                public int compare(Ring ring1, Ring ring2) {
+                    return ring1.size() - ring2.size();
+                }
+            });
+            long[][] edgeBits = generateEdgeBits(rings);
+            switch (mode) {
+                case SSSR:
+                    rings = selectIndependentRings(edgeBits, false);
+                    break;
+                case RELEVANT:
+                    rings = selectIndependentRings(edgeBits, true);
+                    break;
+                default:
+                    rings = removeLargeRings(edgeBits);
+                    break;
             }
-        });
-        List<Bond> edges = getAllEdges(rings);
-        List<List<Boolean>> edgeMap = generateEdgeMap(rings, edges);
-        rings = removeLargeRings(edgeMap);
+            if (useCache) {
+                RING_CACHE.put(itree, new CachedRings(mode, maxRingSize, signature, rings, itree.getAtomArray()));
+            }
+        }
 
         setAtomRings(itree.getAtomArray());
 
@@ -204,6 +497,28 @@ public class HanserRingFinder implements RingFinder {
     public Collection<Ring> findRings(ITree itree) {
         rings.clear();
 
+        BitSetPathGraph graph = new BitSetPathGraph(itree);
+
+        graph.setMaximumRingSize(maxRingSize);
+        List<Atom> atoms = itree.getAtomArray();
+        for (Atom atom : atoms) {
+            for (List<Atom> cycleAtoms : graph.remove(atom)) {
+                rings.add(new Ring(cycleAtoms));
+            }
+        }
+        return rings;
+    }
+
+    /**
+     * Find the rings with the original PathGraph implementation, which gives
+     * the same rings as findRings.
+     *
+     * @param itree the molecule or entity
+     * @return the rings
+     */
+    public Collection<Ring> findRingsByPathGraph(ITree itree) {
+        rings.clear();
+
         PathGraph graph = new PathGraph(itree);
 
         graph.setMaximumRingSize(maxRingSize);
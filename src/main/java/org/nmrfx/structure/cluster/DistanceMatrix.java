@@ -0,0 +1,198 @@
+/*
+ * NMRFx Structure : A Program for Calculating Structures
+ * Copyright (C) 2004-2017 One Moon Scientific, Inc., Westfield, N.J., USA
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.nmrfx.structure.cluster;
+
+import java.util.List;
+import java.util.stream.IntStream;
+import org.nmrfx.structure.chemistry.Atom;
+import org.nmrfx.structure.chemistry.Molecule;
+import org.nmrfx.structure.chemistry.Point3;
+import org.nmrfx.structure.chemistry.SpatialSet;
+import org.nmrfx.structure.chemistry.SuperMol;
+
+/**
+ * Symmetric matrix of the distances between items, stored as the packed
+ * upper triangle (n * (n - 1) / 2 values). Rows are calculated in parallel.
+ *
+ * @author brucejohnson
+ */
+public class DistanceMatrix {
+
+    final int n;
+    final double[] values;
+
+    /**
+     * Calculates the distance between two items.
+     */
+    public interface Metric {
+
+        double distance(int i, int j);
+    }
+
+    public DistanceMatrix(int n, Metric metric) {
+        this.n = n;
+        values = new double[(int) ((long) n * (n - 1) / 2)];
+        IntStream.range(0, n).parallel().forEach(i -> {
+            int offset = offset(i);
+            for (int j = i + 1; j < n; j++) {
+                values[offset + j] = metric.distance(i, j);
+            }
+        });
+    }
+
+    /**
+     * Create a matrix from a full square matrix, using its upper triangle.
+     *
+     * @param matrix the distances
+     */
+    public DistanceMatrix(double[][] matrix) {
+        this(matrix.length, (i, j) -> matrix[i][j]);
+    }
+
+    /**
+     * Create a matrix of the distances between the vectors of data, for
+     * example torsion angles. The distance is the RMS difference of the
+     * vector elements.
+     *
+     * @param data the data
+     * @param period the period of the values (for example 360.0 for angles in
+     * degrees), or 0.0 if they aren't periodic
+     * @return the matrix
+     */
+    public static DistanceMatrix fromVectors(List<Datum> data, double period) {
+        return new DistanceMatrix(data.size(), (i, j) -> {
+            double[] v1 = data.get(i).v;
+            double[] v2 = data.get(j).v;
+            double sum = 0.0;
+            for (int k = 0; k < v1.length; k++) {
+                double delta = Math.abs(v1[k] - v2[k]);
+                if (period > 0.0) {
+                    delta = delta % period;
+                    if (delta > period / 2.0) {
+                        delta = period - delta;
+                    }
+                }
+                sum += delta * delta;
+            }
+            return v1.length == 0 ? 0.0 : Math.sqrt(sum / v1.length);
+        });
+    }
+
+    /**
+     * Create a matrix of the RMS deviations between structures after
+     * superposition, over the atoms selected for superposition (as in
+     * SuperMol.doSuper).
+     *
+     * @param molecule the molecule
+     * @param structures the structures
+     * @return the matrix
+     */
+    public static DistanceMatrix fromRMSD(Molecule molecule, int[] structures) {
+        List<SpatialSet> selected = molecule.getAtomsByProp(Atom.SUPER);
+        int nAtoms = selected.size();
+        Point3[][] points = new Point3[structures.length][nAtoms];
+        for (int iStruct = 0; iStruct < structures.length; iStruct++) {
+            for (int i = 0; i < nAtoms; i++) {
+                points[iStruct][i] = selected.get(i).getPoint(structures[iStruct]);
+            }
+        }
+        ThreadLocal<double[][][]> buffers = ThreadLocal.withInitial(() -> new double[2][nAtoms][3]);
+        return new DistanceMatrix(structures.length, (iFix, iMov) -> {
+            double[][][] buffer = buffers.get();
+            double[][] x = buffer[0];
+            double[][] y = buffer[1];
+            int j = 0;
+            for (int i = 0; i < nAtoms; i++) {
+                Point3 pt1 = points[iFix][i];
+                Point3 pt2 = points[iMov][i];
+                if ((pt1 != null) && (pt2 != null)) {
+                    x[j][0] = pt1.getX();
+                    x[j][1] = pt1.getY();
+                    x[j][2] = pt1.getZ();
+                    y[j][0] = pt2.getX();
+                    y[j][1] = pt2.getY();
+                    y[j][2] = pt2.getZ();
+                    j++;
+                }
+            }
+            if (j < 3) {
+                return Double.NaN;
+            }
+            SuperMol superMol = new SuperMol(molecule);
+            superMol.cal_super(x, y, j);
+            return superMol.getRMS();
+        });
+    }
+
+    final int offset(int i) {
+        // index of (i, j) is offset(i) + j
+        return (int) ((long) i * (2 * n - i - 1) / 2) - i - 1;
+    }
+
+    public int size() {
+        return n;
+    }
+
+    /**
+     * Get the distance between two items.
+     *
+     * @param i the first item
+     * @param j the second item
+     * @return the distance, 0.0 if i equals j
+     */
+    public double get(int i, int j) {
+        return get(values, i, j);
+    }
+
+    final int index(int i, int j) {
+        return i < j ? offset(i) + j : offset(j) + i;
+    }
+
+    /**
+     * Get a distance from a working copy of the packed values.
+     */
+    final double get(double[] packed, int i, int j) {
+        return i == j ? 0.0 : packed[index(i, j)];
+    }
+
+    final void set(double[] packed, int i, int j, double value) {
+        packed[index(i, j)] = value;
+    }
+
+    /**
+     * Get the item with the smallest total distance to a set of items.
+     *
+     * @param items the items
+     * @return the medoid, or -1 if there are no items
+     */
+    public int medoid(List<Integer> items) {
+        int best = -1;
+        double bestSum = Double.MAX_VALUE;
+        for (int i : items) {
+            double sum = 0.0;
+            for (int j : items) {
+                sum += get(i, j);
+            }
+            if (sum < bestSum) {
+                bestSum = sum;
+                best = i;
+            }
+        }
+        return best;
+    }
+}
@@ -0,0 +1,444 @@
+/*
+ * NMRFx Structure : A Program for Calculating Structures
+ * Copyright (C) 2004-2017 One Moon Scientific, Inc., Westfield, N.J., USA
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.nmrfx.structure.cluster;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+/**
+ * Clustering of structure ensembles or trajectory frames, from a
+ * DistanceMatrix of RMS deviations or of torsion angle vectors. Provides
+ * hierarchical clustering (average or complete linkage), k-medoids and
+ * density based (DBSCAN) clustering. All methods work on the packed distance
+ * matrix, so memory use is proportional to the number of pairs.
+ *
+ * @author brucejohnson
+ */
+public class EnsembleClusterer {
+
+    public enum Linkage {
+        AVERAGE,
+        COMPLETE;
+    }
+
+    /**
+     * The clusters found by one of the methods. Clusters are numbered in
+     * order of decreasing size, and each has a representative, the medoid
+     * of its members.
+     */
+    public static class Result {
+
+        final int[] labels;
+        final List<List<Integer>> clusters;
+        final int[] representatives;
+
+        Result(DistanceMatrix matrix, int[] rawLabels) {
+            int n = rawLabels.length;
+            List<List<Integer>> groups = new ArrayList<>();
+            int[] groupIndex = new int[n];
+            Arrays.fill(groupIndex, -1);
+            for (int i = 0; i < n; i++) {
+                int label = rawLabels[i];
+                if (label >= 0) {
+                    if (groupIndex[label] == -1) {
+                        groupIndex[label] = groups.size();
+                        groups.add(new ArrayList<>());
+                    }
+                    groups.get(groupIndex[label]).add(i);
+                }
+            }
+            groups.sort(Comparator.comparingInt((List<Integer> group) -> group.size()).reversed());
+            clusters = groups;
+            labels = new int[n];
+            Arrays.fill(labels, -1);
+            for (int iCluster = 0; iCluster < clusters.size(); iCluster++) {
+                for (int i : clusters.get(iCluster)) {
+                    labels[i] = iCluster;
+                }
+            }
+            representatives = new int[clusters.size()];
+            IntStream.range(0, clusters.size()).parallel().forEach(iCluster
+                    -> representatives[iCluster] = matrix.medoid(clusters.get(iCluster)));
+        }
+
+        public int getNClusters() {
+            return clusters.size();
+        }
+
+        /**
+         * Get the cluster of each item.
+         *
+         * @return the cluster indices, -1 for items in no cluster (noise)
+         */
+        public int[] getLabels() {
+            return labels.clone();
+        }
+
+        public List<Integer> getCluster(int iCluster) {
+            return clusters.get(iCluster);
+        }
+
+        public int getRepresentative(int iCluster) {
+            return representatives[iCluster];
+        }
+
+        public int[] getRepresentatives() {
+            return representatives.clone();
+        }
+
+        /**
+         * Store the clusters in the data, setting the group of each datum to
+         * its cluster and its prototype to the representative of the cluster.
+         *
+         * @param data the data, in the order of the distance matrix
+         */
+        public void apply(List<Datum> data) {
+            for (int i = 0; i < data.size(); i++) {
+                Datum datum = data.get(i);
+                datum.group = labels[i];
+                datum.proto[0] = labels[i] >= 0 ? representatives[labels[i]] : -1;
+            }
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sBuilder = new StringBuilder();
+            for (int i = 0; i < clusters.size(); i++) {
+                sBuilder.append(i).append(' ').append(representatives[i]).append(' ');
+                sBuilder.append(clusters.get(i)).append('\n');
+            }
+            return sBuilder.toString();
+        }
+    }
+
+    /**
+     * The merges of a hierarchical clustering, in order of increasing
+     * height.
+     */
+    public static class Dendrogram {
+
+        final DistanceMatrix matrix;
+        final int[] item1;
+        final int[] item2;
+        final double[] heights;
+
+        Dendrogram(DistanceMatrix matrix, int[] item1, int[] item2, double[] heights) {
+            this.matrix = matrix;
+            Integer[] order = new Integer[heights.length];
+            for (int i = 0; i < order.length; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, Comparator.comparingDouble(i -> heights[i]));
+            this.item1 = new int[order.length];
+            this.item2 = new int[order.length];
+            this.heights = new double[order.length];
+            for (int i = 0; i < order.length; i++) {
+                this.item1[i] = item1[order[i]];
+                this.item2[i] = item2[order[i]];
+                this.heights[i] = heights[order[i]];
+            }
+        }
+
+        public double[] getHeights() {
+            return heights.clone();
+        }
+
+        /**
+         * Cut the tree into a number of clusters.
+         *
+         * @param nClusters the number of clusters
+         * @return the clusters
+         */
+        public Result cut(int nClusters) {
+            int nMerges = Math.max(0, Math.min(heights.length, matrix.size() - nClusters));
+            return merge(nMerges);
+        }
+
+        /**
+         * Cut the tree at a height, so the clusters are formed by the merges
+         * at or below the height.
+         *
+         * @param height the height
+         * @return the clusters
+         */
+        public Result cutAt(double height) {
+            int nMerges = 0;
+            while ((nMerges < heights.length) && (heights[nMerges] <= height)) {
+                nMerges++;
+            }
+            return merge(nMerges);
+        }
+
+        Result merge(int nMerges) {
+            int[] parents = new int[matrix.size()];
+            for (int i = 0; i < parents.length; i++) {
+                parents[i] = i;
+            }
+            for (int i = 0; i < nMerges; i++) {
+                int root1 = find(parents, item1[i]);
+                int root2 = find(parents, item2[i]);
+                parents[Math.max(root1, root2)] = Math.min(root1, root2);
+            }
+            int[] labels = new int[parents.length];
+            for (int i = 0; i < labels.length; i++) {
+                labels[i] = find(parents, i);
+            }
+            return new Result(matrix, labels);
+        }
+
+        static int find(int[] parents, int i) {
+            while (parents[i] != i) {
+                parents[i] = parents[parents[i]];
+                i = parents[i];
+            }
+            return i;
+        }
+    }
+
+    /**
+     * Cluster hierarchically, with the nearest neighbor chain algorithm.
+     * This takes time proportional to the square of the number of items, and
+     * uses one working copy of the distance matrix.
+     *
+     * @param matrix the distances
+     * @param linkage the linkage used for the distance between clusters
+     * @return the dendrogram
+     */
+    public static Dendrogram hierarchical(DistanceMatrix matrix, Linkage linkage) {
+        int n = matrix.size();
+        double[] dis = matrix.values.clone();
+        int[] sizes = new int[n];
+        Arrays.fill(sizes, 1);
+        boolean[] active = new boolean[n];
+        Arrays.fill(active, true);
+        int nMerges = Math.max(0, n - 1);
+        int[] item1 = new int[nMerges];
+        int[] item2 = new int[nMerges];
+        double[] heights = new double[nMerges];
+        int[] chain = new int[n];
+        int chainLength = 0;
+        int nextStart = 0;
+        for (int iMerge = 0; iMerge < nMerges; iMerge++) {
+            if (chainLength == 0) {
+                while (!active[nextStart]) {
+                    nextStart++;
+                }
+                chain[chainLength++] = nextStart;
+            }
+            int a;
+            int b;
+            double minDis;
+            while (true) {
+                a = chain[chainLength - 1];
+                int previous = chainLength > 1 ? chain[chainLength - 2] : -1;
+                b = previous;
+                minDis = previous >= 0 ? matrix.get(dis, a, previous) : Double.MAX_VALUE;
+                for (int k = 0; k < n; k++) {
+                    if (active[k] && (k != a)) {
+                        double d = matrix.get(dis, a, k);
+                        if (d < minDis) {
+                            minDis = d;
+                            b = k;
+                        }
+                    }
+                }
+                if ((b == previous) || (b == -1)) {
+                    break;
+                }
+                chain[chainLength++] = b;
+            }
+            chainLength -= 2;
+            if (b == -1) {
+                // only one active item, which can't happen with nMerges < n
+                break;
+            }
+            item1[iMerge] = a;
+            item2[iMerge] = b;
+            heights[iMerge] = minDis;
+            // the merged cluster is kept at the lower index
+            int keep = Math.min(a, b);
+            int drop = Math.max(a, b);
+            active[drop] = false;
+            for (int k = 0; k < n; k++) {
+                if (active[k] && (k != keep)) {
+                    double dKeep = matrix.get(dis, keep, k);
+                    double dDrop = matrix.get(dis, drop, k);
+                    double d;
+                    if (linkage == Linkage.COMPLETE) {
+                        d = Math.max(dKeep, dDrop);
+                    } else {
+                        d = (sizes[keep] * dKeep + sizes[drop] * dDrop) / (sizes[keep] + sizes[drop]);
+                    }
+                    matrix.set(dis, keep, k, d);
+                }
+            }
+            sizes[keep] += sizes[drop];
+        }
+        return new Dendrogram(matrix, item1, item2, heights);
+    }
+
+    /**
+     * Cluster with the k-medoids (alternating) algorithm. The first medoid
+     * is the item closest to all the others, and the rest are chosen at
+     * random with probabilities proportional to their squared distance from
+     * the chosen ones.
+     *
+     * @param matrix the distances
+     * @param k the number of clusters
+     * @param maxIterations the maximum number of assignment iterations
+     * @param seed the seed for the random choice of medoids
+     * @return the clusters
+     */
+    public static Result kMedoids(DistanceMatrix matrix, int k, int maxIterations, long seed) {
+        int n = matrix.size();
+        k = Math.min(k, n);
+        int[] labels = new int[n];
+        if (k < 1) {
+            Arrays.fill(labels, -1);
+            return new Result(matrix, labels);
+        }
+        Random random = new Random(seed);
+        List<Integer> all = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            all.add(i);
+        }
+        int[] medoids = new int[k];
+        medoids[0] = matrix.medoid(all);
+        double[] minDis = new double[n];
+        for (int i = 0; i < n; i++) {
+            minDis[i] = matrix.get(i, medoids[0]);
+        }
+        for (int iMedoid = 1; iMedoid < k; iMedoid++) {
+            double sum = 0.0;
+            for (double d : minDis) {
+                sum += d * d;
+            }
+            int choice = -1;
+            if (sum > 0.0) {
+                double target = random.nextDouble() * sum;
+                for (int i = 0; i < n; i++) {
+                    target -= minDis[i] * minDis[i];
+                    if ((target <= 0.0) && (minDis[i] > 0.0)) {
+                        choice = i;
+                        break;
+                    }
+                }
+            }
+            if (choice == -1) {
+                // all remaining items coincide with a medoid
+                for (int i = 0; i < n && choice == -1; i++) {
+                    if (minDis[i] > 0.0) {
+                        choice = i;
+                    }
+                }
+                if (choice == -1) {
+                    choice = medoids[iMedoid - 1] + 1 < n ? medoids[iMedoid - 1] + 1 : 0;
+                }
+            }
+            medoids[iMedoid] = choice;
+            for (int i = 0; i < n; i++) {
+                minDis[i] = Math.min(minDis[i], matrix.get(i, choice));
+            }
+        }
+        for (int iter = 0; iter < maxIterations; iter++) {
+            int[] current = medoids.clone();
+            IntStream.range(0, n).parallel().forEach(i -> {
+                int best = 0;
+                double bestDis = matrix.get(i, current[0]);
+                for (int j = 1; j < current.length; j++) {
+                    double d = matrix.get(i, current[j]);
+                    if (d < bestDis) {
+                        bestDis = d;
+                        best = j;
+                    }
+                }
+                labels[i] = best;
+            });
+            List<List<Integer>> members = new ArrayList<>();
+            for (int j = 0; j < k; j++) {
+                members.add(new ArrayList<>());
+            }
+            for (int i = 0; i < n; i++) {
+                members.get(labels[i]).add(i);
+            }
+            IntStream.range(0, k).parallel().forEach(j -> {
+                if (!members.get(j).isEmpty()) {
+                    medoids[j] = matrix.medoid(members.get(j));
+                }
+            });
+            if (Arrays.equals(current, medoids)) {
+                break;
+            }
+        }
+        return new Result(matrix, labels);
+    }
+
+    /**
+     * Cluster with DBSCAN. Items with at least minPoints items (including
+     * themselves) within eps are core items, clusters are the sets of items
+     * within eps of connected core items, and other items are noise.
+     *
+     * @param matrix the distances
+     * @param eps the neighborhood radius
+     * @param minPoints the minimum number of items in the neighborhood of a
+     * core item
+     * @return the clusters
+     */
+    public static Result dbscan(DistanceMatrix matrix, double eps, int minPoints) {
+        int n = matrix.size();
+        boolean[] core = new boolean[n];
+        IntStream.range(0, n).parallel().forEach(i -> {
+            int count = 0;
+            for (int j = 0; j < n; j++) {
+                if (matrix.get(i, j) <= eps) {
+                    count++;
+                }
+            }
+            core[i] = count >= minPoints;
+        });
+        int[] labels = new int[n];
+        Arrays.fill(labels, -1);
+        int nClusters = 0;
+        ArrayDeque<Integer> queue = new ArrayDeque<>();
+        for (int i = 0; i < n; i++) {
+            if (!core[i] || (labels[i] != -1)) {
+                continue;
+            }
+            labels[i] = nClusters;
+            queue.add(i);
+            while (!queue.isEmpty()) {
+                int item = queue.poll();
+                for (int j = 0; j < n; j++) {
+                    if ((labels[j] == -1) && (matrix.get(item, j) <= eps)) {
+                        labels[j] = nClusters;
+                        if (core[j]) {
+                            queue.add(j);
+                        }
+                    }
+                }
+            }
+            nClusters++;
+        }
+        return new Result(matrix, labels);
+    }
+}
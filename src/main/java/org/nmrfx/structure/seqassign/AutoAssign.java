@@ -0,0 +1,450 @@
+package org.nmrfx.structure.seqassign;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Random;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import org.nmrfx.structure.chemistry.Polymer;
+import org.nmrfx.structure.chemistry.Residue;
+
+/**
+ * Automated sequential assignment. Spin systems are placed on the residues
+ * of a polymer by simulated annealing, maximizing the sum of the log
+ * placement scores (from FragmentScorer.logScore, for the i and i-1 shifts of
+ * each system) and the log scores of the SpinSystemMatch links between
+ * systems on consecutive residues. Systems that are left unplaced and
+ * consecutive systems without a match are penalized, and matches that have
+ * been confirmed (as in a SeqFragment) get a bonus.
+ *
+ * Each move changes the placement of at most two systems, so the score
+ * change is calculated from the few terms involving them. Several
+ * independent runs are made in parallel, within a time limit, and their
+ * distinct results are returned best first as alternative assignments.
+ * SpinSystems.compare must have been run first so the matches are
+ * available.
+ *
+ * @author brucejohnson
+ */
+public class AutoAssign {
+
+    final List<SpinSystem> systems;
+    final List<Residue> residues;
+    final int nSys;
+    final int nRes;
+    // log score of each system on each residue, negative infinity if not
+    // allowed
+    final double[][] placeScores;
+    final int[][] allowedResidues;
+    // successors of each system, the log score of each link and whether it
+    // has been confirmed
+    final int[][] succs;
+    final double[][] succScores;
+    final boolean[][] succConfirmed;
+    double unassignedPenalty = -4.0;
+    double breakPenalty = -4.6;
+    double confirmedBonus = 5.0;
+    int nSteps = 200000;
+    int nRestarts = 8;
+    int nResults = 5;
+    long timeLimit = 10000;
+    double startTemp = 2.0;
+    double endTemp = 0.01;
+    long seed = 0;
+
+    /**
+     * A placement of the spin systems on the residues.
+     */
+    public class Assignment implements Comparable<Assignment> {
+
+        final double score;
+        final int[] sysResidues;
+
+        Assignment(double score, int[] sysResidues) {
+            this.score = score;
+            this.sysResidues = sysResidues.clone();
+        }
+
+        public double getScore() {
+            return score;
+        }
+
+        public int getNAssigned() {
+            return (int) Arrays.stream(sysResidues).filter(r -> r >= 0).count();
+        }
+
+        public Optional<Residue> getResidue(SpinSystem spinSys) {
+            int iSys = systems.indexOf(spinSys);
+            Optional<Residue> result = Optional.empty();
+            if ((iSys >= 0) && (sysResidues[iSys] >= 0)) {
+                result = Optional.of(residues.get(sysResidues[iSys]));
+            }
+            return result;
+        }
+
+        /**
+         * Get the system placed on each residue.
+         *
+         * @return map from residue to system, for the residues with systems
+         */
+        public Map<Residue, SpinSystem> getResidueMap() {
+            Map<Residue, SpinSystem> result = new HashMap<>();
+            for (int iSys = 0; iSys < nSys; iSys++) {
+                if (sysResidues[iSys] >= 0) {
+                    result.put(residues.get(sysResidues[iSys]), systems.get(iSys));
+                }
+            }
+            return result;
+        }
+
+        @Override
+        public int compareTo(Assignment o) {
+            return Double.compare(o.score, score);
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sBuilder = new StringBuilder();
+            sBuilder.append(String.format("%.3f %d", score, getNAssigned()));
+            for (int iSys = 0; iSys < nSys; iSys++) {
+                if (sysResidues[iSys] >= 0) {
+                    Residue residue = residues.get(sysResidues[iSys]);
+                    sBuilder.append(" ").append(systems.get(iSys).getRootPeak().getName());
+                    sBuilder.append(":").append(residue.getName()).append(residue.getNumber());
+                }
+            }
+            return sBuilder.toString();
+        }
+    }
+
+    public AutoAssign(SpinSystems spinSystems, Polymer polymer) {
+        this(spinSystems, new FragmentScorer(polymer));
+    }
+
+    public AutoAssign(SpinSystems spinSystems, FragmentScorer scorer) {
+        systems = new ArrayList<>(spinSystems.getSystems());
+        residues = scorer.getResidues();
+        nSys = systems.size();
+        nRes = residues.size();
+        placeScores = new double[nSys][];
+        allowedResidues = new int[nSys][];
+        IntStream.range(0, nSys).parallel().forEach(iSys -> {
+            placeScores[iSys] = calcPlaceScores(scorer, systems.get(iSys));
+            double[] scores = placeScores[iSys];
+            allowedResidues[iSys] = IntStream.range(0, nRes).filter(r -> scores[r] > Double.NEGATIVE_INFINITY).toArray();
+        });
+        Map<SpinSystem, Integer> sysMap = new HashMap<>();
+        for (int i = 0; i < nSys; i++) {
+            sysMap.put(systems.get(i), i);
+        }
+        succs = new int[nSys][];
+        succScores = new double[nSys][];
+        succConfirmed = new boolean[nSys][];
+        for (int iSys = 0; iSys < nSys; iSys++) {
+            SpinSystem spinSys = systems.get(iSys);
+            List<SpinSystemMatch> matches = new ArrayList<>();
+            for (SpinSystemMatch match : spinSys.getMatchToNext()) {
+                if (sysMap.containsKey(match.getSpinSystemB()) && (match.getScore() > 0.0)) {
+                    matches.add(match);
+                }
+            }
+            int nMatches = matches.size();
+            succs[iSys] = new int[nMatches];
+            succScores[iSys] = new double[nMatches];
+            succConfirmed[iSys] = new boolean[nMatches];
+            for (int i = 0; i < nMatches; i++) {
+                SpinSystemMatch match = matches.get(i);
+                succs[iSys][i] = sysMap.get(match.getSpinSystemB());
+                succScores[iSys][i] = Math.log(match.getScore());
+                succConfirmed[iSys][i] = spinSys.confirmS.isPresent()
+                        && (spinSys.confirmS.get().getSpinSystemB() == match.getSpinSystemB());
+            }
+        }
+    }
+
+    double[] calcPlaceScores(FragmentScorer scorer, SpinSystem spinSys) {
+        int nTypes = SpinSystem.RES_MTCH.length;
+        double[] shifts = new double[nTypes];
+        double[] prevShifts = new double[nTypes];
+        for (int k = 0; k < nTypes; k++) {
+            shifts[k] = spinSys.getValue(1, SpinSystem.RES_MTCH[k]);
+            prevShifts[k] = spinSys.getValue(0, SpinSystem.RES_MTCH[k]);
+        }
+        double[] scores = new double[nRes];
+        for (int r = 0; r < nRes; r++) {
+            scores[r] = scorer.logScore(r, shifts);
+            if (r > 0) {
+                scores[r] += scorer.logScore(r - 1, prevShifts);
+            }
+        }
+        return scores;
+    }
+
+    public void setPenalties(double unassignedPenalty, double breakPenalty, double confirmedBonus) {
+        this.unassignedPenalty = unassignedPenalty;
+        this.breakPenalty = breakPenalty;
+        this.confirmedBonus = confirmedBonus;
+    }
+
+    /**
+     * Set the annealing schedule.
+     *
+     * @param nSteps the number of moves in each run
+     * @param startTemp the starting temperature
+     * @param endTemp the final temperature
+     */
+    public void setSchedule(int nSteps, double startTemp, double endTemp) {
+        this.nSteps = nSteps;
+        this.startTemp = startTemp;
+        this.endTemp = endTemp;
+    }
+
+    /**
+     * Set the number of runs, the number of results returned and the time
+     * limit.
+     *
+     * @param nRestarts the number of independent runs
+     * @param nResults the maximum number of assignments returned
+     * @param timeLimit the time limit in milliseconds
+     */
+    public void setSearch(int nRestarts, int nResults, long timeLimit) {
+        this.nRestarts = nRestarts;
+        this.nResults = nResults;
+        this.timeLimit = timeLimit;
+    }
+
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+
+    double linkScore(int iSys, int jSys) {
+        int[] next = succs[iSys];
+        for (int i = 0; i < next.length; i++) {
+            if (next[i] == jSys) {
+                return succScores[iSys][i] + (succConfirmed[iSys][i] ? confirmedBonus : 0.0);
+            }
+        }
+        return breakPenalty;
+    }
+
+    /**
+     * Run the search.
+     *
+     * @return the distinct assignments found, best first
+     */
+    public List<Assignment> search() {
+        long deadline = System.currentTimeMillis() + timeLimit;
+        List<Assignment> runResults = IntStream.range(0, nRestarts).parallel().
+                mapToObj(i -> new Annealer(seed + i).run(deadline)).
+                collect(Collectors.toList());
+        runResults.sort(null);
+        List<Assignment> result = new ArrayList<>();
+        for (Assignment assignment : runResults) {
+            boolean duplicate = result.stream().anyMatch(a -> Arrays.equals(a.sysResidues, assignment.sysResidues));
+            if (!duplicate) {
+                result.add(assignment);
+                if (result.size() >= nResults) {
+                    break;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Score an assignment from scratch.
+     *
+     * @param sysResidues the residue of each system, -1 if unassigned
+     * @return the score
+     */
+    double score(int[] sysResidues) {
+        int[] resSys = new int[nRes];
+        Arrays.fill(resSys, -1);
+        double score = 0.0;
+        for (int iSys = 0; iSys < nSys; iSys++) {
+            int r = sysResidues[iSys];
+            if (r >= 0) {
+                resSys[r] = iSys;
+                score += placeScores[iSys][r];
+            } else {
+                score += unassignedPenalty;
+            }
+        }
+        for (int r = 0; r < nRes - 1; r++) {
+            if ((resSys[r] >= 0) && (resSys[r + 1] >= 0)) {
+                score += linkScore(resSys[r], resSys[r + 1]);
+            }
+        }
+        return score;
+    }
+
+    /**
+     * The state of one annealing run.
+     */
+    class Annealer {
+
+        final Random random;
+        final int[] resSys = new int[nRes];
+        final int[] sysRes = new int[nSys];
+        final int[] links = new int[4];
+        int nLinks = 0;
+
+        Annealer(long seed) {
+            random = new Random(seed);
+            Arrays.fill(resSys, -1);
+            Arrays.fill(sysRes, -1);
+        }
+
+        double placeTerm(int iSys) {
+            if (iSys < 0) {
+                return 0.0;
+            }
+            int r = sysRes[iSys];
+            return r >= 0 ? placeScores[iSys][r] : unassignedPenalty;
+        }
+
+        double linkTerm(int r) {
+            int iSys = resSys[r];
+            int jSys = resSys[r + 1];
+            return (iSys >= 0) && (jSys >= 0) ? linkScore(iSys, jSys) : 0.0;
+        }
+
+        void addLinks(int r) {
+            if (r >= 0) {
+                addLink(r - 1);
+                addLink(r);
+            }
+        }
+
+        void addLink(int r) {
+            if ((r >= 0) && (r < nRes - 1)) {
+                for (int i = 0; i < nLinks; i++) {
+                    if (links[i] == r) {
+                        return;
+                    }
+                }
+                links[nLinks++] = r;
+            }
+        }
+
+        double localScore(int iSys, int jSys) {
+            double sum = placeTerm(iSys) + placeTerm(jSys);
+            for (int i = 0; i < nLinks; i++) {
+                sum += linkTerm(links[i]);
+            }
+            return sum;
+        }
+
+        /**
+         * Place a system on a residue. The system already there moves to the
+         * old residue of the first, if it is allowed there, or is left
+         * unassigned. A residue of -1 unassigns the system.
+         *
+         * @return the other system affected, or -1
+         */
+        int place(int iSys, int r) {
+            int old = sysRes[iSys];
+            int jSys = r >= 0 ? resSys[r] : -1;
+            if (old >= 0) {
+                resSys[old] = -1;
+            }
+            sysRes[iSys] = r;
+            if (r >= 0) {
+                resSys[r] = iSys;
+            }
+            if (jSys >= 0) {
+                if ((old >= 0) && (placeScores[jSys][old] > Double.NEGATIVE_INFINITY)) {
+                    sysRes[jSys] = old;
+                    resSys[old] = jSys;
+                } else {
+                    sysRes[jSys] = -1;
+                }
+            }
+            return jSys;
+        }
+
+        void undo(int iSys, int r, int old, int jSys, int jOld) {
+            if (r >= 0) {
+                resSys[r] = -1;
+            }
+            if (jSys >= 0) {
+                int jNow = sysRes[jSys];
+                if (jNow >= 0) {
+                    resSys[jNow] = -1;
+                }
+                sysRes[jSys] = jOld;
+                if (jOld >= 0) {
+                    resSys[jOld] = jSys;
+                }
+            }
+            sysRes[iSys] = old;
+            if (old >= 0) {
+                resSys[old] = iSys;
+            }
+        }
+
+        int chooseResidue(int iSys) {
+            int[] allowed = allowedResidues[iSys];
+            double choice = random.nextDouble();
+            if (choice < 0.1) {
+                return -1;
+            } else if (choice < 0.55) {
+                // extend a chain: put the system before a placed system it
+                // links to
+                int[] next = succs[iSys];
+                if (next.length > 0) {
+                    int jSys = next[random.nextInt(next.length)];
+                    int r = sysRes[jSys];
+                    if ((r > 0) && (placeScores[iSys][r - 1] > Double.NEGATIVE_INFINITY)) {
+                        return r - 1;
+                    }
+                }
+            }
+            return allowed.length == 0 ? -1 : allowed[random.nextInt(allowed.length)];
+        }
+
+        Assignment run(long deadline) {
+            double score = score(sysRes);
+            double bestScore = score;
+            int[] best = sysRes.clone();
+            if ((nSys == 0) || (nRes == 0)) {
+                return new Assignment(bestScore, best);
+            }
+            double tempFactor = Math.pow(endTemp / startTemp, 1.0 / Math.max(1, nSteps - 1));
+            double temp = startTemp;
+            for (int step = 0; step < nSteps; step++) {
+                if (((step & 1023) == 0) && (System.currentTimeMillis() > deadline)) {
+                    break;
+                }
+                int iSys = random.nextInt(nSys);
+                int r = chooseResidue(iSys);
+                int old = sysRes[iSys];
+                if (r != old) {
+                    int jSys = r >= 0 ? resSys[r] : -1;
+                    int jOld = jSys >= 0 ? sysRes[jSys] : -1;
+                    nLinks = 0;
+                    addLinks(r);
+                    addLinks(old);
+                    double before = localScore(iSys, jSys);
+                    place(iSys, r);
+                    double delta = localScore(iSys, jSys) - before;
+                    if ((delta >= 0.0) || (random.nextDouble() < Math.exp(delta / temp))) {
+                        score += delta;
+                        if (score > bestScore) {
+                            bestScore = score;
+                            System.arraycopy(sysRes, 0, best, 0, nSys);
+                        }
+                    } else {
+                        undo(iSys, r, old, jSys, jOld);
+                    }
+                }
+                temp *= tempFactor;
+            }
+            return new Assignment(score(best), best);
+        }
+    }
+}
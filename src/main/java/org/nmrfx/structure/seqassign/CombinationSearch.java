@@ -0,0 +1,295 @@
+package org.nmrfx.structure.seqassign;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.nmrfx.structure.seqassign.SpinSystem.ResAtomPattern;
+
+/**
+ * Branch and bound search for the best combinations of peak patterns in a
+ * spin system. Peaks are assigned a pattern one at a time, in the same order
+ * as the counter used by the full enumeration, so the best combinations and
+ * the order of tied combinations are the same.
+ *
+ * A partial combination is rejected as soon as a shift is out of tolerance
+ * with the first shift of its atom type, as all completions fail the same
+ * test. Otherwise it is only extended if an upper bound on the score of any
+ * completion beats the current best scores. The bound uses the smallest
+ * possible spread of the shifts of each atom type (about their median), the
+ * shifts that can still be added by the remaining peaks, and the atom types
+ * that must have no shifts.
+ *
+ * @author brucejohnson
+ */
+public class CombinationSearch {
+
+    static final double P_MISSING = Math.exp(-1.0);
+    // allows for rounding in the bound, which must not prune a combination
+    // whose score equals it
+    static final double BOUND_SLOP = 1.0e-9;
+
+    final SpinSystem spinSystem;
+    final int nPeaks;
+    final int nTypes;
+    final boolean[] countable;
+    // slot (residue * nTypes + atom type) and shift of each dimension of each
+    // candidate pattern of each peak
+    final int[][][] slots;
+    final double[][][] shifts;
+    // maximum number of shifts that peaks i and above can add to each slot
+    final int[][] maxAdds;
+    final List<Double>[][] shiftList;
+    final int[] choices;
+    final List<Result> results = new ArrayList<>();
+    int nBest = 1;
+    long nVisited = 0;
+
+    /**
+     * A combination of patterns and its score.
+     */
+    public static class Result {
+
+        final int[] indices;
+        final double score;
+
+        Result(int[] indices, double score) {
+            this.indices = indices;
+            this.score = score;
+        }
+
+        /**
+         * Get the pattern chosen for each peak with more than one candidate,
+         * as used by the counter of the full enumeration.
+         *
+         * @return the pattern indices
+         */
+        public int[] getIndices() {
+            return indices.clone();
+        }
+
+        public double getScore() {
+            return score;
+        }
+
+        @Override
+        public String toString() {
+            return Arrays.toString(indices) + " " + score;
+        }
+    }
+
+    CombinationSearch(SpinSystem spinSystem, List<ResAtomPattern>[] resAtomPatterns) {
+        this.spinSystem = spinSystem;
+        nPeaks = resAtomPatterns.length;
+        nTypes = SpinSystem.ATOM_TYPES.length;
+        countable = new boolean[nPeaks];
+        slots = new int[nPeaks][][];
+        shifts = new double[nPeaks][][];
+        maxAdds = new int[nPeaks + 1][2 * nTypes];
+        for (int i = 0; i < nPeaks; i++) {
+            List<ResAtomPattern> patterns = resAtomPatterns[i];
+            countable[i] = patterns.size() > 1;
+            int nCandidates = Math.max(1, patterns.size());
+            slots[i] = new int[nCandidates][0];
+            shifts[i] = new double[nCandidates][0];
+            for (int k = 0; k < patterns.size(); k++) {
+                ResAtomPattern pattern = patterns.get(k);
+                if (pattern != null) {
+                    int nDim = pattern.atomTypeIndex.length;
+                    slots[i][k] = new int[nDim];
+                    shifts[i][k] = new double[nDim];
+                    for (int iDim = 0; iDim < nDim; iDim++) {
+                        slots[i][k][iDim] = (pattern.resType[iDim] + 1) * nTypes + pattern.atomTypeIndex[iDim];
+                        shifts[i][k][iDim] = (double) pattern.peak.getPeakDim(iDim).getChemShiftValue();
+                    }
+                }
+            }
+        }
+        for (int i = nPeaks - 1; i >= 0; i--) {
+            int[] nAdds = new int[2 * nTypes];
+            for (int[] candSlots : slots[i]) {
+                int[] nCand = new int[2 * nTypes];
+                for (int slot : candSlots) {
+                    nCand[slot]++;
+                }
+                for (int slot = 0; slot < nAdds.length; slot++) {
+                    nAdds[slot] = Math.max(nAdds[slot], nCand[slot]);
+                }
+            }
+            for (int slot = 0; slot < nAdds.length; slot++) {
+                maxAdds[i][slot] = maxAdds[i + 1][slot] + nAdds[slot];
+            }
+        }
+        shiftList = new ArrayList[2][nTypes];
+        for (int i = 0; i < nTypes; i++) {
+            shiftList[0][i] = new ArrayList<>();
+            shiftList[1][i] = new ArrayList<>();
+        }
+        choices = new int[nPeaks];
+    }
+
+    /**
+     * Find the best scoring combinations. Combinations with a score of zero
+     * are never returned.
+     *
+     * @param nBest the maximum number of combinations to return
+     * @return the combinations, best first, with ties in enumeration order
+     */
+    public List<Result> search(int nBest) {
+        this.nBest = nBest;
+        results.clear();
+        nVisited = 0;
+        if (nBest > 0) {
+            extend(0);
+        }
+        return new ArrayList<>(results);
+    }
+
+    /**
+     * Get the number of complete combinations scored by the last search.
+     *
+     * @return the number of combinations
+     */
+    public long getNVisited() {
+        return nVisited;
+    }
+
+    double threshold() {
+        return results.size() < nBest ? 0.0 : results.get(nBest - 1).score;
+    }
+
+    void extend(int iPeak) {
+        if (iPeak == nPeaks) {
+            nVisited++;
+            double score = spinSystem.analyzeShifts(shiftList);
+            if (score > threshold()) {
+                addResult(score);
+            }
+            return;
+        }
+        for (int k = 0; k < slots[iPeak].length; k++) {
+            if (addShifts(iPeak, k)) {
+                choices[iPeak] = k;
+                if (bound(iPeak + 1) > threshold()) {
+                    extend(iPeak + 1);
+                }
+                removeShifts(iPeak, k, slots[iPeak][k].length);
+            }
+        }
+    }
+
+    void addResult(double score) {
+        int nCountable = 0;
+        for (boolean isCountable : countable) {
+            if (isCountable) {
+                nCountable++;
+            }
+        }
+        int[] indices = new int[nCountable];
+        int j = 0;
+        for (int i = 0; i < nPeaks; i++) {
+            if (countable[i]) {
+                indices[j++] = choices[i];
+            }
+        }
+        int pos = 0;
+        while ((pos < results.size()) && (results.get(pos).score >= score)) {
+            pos++;
+        }
+        results.add(pos, new Result(indices, score));
+        if (results.size() > nBest) {
+            results.remove(results.size() - 1);
+        }
+    }
+
+    /**
+     * Add the shifts of a candidate pattern, with the tolerance test of
+     * SpinSystem.addShift.
+     *
+     * @return false, with nothing added, if a shift is out of tolerance
+     */
+    boolean addShifts(int iPeak, int k) {
+        int[] candSlots = slots[iPeak][k];
+        double[] candShifts = shifts[iPeak][k];
+        for (int iDim = 0; iDim < candSlots.length; iDim++) {
+            int iAtom = candSlots[iDim] % nTypes;
+            List<Double> slotShifts = shiftList[candSlots[iDim] / nTypes][iAtom];
+            double newValue = candShifts[iDim];
+            if (!slotShifts.isEmpty()) {
+                double current = slotShifts.get(0);
+                if (Math.abs(current - newValue) > 1.5 * SpinSystem.tols[iAtom]) {
+                    removeShifts(iPeak, k, iDim);
+                    return false;
+                }
+            }
+            slotShifts.add(newValue);
+        }
+        return true;
+    }
+
+    void removeShifts(int iPeak, int k, int nDims) {
+        int[] candSlots = slots[iPeak][k];
+        for (int iDim = nDims - 1; iDim >= 0; iDim--) {
+            List<Double> slotShifts = shiftList[candSlots[iDim] / nTypes][candSlots[iDim] % nTypes];
+            slotShifts.remove(slotShifts.size() - 1);
+        }
+    }
+
+    /**
+     * Get an upper bound on the score (as calculated by
+     * SpinSystem.analyzeShifts) of any completion of the current partial
+     * combination.
+     *
+     * @param iPeak the first peak without a pattern
+     * @return the bound
+     */
+    double bound(int iPeak) {
+        double bound = 1.0;
+        for (int k = 0; k < 2; k++) {
+            for (int i = 0; i < nTypes; i++) {
+                List<Double> slotShifts = shiftList[k][i];
+                int nShifts = slotShifts.size();
+                int nExpected = SpinSystem.nAtmPeaks[k][i];
+                if (nExpected == 0) {
+                    if (nShifts > 0) {
+                        return 0.0;
+                    }
+                    continue;
+                }
+                if (nShifts > 1) {
+                    double deviation = minDeviation(slotShifts);
+                    if (Double.isNaN(deviation)) {
+                        return 0.0;
+                    }
+                    bound *= Math.exp(-deviation / SpinSystem.tols[i]);
+                }
+                // glycine residues expect no CB shifts, so missing ones may
+                // not be penalized
+                if (i != SpinSystem.CB_INDEX) {
+                    int nMissing = nExpected - nShifts - maxAdds[iPeak][k * nTypes + i];
+                    if (nMissing > 0) {
+                        bound *= Math.pow(P_MISSING, nMissing);
+                    }
+                }
+            }
+        }
+        return bound * (1.0 + BOUND_SLOP);
+    }
+
+    /**
+     * Get the sum of the absolute deviations of the shifts from their
+     * median. This is not more than the sum of deviations from the mean, and
+     * can only grow as shifts are added.
+     */
+    static double minDeviation(List<Double> values) {
+        double[] sorted = new double[values.size()];
+        for (int i = 0; i < sorted.length; i++) {
+            sorted[i] = values.get(i);
+        }
+        Arrays.sort(sorted);
+        double sum = 0.0;
+        for (int i = 0, j = sorted.length - 1; i < j; i++, j--) {
+            sum += sorted[j] - sorted[i];
+        }
+        return sum;
+    }
+}
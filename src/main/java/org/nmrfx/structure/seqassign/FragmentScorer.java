@@ -0,0 +1,240 @@
+package org.nmrfx.structure.seqassign;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.IntStream;
+import org.nmrfx.structure.chemistry.Atom;
+import org.nmrfx.structure.chemistry.PPMv;
+import org.nmrfx.structure.chemistry.Polymer;
+import org.nmrfx.structure.chemistry.Residue;
+import smile.stat.distribution.ChiSquareDistribution;
+
+/**
+ * Scores fragments against each position of a polymer sequence. The
+ * reference shift mean and standard deviation of each residue and fragment
+ * atom type are looked up once, when the scorer is made, and the chi-square
+ * distributions are shared between scorers by degrees of freedom. The scores
+ * are the same as those of FragmentScoring.scoreAtomPPM applied at each
+ * position.
+ *
+ * A scorer reflects the reference shifts at the time it was made, so a new
+ * one should be made if they change.
+ *
+ * @author brucejohnson
+ */
+public class FragmentScorer {
+
+    public static final double REJECTED = -1.0;
+    static final Map<Integer, ChiSquareDistribution> CHI_SQUARE_DISTS = new ConcurrentHashMap<>();
+    static int parallelThreshold = 200;
+
+    final List<Residue> residues;
+    final int nResidues;
+    final String[] atomNames;
+    final int nTypes;
+    // reference values, indexed by residue * nTypes + type
+    final double[] means;
+    final double[] sdevs;
+    final boolean[] present;
+    double sDevMul = 2.0;
+    double pOK = 0.05;
+
+    /**
+     * Create a scorer for the atom types used in fragment matching (C, CA
+     * and CB).
+     *
+     * @param polymer the polymer
+     */
+    public FragmentScorer(Polymer polymer) {
+        this(polymer, getMatchAtomNames());
+    }
+
+    public FragmentScorer(Polymer polymer, String[] atomNames) {
+        this.residues = polymer.getResidues();
+        this.atomNames = atomNames.clone();
+        nResidues = residues.size();
+        nTypes = atomNames.length;
+        means = new double[nResidues * nTypes];
+        sdevs = new double[nResidues * nTypes];
+        present = new boolean[nResidues * nTypes];
+        int iRes = 0;
+        for (Residue residue : residues) {
+            boolean isGly = residue.getName().equalsIgnoreCase("gly");
+            for (int k = 0; k < nTypes; k++) {
+                String atomName = atomNames[k];
+                if (atomName.equals("") || (isGly && atomName.equalsIgnoreCase("cb"))) {
+                    continue;
+                }
+                Atom atom = residue.getAtom(atomName);
+                if (atom != null) {
+                    PPMv ppmV = atom.spatialSet.getRefPPM();
+                    if ((ppmV != null) && ppmV.isValid()) {
+                        int index = iRes * nTypes + k;
+                        means[index] = ppmV.getValue();
+                        sdevs[index] = ppmV.getError();
+                        present[index] = true;
+                    }
+                }
+            }
+            iRes++;
+        }
+    }
+
+    static String[] getMatchAtomNames() {
+        String[] names = new String[SpinSystem.RES_MTCH.length];
+        for (int k = 0; k < names.length; k++) {
+            names[k] = SpinSystem.getAtomName(SpinSystem.RES_MTCH[k]);
+        }
+        return names;
+    }
+
+    static ChiSquareDistribution getChiSquare(int nValues) {
+        return CHI_SQUARE_DISTS.computeIfAbsent(nValues, ChiSquareDistribution::new);
+    }
+
+    public void setSDevMul(double value) {
+        sDevMul = value;
+    }
+
+    public void setPOK(double value) {
+        pOK = value;
+    }
+
+    /**
+     * Score the shifts of one fragment position against one residue.
+     *
+     * @param iRes the residue index
+     * @param fragShifts the shift of each atom type at the fragment position
+     * @return the chi-square p value, or REJECTED if it is below the pOK
+     * limit
+     */
+    double scoreResidue(int iRes, double[] fragShifts) {
+        double resScore = 0.0;
+        int nValues = 0;
+        int offset = iRes * nTypes;
+        for (int k = 0; k < nTypes; k++) {
+            if (present[offset + k]) {
+                double normDev = (means[offset + k] - fragShifts[k]) / (sdevs[offset + k] * sDevMul);
+                resScore += normDev * normDev;
+                nValues++;
+            }
+        }
+        double pValue = getChiSquare(nValues).p(resScore);
+        return pValue < pOK ? REJECTED : pValue;
+    }
+
+    /**
+     * Score the observed shifts of a spin system against one residue, as
+     * used in automated assignment. Unlike scoreResidue, shifts that are
+     * missing (NaN) are skipped.
+     *
+     * @param iRes the residue index
+     * @param sysShifts the shift of each atom type, NaN if not observed
+     * @return the log of the chi-square p value, 0 if there is nothing to
+     * compare, or negative infinity if the p value is below the pOK limit
+     */
+    public double logScore(int iRes, double[] sysShifts) {
+        double resScore = 0.0;
+        int nValues = 0;
+        int offset = iRes * nTypes;
+        for (int k = 0; k < nTypes; k++) {
+            if (present[offset + k] && Double.isFinite(sysShifts[k])) {
+                double normDev = (means[offset + k] - sysShifts[k]) / (sdevs[offset + k] * sDevMul);
+                resScore += normDev * normDev;
+                nValues++;
+            }
+        }
+        if (nValues == 0) {
+            return 0.0;
+        }
+        double pValue = getChiSquare(nValues).p(resScore);
+        return pValue < pOK ? Double.NEGATIVE_INFINITY : Math.log(pValue);
+    }
+
+    public List<Residue> getResidues() {
+        return residues;
+    }
+
+    /**
+     * Calculate the score of a fragment at each start position.
+     *
+     * @param shifts the shifts of the fragment, indexed by fragment position
+     * and atom type
+     * @return the score at each start position, or REJECTED where a residue
+     * is below the pOK limit
+     */
+    public double[] scorePositions(double[][] shifts) {
+        int winSize = shifts.length;
+        int n = Math.max(0, nResidues - winSize + 1);
+        double[] scores = new double[n];
+        IntStream positions = IntStream.range(0, n);
+        if (n >= parallelThreshold) {
+            positions = positions.parallel();
+        }
+        positions.forEach(i -> {
+            double pScore = 1.0;
+            for (int j = 0; j < winSize; j++) {
+                double pValue = scoreResidue(i + j, shifts[j]);
+                if (pValue == REJECTED) {
+                    pScore = REJECTED;
+                    break;
+                }
+                pScore *= pValue;
+            }
+            scores[i] = pScore;
+        });
+        return scores;
+    }
+
+    /**
+     * Score a fragment at each position of the polymer.
+     *
+     * @param fragment the fragment
+     * @return the normalized scores of the acceptable positions, best first
+     */
+    public List<ResidueSeqScore> score(SeqFragment fragment) {
+        double[][] shifts = fragment.getShifts();
+        return score(shifts, scorePositions(shifts));
+    }
+
+    List<ResidueSeqScore> score(double[][] shifts, double[] scores) {
+        List<ResidueSeqScore> result = new ArrayList<>();
+        int winSize = shifts.length;
+        for (int i = 0; i < scores.length; i++) {
+            if (scores[i] != REJECTED) {
+                ResidueSeqScore resScore = new ResidueSeqScore(residues.get(i), winSize, scores[i]);
+                result.add(resScore);
+            }
+        }
+        if (!result.isEmpty()) {
+            ResidueSeqScore.norm(result);
+            result.sort(null);
+        }
+        return result;
+    }
+
+    /**
+     * Score a set of fragments in parallel.
+     *
+     * @param fragments the fragments
+     * @return the scores of each fragment, as returned by score
+     */
+    public Map<SeqFragment, List<ResidueSeqScore>> scoreAll(List<SeqFragment> fragments) {
+        List<double[][]> shiftList = new ArrayList<>();
+        for (SeqFragment fragment : fragments) {
+            shiftList.add(fragment.getShifts());
+        }
+        double[][] scores = new double[fragments.size()][];
+        IntStream.range(0, fragments.size()).parallel().forEach(i -> {
+            scores[i] = scorePositions(shiftList.get(i));
+        });
+        Map<SeqFragment, List<ResidueSeqScore>> result = new LinkedHashMap<>();
+        for (int i = 0; i < fragments.size(); i++) {
+            result.put(fragments.get(i), score(shiftList.get(i), scores[i]));
+        }
+        return result;
+    }
+}
@@ -4,7 +4,6 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.Optional;
 import org.nmrfx.structure.chemistry.Polymer;
-import org.nmrfx.structure.chemistry.Residue;
 
 /**
  *
@@ -194,40 +193,24 @@ public class SeqFragment {
         return result;
     }
 
+    /**
+     * Score this fragment at each position of a polymer.
+     *
+     * @param polymer the polymer
+     * @return the normalized scores of the acceptable positions, best first
+     */
     public List<ResidueSeqScore> scoreFragment(Polymer polymer) {
-        double sDevMul = 2.0;
-        double pOK = 0.05;
-        double[][] shifts = getShifts();
-        List<ResidueSeqScore> result = new ArrayList<>();
-        List<List<AtomShiftValue>> atomShiftValues = getShiftValues(shifts);
-        int winSize = atomShiftValues.size();
-        List<Residue> residues = polymer.getResidues();
-        int nResidues = residues.size();
-        int n = nResidues - winSize + 1;
-        for (int i = 0; i < n; i++) {
-            boolean ok = true;
-            double pScore = 1.0;
-            for (int j = 0; j < winSize; j++) {
-                Residue residue = residues.get(i + j);
-                PPMScore ppmScore = FragmentScoring.scoreAtomPPM(pOK, sDevMul, residue, atomShiftValues.get(j));
-                if (!ppmScore.ok()) {
-                    ok = false;
-                    break;
-                }
-                pScore *= ppmScore.getTotalScore();
-            }
-            if (ok) {
-                System.out.println(i + " " + residues.get(i).getName() + residues.get(i).getNumber());
-                ResidueSeqScore resScore = new ResidueSeqScore(residues.get(i), winSize, pScore);
-                result.add(resScore);
-            }
-        }
-
-        if (!result.isEmpty()) {
-            ResidueSeqScore.norm(result);
-            result.sort(null);
-        }
-        return result;
+        return new FragmentScorer(polymer).score(this);
+    }
 
+    /**
+     * Score this fragment at each position of a polymer with an existing
+     * scorer, which avoids looking up the reference shifts again.
+     *
+     * @param scorer the scorer for the polymer
+     * @return the normalized scores of the acceptable positions, best first
+     */
+    public List<ResidueSeqScore> scoreFragment(FragmentScorer scorer) {
+        return scorer.score(this);
     }
 }
@@ -0,0 +1,141 @@
+package org.nmrfx.structure.seqassign;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.nmrfx.processor.datasets.peaks.Peak;
+
+/**
+ * Sorted index of the shifts of a set of items (the peaks of a list, or spin
+ * systems) along one dimension. Used to find the items within a tolerance
+ * window of a shift without comparing against every item. Items without a
+ * finite shift are kept in a separate list, as the scoring functions treat
+ * them differently from items that are out of tolerance.
+ *
+ * @author brucejohnson
+ */
+public class ShiftIndex {
+
+    final double[] shifts;
+    final int[] items;
+    final int[] missing;
+    final int nItems;
+
+    /**
+     * Create an index from the shift of each item.
+     *
+     * @param values the shifts, with NaN for items that have none
+     */
+    public ShiftIndex(double[] values) {
+        nItems = values.length;
+        Integer[] order = new Integer[nItems];
+        int nFinite = 0;
+        int nMissing = 0;
+        int[] missingItems = new int[nItems];
+        for (int i = 0; i < nItems; i++) {
+            if (Double.isFinite(values[i])) {
+                order[nFinite++] = i;
+            } else {
+                missingItems[nMissing++] = i;
+            }
+        }
+        Arrays.sort(order, 0, nFinite, (a, b) -> Double.compare(values[a], values[b]));
+        shifts = new double[nFinite];
+        items = new int[nFinite];
+        for (int i = 0; i < nFinite; i++) {
+            items[i] = order[i];
+            shifts[i] = values[order[i]];
+        }
+        missing = Arrays.copyOf(missingItems, nMissing);
+    }
+
+    /**
+     * Create an index of the shifts of one dimension of a list of peaks.
+     *
+     * @param peaks the peaks
+     * @param dim the peak dimension
+     * @return the index, with items numbered by position in the list
+     */
+    public static ShiftIndex forPeaks(List<Peak> peaks, int dim) {
+        double[] values = new double[peaks.size()];
+        int i = 0;
+        for (Peak peak : peaks) {
+            Float value = peak.peakDims[dim].getChemShift();
+            values[i++] = value == null ? Double.NaN : value;
+        }
+        return new ShiftIndex(values);
+    }
+
+    public int size() {
+        return nItems;
+    }
+
+    /**
+     * Get the spread of the indexed shifts, used to pick the most selective
+     * dimension to search on.
+     *
+     * @return the difference between the largest and smallest shift
+     */
+    public double getRange() {
+        return shifts.length > 1 ? shifts[shifts.length - 1] - shifts[0] : 0.0;
+    }
+
+    int lowerBound(double value) {
+        int lo = 0;
+        int hi = shifts.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (shifts[mid] < value) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * Find the items with shifts within a window. The window is padded
+     * slightly so that items at the edge, whose distance the caller may
+     * calculate in single precision, are not lost. Callers must still apply
+     * their exact tolerance test.
+     *
+     * @param shift the center of the window
+     * @param halfWidth the half width of the window
+     * @param includeMissing if true, also return the items without a shift
+     * @return the item indices, in increasing order
+     */
+    public int[] find(double shift, double halfWidth, boolean includeMissing) {
+        double pad = 1.0e-3 * halfWidth + 1.0e-6 * (1.0 + Math.abs(shift));
+        int start = lowerBound(shift - halfWidth - pad);
+        double upper = shift + halfWidth + pad;
+        int end = start;
+        while ((end < shifts.length) && (shifts[end] <= upper)) {
+            end++;
+        }
+        int nFound = end - start;
+        int[] result = new int[nFound + (includeMissing ? missing.length : 0)];
+        System.arraycopy(items, start, result, 0, nFound);
+        if (includeMissing) {
+            System.arraycopy(missing, 0, result, nFound, missing.length);
+        }
+        Arrays.sort(result);
+        return result;
+    }
+
+    /**
+     * Get the objects for a set of item indices.
+     *
+     * @param <T> the object type
+     * @param objects the objects, in item order
+     * @param indices the item indices
+     * @return the objects
+     */
+    public static <T> List<T> select(List<T> objects, int[] indices) {
+        List<T> result = new ArrayList<>(indices.length);
+        for (int index : indices) {
+            result.add(objects.get(index));
+        }
+        return result;
+    }
+}
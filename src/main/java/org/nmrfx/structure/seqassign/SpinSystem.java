@@ -751,13 +751,11 @@ public class SpinSystem {
         return result;
     }
 
-    public void calcCombinations(boolean display) {
+    List<ResAtomPattern>[] getResAtomPatterns(boolean display) {
         double[] intensities = getNormalizedIntensities();
         int nPeaks = peakMatches.size();
         List<ResAtomPattern>[] resAtomPatterns = new List[nPeaks];
-        int nCountable = 0;
         int iPeak = 0;
-        int[] counts = new int[nPeaks];
         for (PeakMatch peakMatch : peakMatches) {
             List<ResAtomPattern> okPats = new ArrayList<>();
             Peak peak = peakMatch.peak;
@@ -787,12 +785,75 @@ public class SpinSystem {
                 okPats.add(null);
             }
             resAtomPatterns[iPeak] = okPats;
+            iPeak++;
+        }
+        return resAtomPatterns;
+    }
+
+    static int getNCountable(List<ResAtomPattern>[] resAtomPatterns) {
+        int nCountable = 0;
+        for (List<ResAtomPattern> okPats : resAtomPatterns) {
             if (okPats.size() > 1) {
                 nCountable++;
             }
-            counts[iPeak] = okPats.size();
-            iPeak++;
         }
+        return nCountable;
+    }
+
+    /**
+     * Find the combination of peak patterns with the best shift consistency
+     * and use it to set the user fields of the peaks and the shifts of the
+     * spin system. The best combination is found with a pruned search
+     * (CombinationSearch). In display mode every combination is enumerated
+     * and shown, and nothing is set.
+     *
+     * @param display if true display every combination
+     */
+    public void calcCombinations(boolean display) {
+        if (display) {
+            calcCombinationsByEnumeration(true);
+            return;
+        }
+        List<ResAtomPattern>[] resAtomPatterns = getResAtomPatterns(false);
+        if (getNCountable(resAtomPatterns) == 0) {
+            writeNonCountableShifts(resAtomPatterns);
+        } else {
+            CombinationSearch search = new CombinationSearch(this, resAtomPatterns);
+            List<CombinationSearch.Result> best = search.search(1);
+            if (!best.isEmpty()) {
+                setUserFields(resAtomPatterns, best.get(0).getIndices());
+                updateSpinSystem();
+            }
+        }
+    }
+
+    /**
+     * Find the best scoring combinations of peak patterns, without changing
+     * the peaks or spin system.
+     *
+     * @param nBest the maximum number of combinations to return
+     * @return the combinations, best first
+     */
+    public List<CombinationSearch.Result> findCombinations(int nBest) {
+        List<ResAtomPattern>[] resAtomPatterns = getResAtomPatterns(false);
+        return new CombinationSearch(this, resAtomPatterns).search(nBest);
+    }
+
+    void writeNonCountableShifts(List<ResAtomPattern>[] resAtomPatterns) {
+        List<Double>[][] shiftList = new ArrayList[2][ATOM_TYPES.length];
+        for (int i = 0; i < ATOM_TYPES.length; i++) {
+            shiftList[0][i] = new ArrayList<>();
+            shiftList[1][i] = new ArrayList<>();
+        }
+        if (addShift(resAtomPatterns.length, resAtomPatterns, shiftList, null)) {
+            writeShifts(shiftList);
+        }
+    }
+
+    public void calcCombinationsByEnumeration(boolean display) {
+        List<ResAtomPattern>[] resAtomPatterns = getResAtomPatterns(display);
+        int nPeaks = resAtomPatterns.length;
+        int nCountable = getNCountable(resAtomPatterns);
 //        for (int i = 0; i < nPeaks; i++) {
         //           System.out.print(" " + counts[i]);
         //       }
@@ -814,45 +875,57 @@ public class SpinSystem {
             }
 
         } else {
-            int[] indices = new int[nCountable];
-            int j = 0;
-            for (int i = 0; i < nPeaks; i++) {
-                if (resAtomPatterns[i].size() > 1) {
-                    indices[j++] = resAtomPatterns[i].size();
-                }
+            int[] pt = enumerateBest(resAtomPatterns, display);
+            if (!display && (pt != null)) {
+                setUserFields(resAtomPatterns, pt);
+                updateSpinSystem();
             }
-            MultidimensionalCounter counter = new MultidimensionalCounter(indices);
-            Iterator iter = counter.iterator();
-            double best = 0.0;
-            int bestIndex = -1;
-            List<Double>[][] shiftList = new ArrayList[2][ATOM_TYPES.length];
-            for (int i = 0; i < ATOM_TYPES.length; i++) {
-                shiftList[0][i] = new ArrayList<>();
-                shiftList[1][i] = new ArrayList<>();
+        }
+    }
+
+    /**
+     * Find the best combination of peak patterns by enumerating every
+     * combination. Of tied combinations the first one enumerated is chosen.
+     *
+     * @param resAtomPatterns the candidate patterns of each peak
+     * @param display if true display every combination
+     * @return the pattern chosen for each peak with more than one candidate,
+     * or null if no combination has a score above zero
+     */
+    int[] enumerateBest(List<ResAtomPattern>[] resAtomPatterns, boolean display) {
+        int nPeaks = resAtomPatterns.length;
+        int[] indices = new int[getNCountable(resAtomPatterns)];
+        int j = 0;
+        for (int i = 0; i < nPeaks; i++) {
+            if (resAtomPatterns[i].size() > 1) {
+                indices[j++] = resAtomPatterns[i].size();
             }
-            while (iter.hasNext()) {
-                iter.next();
-                int[] pt = iter.getCounts();
-                boolean validShifts = getShifts(nPeaks, resAtomPatterns, shiftList, pt);
-                if (display) {
-                    dumpShifts(shiftList);
-                }
-                if (validShifts) {
-//                    writeShifts(shiftList);
-                    double prob = analyzeShifts(shiftList);
-                    if (prob > best) {
-                        best = prob;
-                        bestIndex = iter.getCount();
-                    }
-                }
+        }
+        MultidimensionalCounter counter = new MultidimensionalCounter(indices);
+        Iterator iter = counter.iterator();
+        double best = 0.0;
+        int bestIndex = -1;
+        List<Double>[][] shiftList = new ArrayList[2][ATOM_TYPES.length];
+        for (int i = 0; i < ATOM_TYPES.length; i++) {
+            shiftList[0][i] = new ArrayList<>();
+            shiftList[1][i] = new ArrayList<>();
+        }
+        while (iter.hasNext()) {
+            iter.next();
+            int[] pt = iter.getCounts();
+            boolean validShifts = getShifts(nPeaks, resAtomPatterns, shiftList, pt);
+            if (display) {
+                dumpShifts(shiftList);
             }
-            if (!display && (bestIndex >= 0)) {
-                int[] pt = counter.getCounts(bestIndex);
-//                boolean validShifts = getShifts(nPeaks, resAtomPatterns, shiftList, pt);
-                setUserFields(resAtomPatterns, pt);
-                updateSpinSystem();
+            if (validShifts) {
+                double prob = analyzeShifts(shiftList);
+                if (prob > best) {
+                    best = prob;
+                    bestIndex = iter.getCount();
+                }
             }
         }
+        return bestIndex >= 0 ? counter.getCounts(bestIndex) : null;
     }
 
     void getLinkedPeaks() {
@@ -1089,14 +1162,18 @@ public class SpinSystem {
         spinMatchS.clear();
         double sumsP = 0.0;
         double sumsS = 0.0;
-        for (SpinSystem spinSysB : spinSystems.systems) {
+        for (SpinSystem spinSysB : spinSystems.getMatchCandidates(this, true)) {
             if (this != spinSysB) {
                 Optional<SpinSystemMatch> result = compare(spinSysB, true);
                 if (result.isPresent()) {
                     spinMatchP.add(result.get());
                     sumsP += result.get().score;
                 }
-                result = compare(spinSysB, false);
+            }
+        }
+        for (SpinSystem spinSysB : spinSystems.getMatchCandidates(this, false)) {
+            if (this != spinSysB) {
+                Optional<SpinSystemMatch> result = compare(spinSysB, false);
                 if (result.isPresent()) {
                     spinMatchS.add(result.get());
                     sumsS += result.get().score;
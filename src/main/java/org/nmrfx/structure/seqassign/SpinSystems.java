@@ -19,6 +19,11 @@ public class SpinSystems {
 
     RunAbout runAbout;
     List<SpinSystem> systems = new ArrayList<>();
+    // shift indices of the peak lists, by dimension, used while assembling
+    Map<PeakList, ShiftIndex[]> peakIndices = new HashMap<>();
+    // shift indices of the systems, by direction and RES_MTCH type, used
+    // while comparing
+    ShiftIndex[][] systemIndices = null;
 
     public SpinSystems(RunAbout runAbout) {
         this.runAbout = runAbout;
@@ -110,6 +115,59 @@ public class SpinSystems {
         return result;
     }
 
+    ShiftIndex getPeakIndex(PeakList peakList, int dim) {
+        ShiftIndex[] indices = peakIndices.get(peakList);
+        if (indices == null) {
+            indices = new ShiftIndex[peakList.getNDim()];
+            peakIndices.put(peakList, indices);
+        }
+        if (indices[dim] == null) {
+            indices[dim] = ShiftIndex.forPeaks(peakList.peaks(), dim);
+        }
+        return indices[dim];
+    }
+
+    /**
+     * Find the peaks of a list that may have a nonzero score in comparePeaks
+     * against a peak. The search is done on the matched dimension that is
+     * most selective, and the peaks are returned in list order, so the
+     * results of summing or scanning them are the same as for the whole
+     * list.
+     *
+     * @param peakA the peak to compare to
+     * @param peakListB the list to search
+     * @param aMatch the dimension of peakListB matching each dimension of
+     * peakA
+     * @return the candidate peaks
+     */
+    List<Peak> findPeaks(Peak peakA, PeakList peakListB, int[] aMatch) {
+        List<Peak> peaksB = peakListB.peaks();
+        int keyDim = -1;
+        double bestSelectivity = -1.0;
+        for (int i = 0; i < aMatch.length; i++) {
+            if (aMatch[i] != -1) {
+                Float valueA = peakA.peakDims[i].getChemShift();
+                if (valueA == null) {
+                    // comparePeaks fails for every peak
+                    return new ArrayList<>();
+                }
+                double tolA = peakA.getPeakList().getSpectralDim(i).getIdTol();
+                double selectivity = getPeakIndex(peakListB, aMatch[i]).getRange() / tolA;
+                if (Double.isFinite(valueA) && (selectivity > bestSelectivity)) {
+                    keyDim = i;
+                    bestSelectivity = selectivity;
+                }
+            }
+        }
+        if (keyDim == -1) {
+            return peaksB;
+        }
+        double valueA = peakA.peakDims[keyDim].getChemShift();
+        double tolA = peakA.getPeakList().getSpectralDim(keyDim).getIdTol();
+        ShiftIndex index = getPeakIndex(peakListB, aMatch[keyDim]);
+        return ShiftIndex.select(peaksB, index.find(valueA, 2.0 * tolA, true));
+    }
+
     double[][] calcNormalization(List<PeakList> peakLists) {
         PeakList refList = peakLists.get(0);
         double[][] sums = new double[refList.peaks().size()][peakLists.size() - 1];
@@ -119,7 +177,7 @@ public class SpinSystems {
             for (PeakList peakListB : peakLists) {
                 int[] aMatch = matchDims(refList, peakListB);
                 if (peakListB != refList) {
-                    double sumF = peakListB.peaks().stream().filter(pkB -> pkB.getStatus() >= 0).
+                    double sumF = findPeaks(pkA, peakListB, aMatch).stream().filter(pkB -> pkB.getStatus() >= 0).
                             mapToDouble(pkB -> comparePeaks(pkA, pkB, aMatch)).sum();
                     sums[i][j] = sumF;
                     j++;
@@ -131,7 +189,9 @@ public class SpinSystems {
     }
 
     public void assembleWithClustering(List<PeakList> peakLists) {
+        peakIndices.clear();
         double[][] sums = calcNormalization(peakLists);
+        peakIndices.clear();
         PeakList refList = peakLists.get(0);
         PeakList.clusterOrigin = refList;
         boolean[] useDim = new boolean[refList.getNDim()];
@@ -206,6 +266,7 @@ public class SpinSystems {
 
     public void assemble(List<PeakList> peakLists) {
         systems.clear();
+        peakIndices.clear();
         peakLists.forEach(peakListA -> {
             peakListA.unLinkPeaks();
         });
@@ -226,9 +287,10 @@ public class SpinSystems {
                 pkA.setStatus(1);
                 peakLists.stream().filter(peakListB -> peakListB != peakListA).forEach(peakListB -> {
                     int[] aMatch = matchDims(peakListA, peakListB);
-                    double sumF = peakListB.peaks().stream().filter(pkB -> pkB.getStatus() >= 0).
+                    List<Peak> candidates = findPeaks(pkA, peakListB, aMatch);
+                    double sumF = candidates.stream().filter(pkB -> pkB.getStatus() >= 0).
                             mapToDouble(pkB -> comparePeaks(pkA, pkB, aMatch)).sum();
-                    peakListB.peaks().stream().filter(pkB -> pkB.getStatus() == 0).
+                    candidates.stream().filter(pkB -> pkB.getStatus() == 0).
                             forEach(pkB -> {
                                 double f = comparePeaks(pkA, pkB, aMatch);
                                 if (f > 0.0) {
@@ -242,11 +304,59 @@ public class SpinSystems {
                 });
             });
         });
+        peakIndices.clear();
+    }
+
+    void buildSystemIndices() {
+        int nTypes = SpinSystem.RES_MTCH.length;
+        systemIndices = new ShiftIndex[2][nTypes];
+        double[] values = new double[systems.size()];
+        for (int k = 0; k < 2; k++) {
+            for (int j = 0; j < nTypes; j++) {
+                int i = 0;
+                for (SpinSystem spinSys : systems) {
+                    values[i++] = spinSys.getValue(k, SpinSystem.RES_MTCH[j]);
+                }
+                systemIndices[k][j] = new ShiftIndex(values);
+            }
+        }
+    }
+
+    /**
+     * Find the systems that may match a system in SpinSystem.compare. If the
+     * indices haven't been built all systems are returned.
+     *
+     * @param spinSysA the system to match
+     * @param prev true to match to the previous residue
+     * @return the candidate systems, in the order of the system list
+     */
+    List<SpinSystem> getMatchCandidates(SpinSystem spinSysA, boolean prev) {
+        if (systemIndices == null) {
+            return systems;
+        }
+        int idxB = prev ? 1 : 0;
+        int idxA = prev ? 0 : 1;
+        for (int j = 0; j < SpinSystem.RES_MTCH.length; j++) {
+            int type = SpinSystem.RES_MTCH[j];
+            double vA = spinSysA.getValue(idxA, type);
+            if (Double.isFinite(vA)) {
+                // systems without this shift may still match on the others
+                int[] found = systemIndices[idxB][j].find(vA, 2.0 * SpinSystem.tols[type], true);
+                return ShiftIndex.select(systems, found);
+            }
+        }
+        // no shifts to compare with
+        return new ArrayList<>();
     }
 
     public void compare() {
-        for (SpinSystem spinSysA : systems) {
-            spinSysA.compare();
+        buildSystemIndices();
+        try {
+            for (SpinSystem spinSysA : systems) {
+                spinSysA.compare();
+            }
+        } finally {
+            systemIndices = null;
         }
     }
 
@@ -0,0 +1,405 @@
+package org.nmrfx.structure.tools;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.IntStream;
+import org.nmrfx.processor.datasets.peaks.Peak;
+import org.nmrfx.processor.datasets.peaks.PeakList;
+import org.nmrfx.structure.chemistry.Atom;
+import org.nmrfx.structure.chemistry.Molecule;
+import org.nmrfx.structure.chemistry.PPMv;
+import org.nmrfx.structure.chemistry.Polymer;
+import org.nmrfx.structure.chemistry.Residue;
+import org.nmrfx.structure.seqassign.ShiftIndex;
+
+/**
+ * Chemical shift perturbation analysis of a series of peak lists, such as
+ * the points of a titration or the members of a fragment screen. The
+ * reference positions come from a peak list or from the assigned shifts of a
+ * molecule, as in MCSAnalysis.
+ *
+ * Each perturbed list is indexed once, on its most selective dimension, and
+ * the candidates for each reference position are the peaks within the
+ * tolerance of every dimension. Distances are calculated as in MCSAnalysis,
+ * sqrt(sum((delta / alpha)^2)), and must be less than the distance implied
+ * by the tolerances. Lists are matched in parallel.
+ *
+ * In tracking mode the lists are taken as an ordered titration and each
+ * reference position is searched for around the peak it matched at the
+ * previous point, so peaks that move further than the tolerance over the
+ * whole titration can still be followed. The perturbation is always measured
+ * from the reference position.
+ *
+ * @author brucejohnson
+ */
+public class CSPSeries {
+
+    static int parallelThreshold = 256;
+
+    final String[] dimNames;
+    final double[] tols;
+    final double[] alphas;
+    final double disMax;
+    final List<String> labels = new ArrayList<>();
+    final List<Integer> ids = new ArrayList<>();
+    final List<double[]> refPPMs = new ArrayList<>();
+    boolean track = false;
+    boolean unique = false;
+
+    public CSPSeries(PeakList peakListRef, double[] tols, double[] alphas, String[] dimNames) {
+        this(tols, alphas, dimNames);
+        int[] iDims = getDims(peakListRef);
+        for (Peak peakRef : peakListRef.peaks()) {
+            if (peakRef.getStatus() < 0) {
+                continue;
+            }
+            double[] ppms = new double[iDims.length];
+            for (int j = 0; j < iDims.length; j++) {
+                ppms[j] = peakRef.getPeakDim(iDims[j]).getChemShiftValue();
+            }
+            addReference(peakRef.getIdNum(), peakRef.getPeakDim(0).getLabel(), ppms);
+        }
+    }
+
+    public CSPSeries(Molecule molecule, String[] aNames, double[] tols, double[] alphas, String[] dimNames) {
+        this(tols, alphas, dimNames);
+        if (aNames.length != tols.length) {
+            throw new IllegalArgumentException("Arguments don't have same length");
+        }
+        for (Polymer polymer : molecule.getPolymers()) {
+            for (Residue residue : polymer.getResidues()) {
+                double[] ppms = new double[aNames.length];
+                String targetAtomName = null;
+                int i = 0;
+                for (String aName : aNames) {
+                    Atom atom = residue.getAtom(aName);
+                    if (atom == null) {
+                        break;
+                    }
+                    PPMv ppmv = atom.getPPM(0);
+                    if ((ppmv == null) || !ppmv.isValid()) {
+                        break;
+                    }
+                    if (targetAtomName == null) {
+                        targetAtomName = atom.getShortName();
+                    }
+                    ppms[i++] = ppmv.getValue();
+                }
+                if (i == aNames.length) {
+                    addReference(refPPMs.size(), targetAtomName, ppms);
+                }
+            }
+        }
+    }
+
+    CSPSeries(double[] tols, double[] alphas, String[] dimNames) {
+        if ((alphas.length != tols.length) || (tols.length != dimNames.length)) {
+            throw new IllegalArgumentException("Arguments don't have same length");
+        }
+        this.tols = tols.clone();
+        this.alphas = alphas.clone();
+        this.dimNames = dimNames.clone();
+        double sum = 0.0;
+        for (int j = 0; j < tols.length; j++) {
+            sum += (tols[j] / alphas[j]) * (tols[j] / alphas[j]);
+        }
+        disMax = Math.sqrt(sum);
+    }
+
+    final void addReference(int id, String label, double[] ppms) {
+        ids.add(id);
+        labels.add(label);
+        refPPMs.add(ppms);
+    }
+
+    int[] getDims(PeakList peakList) {
+        int[] iDims = new int[dimNames.length];
+        for (int j = 0; j < dimNames.length; j++) {
+            iDims[j] = peakList.getListDim(dimNames[j]);
+            if (iDims[j] < 0) {
+                throw new IllegalArgumentException("No dimension " + dimNames[j] + " in list " + peakList.getName());
+            }
+        }
+        return iDims;
+    }
+
+    /**
+     * Set whether the lists are treated as an ordered titration, with each
+     * peak followed from one point to the next.
+     *
+     * @param value true to track peaks
+     */
+    public void setTrack(boolean value) {
+        track = value;
+    }
+
+    /**
+     * Set whether each peak of a list can match only one reference. If so,
+     * the candidate pairs are accepted in order of increasing distance.
+     * Otherwise each reference takes its nearest peak, as in MCSAnalysis.
+     *
+     * @param value true to require unique matches
+     */
+    public void setUnique(boolean value) {
+        unique = value;
+    }
+
+    public int getNReferences() {
+        return refPPMs.size();
+    }
+
+    /**
+     * The shifts of one peak list, with an index on the dimension that best
+     * separates the peaks.
+     */
+    class ListShifts {
+
+        final List<Peak> peaks = new ArrayList<>();
+        final double[][] ppms;
+        final int keyDim;
+        final ShiftIndex index;
+
+        ListShifts(PeakList peakList) {
+            int[] iDims = getDims(peakList);
+            for (Peak peak : peakList.peaks()) {
+                if (peak.getStatus() >= 0) {
+                    peaks.add(peak);
+                }
+            }
+            int nDims = iDims.length;
+            ppms = new double[nDims][peaks.size()];
+            for (int i = 0; i < peaks.size(); i++) {
+                for (int j = 0; j < nDims; j++) {
+                    ppms[j][i] = peaks.get(i).getPeakDim(iDims[j]).getChemShiftValue();
+                }
+            }
+            int bestDim = 0;
+            double bestSeparation = -1.0;
+            for (int j = 0; j < nDims; j++) {
+                double separation = new ShiftIndex(ppms[j]).getRange() / tols[j];
+                if (separation > bestSeparation) {
+                    bestSeparation = separation;
+                    bestDim = j;
+                }
+            }
+            keyDim = bestDim;
+            index = new ShiftIndex(ppms[keyDim]);
+        }
+
+        /**
+         * Find the peaks near a position.
+         *
+         * @return pairs of peak index and distance, in peak order
+         */
+        List<double[]> find(double[] center) {
+            List<double[]> result = new ArrayList<>();
+            for (int iPeak : index.find(center[keyDim], tols[keyDim], false)) {
+                double sum = 0.0;
+                boolean ok = true;
+                for (int j = 0; j < tols.length; j++) {
+                    double delta = ppms[j][iPeak] - center[j];
+                    if (Math.abs(delta) > tols[j]) {
+                        ok = false;
+                        break;
+                    }
+                    sum += (delta / alphas[j]) * (delta / alphas[j]);
+                }
+                if (ok) {
+                    double dis = Math.sqrt(sum);
+                    if (dis < disMax) {
+                        result.add(new double[]{iPeak, dis});
+                    }
+                }
+            }
+            return result;
+        }
+
+        double distance(int iPeak, double[] refPPM) {
+            double sum = 0.0;
+            for (int j = 0; j < tols.length; j++) {
+                double delta = ppms[j][iPeak] - refPPM[j];
+                sum += (delta / alphas[j]) * (delta / alphas[j]);
+            }
+            return Math.sqrt(sum);
+        }
+    }
+
+    /**
+     * Match the references to the peaks of one list.
+     *
+     * @param shifts the list
+     * @param centers the position to search around for each reference
+     * @return the index of the matched peak for each reference, or -1
+     */
+    int[] match(ListShifts shifts, double[][] centers) {
+        int nRefs = centers.length;
+        List<double[]>[] candidates = new List[nRefs];
+        IntStream refs = IntStream.range(0, nRefs);
+        if (nRefs >= parallelThreshold) {
+            refs = refs.parallel();
+        }
+        refs.forEach(iRef -> {
+            candidates[iRef] = centers[iRef] == null ? new ArrayList<>() : shifts.find(centers[iRef]);
+        });
+        int[] matches = new int[nRefs];
+        Arrays.fill(matches, -1);
+        if (unique) {
+            List<double[]> pairs = new ArrayList<>();
+            for (int iRef = 0; iRef < nRefs; iRef++) {
+                for (double[] candidate : candidates[iRef]) {
+                    pairs.add(new double[]{iRef, candidate[0], candidate[1]});
+                }
+            }
+            pairs.sort((a, b) -> Double.compare(a[2], b[2]));
+            boolean[] used = new boolean[shifts.peaks.size()];
+            for (double[] pair : pairs) {
+                int iRef = (int) pair[0];
+                int iPeak = (int) pair[1];
+                if ((matches[iRef] == -1) && !used[iPeak]) {
+                    matches[iRef] = iPeak;
+                    used[iPeak] = true;
+                }
+            }
+        } else {
+            for (int iRef = 0; iRef < nRefs; iRef++) {
+                double minDis = disMax;
+                for (double[] candidate : candidates[iRef]) {
+                    if (candidate[1] < minDis) {
+                        minDis = candidate[1];
+                        matches[iRef] = (int) candidate[0];
+                    }
+                }
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * Calculate the perturbations of the references in each list.
+     *
+     * @param peakLists the perturbed lists, in titration order if tracking
+     * @return the perturbations
+     */
+    public Result calc(List<PeakList> peakLists) {
+        int nRefs = refPPMs.size();
+        int nLists = peakLists.size();
+        ListShifts[] listShifts = new ListShifts[nLists];
+        IntStream.range(0, nLists).parallel().forEach(iList -> {
+            listShifts[iList] = new ListShifts(peakLists.get(iList));
+        });
+        double[][] refArray = refPPMs.toArray(new double[nRefs][]);
+        int[][] matches = new int[nLists][];
+        if (track) {
+            double[][] centers = refArray.clone();
+            for (int iList = 0; iList < nLists; iList++) {
+                ListShifts shifts = listShifts[iList];
+                matches[iList] = match(shifts, centers);
+                for (int iRef = 0; iRef < nRefs; iRef++) {
+                    int iPeak = matches[iList][iRef];
+                    if (iPeak >= 0) {
+                        double[] center = new double[tols.length];
+                        for (int j = 0; j < center.length; j++) {
+                            center[j] = shifts.ppms[j][iPeak];
+                        }
+                        centers[iRef] = center;
+                    }
+                }
+            }
+        } else {
+            IntStream.range(0, nLists).parallel().forEach(iList -> {
+                matches[iList] = match(listShifts[iList], refArray);
+            });
+        }
+        Result result = new Result(nRefs, nLists);
+        for (int iList = 0; iList < nLists; iList++) {
+            for (int iRef = 0; iRef < nRefs; iRef++) {
+                int iPeak = matches[iList][iRef];
+                if (iPeak >= 0) {
+                    result.peaks[iRef][iList] = listShifts[iList].peaks.get(iPeak);
+                    result.csps[iRef][iList] = listShifts[iList].distance(iPeak, refArray[iRef]);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * The perturbations of each reference (row) in each list (column).
+     */
+    public class Result {
+
+        final Peak[][] peaks;
+        final double[][] csps;
+
+        Result(int nRefs, int nLists) {
+            peaks = new Peak[nRefs][nLists];
+            csps = new double[nRefs][nLists];
+            for (double[] row : csps) {
+                Arrays.fill(row, Double.NaN);
+            }
+        }
+
+        public String getLabel(int iRef) {
+            return labels.get(iRef);
+        }
+
+        public int getId(int iRef) {
+            return ids.get(iRef);
+        }
+
+        /**
+         * Get the perturbations of one reference across the lists, as used
+         * for fitting a binding curve.
+         *
+         * @param iRef the reference index
+         * @return the perturbations, NaN where no peak was matched
+         */
+        public double[] getCSPs(int iRef) {
+            return csps[iRef].clone();
+        }
+
+        /**
+         * Get the matched peaks of one reference across the lists.
+         *
+         * @param iRef the reference index
+         * @return the peaks, null where no peak was matched
+         */
+        public Peak[] getTrajectory(int iRef) {
+            return peaks[iRef].clone();
+        }
+
+        /**
+         * Get the matrix of perturbations, indexed by reference and list.
+         *
+         * @return the perturbations, NaN where no peak was matched
+         */
+        public double[][] getMatrix() {
+            double[][] matrix = new double[csps.length][];
+            for (int i = 0; i < csps.length; i++) {
+                matrix[i] = csps[i].clone();
+            }
+            return matrix;
+        }
+
+        /**
+         * Get the mean of the perturbations in one list that are greater
+         * than a tolerance, as in MCSAnalysis.score.
+         *
+         * @param iList the list index
+         * @param tol the tolerance
+         * @return the mean perturbation
+         */
+        public double score(int iList, double tol) {
+            double sum = 0.0;
+            int nShifted = 0;
+            for (double[] row : csps) {
+                if (row[iList] > tol) {
+                    sum += row[iList];
+                    nShifted++;
+                }
+            }
+            return sum / nShifted;
+        }
+    }
+}
@@ -24,6 +24,7 @@ def getAnnealStages(dOpt, settings):
         'econVal'        : dOpt['econHigh'],
         'nStepVal'       : stepsHigh,
         'gMinSteps'      : None,
+        'gMinAlg'        : dOpt['minAlg'],
         'switchFracVal'  : None,
         'param'   : {
                                 'end':1000,
@@ -44,6 +45,7 @@ def getAnnealStages(dOpt, settings):
         'econVal'        : dOpt['econHigh'],
         'nStepVal'       : int(round((steps-stepsEnd-stepsHigh)*dOpt['toMedFrac'])),
         'gMinSteps'      : None,
+        'gMinAlg'        : dOpt['minAlg'],
         'switchFracVal'  : None,
         'param'          : None,
         'force'          : None
@@ -54,6 +56,7 @@ def getAnnealStages(dOpt, settings):
         'econVal'        : lambda f: dOpt['econHigh']*(pow(0.5,f)),
         'nStepVal'       : steps-stepsHigh-stepsEnd-stepsAnneal1,
         'gMinSteps'      : dOpt['minSteps'],
+        'gMinAlg'        : dOpt['minAlg'],
         'switchFracVal'  : dOpt['switchFrac'],
         'param'          : {
                             'useh' : False,
@@ -68,6 +71,7 @@ def getAnnealStages(dOpt, settings):
         'econVal'        : None,
         'nStepVal'       : None,
         'gMinSteps'      : dOpt['minSteps'],
+        'gMinAlg'        : dOpt['minAlg'],
         'switchFracVal'  : None,
         'param'          : {
                             'useh' : True,
@@ -86,6 +90,7 @@ def getAnnealStages(dOpt, settings):
         'econVal'        : dOpt['econLow'],
         'nStepVal'       : stepsEnd,
         'gMinSteps'      : dOpt['minSteps'],
+        'gMinAlg'        : dOpt['minAlg'],
         'switchFracVal'  : None,
         'param'          : None,
         'force'          : {
@@ -163,7 +168,10 @@ def runStage(stage, refiner, rDyn):
     timeStep = rDyn.getTimeStep()/2.0
     gminSteps = stage['gMinSteps']
     if gminSteps:
-        refiner.gmin(nsteps=gminSteps, tolerance=1.0e-6)
+        if stage['gMinAlg'] == 'lbfgs':
+            refiner.lbfgsmin(nsteps=gminSteps, tolerance=1.0e-6)
+        else:
+            refiner.gmin(nsteps=gminSteps, tolerance=1.0e-6)
     tempFunc = stage.get('tempVal')
     if tempFunc is not None:
         if callable(tempFunc):
@@ -19,6 +19,7 @@ from org.nmrfx.structure.chemistry.energy import Dihedral
 from org.nmrfx.structure.chemistry.energy import GradientRefinement
 from org.nmrfx.structure.chemistry.energy import StochasticGradientDescent
 from org.nmrfx.structure.chemistry.energy import CmaesRefinement
+from org.nmrfx.structure.chemistry.energy import ReplicaExchange
 #from org.nmrfx.structure.chemistry.energy import FireflyRefinement
 from org.nmrfx.structure.chemistry.energy import RNARotamer
 from org.nmrfx.structure.chemistry.io import PDBFile
@@ -30,7 +31,7 @@ from org.nmrfx.structure.chemistry import Polymer
 from org.nmrfx.structure.chemistry import AllBasePairs
 
 from org.nmrfx.structure.chemistry.miner import PathIterator
-from org.nmrfx.structure.chemistry.miner import NodeValidator
+from org.nmrfx.structure.chemistry.miner import NodeEvaluatorFactory
 from org.nmrfx.structure.chemistry.energy import AngleTreeGenerator
 
 #from tcl.lang import NvLiteShell
@@ -296,9 +297,11 @@ class dynOptions(StrictDict):
         'timePowerMed'  : 4.0,
         'minSteps'      : 100,
         'polishSteps'   : 500,
+        'minAlg'        : 'lbfgs',
         'dfreeSteps'    :  0,
         'dfreeAlg'      : 'cmaes',
         'kinEScale'     : 200.0,
+        'respaSteps'    : 1,
 	'irpWeight'     : 0.0
     }
     def __init__(self,initDict={}):
@@ -323,7 +326,7 @@ def createStrictDict(initDict, type):
         initDict = {}
     allowedKeys = {}
     allowedKeys['param'] = ['coarse', 'useh', 'hardSphere', 'start', 'end', 'shrinkValue', 'shrinkHValue', 'dislim', 'swap']
-    allowedKeys['force'] = ['elec', 'robson', 'repel', 'dis', 'tors', 'dih', 'irp', 'shift', 'bondWt','stack']
+    allowedKeys['force'] = ['elec', 'robson', 'repel', 'dis', 'tors', 'dih', 'irp', 'shift', 'bondWt','stack','rdc']
     allowedKeys = allowedKeys[type]
 
     strictDict = StrictDict(defaultErr=type+'s')
@@ -459,6 +462,7 @@ class refine:
         * shift (_);
         * bondWt (_);
         * stack (_);
+        * rdc (_);
         """
 
         if not forceDict:
@@ -474,9 +478,10 @@ class refine:
             'irp'    : forceWeightOrig.getIrp(),
             'shift'  : forceWeightOrig.getShift(),
             'stack'  : forceWeightOrig.getStacking(),
-            'bondWt' : forceWeightOrig.getBondWt()
+            'bondWt' : forceWeightOrig.getBondWt(),
+            'rdc'    : forceWeightOrig.getRDC()
         }
-        forces = ('elec','robson','repel','dis','tors','dih','irp','shift','bondWt','stack')
+        forces = ('elec','robson','repel','dis','tors','dih','irp','shift','bondWt','stack','rdc')
         forceWeights = []
         for force in forces:
             forceWeight = forceDict[force] if force in forceDict else getOrigWeight[force]
@@ -495,7 +500,7 @@ class refine:
         """
 
         fW = self.energyLists.getForceWeight()
-        output = "robson %5.2f repel %5.2f elec %5.2f dis %5.2f dprob %5.2f dih %5.2f irp %5.2f shift %5.2f bondWt %5.2f stack %5.2f" % (fW.getRobson(),fW.getRepel(),fW.getElectrostatic(),fW.getNOE(),fW.getDihedralProb(),fW.getDihedral(),fW.getIrp(), fW.getShift(), fW.getBondWt(), fW.getStacking())
+        output = "robson %5.2f repel %5.2f elec %5.2f dis %5.2f dprob %5.2f dih %5.2f irp %5.2f shift %5.2f bondWt %5.2f stack %5.2f rdc %5.2f" % (fW.getRobson(),fW.getRepel(),fW.getElectrostatic(),fW.getNOE(),fW.getDihedralProb(),fW.getDihedral(),fW.getIrp(), fW.getShift(), fW.getBondWt(), fW.getStacking(), fW.getRDC())
         return output
 
     def dump(self,limit,shiftLim, fileName):
@@ -681,6 +686,11 @@ class refine:
         self.refiner.setTrajectoryWriter(self.trajectoryWriter)
         self.refiner.gradMinimize(nsteps, tolerance)
 
+    def lbfgsmin(self,nsteps=100,tolerance=1.0e-5):
+        self.refiner = GradientRefinement(self.dihedral)
+        self.refiner.setTrajectoryWriter(self.trajectoryWriter)
+        self.refiner.lbfgsMinimize(nsteps, tolerance)
+
     def sgdmin(self,nsteps=100,tolerance=1.0e-5):
         self.refiner = StochasticGradientDescent(self.dihedral)
         self.refiner.setTrajectoryWriter(self.trajectoryWriter)
@@ -1983,7 +1993,7 @@ class refine:
 
     def setupAtomProperties(self, compound):
         pI = PathIterator(compound)
-        nodeValidator = NodeValidator()
+        nodeValidator = NodeEvaluatorFactory.getDefault()
         pI.init(nodeValidator)
         pI.processPatterns()
         pI.setProperties("ar", "AROMATIC");
@@ -2166,6 +2176,7 @@ class refine:
                     spSet2 = atom2.getSpatialSet()
                     rdcObj = RDC(rdcSet, spSet1, spSet2, rdc, err)
                     rdcSet.add(rdcObj)
+        self.energyLists.setRDCs(rdcSet)
         #for constraint in rdcSet.get():
         #    print constraint.getSpSets()[0].getFullName(), constraint.getSpSets()[1].getFullName(), constraint.getValue(), constraint.getErr()
 
@@ -2321,11 +2332,15 @@ class refine:
         energy = self.energy()
         rDyn = self.rinertia()
         rDyn.setKinEScale(dOpt['kinEScale'])
+        rDyn.setRespaSteps(dOpt['respaSteps'])
         stages = getAnnealStages(dOpt, self.settings)
         for stage in stages:
             runStage(stage, self, rDyn)
 
-        self.gmin(nsteps=dOpt['polishSteps'],tolerance=1.0e-6)
+        if dOpt['minAlg'] == 'lbfgs':
+            self.lbfgsmin(nsteps=dOpt['polishSteps'],tolerance=1.0e-6)
+        else:
+            self.gmin(nsteps=dOpt['polishSteps'],tolerance=1.0e-6)
         if dOpt['dfreeSteps']> 0:
             self.refine(nsteps=dOpt['dfreeSteps'],radius=20, alg=dOpt['dfreeAlg']);
         ec = self.molecule.getEnergyCoords()
@@ -2594,6 +2609,44 @@ def doAnneal(seed,dOpt=None,homeDir=None, writeTrajectory=False):
     refiner.anneal(dOpt)
     refiner.output()
 
+def setupReplicas(data, nReplicas, seed=0, homeDir=None):
+    ''' Make the refiners for replicaExchange.  Each refiner reads the
+        molecule from the yaml data itself, so it gets its own copy of the
+        molecule (and energy coordinates), and is prepared as for annealing
+        starting from its own random angles (seeds seed, seed+1, ...).
+        The yaml data must have an anneal block.
+    '''
+    import osfiles
+    dataDir = osfiles.getDataDir(homeDir)
+    refiners = []
+    for i in range(nReplicas):
+        refiner = refine()
+        osfiles.setOutFiles(refiner, dataDir, seed + i)
+        refiner.setReportDump(False)
+        refiner.rootName = "temp"
+        refiner.loadFromYaml(data, seed + i)
+        refiner.annealPrep(refiner.dOpt, 100)
+        refiners.append(refiner)
+    return refiners
+
+def replicaExchange(refiners, tLow, tHigh, nExchanges, stepsPerExchange, econ=0.005, timeStep=4.0, kinEScale=200.0, seed=0):
+    ''' Run replica exchange dynamics.  Each refiner must have been set up
+        with its own copy of the molecule, as done by setupReplicas.  The
+        refiners are assigned to a geometric temperature ladder between tLow
+        and tHigh.
+    '''
+    temps = ReplicaExchange.geometricLadder(tLow, tHigh, len(refiners))
+    replicas = ArrayList()
+    for refiner in refiners:
+        rDyn = refiner.rinertia()
+        rDyn.setKinEScale(kinEScale)
+        replicas.add(rDyn)
+    rex = ReplicaExchange(replicas, temps, seed)
+    rex.init(econ, nExchanges*stepsPerExchange, timeStep)
+    rex.run(stepsPerExchange, nExchanges)
+    rex.report()
+    return rex
+
 def doSGD(seed,homeDir=None):
     import osfiles
     refiner = refine()
@@ -0,0 +1,80 @@
+package org.nmrfx.structure.chemistry;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import org.junit.Assert;
+import org.junit.Test;
+import org.nmrfx.structure.chemistry.io.Sequence;
+import org.nmrfx.structure.chemistry.miner.NodeEvaluatorFactory;
+import org.nmrfx.structure.chemistry.miner.PathIterator;
+
+public class HoseCodeGeneratorTest {
+
+    static final List<String> RESIDUES = Arrays.asList("ALA", "PHE", "TRP", "HIS", "PRO", "PHE", "MET", "ASN", "ARG", "TYR", "GLU", "LYS");
+
+    static List<Residue> buildResidues() throws Exception {
+        Molecule.removeAll();
+        Molecule molecule = new Sequence().read("hose", RESIDUES, null);
+        Polymer polymer = molecule.getPolymers().get(0);
+        // the atom types used in the codes, as set in Predictor.predictWithShells
+        PathIterator pI = new PathIterator(polymer);
+        pI.init(NodeEvaluatorFactory.getDefault());
+        pI.processPatterns();
+        pI.setProperties("ar", "AROMATIC");
+        pI.setHybridization();
+        return polymer.getResidues();
+    }
+
+    @Test
+    public void testEngineMatchesTree() throws Exception {
+        List<Residue> residues = buildResidues();
+        HoseCodeGenerator hoseGen = new HoseCodeGenerator();
+        for (int nShells = 2; nShells <= 5; nShells++) {
+            HoseCodeEngine.clearCache();
+            for (Residue residue : residues) {
+                Map<Integer, String> expected = hoseGen.genHOSECodesWithTree(residue, nShells);
+                Map<Integer, String> codes = hoseGen.genHOSECodes(residue, nShells);
+                Assert.assertFalse(expected.isEmpty());
+                Assert.assertEquals(residue.getName() + " " + nShells, expected, codes);
+            }
+        }
+    }
+
+    @Test
+    public void testCache() throws Exception {
+        List<Residue> residues = buildResidues();
+        // the two middle PHE residues are built from the same template
+        Residue phe1 = residues.get(1);
+        Residue phe2 = residues.get(5);
+        Assert.assertEquals("PHE", phe1.getName());
+        Assert.assertEquals("PHE", phe2.getName());
+        HoseCodeEngine engine1 = new HoseCodeEngine(phe1);
+        HoseCodeEngine engine2 = new HoseCodeEngine(phe2);
+        Assert.assertEquals(engine1.getKey(5), engine2.getKey(5));
+        Assert.assertNotEquals(engine1.getKey(5), engine1.getKey(4));
+        Assert.assertNotEquals(engine1.getKey(5), new HoseCodeEngine(residues.get(9)).getKey(5));
+
+        HoseCodeEngine.clearCache();
+        String[] codes1 = engine1.getCodes(5);
+        Assert.assertEquals(1, HoseCodeEngine.CODE_CACHE.size());
+        String[] codes2 = engine2.getCodes(5);
+        Assert.assertEquals(1, HoseCodeEngine.CODE_CACHE.size());
+        Assert.assertArrayEquals(codes1, codes2);
+        Assert.assertArrayEquals(engine2.genCodes(5), codes2);
+        // callers get a copy of the cached codes
+        codes2[0] = "changed";
+        Assert.assertArrayEquals(codes1, engine1.getCodes(5));
+
+        int cacheSize = HoseCodeEngine.cacheSize;
+        try {
+            HoseCodeEngine.setCacheSize(2);
+            for (Residue residue : residues) {
+                new HoseCodeEngine(residue).getCodes(5);
+            }
+            Assert.assertEquals(2, HoseCodeEngine.CODE_CACHE.size());
+        } finally {
+            HoseCodeEngine.setCacheSize(cacheSize);
+        }
+    }
+}
@@ -114,6 +114,29 @@ public class MMCifFileTest {
         testAll();
     }
 
+    @Test
+    public void testPDBWriter2KPU() throws Exception {
+        Molecule.removeAll();
+        MMcifReader.read(String.join(File.separator, "src", "test", "data", "ciffiles", "2kpu.cif"));
+        Molecule molecule = Molecule.getActive();
+        int[] structures = molecule.getActiveStructures();
+        Assert.assertTrue(structures.length > 1);
+        File tmpDir = new File("tmp");
+        if (!tmpDir.exists()) {
+            Files.createDirectory(tmpDir.toPath());
+        }
+        File modelFile = new File(tmpDir, "2kpu_models_outTest.pdb");
+        File atomFile = new File(tmpDir, "2kpu_atoms_outTest.pdb");
+        // all the models, then single models with the cached writer
+        for (int whichStruct : new int[]{-1, structures[0], structures[structures.length - 1]}) {
+            molecule.writeXYZToPDB(modelFile.getPath(), whichStruct);
+            molecule.writeXYZToPDBByAtom(atomFile.getPath(), whichStruct);
+            byte[] expected = Files.readAllBytes(atomFile.toPath());
+            Assert.assertTrue(expected.length > 0);
+            Assert.assertArrayEquals(expected, Files.readAllBytes(modelFile.toPath()));
+        }
+    }
+
     @Test
     public void testFile2KW5() throws IOException {
         loadData("2kw5");
@@ -185,6 +208,18 @@ public class MMCifFileTest {
         testAll();
     }
 
+    @Test
+    public void testStreamingFile1PQX() throws IOException {
+        loadData("1pqx", true);
+        testAll();
+    }
+
+    @Test
+    public void testStreamingFile2KPU() throws IOException {
+        loadData("2kpu", true);
+        testAll();
+    }
+
     private List<List<Object>> convertFileLines(String filePath) throws FileNotFoundException, IOException {
         List<List<Object>> convertedLines = new ArrayList<>();
         BufferedReader reader = new BufferedReader(new FileReader(filePath));
@@ -448,6 +483,10 @@ public class MMCifFileTest {
     }
 
     public void loadData(String cifFileName) throws IOException {
+        loadData(cifFileName, false);
+    }
+
+    public void loadData(String cifFileName, boolean streaming) throws IOException {
         String fileName = String.join(File.separator, "src", "test", "data", "ciffiles", cifFileName + ".cif");
         String outPath = "tmp";
         File tmpDir = new File(outPath);
@@ -457,7 +496,11 @@ public class MMCifFileTest {
         String outFile = String.join(File.separator, outPath, cifFileName + "_mmCif_outTest.cif");
         try {
             if (orig.isEmpty()) {
-                MMcifReader.read(fileName);
+                if (streaming) {
+                    MMcifReader.readStreaming(fileName);
+                } else {
+                    MMcifReader.read(fileName);
+                }
                 MMcifWriter.writeAll(outFile, cifFileName.toUpperCase());
                 orig = convertFileLines(fileName);
                 written = convertFileLines(outFile);
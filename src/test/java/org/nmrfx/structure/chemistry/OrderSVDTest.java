@@ -0,0 +1,152 @@
+package org.nmrfx.structure.chemistry;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.commons.math3.geometry.euclidean.threed.Vector3D;
+import org.junit.Assert;
+import org.junit.Test;
+import org.nmrfx.structure.chemistry.constraints.RDC;
+import org.nmrfx.structure.chemistry.constraints.RDCConstraintSet;
+import org.nmrfx.structure.chemistry.io.MMcifReader;
+
+public class OrderSVDTest {
+
+    // Syy, Szz, Sxy, Sxz, Syz
+    static final double[] TENSOR = {-3.0e-4, 8.0e-4, 2.0e-4, -1.5e-4, 3.0e-4};
+
+    static Molecule readEnsemble() throws Exception {
+        Molecule.removeAll();
+        String fileName = String.join(File.separator, "src", "test", "data", "ciffiles", "2kpu.cif");
+        MMcifReader.read(fileName);
+        return Molecule.getActive();
+    }
+
+    static Vector3D getVector(SpatialSet spSet1, SpatialSet spSet2, int iStruct) {
+        Point3 pt1 = spSet1.getPoint(iStruct);
+        Point3 pt2 = spSet2.getPoint(iStruct);
+        return new Vector3D(pt1.getX() - pt2.getX(), pt1.getY() - pt2.getY(), pt1.getZ() - pt2.getZ());
+    }
+
+    static Vector3D getVector(RDC rdc, int iStruct) {
+        return getVector(rdc.getSpSets()[0], rdc.getSpSets()[1], iStruct);
+    }
+
+    static double[] getRow(Vector3D vector) {
+        Vector3D u = vector.normalize();
+        double ux = u.getX();
+        double uy = u.getY();
+        double uz = u.getZ();
+        return new double[]{uy * uy - ux * ux, uz * uz - ux * ux, 2.0 * ux * uy, 2.0 * ux * uz, 2.0 * uy * uz};
+    }
+
+    /**
+     * Make N-H and CA-HA RDCs calculated from TENSOR with the coordinates of
+     * the first model.
+     */
+    static RDCConstraintSet makeRDCs(Molecule molecule) {
+        RDCConstraintSet rdcSet = new RDCConstraintSet("ensemblerdc");
+        String[][] pairs = {{"N", "H"}, {"CA", "HA"}};
+        for (Polymer polymer : molecule.getPolymers()) {
+            for (Residue residue : polymer.getResidues()) {
+                for (String[] pair : pairs) {
+                    Atom atom1 = residue.getAtom(pair[0]);
+                    Atom atom2 = residue.getAtom(pair[1]);
+                    if ((atom1 != null) && (atom2 != null)) {
+                        double[] row = getRow(getVector(atom1.getSpatialSet(), atom2.getSpatialSet(), 0));
+                        double dNorm = 0.0;
+                        for (int j = 0; j < 5; j++) {
+                            dNorm += row[j] * TENSOR[j];
+                        }
+                        double value = OrderSVD.getMaxRDC(atom1.getName(), atom2.getName()) * dNorm;
+                        rdcSet.add(new RDC(rdcSet, atom1.getSpatialSet(), atom2.getSpatialSet(), value, 1.0));
+                    }
+                }
+            }
+        }
+        return rdcSet;
+    }
+
+    @Test
+    public void testEnsembleMatchesPerModelFits() throws Exception {
+        Molecule molecule = readEnsemble();
+        RDCConstraintSet rdcSet = makeRDCs(molecule);
+        int nRDC = rdcSet.getSize();
+        Assert.assertTrue(nRDC > 20);
+
+        OrderSVD.EnsembleResult result = OrderSVD.calcEnsembleRDCs(molecule, rdcSet, null);
+        int[] models = result.getModels();
+        Assert.assertEquals(20, models.length);
+        Assert.assertEquals(nRDC, result.getRDCIndices().length);
+
+        for (int iModel = 0; iModel < models.length; iModel++) {
+            List<Vector3D> vectors = new ArrayList<>();
+            List<Double> values = new ArrayList<>();
+            List<Double> maxRDCs = new ArrayList<>();
+            List<Double> errors = new ArrayList<>();
+            for (int i = 0; i < nRDC; i++) {
+                RDC rdc = rdcSet.get(i);
+                vectors.add(getVector(rdc, models[iModel]));
+                values.add(rdc.getValue());
+                maxRDCs.add(OrderSVD.getMaxRDC(rdc.getSpSets()[0].atom.getName(), rdc.getSpSets()[1].atom.getName()));
+                errors.add(rdc.getErr());
+            }
+            OrderSVD orderSVD = OrderSVD.runOrderSVD(vectors, values, maxRDCs, errors);
+            double[] expectedTensor = orderSVD.getXVector().toArray();
+            double[] tensor = result.getTensor(iModel);
+            for (int j = 0; j < 5; j++) {
+                Assert.assertEquals("model " + iModel, expectedTensor[j], tensor[j], 1.0e-9);
+            }
+            Assert.assertEquals("model " + iModel, orderSVD.getQ(), result.getQ(iModel), 1.0e-8);
+            Assert.assertArrayEquals(orderSVD.getRDCDiffs().toArray(), result.getResiduals(iModel), 1.0e-6);
+        }
+        // the RDCs were calculated from the first model
+        Assert.assertArrayEquals(TENSOR, result.getTensor(0), 1.0e-10);
+        Assert.assertEquals(0.0, result.getQ(0), 1.0e-8);
+    }
+
+    @Test
+    public void testEnsembleTensor() throws Exception {
+        Molecule molecule = readEnsemble();
+        RDCConstraintSet rdcSet = makeRDCs(molecule);
+        int nRDC = rdcSet.getSize();
+        int[] models = {0, 3, 7, 12};
+        OrderSVD.EnsembleResult result = OrderSVD.calcEnsembleRDCs(molecule, rdcSet, models);
+        Assert.assertArrayEquals(models, result.getModels());
+
+        // one tensor fit to the direction cosine rows averaged over the models
+        double[] aAvg = new double[5 * nRDC];
+        double[] bNorm = new double[nRDC];
+        double[] maxRDCs = new double[nRDC];
+        for (int i = 0; i < nRDC; i++) {
+            RDC rdc = rdcSet.get(i);
+            for (int iStruct : models) {
+                double[] row = getRow(getVector(rdc, iStruct));
+                for (int j = 0; j < 5; j++) {
+                    aAvg[5 * i + j] += row[j] / models.length;
+                }
+            }
+            maxRDCs[i] = OrderSVD.getMaxRDC(rdc.getSpSets()[0].atom.getName(), rdc.getSpSets()[1].atom.getName());
+            bNorm[i] = rdc.getValue() / maxRDCs[i];
+        }
+        double[] expected = new double[5];
+        Assert.assertTrue(OrderSVD.fitTensor(aAvg, bNorm, null, nRDC, expected));
+        Assert.assertArrayEquals(expected, result.getEnsembleTensor(), 1.0e-12);
+
+        double sumSqDiff = 0.0;
+        double sumSqObs = 0.0;
+        double[] residuals = result.getEnsembleResiduals();
+        for (int i = 0; i < nRDC; i++) {
+            double calc = 0.0;
+            for (int j = 0; j < 5; j++) {
+                calc += aAvg[5 * i + j] * expected[j];
+            }
+            double value = rdcSet.get(i).getValue();
+            Assert.assertEquals(maxRDCs[i] * calc - value, residuals[i], 1.0e-8);
+            sumSqDiff += residuals[i] * residuals[i];
+            sumSqObs += value * value;
+        }
+        Assert.assertEquals(Math.sqrt(sumSqDiff / sumSqObs), result.getEnsembleQ(), 1.0e-10);
+        Assert.assertTrue(result.getEnsembleQ() > 0.0);
+    }
+}
@@ -0,0 +1,89 @@
+package org.nmrfx.structure.chemistry;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class SSLayoutTest {
+
+    // hairpins, a multi-branch junction, bulges and internal loops
+    static final List<String> VIENNA = Arrays.asList(
+            "..((((((....))))))..((((((((.....))))))))...(((((...)))))..",
+            "(((..((((...))))..((((....))))..(((((.....)))))..)))......((((....))))",
+            "((((.((((..(((....)))..)))).))))...((((((...((((....))))..))).)))....(((((((.....)))))))",
+            ".....((((((((((((((((((((....))))))))))))))))))))....................");
+
+    static SSLayout makeLayout(String vienna) {
+        SSLayout layout = new SSLayout(vienna.length());
+        layout.interpVienna(vienna);
+        layout.fillPairs();
+        return layout;
+    }
+
+    static double[] randomAngles(Random random, int n, double maxAngle) {
+        double[] pars = new double[n];
+        for (int i = 0; i < n; i++) {
+            pars[i] = maxAngle * (2.0 * random.nextDouble() - 1.0);
+        }
+        return pars;
+    }
+
+    @Test
+    public void testGridMatchesAllPairs() {
+        Random random = new Random(4);
+        for (String vienna : VIENNA) {
+            SSLayout layout = makeLayout(vienna);
+            int nNuc = vienna.length();
+            Assert.assertTrue(nNuc >= SSLayout.gridThreshold);
+            for (int limit : new int[]{SSLayout.gridThreshold, nNuc}) {
+                layout.limit = limit;
+                // small angles give extended layouts, large ones compact
+                // layouts with many clashes and crossings
+                for (double maxAngle : new double[]{0.2, 0.6, 1.5, Math.PI}) {
+                    for (int trial = 0; trial < 10; trial++) {
+                        double[] pars = randomAngles(random, nNuc - 2, maxAngle);
+                        double expected = layout.valueAllPairs(pars);
+                        Assert.assertEquals(vienna + " " + limit, expected, layout.value(pars), 0.0);
+                    }
+                }
+                // a spiral, with every nucleotide near others
+                double[] pars = new double[nNuc - 2];
+                Arrays.fill(pars, 0.9);
+                Assert.assertEquals(layout.valueAllPairs(pars), layout.value(pars), 0.0);
+            }
+        }
+    }
+
+    @Test
+    public void testLayoutsReproducible() {
+        List<String> viennas = Arrays.asList("..((((((....))))))..", "((((...((((....))))..))))...", "(((...)))..((((.....))))");
+        List<double[]> firstValues = null;
+        for (int run = 0; run < 2; run++) {
+            List<SSLayout> layouts = new ArrayList<>();
+            for (String vienna : viennas) {
+                layouts.add(makeLayout(vienna));
+            }
+            SSLayout.calcLayouts(layouts, 200, 3);
+            List<double[]> values = new ArrayList<>();
+            for (SSLayout layout : layouts) {
+                values.add(layout.getValues());
+            }
+            if (firstValues == null) {
+                firstValues = values;
+            } else {
+                for (int i = 0; i < values.size(); i++) {
+                    Assert.assertArrayEquals(firstValues.get(i), values.get(i), 0.0);
+                }
+            }
+        }
+        // the same as laying out each one alone
+        for (int i = 0; i < viennas.size(); i++) {
+            SSLayout layout = makeLayout(viennas.get(i));
+            layout.calcLayout(200, 3);
+            Assert.assertArrayEquals(firstValues.get(i), layout.getValues(), 0.0);
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package org.nmrfx.structure.chemistry;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import libsvm.svm;
+import libsvm.svm_model;
+import libsvm.svm_node;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class SVMBatchPredictorTest {
+
+    static final List<String> ATOM_NAMES = Arrays.asList("AH8", "GC1p", "UH5", "CN4");
+
+    static int getNAttributes(svm_model model) {
+        int nAttributes = 0;
+        for (svm_node[] sv : model.SV) {
+            for (svm_node node : sv) {
+                nAttributes = Math.max(nAttributes, node.index);
+            }
+        }
+        return nAttributes;
+    }
+
+    /**
+     * Make attribute vectors like those of the RNA models, mostly zero with
+     * some ones, with some other values and some copies of support vectors.
+     */
+    static double[][] makeAttributes(svm_model model, int nVectors, Random random) {
+        int nAttributes = getNAttributes(model);
+        double[][] attributes = new double[nVectors][nAttributes];
+        for (int i = 0; i < nVectors; i++) {
+            if (i % 10 == 0) {
+                for (svm_node node : model.SV[random.nextInt(model.l)]) {
+                    attributes[i][node.index - 1] = node.value;
+                }
+            } else {
+                for (int j = 0; j < nAttributes; j++) {
+                    double r = random.nextDouble();
+                    if (r < 0.1) {
+                        attributes[i][j] = 1.0;
+                    } else if (r < 0.12) {
+                        attributes[i][j] = random.nextDouble();
+                    }
+                }
+            }
+        }
+        return attributes;
+    }
+
+    // the prediction with every attribute passed to libsvm
+    static double predictWithLibsvm(svm_model model, double[] attributes) {
+        svm_node[] x = new svm_node[attributes.length];
+        for (int j = 0; j < attributes.length; j++) {
+            x[j] = new svm_node();
+            x[j].index = j + 1;
+            x[j].value = attributes[j];
+        }
+        return svm.svm_predict(model, x);
+    }
+
+    @Test
+    public void testBatchMatchesPerVector() {
+        SVMBatchPredictor.clearCache();
+        SVMPredict svmPredict = new SVMPredict();
+        Random random = new Random(21);
+        for (String atomName : ATOM_NAMES) {
+            svm_model model = svmPredict.getModel(atomName);
+            Assert.assertNotNull(atomName, model);
+            Assert.assertSame(model, SVMBatchPredictor.getSVMModel(atomName));
+            double[][] attributes = makeAttributes(model, 100, random);
+            double[] batch = SVMBatchPredictor.predict(atomName, attributes);
+            Assert.assertEquals(attributes.length, batch.length);
+            for (int i = 0; i < attributes.length; i++) {
+                String msg = atomName + " " + i;
+                Assert.assertEquals(msg, predictWithLibsvm(model, attributes[i]), batch[i], 0.0);
+                Assert.assertEquals(msg, svmPredict.predict(atomName, attributes[i]), batch[i], 0.0);
+            }
+        }
+    }
+
+    @Test
+    public void testMixedBatch() {
+        Random random = new Random(8);
+        int nVectors = 60;
+        String[] atomNames = new String[nVectors];
+        double[][] attributes = new double[nVectors][];
+        for (int i = 0; i < nVectors; i++) {
+            atomNames[i] = ATOM_NAMES.get(random.nextInt(ATOM_NAMES.size()));
+            svm_model model = SVMBatchPredictor.getSVMModel(atomNames[i]);
+            attributes[i] = makeAttributes(model, 1, random)[0];
+        }
+        double[] batch = SVMBatchPredictor.predict(atomNames, attributes);
+        for (int i = 0; i < nVectors; i++) {
+            svm_model model = SVMBatchPredictor.getSVMModel(atomNames[i]);
+            Assert.assertEquals(predictWithLibsvm(model, attributes[i]), batch[i], 0.0);
+        }
+    }
+
+    @Test
+    public void testNoModel() {
+        try {
+            SVMBatchPredictor.predict("XX1", new double[3]);
+            Assert.fail("no exception for a missing model");
+        } catch (IllegalArgumentException iaE) {
+            Assert.assertNull(new SVMPredict().getModel("XX1"));
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package org.nmrfx.structure.chemistry.energy;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Assert;
+import org.junit.Test;
+import org.nmrfx.structure.chemistry.Atom;
+import org.nmrfx.structure.chemistry.Bond;
+import org.nmrfx.structure.chemistry.Molecule;
+import org.nmrfx.structure.chemistry.io.Sequence;
+
+public class AngleTreeCacheTest {
+
+    // repeated residues, and aromatic and proline rings with ring closures
+    static final List<String> RESIDUES = Arrays.asList("ALA", "PHE", "PRO", "TRP", "ALA", "PHE", "HIS", "PRO", "GLY", "LYS");
+
+    static String name(Atom atom) {
+        return atom == null ? "null" : atom.getFullName();
+    }
+
+    /**
+     * Build the molecule, which generates the tree of each residue and of
+     * the molecule, generate the tree of the molecule again, and describe
+     * the tree: its branches, and the tree index, parent and rotatable flag
+     * of each atom and the ring closure flag of each of its bonds.
+     */
+    static List<String> buildTree() throws Exception {
+        Molecule.removeAll();
+        Molecule molecule = new Sequence().read("treecache", RESIDUES, null);
+        List<List<Atom>> atomTree = new AngleTreeGenerator().genTree(molecule, null, null);
+        List<String> result = new ArrayList<>();
+        for (List<Atom> branch : atomTree) {
+            StringBuilder sBuilder = new StringBuilder();
+            for (Atom atom : branch) {
+                sBuilder.append(name(atom)).append(' ');
+            }
+            result.add(sBuilder.toString());
+        }
+        for (Atom atom : molecule.getAtomArray()) {
+            StringBuilder sBuilder = new StringBuilder();
+            sBuilder.append(name(atom)).append(' ').append(atom.getTreeIndex()).append(' ');
+            sBuilder.append(name(atom.getParent())).append(' ').append(atom.getRotActive());
+            for (Bond bond : atom.bonds) {
+                sBuilder.append(' ').append(name(bond.begin)).append('-').append(name(bond.end));
+                sBuilder.append(' ').append(bond.isRingClosure());
+            }
+            result.add(sBuilder.toString());
+        }
+        return result;
+    }
+
+    static AngleTreeCache.Tree readTree(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            return AngleTreeCache.Tree.read(in);
+        }
+    }
+
+    static long getKey(File file) {
+        String name = file.getName();
+        return Long.parseUnsignedLong(name.substring(0, name.length() - AngleTreeCache.SUFFIX.length()), 16);
+    }
+
+    @Test
+    public void testCachedTrees() throws Exception {
+        File dir = Files.createTempDirectory("treecache").toFile();
+        try {
+            AngleTreeCache.clear();
+            AngleTreeCache.setDirectory(null);
+            AngleTreeCache.setEnabled(false);
+            List<String> expected = buildTree();
+
+            // trees built and saved, and used for the repeated residues
+            AngleTreeCache.setEnabled(true);
+            AngleTreeCache.setDirectory(dir);
+            Assert.assertEquals(expected, buildTree());
+            File[] files = dir.listFiles();
+            Assert.assertTrue(files.length > 0);
+            List<AngleTreeCache.Tree> saved = new ArrayList<>();
+            for (File file : files) {
+                Assert.assertTrue(file.getName().endsWith(AngleTreeCache.SUFFIX));
+                AngleTreeCache.Tree tree = readTree(file);
+                Assert.assertNotNull(file.getName(), tree);
+                Assert.assertEquals(getKey(file), tree.key);
+                saved.add(tree);
+            }
+
+            // trees from memory
+            AngleTreeCache.setDirectory(null);
+            for (AngleTreeCache.Tree tree : saved) {
+                Assert.assertArrayEquals(tree.steps, AngleTreeCache.get(tree.key, tree.nAtoms).steps);
+            }
+            Assert.assertEquals(expected, buildTree());
+
+            // trees from the saved files
+            AngleTreeCache.clear();
+            AngleTreeCache.setDirectory(dir);
+            Assert.assertEquals(expected, buildTree());
+            Assert.assertEquals(files.length, dir.listFiles().length);
+            AngleTreeCache.clear();
+            for (AngleTreeCache.Tree tree : saved) {
+                Assert.assertArrayEquals(tree.steps, AngleTreeCache.get(tree.key, tree.nAtoms).steps);
+                Assert.assertNull(AngleTreeCache.get(tree.key, tree.nAtoms + 1));
+            }
+        } finally {
+            AngleTreeCache.clear();
+            AngleTreeCache.setDirectory(null);
+            AngleTreeCache.setEnabled(true);
+            for (File file : dir.listFiles()) {
+                file.delete();
+            }
+            dir.delete();
+        }
+    }
+
+    static AngleTreeCache.Tree writeAndRead(AngleTreeCache.Tree tree) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            tree.write(out);
+        }
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            return AngleTreeCache.Tree.read(in);
+        }
+    }
+
+    @Test
+    public void testRead() throws IOException {
+        int[] steps = {
+            AngleTreeCache.ROOT, 0, -1, -1, -1,
+            AngleTreeCache.NEW_BRANCH_ATOM, 1, 0, -1, -1,
+            AngleTreeCache.BRANCH_ATOM, 2, 0, -1, -1,
+            AngleTreeCache.CLOSURE, 3, 2, -1, -1};
+        AngleTreeCache.Tree tree = writeAndRead(new AngleTreeCache.Tree(7L, 4, steps));
+        Assert.assertEquals(7L, tree.key);
+        Assert.assertEquals(4, tree.nAtoms);
+        Assert.assertEquals(4, tree.getNSteps());
+        Assert.assertArrayEquals(steps, tree.steps);
+
+        // bad step types and atom indices
+        for (int bad : new int[]{-1, 4, 100}) {
+            int[] badSteps = steps.clone();
+            badSteps[2 * AngleTreeCache.STEP_SIZE] = bad;
+            Assert.assertNull(writeAndRead(new AngleTreeCache.Tree(7L, 4, badSteps)));
+        }
+        for (int bad : new int[]{-2, 4}) {
+            int[] badSteps = steps.clone();
+            badSteps[AngleTreeCache.STEP_SIZE + 2] = bad;
+            Assert.assertNull(writeAndRead(new AngleTreeCache.Tree(7L, 4, badSteps)));
+        }
+        Assert.assertNull(writeAndRead(new AngleTreeCache.Tree(7L, 4, Arrays.copyOf(steps, 7))));
+    }
+}
@@ -0,0 +1,116 @@
+package org.nmrfx.structure.chemistry.energy;
+
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Assert;
+import org.junit.Test;
+import org.nmrfx.structure.chemistry.Atom;
+import org.nmrfx.structure.chemistry.Molecule;
+import org.nmrfx.structure.chemistry.OrderSVD;
+import org.nmrfx.structure.chemistry.Point3;
+import org.nmrfx.structure.chemistry.constraints.RDC;
+import org.nmrfx.structure.chemistry.constraints.RDCConstraintSet;
+
+public class EnergyRDCsTest {
+
+    static final List<String> RESIDUES = Arrays.asList("ALA", "SER", "VAL", "LEU", "THR", "PHE", "ILE", "ALA");
+    // Syy, Szz, Sxy, Sxz, Syz
+    static final double[] TENSOR = {-3.0e-4, 8.0e-4, 2.0e-4, -1.5e-4, 3.0e-4};
+
+    static double calcRDC(Atom atom1, Atom atom2, double[] tensor) {
+        Point3 p1 = atom1.getPoint();
+        Point3 p2 = atom2.getPoint();
+        double vx = p1.getX() - p2.getX();
+        double vy = p1.getY() - p2.getY();
+        double vz = p1.getZ() - p2.getZ();
+        double len = Math.sqrt(vx * vx + vy * vy + vz * vz);
+        double ux = vx / len;
+        double uy = vy / len;
+        double uz = vz / len;
+        double[] row = {uy * uy - ux * ux, uz * uz - ux * ux, 2.0 * ux * uy, 2.0 * ux * uz, 2.0 * uy * uz};
+        double dNorm = 0.0;
+        for (int j = 0; j < 5; j++) {
+            dNorm += row[j] * tensor[j];
+        }
+        return OrderSVD.getMaxRDC(atom1.getName(), atom2.getName()) * dNorm;
+    }
+
+    /**
+     * Set up a peptide with N-H and CA-HA RDCs calculated from TENSOR at its
+     * current (random) conformation.
+     */
+    static Dihedral setup(long seed) throws Exception {
+        ForceWeight forceWeight = new ForceWeight(-1.0, -1.0, -1.0, -1.0, -1.0, -1.0, -1.0, -1.0, 1.0, -1.0, 1.0);
+        Dihedral dihedral = EnergySetup.setup("rdc", RESIDUES, forceWeight);
+        EnergySetup.randomize(dihedral, seed);
+        RDCConstraintSet rdcSet = new RDCConstraintSet("energyrdc");
+        for (int iRes = 2; iRes <= RESIDUES.size(); iRes++) {
+            String[][] pairs = {{iRes + ".N", iRes + ".H"}, {iRes + ".CA", iRes + ".HA"}};
+            for (String[] pair : pairs) {
+                Atom atom1 = Molecule.getAtomByName(pair[0]);
+                Atom atom2 = Molecule.getAtomByName(pair[1]);
+                double value = calcRDC(atom1, atom2, TENSOR);
+                rdcSet.add(new RDC(rdcSet, atom1.getSpatialSet(), atom2.getSpatialSet(), value, 1.0));
+            }
+        }
+        dihedral.energyList.setRDCs(rdcSet);
+        return dihedral;
+    }
+
+    @Test
+    public void testExactFit() throws Exception {
+        Dihedral dihedral = setup(1);
+        EnergyRDCs rdcTerms = dihedral.energyList.getRDCTerms();
+        Assert.assertEquals(2 * (RESIDUES.size() - 1), rdcTerms.getSize());
+        double energy = rdcTerms.calcEnergy(false, 1.0, null);
+        Assert.assertEquals(0.0, energy, 1.0e-12);
+        Assert.assertArrayEquals(TENSOR, rdcTerms.getTensor(), 1.0e-10);
+        Assert.assertEquals(0.0, rdcTerms.getQ(), 1.0e-8);
+    }
+
+    @Test
+    public void testEnergyAfterMove() throws Exception {
+        Dihedral dihedral = setup(2);
+        EnergySetup.shiftAngles(dihedral, 0.2);
+        EnergyRDCs rdcTerms = dihedral.energyList.getRDCTerms();
+        double weight = 2.0;
+        double energy = rdcTerms.calcEnergy(false, weight, null);
+        Assert.assertTrue(energy > 0.0);
+        // the energy is the weighted chi-square of the calculated couplings
+        double[] calcValues = rdcTerms.getCalcValues();
+        double chiSq = 0.0;
+        for (int i = 0; i < rdcTerms.getSize(); i++) {
+            double delta = (calcValues[i] - rdcTerms.values[i]) / rdcTerms.errs[i];
+            chiSq += delta * delta;
+        }
+        Assert.assertEquals(weight * chiSq, energy, 1.0e-10 * energy);
+        Assert.assertTrue(rdcTerms.getQ() > 0.0);
+    }
+
+    @Test
+    public void testFitInterval() throws Exception {
+        Dihedral dihedral = setup(3);
+        EnergyRDCs rdcTerms = dihedral.energyList.getRDCTerms();
+        rdcTerms.setFitInterval(100);
+        rdcTerms.calcEnergy(false, 1.0, null);
+        double[] tensor = rdcTerms.getTensor();
+        EnergySetup.shiftAngles(dihedral, 0.2);
+        // the tensor is held until the next refit
+        double heldEnergy = rdcTerms.calcEnergy(false, 1.0, null);
+        Assert.assertArrayEquals(tensor, rdcTerms.getTensor(), 0.0);
+        rdcTerms.setFitInterval(1);
+        double fitEnergy = rdcTerms.calcEnergy(false, 1.0, null);
+        Assert.assertTrue(fitEnergy <= heldEnergy);
+    }
+
+    @Test
+    public void testFiniteDifference() throws Exception {
+        Dihedral dihedral = setup(4);
+        EnergySetup.shiftAngles(dihedral, 0.2);
+        GradientRefinement refinement = new GradientRefinement(dihedral);
+        double rmsDeriv = refinement.calcRMSDeriv();
+        Assert.assertTrue(rmsDeriv > 0.0);
+        double err = refinement.calcDerivError(1.0e-5);
+        Assert.assertEquals(0.0, err, 1.0e-4 * Math.max(1.0, rmsDeriv));
+    }
+}
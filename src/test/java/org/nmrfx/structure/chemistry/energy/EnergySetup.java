@@ -0,0 +1,69 @@
+package org.nmrfx.structure.chemistry.energy;
+
+import java.util.List;
+import org.nmrfx.structure.chemistry.Atom;
+import org.nmrfx.structure.chemistry.InvalidMoleculeException;
+import org.nmrfx.structure.chemistry.Molecule;
+import org.nmrfx.structure.chemistry.io.MoleculeIOException;
+import org.nmrfx.structure.chemistry.io.Sequence;
+
+/**
+ * Builds a molecule from a sequence and sets up its energy terms the way
+ * refine.setupEnergy does, for tests that need a Dihedral and EnergyLists.
+ */
+class EnergySetup {
+
+    static Dihedral setup(String molName, List<String> residues, ForceWeight forceWeight) throws MoleculeIOException {
+        Molecule.removeAll();
+        new Sequence().read(molName, residues, null);
+        EnergyLists energyLists = new EnergyLists();
+        energyLists.makeCompoundList(molName);
+        energyLists.clear();
+        energyLists.setForceWeight(forceWeight);
+        energyLists.setIncludeH(false);
+        energyLists.setHardSphere(0.15);
+        energyLists.setDistanceLimit(5.0);
+        energyLists.setDeltaStart(0);
+        energyLists.setDeltaEnd(1000);
+        energyLists.makeAtomListFast();
+        Dihedral dihedral = new Dihedral(energyLists, false);
+        // the boundaries are kept by atom name, so drop any from earlier tests
+        dihedral.clearBoundaries();
+        dihedral.setupAngleRestraints();
+        return dihedral;
+    }
+
+    /**
+     * Restrain the torsion angle ending at each named atom, as read from an
+     * angle file by refine.readAngleFiles.
+     */
+    static void addBoundaries(Dihedral dihedral, List<String> atomNames, double lower, double upper) throws InvalidMoleculeException {
+        for (String atomName : atomNames) {
+            Atom atom3 = Molecule.getAtomByName(atomName);
+            Atom atom2 = atom3.getParent();
+            Atom atom1 = atom2.getParent();
+            Atom atom0 = atom1.getParent();
+            dihedral.addBoundary(new Atom[]{atom0, atom1, atom2, atom3}, lower, upper, 1.0);
+        }
+        dihedral.setupAngleRestraints();
+    }
+
+    static void randomize(Dihedral dihedral, long seed) {
+        Dihedral.seed(seed);
+        dihedral.randomizeAngles();
+        dihedral.energyList.makeAtomListFast();
+    }
+
+    /**
+     * Add a value to each torsion angle and regenerate the atom and energy
+     * coordinates.
+     */
+    static void shiftAngles(Dihedral dihedral, double delta) {
+        dihedral.getDihedrals();
+        for (int i = 0; i < dihedral.angleValues.length; i++) {
+            dihedral.angleValues[i] = Dihedral.reduceAngle(dihedral.angleValues[i] + delta);
+        }
+        dihedral.putDihedrals();
+        dihedral.molecule.genCoords(false, null);
+    }
+}
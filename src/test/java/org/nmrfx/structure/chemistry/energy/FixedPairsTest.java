@@ -0,0 +1,150 @@
+package org.nmrfx.structure.chemistry.energy;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+import org.nmrfx.structure.chemistry.predict.Predictor;
+import org.nmrfx.structure.fastlinear.FastVector3D;
+
+public class FixedPairsTest {
+
+    static FastVector3D[] randomCoords(int nAtoms, double size, long seed) {
+        Random random = new Random(seed);
+        FastVector3D[] coords = new FastVector3D[nAtoms];
+        for (int i = 0; i < nAtoms; i++) {
+            coords[i] = new FastVector3D(size * random.nextDouble(), size * random.nextDouble(), size * random.nextDouble());
+        }
+        return coords;
+    }
+
+    @Test
+    public void testCandidatesMatchAllPairs() {
+        int nAtoms = 300;
+        double cutoff = 4.0;
+        FastVector3D[] coords = randomCoords(nAtoms, 20.0, 1);
+        FixedPairs fixedPairs = FixedPairs.build(coords, nAtoms, cutoff);
+        Assert.assertEquals(nAtoms, fixedPairs.getAtomCount());
+        Assert.assertEquals(cutoff, fixedPairs.getCutoff(), 0.0);
+        int nExpected = 0;
+        for (int i = 0; i < nAtoms; i++) {
+            List<Integer> expected = new ArrayList<>();
+            for (int j = i + 1; j < nAtoms; j++) {
+                if (coords[i].dis(coords[j]) < cutoff) {
+                    expected.add(j);
+                }
+            }
+            List<Integer> found = new ArrayList<>();
+            for (int k = fixedPairs.getPartnerStart(i); k < fixedPairs.getPartnerEnd(i); k++) {
+                found.add(fixedPairs.getPartner(k));
+            }
+            Assert.assertEquals(expected, found);
+            nExpected += expected.size();
+        }
+        Assert.assertEquals(nExpected, fixedPairs.getCandidateCount());
+    }
+
+    @Test
+    public void testSetFixed() {
+        int nAtoms = 50;
+        FixedPairs fixedPairs = FixedPairs.build(randomCoords(nAtoms, 10.0, 2), nAtoms, 5.0);
+        Assert.assertTrue(fixedPairs.isFixed(3, 3));
+        Assert.assertFalse(fixedPairs.isFixed(3, 7));
+        fixedPairs.setFixed(7, 3, true);
+        Assert.assertTrue(fixedPairs.isFixed(3, 7));
+        Assert.assertTrue(fixedPairs.isFixed(7, 3));
+        fixedPairs.setFixed(3, 7, true);
+        Assert.assertEquals(1, fixedPairs.getFixedCount());
+        fixedPairs.setFixed(3, 7, false);
+        Assert.assertFalse(fixedPairs.isFixed(3, 7));
+        Assert.assertEquals(0, fixedPairs.getFixedCount());
+        fixedPairs.setFixed(3, 7, false);
+        Assert.assertEquals(0, fixedPairs.getFixedCount());
+    }
+
+    @Test
+    public void testGrowthAndRemoval() {
+        int nAtoms = 100;
+        FixedPairs fixedPairs = FixedPairs.build(randomCoords(nAtoms, 10.0, 3), nAtoms, 5.0);
+        // more pairs than the initial hash table can hold
+        for (int i = 0; i < nAtoms; i++) {
+            for (int j = i + 1; j < nAtoms; j += 3) {
+                fixedPairs.setFixed(i, j, true);
+            }
+        }
+        int nSet = fixedPairs.getFixedCount();
+        Assert.assertTrue(nSet > 1024);
+        // remove every other pair, so removal has to keep probe chains intact
+        int nRemoved = 0;
+        for (int i = 0; i < nAtoms; i += 2) {
+            for (int j = i + 1; j < nAtoms; j += 3) {
+                fixedPairs.setFixed(j, i, false);
+                nRemoved++;
+            }
+        }
+        Assert.assertEquals(nSet - nRemoved, fixedPairs.getFixedCount());
+        for (int i = 0; i < nAtoms; i++) {
+            for (int j = i + 1; j < nAtoms; j++) {
+                boolean expected = (((j - i - 1) % 3) == 0) && ((i % 2) == 1);
+                Assert.assertEquals(i + " " + j, expected, fixedPairs.isFixed(i, j));
+            }
+        }
+    }
+
+    @Test
+    public void testFixedPairsOrder() {
+        int nAtoms = 20;
+        FixedPairs fixedPairs = FixedPairs.build(randomCoords(nAtoms, 10.0, 4), nAtoms, 5.0);
+        fixedPairs.setFixed(12, 5, true);
+        fixedPairs.setFixed(1, 19, true);
+        fixedPairs.setFixed(5, 6, true);
+        fixedPairs.setFixed(0, 3, true);
+        int[] expected = {0, 3, 1, 19, 5, 6, 5, 12};
+        Assert.assertArrayEquals(expected, fixedPairs.getFixedPairs());
+    }
+
+    @Test
+    public void testUpdateFixed() {
+        // atoms 0 and 1 move together, atom 2 moves relative to them
+        FastVector3D[] coords = {new FastVector3D(0.0, 0.0, 0.0), new FastVector3D(1.5, 0.0, 0.0),
+            new FastVector3D(0.0, 2.0, 0.0)};
+        FixedPairs fixedPairs = FixedPairs.build(coords, 3, 5.0);
+        Assert.assertEquals(3, fixedPairs.getCandidateCount());
+        fixedPairs.updateRanges(coords);
+        coords[2] = new FastVector3D(0.0, 3.0, 0.0);
+        fixedPairs.updateRanges(coords);
+        int nFixed = fixedPairs.updateFixed(0.2);
+        Assert.assertEquals(1, nFixed);
+        Assert.assertTrue(fixedPairs.isFixed(0, 1));
+        Assert.assertFalse(fixedPairs.isFixed(0, 2));
+        Assert.assertFalse(fixedPairs.isFixed(1, 2));
+        Assert.assertArrayEquals(new int[]{0, 1}, fixedPairs.getFixedPairs());
+    }
+
+    @Test
+    public void testFixedCutoff() {
+        double rMax = Predictor.getRMax();
+        try {
+            EnergyLists energyLists = new EnergyLists();
+            energyLists.setDistanceLimit(5.0);
+            Predictor.setRMax(4.6);
+            Assert.assertEquals(6.2, energyLists.getFixedCutoff(), 1.0e-12);
+            energyLists.setDistanceLimit(7.0);
+            Assert.assertEquals(7.2, energyLists.getFixedCutoff(), 1.0e-12);
+
+            // the shift pairs use a larger limit than the contacts, so pairs
+            // out to it have to be in the fixed table
+            Predictor.setRMax(10.0);
+            Assert.assertEquals(10.2, energyLists.getFixedCutoff(), 1.0e-12);
+            FastVector3D[] coords = {new FastVector3D(0.0, 0.0, 0.0), new FastVector3D(9.0, 0.0, 0.0)};
+            FixedPairs fixedPairs = FixedPairs.build(coords, 2, energyLists.getFixedCutoff());
+            Assert.assertEquals(1, fixedPairs.getCandidateCount());
+            fixedPairs.updateRanges(coords);
+            Assert.assertEquals(1, fixedPairs.updateFixed(0.2));
+            Assert.assertTrue(fixedPairs.isFixed(0, 1));
+        } finally {
+            Predictor.setRMax(rMax);
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package org.nmrfx.structure.chemistry.energy;
+
+import org.apache.commons.math3.optim.ConvergenceChecker;
+import org.apache.commons.math3.optim.PointValuePair;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class LBFGSOptimizerTest {
+
+    static EnergyDeriv rosenbrock(double[] x) {
+        double energy = 0.0;
+        double[] deriv = new double[x.length];
+        for (int i = 0; i < x.length - 1; i++) {
+            double a = x[i + 1] - x[i] * x[i];
+            double b = 1.0 - x[i];
+            energy += 100.0 * a * a + b * b;
+            deriv[i] += -400.0 * a * x[i] - 2.0 * b;
+            deriv[i + 1] += 200.0 * a;
+        }
+        return new EnergyDeriv(energy, deriv);
+    }
+
+    // ill conditioned quadratic with its minimum at x[i] = i
+    static EnergyDeriv quadratic(double[] x) {
+        double energy = 0.0;
+        double[] deriv = new double[x.length];
+        for (int i = 0; i < x.length; i++) {
+            double scale = Math.pow(10.0, 3.0 * i / (x.length - 1));
+            double delta = x[i] - i;
+            energy += 0.5 * scale * delta * delta;
+            deriv[i] = scale * delta;
+        }
+        return new EnergyDeriv(energy, deriv);
+    }
+
+    static double norm(double[] v) {
+        double sum = 0.0;
+        for (double value : v) {
+            sum += value * value;
+        }
+        return Math.sqrt(sum);
+    }
+
+    static ConvergenceChecker<PointValuePair> checker(double tolerance) {
+        return (iteration, previous, current) -> Math.abs(previous.getValue() - current.getValue()) < tolerance;
+    }
+
+    @Test
+    public void testRosenbrock() {
+        LBFGSOptimizer optimizer = new LBFGSOptimizer(7, checker(1.0e-14));
+        optimizer.setMaxStep(1.0);
+        double[] start = {-1.2, 1.0, -1.2, 1.0};
+        double startEnergy = rosenbrock(start).getEnergy();
+        PointValuePair result = optimizer.optimize(LBFGSOptimizerTest::rosenbrock, start, 1000, 10000);
+        Assert.assertTrue(result.getValue() < startEnergy);
+        Assert.assertEquals(0.0, result.getValue(), 1.0e-8);
+        Assert.assertTrue(norm(rosenbrock(result.getPoint()).getDerivatives()) < 1.0e-3);
+        for (double value : result.getPoint()) {
+            Assert.assertEquals(1.0, value, 1.0e-4);
+        }
+        // the start point is not modified
+        Assert.assertEquals(-1.2, start[0], 0.0);
+    }
+
+    @Test
+    public void testQuadratic() {
+        LBFGSOptimizer optimizer = new LBFGSOptimizer(5, checker(1.0e-16));
+        optimizer.setMaxStep(100.0);
+        double[] start = new double[10];
+        PointValuePair result = optimizer.optimize(LBFGSOptimizerTest::quadratic, start, 500, 5000);
+        Assert.assertTrue(norm(quadratic(result.getPoint()).getDerivatives()) < 1.0e-5);
+        double[] point = result.getPoint();
+        for (int i = 0; i < point.length; i++) {
+            Assert.assertEquals(i, point[i], 1.0e-6);
+        }
+        Assert.assertTrue(optimizer.getEvaluations() <= 5000);
+        Assert.assertTrue(optimizer.getIterations() < 500);
+    }
+
+    @Test
+    public void testEnergyNeverIncreases() {
+        boolean[] increased = new boolean[1];
+        ConvergenceChecker<PointValuePair> monotonic = (iteration, previous, current) -> {
+            if (current.getValue() > previous.getValue()) {
+                increased[0] = true;
+            }
+            return false;
+        };
+        LBFGSOptimizer optimizer = new LBFGSOptimizer(7, monotonic);
+        double[] start = {-1.2, 1.0, 0.5, -0.5, 2.0};
+        PointValuePair result = optimizer.optimize(LBFGSOptimizerTest::rosenbrock, start, 200, 4000);
+        Assert.assertFalse(increased[0]);
+        Assert.assertTrue(result.getValue() < rosenbrock(start).getEnergy());
+    }
+
+    @Test
+    public void testMaxIterations() {
+        LBFGSOptimizer optimizer = new LBFGSOptimizer(7, null);
+        double[] start = {-1.2, 1.0};
+        optimizer.optimize(LBFGSOptimizerTest::rosenbrock, start, 5, 1000);
+        Assert.assertEquals(5, optimizer.getIterations());
+    }
+}
@@ -0,0 +1,152 @@
+package org.nmrfx.structure.chemistry.energy;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+import org.nmrfx.structure.chemistry.energy.RNARotamer.RotamerScore;
+
+public class RotamerIndexTest {
+
+    /**
+     * Make test angle sets near each rotamer of the library, at several
+     * distances, and spread uniformly over the torus.
+     */
+    static List<double[]> makeAngles(Random random) {
+        List<double[]> result = new ArrayList<>();
+        for (RNARotamer rotamer : RNARotamer.ROTAMERS.values()) {
+            result.add(rotamer.angles.clone());
+            for (double scale : new double[]{0.05, 0.2, 0.6}) {
+                double[] angles = new double[rotamer.angles.length];
+                for (int i = 0; i < angles.length; i++) {
+                    angles[i] = wrap(rotamer.angles[i] + scale * random.nextGaussian());
+                }
+                result.add(angles);
+            }
+        }
+        for (int j = 0; j < 200; j++) {
+            double[] angles = new double[RNARotamer.suiteAtoms.length];
+            for (int i = 0; i < angles.length; i++) {
+                angles[i] = Math.PI * (2.0 * random.nextDouble() - 1.0);
+            }
+            result.add(angles);
+        }
+        return result;
+    }
+
+    static double wrap(double angle) {
+        while (angle > Math.PI) {
+            angle -= 2.0 * Math.PI;
+        }
+        while (angle <= -Math.PI) {
+            angle += 2.0 * Math.PI;
+        }
+        return angle;
+    }
+
+    static void assertSameScore(String msg, RotamerScore expected, RotamerScore score) {
+        if (expected == null) {
+            Assert.assertNull(msg, score);
+        } else {
+            Assert.assertNotNull(msg, score);
+            Assert.assertEquals(msg, expected.getName(), score.getName());
+            Assert.assertEquals(msg, expected.getScore(), score.getScore(), 0.0);
+            Assert.assertEquals(msg, expected.getProb(), score.getProb(), 0.0);
+        }
+    }
+
+    static void compare(RotamerIndex index, List<double[]> testAngles) {
+        int nRotamers = RNARotamer.ROTAMERS.size();
+        for (double[] angles : testAngles) {
+            String msg = RNARotamer.formatAngles(angles);
+            for (int n : new int[]{1, 3, 10, nRotamers + 2}) {
+                RotamerScore[] expected = RNARotamer.getNBestByScan(angles, n);
+                RotamerScore[] scores = index.getNBest(angles, n);
+                Assert.assertEquals(msg, expected.length, scores.length);
+                for (int i = 0; i < n; i++) {
+                    assertSameScore(msg + " " + n + " " + i, expected[i], scores[i]);
+                }
+            }
+            List<RotamerScore> expectedHits = RNARotamer.getHitsByScan(angles);
+            List<RotamerScore> hits = index.getHits(angles);
+            Assert.assertEquals(msg, expectedHits.size(), hits.size());
+            for (int i = 0; i < hits.size(); i++) {
+                assertSameScore(msg, expectedHits.get(i), hits.get(i));
+            }
+            RotamerScore expectedBest = RNARotamer.bestProbByScan(angles);
+            RotamerScore best = index.bestProb(angles);
+            assertSameScore(msg, expectedBest, best);
+            Assert.assertEquals(msg, expectedBest.message, best.message);
+        }
+    }
+
+    @Test
+    public void testMatchesScan() {
+        List<double[]> testAngles = makeAngles(new Random(13));
+        compare(RotamerIndex.get(), testAngles);
+        // the public methods of RNARotamer use the index
+        for (double[] angles : testAngles) {
+            assertSameScore("", RNARotamer.bestProbByScan(angles), RNARotamer.bestProb(angles));
+            Assert.assertEquals(RNARotamer.getHitsByScan(angles).size(), RNARotamer.getHits(angles).size());
+        }
+    }
+
+    @Test
+    public void testWithinRadius() {
+        RotamerIndex index = RotamerIndex.get();
+        RotamerIndex.PeriodicTree tree = index.scoreTree;
+        for (double[] angles : makeAngles(new Random(2))) {
+            for (double radius : new double[]{0.5, 1.0, 3.0}) {
+                List<Integer> expected = new ArrayList<>();
+                for (int i = 0; i < index.rotamers.length; i++) {
+                    if (tree.distance(angles, index.rotamers[i].angles) <= radius) {
+                        expected.add(i);
+                    }
+                }
+                int[] found = index.withinRadius(angles, radius);
+                Assert.assertArrayEquals(expected.stream().mapToInt(Integer::intValue).toArray(), found);
+            }
+        }
+    }
+
+    @Test
+    public void testInvalidation() {
+        Map<String, RNARotamer> saved = new LinkedHashMap<>(RNARotamer.ROTAMERS);
+        try {
+            RotamerIndex before = RotamerIndex.get();
+            Assert.assertSame(before, RotamerIndex.get());
+            // a copy of 1a, added at the end of the library
+            RNARotamer.add("1a'", 4637, 81, 4, -148, 10, -71, 7, -65, 8, 174, 8, 54, 6, 81, 3);
+            RNARotamer.countSamples();
+            RotamerIndex after = RotamerIndex.get();
+            Assert.assertNotSame(before, after);
+            Assert.assertEquals(saved.size() + 1, after.rotamers.length);
+            List<double[]> testAngles = makeAngles(new Random(5));
+            compare(after, testAngles);
+            // rotamers with the same probability as 1a, which is capped at
+            // one, are in library order with 1a' last
+            RotamerScore[] best = after.getNBest(saved.get("1a").angles, after.rotamers.length);
+            List<String> names = new ArrayList<>(RNARotamer.ROTAMERS.keySet());
+            int nTied = 1;
+            while (best[nTied].getProb() == best[0].getProb()) {
+                Assert.assertTrue(names.indexOf(best[nTied - 1].getName()) < names.indexOf(best[nTied].getName()));
+                nTied++;
+            }
+            Assert.assertEquals("1a'", best[nTied - 1].getName());
+
+            RNARotamer.clear();
+            RotamerIndex empty = RotamerIndex.get();
+            Assert.assertNotSame(after, empty);
+            Assert.assertEquals(0, empty.rotamers.length);
+            compare(empty, testAngles);
+        } finally {
+            RNARotamer.clear();
+            RNARotamer.ROTAMERS.putAll(saved);
+            RNARotamer.countSamples();
+            RotamerIndex.invalidate();
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package org.nmrfx.structure.chemistry.energy;
+
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Assert;
+import org.junit.Test;
+import org.python.core.PyFloat;
+
+public class RotationalDynamicsTest {
+
+    static final List<String> RESIDUES = Arrays.asList("ALA", "GLY", "SER", "VAL", "LEU", "THR");
+
+    static Dihedral setup() throws Exception {
+        // repel, noe, dihedral and irp terms
+        ForceWeight forceWeight = new ForceWeight(-1.0, -1.0, 0.5, 1.0, -1.0, 5.0, 0.015, -1.0, 1.0, -1.0);
+        Dihedral dihedral = EnergySetup.setup("rdyn", RESIDUES, forceWeight);
+        EnergySetup.addBoundaries(dihedral, Arrays.asList("2.C", "3.C", "4.C", "5.C"), -80.0, -40.0);
+        EnergySetup.randomize(dihedral, 1);
+        return dihedral;
+    }
+
+    static void assertGradientEquals(double[] expected, double[] actual, double tol) {
+        Assert.assertEquals(expected.length, actual.length);
+        for (int i = 0; i < expected.length; i++) {
+            Assert.assertEquals("angle " + i, expected[i], actual[i], tol * Math.max(1.0, Math.abs(expected[i])));
+        }
+    }
+
+    @Test
+    public void testFastPlusSlowTerms() throws Exception {
+        Dihedral dihedral = setup();
+        EnergyLists energyLists = dihedral.energyList;
+        EnergyDeriv all = energyLists.energy(true, EnergyLists.ALL_TERMS);
+        double[] allGrad = all.getDerivatives().clone();
+        EnergyDeriv fast = energyLists.energy(true, EnergyLists.FAST_TERMS);
+        double[] fastGrad = fast.getDerivatives().clone();
+        EnergyDeriv slow = energyLists.energy(true, EnergyLists.SLOW_TERMS);
+        double[] slowGrad = slow.getDerivatives().clone();
+
+        Assert.assertTrue(fast.getEnergy() > 0.0);
+        Assert.assertTrue(slow.getEnergy() > 0.0);
+        Assert.assertEquals(all.getEnergy(), fast.getEnergy() + slow.getEnergy(), 1.0e-8 * Math.abs(all.getEnergy()));
+        double[] sum = new double[allGrad.length];
+        for (int i = 0; i < sum.length; i++) {
+            sum[i] = fastGrad[i] + slowGrad[i];
+        }
+        assertGradientEquals(allGrad, sum, 1.0e-8);
+    }
+
+    @Test
+    public void testSingleStepMatchesFullForces() throws Exception {
+        Dihedral dihedral = setup();
+        RotationalDynamics rDyn = dihedral.getRotationalDyamics();
+        Assert.assertEquals(1, rDyn.getRespaSteps());
+        EnergyDeriv expected = dihedral.energyList.energy(true, EnergyLists.ALL_TERMS);
+        double[] expectedGrad = expected.getDerivatives().clone();
+        EnergyDeriv forces = rDyn.calcForces(0);
+        Assert.assertEquals(expected.getEnergy(), forces.getEnergy(), 1.0e-8 * Math.abs(expected.getEnergy()));
+        assertGradientEquals(expectedGrad, forces.getDerivatives(), 1.0e-8);
+    }
+
+    @Test
+    public void testSlowForcesHeldBetweenEvaluations() throws Exception {
+        Dihedral dihedral = setup();
+        EnergyLists energyLists = dihedral.energyList;
+        RotationalDynamics rDyn = dihedral.getRotationalDyamics();
+        rDyn.setRespaSteps(3);
+        Assert.assertEquals(3, rDyn.getRespaSteps());
+
+        EnergyDeriv slow0 = energyLists.energy(true, EnergyLists.SLOW_TERMS);
+        double slowEnergy0 = slow0.getEnergy();
+        double[] slowGrad0 = slow0.getDerivatives().clone();
+        EnergyDeriv all0 = energyLists.energy(true, EnergyLists.ALL_TERMS);
+        double[] allGrad0 = all0.getDerivatives().clone();
+        // the first call evaluates all terms
+        EnergyDeriv forces0 = rDyn.calcForces(0);
+        Assert.assertEquals(all0.getEnergy(), forces0.getEnergy(), 1.0e-8 * Math.abs(all0.getEnergy()));
+        assertGradientEquals(allGrad0, forces0.getDerivatives(), 1.0e-8);
+
+        // between slow evaluations only the fast terms follow the new angles
+        EnergySetup.shiftAngles(dihedral, 0.02);
+        EnergyDeriv fast1 = energyLists.energy(true, EnergyLists.FAST_TERMS);
+        double fastEnergy1 = fast1.getEnergy();
+        double[] expected1 = fast1.getDerivatives().clone();
+        for (int i = 0; i < expected1.length; i++) {
+            expected1[i] += slowGrad0[i];
+        }
+        EnergyDeriv forces1 = rDyn.calcForces(1);
+        Assert.assertEquals(fastEnergy1 + slowEnergy0, forces1.getEnergy(), 1.0e-8 * Math.abs(forces1.getEnergy()));
+        assertGradientEquals(expected1, forces1.getDerivatives(), 1.0e-8);
+        Assert.assertEquals(0.0, rDyn.getSlowEnergyError(), 0.0);
+
+        // every respaSteps steps the slow terms are evaluated again
+        EnergyDeriv all3 = energyLists.energy(true, EnergyLists.ALL_TERMS);
+        double[] allGrad3 = all3.getDerivatives().clone();
+        double slowEnergy3 = energyLists.energy(true, EnergyLists.SLOW_TERMS).getEnergy();
+        EnergyDeriv forces3 = rDyn.calcForces(3);
+        Assert.assertEquals(all3.getEnergy(), forces3.getEnergy(), 1.0e-8 * Math.abs(all3.getEnergy()));
+        assertGradientEquals(allGrad3, forces3.getDerivatives(), 1.0e-8);
+        Assert.assertEquals(Math.abs(slowEnergy3 - slowEnergy0), rDyn.getSlowEnergyError(), 1.0e-8 * Math.abs(slowEnergy0));
+    }
+
+    @Test
+    public void testMultipleTimeStepDynamics() throws Exception {
+        Dihedral dihedral = setup();
+        RotationalDynamics rDyn = dihedral.getRotationalDyamics();
+        rDyn.setKinEScale(200.0);
+        rDyn.setRespaSteps(2);
+        int nSteps = 100;
+        rDyn.initDynamics2(new PyFloat(300.0), new PyFloat(0.005), nSteps, 4.0);
+        rDyn.runSteps(nSteps, 0);
+        Assert.assertEquals(nSteps, rDyn.getCurrentStep());
+        Assert.assertTrue(Double.isFinite(rDyn.getPotentialEnergy()));
+        Assert.assertTrue(Double.isFinite(rDyn.getKineticEnergy()));
+        double slowError = rDyn.getSlowEnergyError();
+        Assert.assertTrue(Double.isFinite(slowError) && (slowError >= 0.0));
+    }
+}
@@ -0,0 +1,171 @@
+package org.nmrfx.structure.chemistry.energy;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.apache.commons.math3.optim.ConvergenceChecker;
+import org.apache.commons.math3.optim.PointValuePair;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class StochasticOptimizerTest {
+
+    /**
+     * A quadratic energy that is the mean of terms centered on scattered
+     * points, so its minimum is at their mean. A minibatch uses a random
+     * half of the terms, giving a noisy gradient. The full energies are
+     * recorded.
+     */
+    static class Terms implements StochasticOptimizer.BatchSelector {
+
+        final double[][] centers;
+        final boolean[] selected;
+        final Random random;
+        boolean all = true;
+        final List<Double> fullEnergies = new ArrayList<>();
+        final List<double[]> fullPoints = new ArrayList<>();
+
+        Terms(int nTerms, int nDim, Random random) {
+            this.random = random;
+            centers = new double[nTerms][nDim];
+            for (double[] center : centers) {
+                for (int i = 0; i < nDim; i++) {
+                    center[i] = i + 1.0 + 2.0 * random.nextGaussian();
+                }
+            }
+            selected = new boolean[nTerms];
+        }
+
+        double[] getMinimum() {
+            double[] mean = new double[centers[0].length];
+            for (double[] center : centers) {
+                for (int i = 0; i < mean.length; i++) {
+                    mean[i] += center[i] / centers.length;
+                }
+            }
+            return mean;
+        }
+
+        @Override
+        public void select(int iteration) {
+            all = false;
+            for (int j = 0; j < selected.length; j++) {
+                selected[j] = random.nextBoolean();
+            }
+        }
+
+        @Override
+        public void selectAll() {
+            all = true;
+        }
+
+        EnergyDeriv value(double[] x) {
+            double energy = 0.0;
+            double[] deriv = new double[x.length];
+            int nUsed = 0;
+            for (int j = 0; j < centers.length; j++) {
+                if (all || selected[j]) {
+                    nUsed++;
+                    for (int i = 0; i < x.length; i++) {
+                        double delta = x[i] - centers[j][i];
+                        energy += 0.5 * delta * delta;
+                        deriv[i] += delta;
+                    }
+                }
+            }
+            nUsed = Math.max(1, nUsed);
+            for (int i = 0; i < x.length; i++) {
+                deriv[i] /= nUsed;
+            }
+            energy /= nUsed;
+            if (all) {
+                fullEnergies.add(energy);
+                fullPoints.add(x.clone());
+            }
+            return new EnergyDeriv(energy, deriv);
+        }
+    }
+
+    static ConvergenceChecker<PointValuePair> checker(double tolerance) {
+        return (iteration, previous, current) -> Math.abs(previous.getValue() - current.getValue()) < tolerance;
+    }
+
+    @Test
+    public void testConverges() {
+        for (StochasticOptimizer.Method method : StochasticOptimizer.Method.values()) {
+            Terms terms = new Terms(40, 5, new Random(9));
+            StochasticOptimizer optimizer = new StochasticOptimizer(method, null);
+            optimizer.setLearningRate(0.05, 1.0e-4, 10);
+            optimizer.setMaxStep(1.0);
+            double[] start = new double[5];
+            double startEnergy = terms.value(start).getEnergy();
+            terms.fullEnergies.clear();
+            terms.fullPoints.clear();
+            int maxIterations = 2000;
+            PointValuePair result = optimizer.optimize(terms::value, terms, start, maxIterations);
+
+            Assert.assertArrayEquals(new double[5], start, 0.0);
+            Assert.assertTrue(result.getValue() < startEnergy);
+            double[] minimum = terms.getMinimum();
+            Assert.assertArrayEquals(method.toString(), minimum, result.getPoint(), 0.05);
+            Assert.assertEquals(maxIterations, optimizer.getIterations());
+            // a full evaluation at the start and every 20 iterations
+            int nFull = 1 + maxIterations / 20;
+            Assert.assertEquals(nFull, terms.fullEnergies.size());
+            Assert.assertEquals(nFull + maxIterations, optimizer.getEvaluations());
+        }
+    }
+
+    @Test
+    public void testReturnsLowest() {
+        Terms terms = new Terms(20, 3, new Random(4));
+        // a large momentum step, so the point overshoots the minimum and
+        // the last point is not the best one
+        StochasticOptimizer optimizer = new StochasticOptimizer(StochasticOptimizer.Method.MOMENTUM, null);
+        optimizer.setLearningRate(0.5, 0.5, 0);
+        optimizer.setMoments(0.95, 0.999);
+        optimizer.setCheckInterval(3);
+        PointValuePair result = optimizer.optimize(terms::value, terms, new double[3], 200);
+        int lowest = 0;
+        for (int i = 1; i < terms.fullEnergies.size(); i++) {
+            if (terms.fullEnergies.get(i) < terms.fullEnergies.get(lowest)) {
+                lowest = i;
+            }
+        }
+        Assert.assertTrue(lowest < terms.fullEnergies.size() - 1);
+        Assert.assertEquals(terms.fullEnergies.get(lowest), result.getValue(), 0.0);
+        Assert.assertArrayEquals(terms.fullPoints.get(lowest), result.getPoint(), 0.0);
+        terms.selectAll();
+        Assert.assertEquals(result.getValue(), terms.value(result.getPoint()).getEnergy(), 0.0);
+    }
+
+    @Test
+    public void testConvergenceCheck() {
+        Terms terms = new Terms(20, 3, new Random(6));
+        StochasticOptimizer optimizer = new StochasticOptimizer(StochasticOptimizer.Method.ADAM, checker(1.0e-6));
+        optimizer.setLearningRate(0.05, 1.0e-4, 10);
+        optimizer.setCheckInterval(10);
+        // without a selector every evaluation uses all the terms
+        PointValuePair result = optimizer.optimize(terms::value, null, new double[3], 100000);
+        Assert.assertTrue(optimizer.getIterations() < 100000);
+        Assert.assertEquals(0, optimizer.getIterations() % 10);
+        Assert.assertArrayEquals(terms.getMinimum(), result.getPoint(), 0.01);
+    }
+
+    @Test
+    public void testLearningRate() {
+        StochasticOptimizer optimizer = new StochasticOptimizer(StochasticOptimizer.Method.ADAM, null);
+        optimizer.setLearningRate(0.1, 0.001, 9);
+        // linear warmup, then a cosine decay over 100 iterations
+        Assert.assertEquals(0.01, optimizer.getLearningRate(1, 109), 1.0e-15);
+        Assert.assertEquals(0.09, optimizer.getLearningRate(9, 109), 1.0e-15);
+        Assert.assertEquals(0.0505, optimizer.getLearningRate(59, 109), 1.0e-15);
+        Assert.assertEquals(0.001, optimizer.getLearningRate(109, 109), 1.0e-15);
+        double last = Double.MAX_VALUE;
+        for (int iter = 10; iter <= 109; iter++) {
+            double rate = optimizer.getLearningRate(iter, 109);
+            Assert.assertTrue(rate <= last);
+            last = rate;
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package org.nmrfx.structure.chemistry.energy;
+
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Assert;
+import org.junit.Test;
+import org.nmrfx.structure.chemistry.Molecule;
+import org.nmrfx.structure.chemistry.Residue;
+
+public class StochasticResiduesTest {
+
+    static final List<String> RESIDUES = Arrays.asList("ALA", "GLY", "SER", "VAL", "LEU", "THR");
+    // negative numbers, a gap and insertion codes
+    static final List<String> NUMBERS = Arrays.asList("-2", "-1", "10", "10A", "10B", "12");
+
+    static EnergyLists setup() throws Exception {
+        // repel, noe, dihedral and irp terms
+        ForceWeight forceWeight = new ForceWeight(-1.0, -1.0, 0.5, 1.0, -1.0, 5.0, 0.015, -1.0, 1.0, -1.0);
+        Dihedral dihedral = EnergySetup.setup("stochastic", RESIDUES, forceWeight);
+        EnergyLists energyLists = dihedral.energyList;
+        // restraints too short to be satisfied, between the first and third,
+        // and the second and fourth residues
+        energyLists.addDistanceConstraint("1.CA", "3.CA", 1.8, 2.0);
+        energyLists.addDistanceConstraint("2.CA", "4.CA", 1.8, 2.0);
+        List<Residue> residues = Molecule.getActive().getPolymers().get(0).getResidues();
+        for (int i = 0; i < residues.size(); i++) {
+            residues.get(i).number = NUMBERS.get(i);
+        }
+        // the sequence separation limit compares residue numbers, so can't
+        // be used with insertion codes
+        energyLists.setDeltaEnd(0);
+        energyLists.makeAtomListFast();
+        return energyLists;
+    }
+
+    static double calcNOE(EnergyLists energyLists, boolean[] states) {
+        energyLists.setStochasticResidues(states);
+        // rebuilds the restraint pairs for the selection
+        energyLists.makeAtomListFast();
+        return energyLists.calcNOE(false);
+    }
+
+    @Test
+    public void testResidueIndices() throws Exception {
+        EnergyLists energyLists = setup();
+        Assert.assertEquals(RESIDUES.size(), energyLists.indexStochasticResidues());
+        double all = energyLists.calcNOE(false);
+        Assert.assertEquals(all, calcNOE(energyLists, new boolean[]{true, true, true, true, true, true}), 1.0e-12);
+        double first = calcNOE(energyLists, new boolean[]{true, false, true, false, true, true});
+        double second = calcNOE(energyLists, new boolean[]{false, true, false, true, true, true});
+        Assert.assertTrue(first > 0.0);
+        Assert.assertTrue(second > 0.0);
+        Assert.assertEquals(all, first + second, 1.0e-8 * all);
+        Assert.assertEquals(0.0, calcNOE(energyLists, new boolean[]{false, true, true, false, true, true}), 0.0);
+        Assert.assertEquals(all, calcNOE(energyLists, null), 1.0e-12);
+    }
+}
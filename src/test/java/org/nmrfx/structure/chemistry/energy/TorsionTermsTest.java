@@ -0,0 +1,161 @@
+package org.nmrfx.structure.chemistry.energy;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+import org.nmrfx.structure.chemistry.Atom;
+import org.nmrfx.structure.chemistry.Point3;
+import org.nmrfx.structure.fastlinear.FastVector3D;
+
+public class TorsionTermsTest {
+
+    static final List<String> RESIDUES = Arrays.asList("ALA", "GLY", "SER", "VAL", "LEU", "THR", "PHE");
+    static final List<String> RESTRAINED = Arrays.asList("2.C", "3.C", "4.C", "5.C", "6.C", "3.N", "4.N", "5.N");
+
+    static Dihedral setup(double dihWeight, double irpWeight, long seed) throws Exception {
+        ForceWeight forceWeight = new ForceWeight(-1.0, -1.0, -1.0, -1.0, -1.0, dihWeight, irpWeight, -1.0, 1.0, -1.0);
+        Dihedral dihedral = EnergySetup.setup("torsion", RESIDUES, forceWeight);
+        EnergySetup.addBoundaries(dihedral, RESTRAINED, -80.0, -40.0);
+        EnergySetup.randomize(dihedral, seed);
+        return dihedral;
+    }
+
+    static List<AngleBoundary> getBoundaries() {
+        List<AngleBoundary> boundaries = new ArrayList<>();
+        for (List<AngleBoundary> boundaryList : Dihedral.angleBoundaries.values()) {
+            boundaries.addAll(boundaryList);
+        }
+        return boundaries;
+    }
+
+    // the dihedral restraint loop EnergyLists used before TorsionTerms
+    static double calcDihedralEnergyByLoop(EnergyCoords eCoords, List<AngleBoundary> boundaries,
+            ForceWeight forceWeight, double[] gradient) {
+        double energyTotal = 0.0;
+        for (AngleBoundary angleBoundary : boundaries) {
+            double dihedral;
+            Atom[] atoms = angleBoundary.getAtoms();
+            if (atoms.length == 1) {
+                dihedral = atoms[0].dihedralAngle;
+            } else {
+                dihedral = eCoords.calcDihedral(atoms[0].eAtom, atoms[1].eAtom, atoms[2].eAtom, atoms[3].eAtom);
+            }
+            AtomEnergy energy = AtomMath.calcDihedralEnergy(dihedral, angleBoundary.lower, angleBoundary.upper, forceWeight,
+                    gradient != null);
+            energyTotal += energy.getEnergy();
+            if (gradient != null) {
+                gradient[angleBoundary.getIndex()] -= energy.getDeriv();
+            }
+        }
+        return energyTotal;
+    }
+
+    // the IRP loop EnergyLists used before TorsionTerms
+    static double calcIRPByLoop(EnergyCoords eCoords, List<Atom> angleAtoms, double weight, double[] gradient) {
+        double energyTotal = 0.0;
+        int i = 0;
+        for (Atom atom : angleAtoms) {
+            Atom[] atoms = new Atom[4];
+            atoms[3] = atom.daughterAtom;
+            if (atoms[3] != null) {
+                atoms[2] = atom;
+                atoms[1] = atom.parent;
+                if (atoms[1] != null) {
+                    atoms[0] = atoms[1].parent;
+                }
+            }
+            if (atoms[0] != null) {
+                int irpIndex = atom.irpIndex;
+                if ((irpIndex > 0) && (irpIndex < 9999)) {
+                    double angle = eCoords.calcDihedral(atoms[0].eAtom, atoms[1].eAtom, atoms[2].eAtom, atoms[3].eAtom);
+                    angle = Dihedral.reduceAngle(angle);
+                    for (double[] irpVal : EnergyLists.irpTable[irpIndex - 1]) {
+                        double v = irpVal[0];
+                        double n = irpVal[1];
+                        double phi = irpVal[2];
+                        energyTotal += weight * v * (1.0 + Math.cos(n * angle - phi));
+                        if (gradient != null) {
+                            gradient[i] += -weight * v * n * Math.sin(n * angle - phi);
+                        }
+                    }
+                }
+            }
+            i++;
+        }
+        return energyTotal;
+    }
+
+    static void assertArrayClose(double[] expected, double[] actual, double tol) {
+        Assert.assertEquals(expected.length, actual.length);
+        for (int i = 0; i < expected.length; i++) {
+            Assert.assertEquals("angle " + i, expected[i], actual[i], tol);
+        }
+    }
+
+    @Test
+    public void testDihedralKernel() {
+        Random random = new Random(7);
+        FastVector3D[] coords = new FastVector3D[4];
+        Point3[] points = new Point3[4];
+        int[] atoms = {0, 1, 2, 3};
+        for (int trial = 0; trial < 10000; trial++) {
+            for (int j = 0; j < 4; j++) {
+                double x = 4.0 * (random.nextDouble() - 0.5);
+                double y = 4.0 * (random.nextDouble() - 0.5);
+                double z = 4.0 * (random.nextDouble() - 0.5);
+                coords[j] = new FastVector3D(x, y, z);
+                points[j] = new Point3(x, y, z);
+            }
+            double expected = AtomMath.calcDihedral(points[0], points[1], points[2], points[3]);
+            double angle = TorsionTerms.calcDihedral(coords, atoms, 0);
+            Assert.assertEquals(0.0, Dihedral.reduceAngle(angle - expected), 1.0e-9);
+        }
+    }
+
+    @Test
+    public void testMatchesLoops() throws Exception {
+        for (long seed = 1; seed <= 3; seed++) {
+            Dihedral dihedral = setup(5.0, 0.015, seed);
+            EnergyLists energyLists = dihedral.energyList;
+            energyLists.setupDihedrals();
+            EnergyCoords eCoords = dihedral.molecule.getEnergyCoords();
+            List<Atom> angleAtoms = dihedral.molecule.getAngleAtoms();
+            int nAngles = angleAtoms.size();
+            TorsionTerms terms = energyLists.getTorsionTerms();
+            Assert.assertEquals(RESTRAINED.size(), terms.getDihedralCount());
+            Assert.assertTrue(terms.getIrpCount() > 0);
+
+            double[] expectedGrad = new double[nAngles];
+            double expected = calcDihedralEnergyByLoop(eCoords, getBoundaries(), energyLists.getForceWeight(), expectedGrad);
+            double[] grad = new double[nAngles];
+            double energy = energyLists.calcDihedralEnergyFast(grad);
+            Assert.assertTrue(expected > 0.0);
+            Assert.assertEquals(expected, energy, 1.0e-9 * expected);
+            assertArrayClose(expectedGrad, grad, 1.0e-9);
+
+            expectedGrad = new double[nAngles];
+            expected = calcIRPByLoop(eCoords, angleAtoms, 0.015, expectedGrad);
+            grad = new double[nAngles];
+            energy = energyLists.calcIRPFast(grad);
+            Assert.assertEquals(expected, energy, 1.0e-9 * Math.abs(expected));
+            assertArrayClose(expectedGrad, grad, 1.0e-9);
+        }
+    }
+
+    @Test
+    public void testDihedralFiniteDifference() throws Exception {
+        Dihedral dihedral = setup(5.0, -1.0, 11);
+        double err = new GradientRefinement(dihedral).calcDerivError(1.0e-5);
+        Assert.assertEquals(0.0, err, 1.0e-3);
+    }
+
+    @Test
+    public void testIRPFiniteDifference() throws Exception {
+        Dihedral dihedral = setup(-1.0, 0.015, 12);
+        double err = new GradientRefinement(dihedral).calcDerivError(1.0e-5);
+        Assert.assertEquals(0.0, err, 1.0e-3);
+    }
+}
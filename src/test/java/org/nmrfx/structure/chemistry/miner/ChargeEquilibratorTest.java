@@ -0,0 +1,183 @@
+package org.nmrfx.structure.chemistry.miner;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+import org.nmrfx.structure.chemistry.Molecule;
+import org.nmrfx.structure.chemistry.Polymer;
+import org.nmrfx.structure.chemistry.io.Sequence;
+
+public class ChargeEquilibratorTest {
+
+    static final double HARDNESS_SCALE = 2.1;
+
+    static Polymer buildPolymer(List<String> residues) throws Exception {
+        Molecule.removeAll();
+        Molecule molecule = new Sequence().read("charges", residues, null);
+        Polymer polymer = molecule.getPolymers().get(0);
+        // the elec and hard parameters
+        PathIterator pI = new PathIterator(polymer);
+        pI.init(NodeEvaluatorFactory.getDefault());
+        pI.processPatterns();
+        return polymer;
+    }
+
+    /**
+     * The atoms of a container in a different order, with the same bonds.
+     */
+    static class ReorderedContainer implements AtomContainer {
+
+        final AtomContainer ac;
+        final List<IAtom> atomList;
+
+        ReorderedContainer(AtomContainer ac, long seed) {
+            this.ac = ac;
+            atomList = new ArrayList<>(ac.atoms());
+            Collections.shuffle(atomList, new Random(seed));
+        }
+
+        @Override
+        public int getAtomCount() {
+            return atomList.size();
+        }
+
+        @Override
+        public int getBondCount() {
+            return ac.getBondCount();
+        }
+
+        @Override
+        public IAtom getAtom(int i) {
+            return atomList.get(i);
+        }
+
+        @Override
+        public IBond getBond(int i) {
+            return ac.getBond(i);
+        }
+
+        @Override
+        public IBond getBond(IAtom atom1, IAtom atom2) {
+            return ac.getBond(atom1, atom2);
+        }
+
+        @Override
+        public List<IAtom> atoms() {
+            return atomList;
+        }
+
+        @Override
+        public List<IBond> getBonds(IAtom atom) {
+            return ac.getBonds(atom);
+        }
+
+        @Override
+        public List<IBond> bonds() {
+            return ac.bonds();
+        }
+
+        @Override
+        public List<IAtom> getConnectedAtomsList(IAtom atom) {
+            return ac.getConnectedAtomsList(atom);
+        }
+
+        @Override
+        public List<IBond> getConnectedBondsList(IAtom atom) {
+            return ac.getConnectedBondsList(atom);
+        }
+
+        @Override
+        public int getAtomNumber(IAtom atom) {
+            return atomList.indexOf(atom);
+        }
+
+        @Override
+        public int getBondNumber(IBond bond) {
+            return ac.getBondNumber(bond);
+        }
+    }
+
+    static double[] getProperty(AtomContainer ac, String name) {
+        double[] values = new double[ac.getAtomCount()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = (Double) ac.getAtom(i).getProperty(name);
+        }
+        return values;
+    }
+
+    @Test
+    public void testMatchesOptimizer() throws Exception {
+        List<List<String>> sequences = Arrays.asList(
+                Arrays.asList("ALA", "SER", "GLY"),
+                Arrays.asList("PHE", "HIS", "ASP", "LYS"),
+                Arrays.asList("TRP", "MET", "ARG", "GLU", "TYR"));
+        for (List<String> residues : sequences) {
+            Polymer polymer = buildPolymer(residues);
+            PartialChargeCalculator calculator = new PartialChargeCalculator(polymer);
+            calculator.executeWithOptimizer(HARDNESS_SCALE);
+            double[] expected = getProperty(polymer, "pcharge");
+            double[] expected1 = getProperty(polymer, "pcharge1");
+            double[] expected2 = getProperty(polymer, "pcharge2");
+            ChargeEquilibrator.clearCache();
+            calculator.execute(HARDNESS_SCALE);
+            double[] charges = getProperty(polymer, "pcharge");
+            Assert.assertArrayEquals(expected, charges, 1.0e-3);
+            Assert.assertArrayEquals(expected1, getProperty(polymer, "pcharge1"), 4.0e-3);
+            Assert.assertArrayEquals(expected2, getProperty(polymer, "pcharge2"), 1.0e-2);
+            double sum = 0.0;
+            for (double charge : charges) {
+                sum += charge;
+            }
+            Assert.assertEquals(0.0, sum, 1.0e-10);
+        }
+    }
+
+    @Test
+    public void testCanonicalKey() throws Exception {
+        Polymer polymer = buildPolymer(Arrays.asList("PHE", "SER", "TYR", "VAL"));
+        ChargeEquilibrator equilibrator = new ChargeEquilibrator(polymer);
+        String key = equilibrator.getKey(HARDNESS_SCALE);
+        Assert.assertNotEquals(key, equilibrator.getKey(1.0));
+        double[] charges = equilibrator.solve(HARDNESS_SCALE);
+        for (long seed = 1; seed <= 5; seed++) {
+            ReorderedContainer reordered = new ReorderedContainer(polymer, seed);
+            ChargeEquilibrator reorderedEquilibrator = new ChargeEquilibrator(reordered);
+            Assert.assertEquals(key, reorderedEquilibrator.getKey(HARDNESS_SCALE));
+            double[] reorderedCharges = reorderedEquilibrator.solve(HARDNESS_SCALE);
+            for (int i = 0; i < reorderedCharges.length; i++) {
+                int iAtom = polymer.getAtomNumber(reordered.getAtom(i));
+                Assert.assertEquals(charges[iAtom], reorderedCharges[i], 1.0e-12);
+            }
+        }
+        // a different compound has a different key
+        Polymer other = buildPolymer(Arrays.asList("PHE", "SER", "TYR", "ILE"));
+        Assert.assertNotEquals(key, new ChargeEquilibrator(other).getKey(HARDNESS_SCALE));
+    }
+
+    @Test
+    public void testCacheHitReordered() throws Exception {
+        Polymer polymer = buildPolymer(Arrays.asList("HIS", "ASN", "TRP", "GLN"));
+        ChargeEquilibrator.clearCache();
+        ChargeEquilibrator equilibrator = new ChargeEquilibrator(polymer);
+        double[] charges = equilibrator.getCharges(HARDNESS_SCALE);
+        Assert.assertEquals(1, ChargeEquilibrator.CHARGE_CACHE.size());
+        ReorderedContainer reordered = new ReorderedContainer(polymer, 11);
+        ChargeEquilibrator reorderedEquilibrator = new ChargeEquilibrator(reordered);
+        double[] cachedCharges = reorderedEquilibrator.getCharges(HARDNESS_SCALE);
+        // the charges came from the cache and are mapped to the new order
+        Assert.assertEquals(1, ChargeEquilibrator.CHARGE_CACHE.size());
+        double[] solved = reorderedEquilibrator.solve(HARDNESS_SCALE);
+        for (int i = 0; i < cachedCharges.length; i++) {
+            int iAtom = polymer.getAtomNumber(reordered.getAtom(i));
+            Assert.assertEquals(charges[iAtom], cachedCharges[i], 0.0);
+            Assert.assertEquals(solved[i], cachedCharges[i], 1.0e-12);
+        }
+        // callers get a copy of the cached charges
+        cachedCharges[0] += 1.0;
+        Assert.assertArrayEquals(charges, equilibrator.getCharges(HARDNESS_SCALE), 0.0);
+    }
+}
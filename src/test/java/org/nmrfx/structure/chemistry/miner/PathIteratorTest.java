@@ -0,0 +1,129 @@
+package org.nmrfx.structure.chemistry.miner;
+
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Assert;
+import org.junit.Test;
+import org.nmrfx.structure.chemistry.Atom;
+import org.nmrfx.structure.chemistry.Entity;
+import org.nmrfx.structure.chemistry.Molecule;
+import org.nmrfx.structure.chemistry.Polymer;
+import org.nmrfx.structure.chemistry.Residue;
+import org.nmrfx.structure.chemistry.io.Sequence;
+
+public class PathIteratorTest {
+
+    // aromatic, heteroaromatic and saturated rings, and N, O and S atoms
+    static final List<String> RESIDUES = Arrays.asList("PHE", "TYR", "TRP", "HIS", "PRO", "MET", "CYS", "ASN", "GLN", "ARG", "ASP", "LYS");
+    static final String[] PARAMS = {"elec", "hard", "charge"};
+
+    static Polymer buildPolymer() throws Exception {
+        Molecule.removeAll();
+        Molecule molecule = new Sequence().read("paths", RESIDUES, null);
+        return molecule.getPolymers().get(0);
+    }
+
+    static class Result {
+
+        final boolean[][] properties;
+        final Object[][] params;
+
+        Result(boolean[][] properties, Object[][] params) {
+            this.properties = properties;
+            this.params = params;
+        }
+    }
+
+    static Result run(Entity entity, NodeValidatorInterface nodeValidator, boolean iterative) {
+        List<Atom> atoms = entity.getAtoms();
+        for (Atom atom : atoms) {
+            for (String param : PARAMS) {
+                atom.setProperty(param, null);
+            }
+        }
+        PathIterator pI = new PathIterator(entity);
+        pI.init(nodeValidator);
+        if (iterative) {
+            pI.processPatternsIteratively();
+        } else {
+            pI.processPatterns();
+        }
+        boolean[][] props = nodeValidator.getProperties();
+        boolean[][] properties = new boolean[atoms.size()][];
+        for (int i = 0; i < properties.length; i++) {
+            properties[i] = props[i].clone();
+        }
+        Object[][] params = new Object[atoms.size()][PARAMS.length];
+        for (int i = 0; i < atoms.size(); i++) {
+            for (int j = 0; j < PARAMS.length; j++) {
+                params[i][j] = atoms.get(i).getProperty(PARAMS[j]);
+            }
+        }
+        return new Result(properties, params);
+    }
+
+    static void compare(Entity entity, NodeValidatorInterface nodeValidator) {
+        Result expected = run(entity, nodeValidator, true);
+        Result result = run(entity, nodeValidator, false);
+        List<Atom> atoms = entity.getAtoms();
+        String[] propNames = nodeValidator.getPropertyNames();
+        for (int i = 0; i < atoms.size(); i++) {
+            String atomName = atoms.get(i).getFullName();
+            for (int j = 0; j < propNames.length; j++) {
+                Assert.assertEquals(atomName + " " + propNames[j], expected.properties[i][j], result.properties[i][j]);
+            }
+            for (int j = 0; j < PARAMS.length; j++) {
+                Assert.assertEquals(atomName + " " + PARAMS[j], expected.params[i][j], result.params[i][j]);
+            }
+        }
+    }
+
+    static int countProperty(Result result, NodeValidatorInterface nodeValidator, String propName) {
+        int index = Arrays.asList(nodeValidator.getPropertyNames()).indexOf(propName);
+        int n = 0;
+        for (boolean[] props : result.properties) {
+            if (props[index]) {
+                n++;
+            }
+        }
+        return n;
+    }
+
+    @Test
+    public void testResidues() throws Exception {
+        Polymer polymer = buildPolymer();
+        List<NodeValidatorInterface> validators = Arrays.asList(NodeEvaluatorFactory.getDefault(), new NodeValidator());
+        for (Residue residue : polymer.getResidues()) {
+            for (NodeValidatorInterface nodeValidator : validators) {
+                compare(residue, nodeValidator);
+            }
+        }
+    }
+
+    @Test
+    public void testPolymer() throws Exception {
+        Polymer polymer = buildPolymer();
+        NodeValidatorInterface nodeValidator = NodeEvaluatorFactory.getDefault();
+        compare(polymer, nodeValidator);
+        compare(polymer, new NodeValidator());
+
+        // the PHE, TYR and TRP rings are aromatic, PRO adds a saturated ring
+        Result result = run(polymer, nodeValidator, false);
+        int nAromatic = countProperty(result, nodeValidator, "ar");
+        Assert.assertTrue(nAromatic >= 6 + 6 + 9);
+        Assert.assertTrue(countProperty(result, nodeValidator, "r") >= nAromatic + 5);
+    }
+
+    @Test
+    public void testParallelSearch() throws Exception {
+        Polymer polymer = buildPolymer();
+        int threshold = PathMatcher.parallelThreshold;
+        try {
+            // search the start atoms of the param patterns in parallel
+            PathMatcher.parallelThreshold = 1;
+            compare(polymer, NodeEvaluatorFactory.getDefault());
+        } finally {
+            PathMatcher.parallelThreshold = threshold;
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package org.nmrfx.structure.chemistry.miner;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Assert;
+import org.junit.Test;
+import org.nmrfx.structure.chemistry.Atom;
+import org.nmrfx.structure.chemistry.Molecule;
+import org.nmrfx.structure.chemistry.Polymer;
+import org.nmrfx.structure.chemistry.io.MMcifReader;
+
+public class PatternValidatorTest {
+
+    // 5lbm and 6j91 have selenomethionine residues
+    static final List<String> CIF_FILES = Arrays.asList("2kpu", "1pqx", "2png", "3q4f", "5lbm", "6j91");
+    static final String[] PARAMS = {"elec", "hard", "charge"};
+
+    static Molecule readMolecule(String cifFileName) throws Exception {
+        Molecule.removeAll();
+        String fileName = String.join(File.separator, "src", "test", "data", "ciffiles", cifFileName + ".cif");
+        MMcifReader.read(fileName);
+        return Molecule.getActive();
+    }
+
+    static Object[][] type(Polymer polymer, NodeValidatorInterface nodeValidator) {
+        List<Atom> atoms = polymer.getAtoms();
+        for (Atom atom : atoms) {
+            for (String param : PARAMS) {
+                atom.setProperty(param, null);
+            }
+        }
+        PathIterator pI = new PathIterator(polymer);
+        pI.init(nodeValidator);
+        pI.processPatterns();
+        Object[][] params = new Object[atoms.size()][PARAMS.length];
+        for (int i = 0; i < atoms.size(); i++) {
+            for (int j = 0; j < PARAMS.length; j++) {
+                params[i][j] = atoms.get(i).getProperty(PARAMS[j]);
+            }
+        }
+        return params;
+    }
+
+    static void compare(String cifFileName) throws Exception {
+        Molecule molecule = readMolecule(cifFileName);
+        Assert.assertFalse(molecule.getPolymers().isEmpty());
+        for (Polymer polymer : molecule.getPolymers()) {
+            List<Atom> atoms = polymer.getAtoms();
+            NodeValidatorInterface oldValidator = new NodeValidator();
+            Object[][] oldParams = type(polymer, oldValidator);
+            NodeValidatorInterface nodeValidator = NodeEvaluatorFactory.getDefault();
+            Object[][] params = type(polymer, nodeValidator);
+
+            List<String> oldNames = Arrays.asList(oldValidator.getPropertyNames());
+            String[] propNames = nodeValidator.getPropertyNames();
+            Assert.assertEquals(oldNames.size(), propNames.length);
+            boolean[][] oldProps = oldValidator.getProperties();
+            boolean[][] props = nodeValidator.getProperties();
+            for (int i = 0; i < atoms.size(); i++) {
+                String atomName = cifFileName + " " + atoms.get(i).getFullName();
+                for (int j = 0; j < propNames.length; j++) {
+                    int oldIndex = oldNames.indexOf(propNames[j]);
+                    Assert.assertTrue(propNames[j], oldIndex >= 0);
+                    Assert.assertEquals(atomName + " " + propNames[j], oldProps[i][oldIndex], props[i][j]);
+                }
+                for (int j = 0; j < PARAMS.length; j++) {
+                    Assert.assertEquals(atomName + " " + PARAMS[j], oldParams[i][j], params[i][j]);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testDefaultMatchesNodeValidator() throws Exception {
+        for (String cifFileName : CIF_FILES) {
+            compare(cifFileName);
+        }
+    }
+
+    @Test
+    public void testLoadDefaultRules() throws Exception {
+        String fileName = String.join(File.separator, "src", "main", "resources", "data", "atomtypes.pat");
+        NodeValidatorInterface loaded = NodeEvaluatorFactory.load(fileName);
+        NodeValidatorInterface nodeValidator = NodeEvaluatorFactory.getDefault();
+        Assert.assertArrayEquals(nodeValidator.getPropertyNames(), loaded.getPropertyNames());
+        Assert.assertEquals(nodeValidator.patternCount(), loaded.patternCount());
+        for (int i = 0; i < nodeValidator.patternCount(); i++) {
+            Assert.assertEquals(nodeValidator.getMode(i), loaded.getMode(i));
+            Assert.assertEquals(nodeValidator.pathSize(i), loaded.pathSize(i));
+        }
+    }
+}
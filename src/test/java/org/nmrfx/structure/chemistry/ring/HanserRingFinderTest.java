@@ -0,0 +1,161 @@
+package org.nmrfx.structure.chemistry.ring;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Assert;
+import org.junit.Test;
+import org.nmrfx.structure.chemistry.Atom;
+import org.nmrfx.structure.chemistry.Compound;
+import org.nmrfx.structure.chemistry.ITree;
+import org.nmrfx.structure.chemistry.Molecule;
+import org.nmrfx.structure.chemistry.Order;
+import org.nmrfx.structure.chemistry.Polymer;
+import org.nmrfx.structure.chemistry.Residue;
+import org.nmrfx.structure.chemistry.io.Sequence;
+
+public class HanserRingFinderTest {
+
+    static final int[][] NAPHTHALENE = {{0, 1}, {1, 2}, {2, 3}, {3, 4}, {4, 5}, {5, 0},
+    {5, 6}, {6, 7}, {7, 8}, {8, 9}, {9, 4}};
+    // the corners of a cube, numbered by their coordinate bits
+    static final int[][] CUBANE = {{0, 1}, {0, 2}, {0, 4}, {1, 3}, {1, 5}, {2, 3},
+    {2, 6}, {3, 7}, {4, 5}, {4, 6}, {5, 7}, {6, 7}};
+    // four bridgeheads, with a bridge between each pair
+    static final int[][] ADAMANTANE = {{0, 4}, {4, 1}, {0, 5}, {5, 2}, {0, 6}, {6, 3},
+    {1, 7}, {7, 2}, {1, 8}, {8, 3}, {2, 9}, {9, 3}};
+
+    static Compound makeCompound(String name, int nAtoms, int[][] bonds) {
+        Molecule molecule = new Molecule(name);
+        Compound compound = new Compound("1", name);
+        compound.molecule = molecule;
+        molecule.addEntity(compound, name);
+        List<Atom> atoms = new ArrayList<>();
+        for (int i = 0; i < nAtoms; i++) {
+            Atom atom = Atom.genAtomWithElement("C" + (i + 1), "C");
+            compound.addAtom(atom);
+            atoms.add(atom);
+        }
+        for (int[] bond : bonds) {
+            Atom.addBond(atoms.get(bond[0]), atoms.get(bond[1]), Order.SINGLE, false);
+        }
+        return compound;
+    }
+
+    static void compare(String msg, ITree itree) {
+        for (int maxRingSize : new int[]{-1, 6, 8}) {
+            HanserRingFinder finder = new HanserRingFinder();
+            finder.setMaximumRingSize(maxRingSize);
+            List<Ring> expected = new ArrayList<>(finder.findRingsByPathGraph(itree));
+            List<Ring> rings = new ArrayList<>(finder.findRings(itree));
+            Assert.assertEquals(msg + " " + maxRingSize, expected.size(), rings.size());
+            for (int i = 0; i < rings.size(); i++) {
+                Assert.assertEquals(msg + " " + maxRingSize + " " + i, expected.get(i).getAtoms(), rings.get(i).getAtoms());
+            }
+        }
+    }
+
+    static List<Ring> findSmallestRings(ITree itree, HanserRingFinder.Mode mode) {
+        HanserRingFinder finder = new HanserRingFinder();
+        finder.setMode(mode);
+        return new ArrayList<>(finder.findSmallestRings(itree));
+    }
+
+    static void checkSizes(List<Ring> rings, int... sizes) {
+        Assert.assertEquals(sizes.length, rings.size());
+        for (int i = 0; i < sizes.length; i++) {
+            Assert.assertEquals(sizes[i], rings.get(i).size());
+        }
+    }
+
+    @Test
+    public void testMatchesPathGraph() throws Exception {
+        compare("naphthalene", makeCompound("naphthalene", 10, NAPHTHALENE));
+        compare("cubane", makeCompound("cubane", 8, CUBANE));
+        compare("adamantane", makeCompound("adamantane", 10, ADAMANTANE));
+
+        Molecule.removeAll();
+        Molecule molecule = new Sequence().read("rings", Arrays.asList("PHE", "TRP", "HIS", "PRO", "TYR"), null);
+        Polymer polymer = molecule.getPolymers().get(0);
+        for (Residue residue : polymer.getResidues()) {
+            compare(residue.getName(), residue);
+        }
+        compare("molecule", molecule);
+    }
+
+    @Test
+    public void testNaphthalene() {
+        Compound compound = makeCompound("naphthalene", 10, NAPHTHALENE);
+        checkSizes(new ArrayList<>(new HanserRingFinder().findRings(compound)), 6, 6, 10);
+        checkSizes(findSmallestRings(compound, HanserRingFinder.Mode.SMALLEST), 6, 6);
+        checkSizes(findSmallestRings(compound, HanserRingFinder.Mode.SSSR), 6, 6);
+        checkSizes(findSmallestRings(compound, HanserRingFinder.Mode.RELEVANT), 6, 6);
+    }
+
+    @Test
+    public void testCubane() {
+        Compound compound = makeCompound("cubane", 8, CUBANE);
+        // 6 four membered, 16 six membered and 6 eight membered rings
+        Assert.assertEquals(28, new HanserRingFinder().findRings(compound).size());
+        // the SSSR has bonds - atoms + 1 rings, any five of the six faces
+        checkSizes(findSmallestRings(compound, HanserRingFinder.Mode.SSSR), 4, 4, 4, 4, 4);
+        // all six faces are relevant
+        checkSizes(findSmallestRings(compound, HanserRingFinder.Mode.RELEVANT), 4, 4, 4, 4, 4, 4);
+    }
+
+    @Test
+    public void testAdamantane() {
+        Compound compound = makeCompound("adamantane", 10, ADAMANTANE);
+        checkSizes(findSmallestRings(compound, HanserRingFinder.Mode.SSSR), 6, 6, 6);
+        checkSizes(findSmallestRings(compound, HanserRingFinder.Mode.RELEVANT), 6, 6, 6, 6);
+    }
+
+    static List<Ring> findCachedRings(ITree itree, HanserRingFinder.Mode mode) {
+        HanserRingFinder finder = new HanserRingFinder();
+        finder.setMode(mode);
+        finder.setUseCache(true);
+        return new ArrayList<>(finder.findSmallestRings(itree));
+    }
+
+    static void checkSameRings(List<Ring> expected, List<Ring> rings) {
+        Assert.assertEquals(expected.size(), rings.size());
+        for (int i = 0; i < rings.size(); i++) {
+            Assert.assertEquals(expected.get(i).getAtoms(), rings.get(i).getAtoms());
+        }
+    }
+
+    @Test
+    public void testCache() {
+        HanserRingFinder.clearCache();
+        try {
+            Compound compound = makeCompound("cubane", 8, CUBANE);
+            List<Ring> expected = findSmallestRings(compound, HanserRingFinder.Mode.RELEVANT);
+            Assert.assertTrue(HanserRingFinder.RING_CACHE.isEmpty());
+
+            // the first search is cached, and the second uses the cached entry
+            checkSameRings(expected, findCachedRings(compound, HanserRingFinder.Mode.RELEVANT));
+            HanserRingFinder.CachedRings cachedRings = HanserRingFinder.RING_CACHE.get(compound);
+            Assert.assertNotNull(cachedRings);
+            checkSameRings(expected, findCachedRings(compound, HanserRingFinder.Mode.RELEVANT));
+            Assert.assertSame(cachedRings, HanserRingFinder.RING_CACHE.get(compound));
+            Assert.assertEquals(expected.size(), cachedRings.ringAtoms.length);
+
+            // a different mode, or a changed molecule, is searched again
+            checkSizes(findCachedRings(compound, HanserRingFinder.Mode.SSSR), 4, 4, 4, 4, 4);
+            Assert.assertNotSame(cachedRings, HanserRingFinder.RING_CACHE.get(compound));
+            cachedRings = HanserRingFinder.RING_CACHE.get(compound);
+            List<Atom> atoms = compound.getAtomArray();
+            Atom.addBond(atoms.get(0), atoms.get(7), Order.SINGLE, false);
+            checkSameRings(findSmallestRings(compound, HanserRingFinder.Mode.SSSR),
+                    findCachedRings(compound, HanserRingFinder.Mode.SSSR));
+            Assert.assertNotSame(cachedRings, HanserRingFinder.RING_CACHE.get(compound));
+
+            HanserRingFinder.clearCache();
+            Assert.assertTrue(HanserRingFinder.RING_CACHE.isEmpty());
+            findCachedRings(compound, HanserRingFinder.Mode.SSSR);
+            Assert.assertEquals(1, HanserRingFinder.RING_CACHE.size());
+        } finally {
+            HanserRingFinder.clearCache();
+        }
+    }
+}
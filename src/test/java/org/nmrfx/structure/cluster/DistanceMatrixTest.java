@@ -0,0 +1,86 @@
+package org.nmrfx.structure.cluster;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class DistanceMatrixTest {
+
+    @Test
+    public void testPackedIndex() {
+        for (int n = 0; n < 12; n++) {
+            // a value that identifies the pair
+            DistanceMatrix matrix = new DistanceMatrix(n, (i, j) -> 100.0 * i + j);
+            Assert.assertEquals(n, matrix.size());
+            Assert.assertEquals(n * (n - 1) / 2, matrix.values.length);
+            boolean[] used = new boolean[matrix.values.length];
+            for (int i = 0; i < n; i++) {
+                Assert.assertEquals(0.0, matrix.get(i, i), 0.0);
+                for (int j = i + 1; j < n; j++) {
+                    int index = matrix.index(i, j);
+                    Assert.assertEquals(index, matrix.index(j, i));
+                    Assert.assertFalse(used[index]);
+                    used[index] = true;
+                    Assert.assertEquals(100.0 * i + j, matrix.get(i, j), 0.0);
+                    Assert.assertEquals(100.0 * i + j, matrix.get(j, i), 0.0);
+                }
+            }
+            // the pairs fill the packed values in row order
+            int index = 0;
+            for (int i = 0; i < n; i++) {
+                for (int j = i + 1; j < n; j++) {
+                    Assert.assertEquals(index++, matrix.index(i, j));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testSet() {
+        int n = 6;
+        DistanceMatrix matrix = new DistanceMatrix(n, (i, j) -> 1.0);
+        double[] packed = matrix.values.clone();
+        matrix.set(packed, 4, 2, 7.0);
+        Assert.assertEquals(7.0, matrix.get(packed, 2, 4), 0.0);
+        Assert.assertEquals(7.0, matrix.get(packed, 4, 2), 0.0);
+        // the matrix itself is unchanged
+        Assert.assertEquals(1.0, matrix.get(2, 4), 0.0);
+    }
+
+    @Test
+    public void testFromSquare() {
+        double[][] square = {
+            {0.0, 1.0, 2.0, 3.0},
+            {1.0, 0.0, 4.0, 5.0},
+            {2.0, 4.0, 0.0, 6.0},
+            {3.0, 5.0, 6.0, 0.0}};
+        DistanceMatrix matrix = new DistanceMatrix(square);
+        for (int i = 0; i < square.length; i++) {
+            for (int j = 0; j < square.length; j++) {
+                Assert.assertEquals(square[i][j], matrix.get(i, j), 0.0);
+            }
+        }
+        // sums 6, 10, 12 and 14, and 9, 10 and 11 without item 0
+        Assert.assertEquals(0, matrix.medoid(Arrays.asList(0, 1, 2, 3)));
+        Assert.assertEquals(1, matrix.medoid(Arrays.asList(3, 2, 1)));
+        Assert.assertEquals(-1, matrix.medoid(new ArrayList<>()));
+    }
+
+    @Test
+    public void testFromVectors() {
+        List<Datum> data = new ArrayList<>();
+        for (double[] v : new double[][]{{350.0, 0.0}, {10.0, 0.0}, {170.0, 90.0}}) {
+            Datum datum = new Datum(v.length);
+            datum.setVector(v);
+            data.add(datum);
+        }
+        DistanceMatrix periodic = DistanceMatrix.fromVectors(data, 360.0);
+        Assert.assertEquals(Math.sqrt(20.0 * 20.0 / 2.0), periodic.get(0, 1), 1.0e-12);
+        Assert.assertEquals(Math.sqrt((180.0 * 180.0 + 90.0 * 90.0) / 2.0), periodic.get(0, 2), 1.0e-12);
+        Assert.assertEquals(Math.sqrt((160.0 * 160.0 + 90.0 * 90.0) / 2.0), periodic.get(1, 2), 1.0e-12);
+        DistanceMatrix linear = DistanceMatrix.fromVectors(data, 0.0);
+        Assert.assertEquals(Math.sqrt(340.0 * 340.0 / 2.0), linear.get(0, 1), 1.0e-12);
+    }
+}
@@ -0,0 +1,180 @@
+package org.nmrfx.structure.cluster;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+import org.nmrfx.structure.cluster.EnsembleClusterer.Dendrogram;
+import org.nmrfx.structure.cluster.EnsembleClusterer.Linkage;
+import org.nmrfx.structure.cluster.EnsembleClusterer.Result;
+
+public class EnsembleClustererTest {
+
+    // the distances between points on a line
+    static DistanceMatrix lineMatrix(double... x) {
+        return new DistanceMatrix(x.length, (i, j) -> Math.abs(x[i] - x[j]));
+    }
+
+    static double linkage(DistanceMatrix matrix, List<Integer> cluster1, List<Integer> cluster2, Linkage linkage) {
+        double sum = 0.0;
+        double max = 0.0;
+        for (int i : cluster1) {
+            for (int j : cluster2) {
+                sum += matrix.get(i, j);
+                max = Math.max(max, matrix.get(i, j));
+            }
+        }
+        return linkage == Linkage.COMPLETE ? max : sum / (cluster1.size() * cluster2.size());
+    }
+
+    /**
+     * Cluster by merging the closest pair of clusters at each step,
+     * calculating the linkage from the original distances, and return the
+     * merge heights and the clusters left after each merge.
+     */
+    static List<List<List<Integer>>> agglomerate(DistanceMatrix matrix, Linkage linkage, double[] heights) {
+        List<List<Integer>> clusters = new ArrayList<>();
+        for (int i = 0; i < matrix.size(); i++) {
+            clusters.add(new ArrayList<>(Arrays.asList(i)));
+        }
+        List<List<List<Integer>>> steps = new ArrayList<>();
+        for (int iMerge = 0; iMerge < matrix.size() - 1; iMerge++) {
+            int best1 = -1;
+            int best2 = -1;
+            double minDis = Double.MAX_VALUE;
+            for (int i = 0; i < clusters.size(); i++) {
+                for (int j = i + 1; j < clusters.size(); j++) {
+                    double d = linkage(matrix, clusters.get(i), clusters.get(j), linkage);
+                    if (d < minDis) {
+                        minDis = d;
+                        best1 = i;
+                        best2 = j;
+                    }
+                }
+            }
+            heights[iMerge] = minDis;
+            clusters.get(best1).addAll(clusters.remove(best2));
+            List<List<Integer>> step = new ArrayList<>();
+            for (List<Integer> cluster : clusters) {
+                step.add(new ArrayList<>(cluster));
+            }
+            steps.add(step);
+        }
+        return steps;
+    }
+
+    // check the clusters of a result are the expected sets of items
+    static void checkClusters(Result result, List<List<Integer>> expected) {
+        Assert.assertEquals(expected.size(), result.getNClusters());
+        int[] labels = result.getLabels();
+        for (List<Integer> cluster : expected) {
+            int label = labels[cluster.get(0)];
+            List<Integer> members = new ArrayList<>();
+            for (int i = 0; i < labels.length; i++) {
+                if (labels[i] == label) {
+                    members.add(i);
+                }
+            }
+            List<Integer> sorted = new ArrayList<>(cluster);
+            sorted.sort(null);
+            Assert.assertEquals(sorted, members);
+            Assert.assertEquals(members, result.getCluster(label));
+        }
+    }
+
+    @Test
+    public void testHierarchicalLine() {
+        DistanceMatrix matrix = lineMatrix(0.0, 1.0, 3.0, 10.0, 11.5);
+        Dendrogram average = EnsembleClusterer.hierarchical(matrix, Linkage.AVERAGE);
+        // 2 to the pair at 0 and 1 is (3 + 2) / 2, and the last merge is
+        // the mean of the six distances between the groups
+        Assert.assertArrayEquals(new double[]{1.0, 1.5, 2.5, 56.5 / 6.0}, average.getHeights(), 1.0e-12);
+        Dendrogram complete = EnsembleClusterer.hierarchical(matrix, Linkage.COMPLETE);
+        Assert.assertArrayEquals(new double[]{1.0, 1.5, 3.0, 11.5}, complete.getHeights(), 0.0);
+
+        Result result = average.cut(2);
+        checkClusters(result, Arrays.asList(Arrays.asList(0, 1, 2), Arrays.asList(3, 4)));
+        Assert.assertArrayEquals(new int[]{0, 0, 0, 1, 1}, result.getLabels());
+        // the medoids, with the first of the tied pair
+        Assert.assertArrayEquals(new int[]{1, 3}, result.getRepresentatives());
+
+        // larger clusters come first
+        result = complete.cutAt(1.5);
+        Assert.assertArrayEquals(new int[]{0, 0, 2, 1, 1}, result.getLabels());
+        Assert.assertEquals(1, average.cutAt(100.0).getNClusters());
+        Assert.assertEquals(5, average.cutAt(0.5).getNClusters());
+        Assert.assertEquals(5, average.cut(7).getNClusters());
+    }
+
+    @Test
+    public void testHierarchicalRandom() {
+        Random random = new Random(17);
+        for (int trial = 0; trial < 20; trial++) {
+            int n = 2 + random.nextInt(30);
+            double[][] points = new double[n][3];
+            for (double[] point : points) {
+                for (int k = 0; k < 3; k++) {
+                    point[k] = 10.0 * random.nextDouble();
+                }
+            }
+            DistanceMatrix matrix = new DistanceMatrix(n, (i, j) -> {
+                double sum = 0.0;
+                for (int k = 0; k < 3; k++) {
+                    sum += (points[i][k] - points[j][k]) * (points[i][k] - points[j][k]);
+                }
+                return Math.sqrt(sum);
+            });
+            for (Linkage linkage : Linkage.values()) {
+                double[] expectedHeights = new double[n - 1];
+                List<List<List<Integer>>> steps = agglomerate(matrix, linkage, expectedHeights);
+                Dendrogram dendrogram = EnsembleClusterer.hierarchical(matrix, linkage);
+                Assert.assertArrayEquals(expectedHeights, dendrogram.getHeights(), 1.0e-9);
+                for (int nClusters = 1; nClusters < n; nClusters++) {
+                    checkClusters(dendrogram.cut(nClusters), steps.get(n - 1 - nClusters));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testKMedoids() {
+        DistanceMatrix matrix = lineMatrix(0.0, 1.0, 2.5, 100.0, 101.0, 103.0, 200.0, 201.0);
+        for (long seed = 0; seed < 10; seed++) {
+            Result result = EnsembleClusterer.kMedoids(matrix, 3, 100, seed);
+            checkClusters(result, Arrays.asList(Arrays.asList(0, 1, 2), Arrays.asList(3, 4, 5), Arrays.asList(6, 7)));
+            int[] labels = result.getLabels();
+            Assert.assertEquals(1, result.getRepresentative(labels[0]));
+            Assert.assertEquals(4, result.getRepresentative(labels[3]));
+            Assert.assertEquals(6, result.getRepresentative(labels[6]));
+        }
+        // more clusters than items, and coincident items
+        Result result = EnsembleClusterer.kMedoids(lineMatrix(5.0, 5.0, 5.0), 4, 10, 1);
+        Assert.assertEquals(1, result.getNClusters());
+        Assert.assertEquals(0, EnsembleClusterer.kMedoids(lineMatrix(), 2, 10, 1).getNClusters());
+    }
+
+    @Test
+    public void testDBSCAN() {
+        DistanceMatrix matrix = lineMatrix(0.0, 1.0, 2.0, 10.0, 11.0, 30.0);
+        Result result = EnsembleClusterer.dbscan(matrix, 1.5, 2);
+        Assert.assertArrayEquals(new int[]{0, 0, 0, 1, 1, -1}, result.getLabels());
+        Assert.assertArrayEquals(new int[]{1, 3}, result.getRepresentatives());
+
+        // only the middle item is a core item, but the items next to it
+        // are in its cluster
+        result = EnsembleClusterer.dbscan(matrix, 1.5, 3);
+        Assert.assertArrayEquals(new int[]{0, 0, 0, -1, -1, -1}, result.getLabels());
+
+        List<Datum> data = new ArrayList<>();
+        for (int i = 0; i < matrix.size(); i++) {
+            data.add(new Datum(1));
+        }
+        EnsembleClusterer.dbscan(matrix, 1.5, 2).apply(data);
+        Assert.assertEquals(1, data.get(4).group);
+        Assert.assertEquals(3, data.get(4).proto[0]);
+        Assert.assertEquals(-1, data.get(5).group);
+        Assert.assertEquals(-1, data.get(5).proto[0]);
+    }
+}
@@ -0,0 +1,143 @@
+package org.nmrfx.structure.seqassign;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+import org.nmrfx.processor.datasets.peaks.Peak;
+import org.nmrfx.processor.datasets.peaks.PeakList;
+import org.nmrfx.structure.chemistry.Atom;
+import org.nmrfx.structure.chemistry.Molecule;
+import org.nmrfx.structure.chemistry.Polymer;
+import org.nmrfx.structure.chemistry.Residue;
+import org.nmrfx.structure.chemistry.io.Sequence;
+
+public class AutoAssignTest {
+
+    static final List<String> RESIDUES = Arrays.asList("ALA", "SER", "VAL", "LEU", "THR", "PHE", "ASP", "LYS", "GLU", "ILE", "ASN", "MET");
+    // residues 8 and 9 have the same reference shifts as 2 and 3, so the
+    // system of residue 3 fits residue 9 as well and only the links place it
+    static final int[] SHIFT_KEYS = {0, 1, 2, 3, 4, 5, 6, 7, 2, 3, 8, 9};
+    static final String[] ATOM_NAMES = {"C", "CA", "CB"};
+    static final double SDEV_MUL = 2.0;
+    static final double NOISE = 0.05;
+
+    static Polymer buildPolymer() throws Exception {
+        Molecule.removeAll();
+        Molecule molecule = new Sequence().read("auto", RESIDUES, null);
+        Polymer polymer = molecule.getPolymers().get(0);
+        int iRes = 0;
+        for (Residue residue : polymer.getResidues()) {
+            int key = SHIFT_KEYS[iRes];
+            double[][] refValues = {{172.0 + 2.0 * (key % 3), 0.5}, {48.0 + 5.0 * (key / 3), 1.0}, {30.0 + 0.5 * key, 1.0}};
+            for (int k = 0; k < ATOM_NAMES.length; k++) {
+                Atom atom = residue.getAtom(ATOM_NAMES[k]);
+                atom.setRefPPM(refValues[k][0]);
+                atom.setRefError(refValues[k][1]);
+            }
+            iRes++;
+        }
+        return polymer;
+    }
+
+    /**
+     * The shift of an atom as seen in a spin system. As in FragmentScorerTest
+     * the shifts are offset from the reference by 0.6 scaled standard
+     * deviations, so the true placement is near the peak of the chi-square
+     * density, and then get a small amount of added noise.
+     */
+    static double observe(Atom atom, Random random) {
+        double offset = 0.6 * atom.getSDevRefPPM() * SDEV_MUL;
+        return atom.getRefPPM() + (random.nextBoolean() ? offset : -offset) + NOISE * random.nextGaussian();
+    }
+
+    /**
+     * Make a spin system for each residue from its shifts and those of the
+     * previous residue, and one that fits no residue.
+     */
+    static List<SpinSystem> makeSystems(Polymer polymer, SpinSystems spinSystems, Random random) {
+        PeakList peakList = new PeakList("autoassign", 3);
+        List<Residue> residues = polymer.getResidues();
+        List<SpinSystem> result = new ArrayList<>();
+        for (int i = 0; i <= residues.size(); i++) {
+            SpinSystem spinSys = new SpinSystem(new Peak(peakList, 3), spinSystems);
+            for (int k = 0; k < ATOM_NAMES.length; k++) {
+                int index = SpinSystem.RES_MTCH[k];
+                if (i < residues.size()) {
+                    spinSys.setValue(1, index, observe(residues.get(i).getAtom(ATOM_NAMES[k]), random));
+                    double prevValue = Double.NaN;
+                    if (i > 0) {
+                        prevValue = observe(residues.get(i - 1).getAtom(ATOM_NAMES[k]), random);
+                    }
+                    spinSys.setValue(0, index, prevValue);
+                } else {
+                    spinSys.setValue(1, index, 120.0);
+                    spinSys.setValue(0, index, 120.0);
+                }
+            }
+            result.add(spinSys);
+        }
+        return result;
+    }
+
+    // links between the systems of consecutive residues, and some weaker
+    // links between systems that are not
+    static void addMatches(List<SpinSystem> trueSystems, Random random) {
+        int nRes = trueSystems.size() - 1;
+        for (int i = 0; i < nRes; i++) {
+            SpinSystem spinSys = trueSystems.get(i);
+            if (i < nRes - 1) {
+                spinSys.getMatchToNext().add(new SpinSystemMatch(spinSys, trueSystems.get(i + 1), 0.9, 3, new boolean[3]));
+            }
+            int j = random.nextInt(nRes);
+            if ((j != i) && (j != i + 1)) {
+                spinSys.getMatchToNext().add(new SpinSystemMatch(spinSys, trueSystems.get(j), 0.2, 2, new boolean[3]));
+            }
+        }
+    }
+
+    @Test
+    public void testRecoversKnownAssignment() throws Exception {
+        Polymer polymer = buildPolymer();
+        List<Residue> residues = polymer.getResidues();
+        FragmentScorer scorer = new FragmentScorer(polymer);
+        scorer.setSDevMul(SDEV_MUL);
+        Random random = new Random(17);
+        SpinSystems spinSystems = new SpinSystems(null);
+        List<SpinSystem> trueSystems = makeSystems(polymer, spinSystems, random);
+        addMatches(trueSystems, random);
+        spinSystems.systems.addAll(trueSystems);
+        Collections.shuffle(spinSystems.systems, random);
+
+        AutoAssign autoAssign = new AutoAssign(spinSystems, scorer);
+        autoAssign.setSeed(3);
+        autoAssign.setSchedule(50000, 2.0, 0.01);
+        autoAssign.setSearch(4, 3, 60000);
+        List<AutoAssign.Assignment> assignments = autoAssign.search();
+        Assert.assertFalse(assignments.isEmpty());
+        AutoAssign.Assignment best = assignments.get(0);
+
+        int[] sysResidues = new int[trueSystems.size()];
+        for (int i = 0; i < trueSystems.size(); i++) {
+            SpinSystem spinSys = trueSystems.get(i);
+            Optional<Residue> residue = best.getResidue(spinSys);
+            if (i < residues.size()) {
+                Assert.assertTrue("system " + i, residue.isPresent());
+                Assert.assertSame("system " + i, residues.get(i), residue.get());
+                sysResidues[spinSystems.systems.indexOf(spinSys)] = i;
+            } else {
+                Assert.assertFalse(residue.isPresent());
+                sysResidues[spinSystems.systems.indexOf(spinSys)] = -1;
+            }
+        }
+        Assert.assertEquals(residues.size(), best.getNAssigned());
+        Assert.assertEquals(autoAssign.score(sysResidues), best.getScore(), 1.0e-9);
+        for (AutoAssign.Assignment assignment : assignments) {
+            Assert.assertTrue(assignment.getScore() <= best.getScore());
+        }
+    }
+}
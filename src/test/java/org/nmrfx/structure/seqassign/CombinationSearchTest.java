@@ -0,0 +1,111 @@
+package org.nmrfx.structure.seqassign;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.apache.commons.math3.util.MultidimensionalCounter;
+import org.junit.Assert;
+import org.junit.Test;
+import org.nmrfx.processor.datasets.peaks.Peak;
+import org.nmrfx.processor.datasets.peaks.PeakList;
+import org.nmrfx.structure.seqassign.SpinSystem.ResAtomPattern;
+
+public class CombinationSearchTest {
+
+    // a few carbon shifts of each type, so different peaks often have equal
+    // shifts and combinations have equal scores
+    static final String[] CARBON_TYPES = {"ca", "cb", "c"};
+    static final double[][] CARBON_SHIFTS = {{56.0, 56.0, 53.2}, {30.1, 30.1, 41.5}, {176.0, 174.2}};
+
+    /**
+     * Make the candidate patterns of the HNC type peaks of a spin system.
+     * Each peak can have its carbon at residue i or i-1, and all but the
+     * root peak can be left unused.
+     */
+    static List<ResAtomPattern>[] makePatterns(SpinSystem spinSys, PeakList peakList, int nPeaks, Random random) {
+        List<ResAtomPattern>[] resAtomPatterns = new List[nPeaks];
+        for (int i = 0; i < nPeaks; i++) {
+            Peak peak = i == 0 ? spinSys.getRootPeak() : new Peak(peakList, 3);
+            int type = random.nextInt(CARBON_TYPES.length);
+            double[] typeShifts = CARBON_SHIFTS[type];
+            peak.getPeakDim(0).setChemShiftValue(8.0f);
+            peak.getPeakDim(1).setChemShiftValue(120.0f);
+            peak.getPeakDim(2).setChemShiftValue((float) typeShifts[random.nextInt(typeShifts.length)]);
+            String[] atomTypes = {"h", "n", CARBON_TYPES[type]};
+            List<ResAtomPattern> patterns = new ArrayList<>();
+            patterns.add(spinSys.new ResAtomPattern(peak, new String[]{"i", "i", "i"}, atomTypes, false, true, false));
+            patterns.add(spinSys.new ResAtomPattern(peak, new String[]{"i", "i", "i-1"}, atomTypes, false, true, false));
+            if (i != 0) {
+                patterns.add(null);
+            }
+            resAtomPatterns[i] = patterns;
+        }
+        return resAtomPatterns;
+    }
+
+    /**
+     * Score every combination, in the order of the counter used by
+     * SpinSystem.enumerateBest, and sort them by score. The sort is stable,
+     * so tied combinations stay in enumeration order.
+     */
+    static List<CombinationSearch.Result> enumerate(SpinSystem spinSys, List<ResAtomPattern>[] resAtomPatterns) {
+        int nPeaks = resAtomPatterns.length;
+        int[] sizes = new int[nPeaks];
+        for (int i = 0; i < nPeaks; i++) {
+            sizes[i] = resAtomPatterns[i].size();
+        }
+        List<Double>[][] shiftList = new ArrayList[2][SpinSystem.ATOM_TYPES.length];
+        for (int i = 0; i < SpinSystem.ATOM_TYPES.length; i++) {
+            shiftList[0][i] = new ArrayList<>();
+            shiftList[1][i] = new ArrayList<>();
+        }
+        List<CombinationSearch.Result> results = new ArrayList<>();
+        MultidimensionalCounter.Iterator iter = new MultidimensionalCounter(sizes).iterator();
+        while (iter.hasNext()) {
+            iter.next();
+            int[] pt = iter.getCounts();
+            if (spinSys.getShifts(nPeaks, resAtomPatterns, shiftList, pt)) {
+                double score = spinSys.analyzeShifts(shiftList);
+                if (score > 0.0) {
+                    results.add(new CombinationSearch.Result(pt, score));
+                }
+            }
+        }
+        results.sort((a, b) -> Double.compare(b.getScore(), a.getScore()));
+        return results;
+    }
+
+    @Test
+    public void testMatchesEnumeration() {
+        PeakList peakList = new PeakList("combinations", 3);
+        SpinSystems spinSystems = new SpinSystems(null);
+        int nTies = 0;
+        for (long seed = 1; seed <= 20; seed++) {
+            Random random = new Random(seed);
+            SpinSystem spinSys = new SpinSystem(new Peak(peakList, 3), spinSystems);
+            int nPeaks = 3 + random.nextInt(5);
+            List<ResAtomPattern>[] resAtomPatterns = makePatterns(spinSys, peakList, nPeaks, random);
+            List<CombinationSearch.Result> expected = enumerate(spinSys, resAtomPatterns);
+            Assert.assertFalse(expected.isEmpty());
+            if ((expected.size() > 1) && (expected.get(0).getScore() == expected.get(1).getScore())) {
+                nTies++;
+            }
+
+            int[] best = spinSys.enumerateBest(resAtomPatterns, false);
+            Assert.assertArrayEquals(expected.get(0).getIndices(), best);
+
+            CombinationSearch search = new CombinationSearch(spinSys, resAtomPatterns);
+            for (int nBest : new int[]{1, 3, 10, expected.size()}) {
+                List<CombinationSearch.Result> results = search.search(nBest);
+                Assert.assertEquals(Math.min(nBest, expected.size()), results.size());
+                for (int i = 0; i < results.size(); i++) {
+                    String msg = seed + " " + nBest + " " + i;
+                    Assert.assertArrayEquals(msg, expected.get(i).getIndices(), results.get(i).getIndices());
+                    Assert.assertEquals(msg, expected.get(i).getScore(), results.get(i).getScore(), 0.0);
+                }
+            }
+        }
+        // the best combination is tied for some of the systems
+        Assert.assertTrue(nTies > 0);
+    }
+}
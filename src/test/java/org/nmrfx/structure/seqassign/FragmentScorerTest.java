@@ -0,0 +1,179 @@
+package org.nmrfx.structure.seqassign;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+import org.nmrfx.structure.chemistry.Atom;
+import org.nmrfx.structure.chemistry.Molecule;
+import org.nmrfx.structure.chemistry.Polymer;
+import org.nmrfx.structure.chemistry.Residue;
+import org.nmrfx.structure.chemistry.io.Sequence;
+
+public class FragmentScorerTest {
+
+    static final List<String> RESIDUES = Arrays.asList("ALA", "GLY", "SER", "VAL", "LEU", "THR", "PHE", "ASP", "GLY", "LYS");
+    static final double POK = 0.05;
+    static final double SDEV_MUL = 2.0;
+
+    /**
+     * Build a polymer and give the C, CA and CB atoms reference shifts that
+     * differ between residues.
+     */
+    static Polymer buildPolymer() throws Exception {
+        Molecule.removeAll();
+        Molecule molecule = new Sequence().read("frag", RESIDUES, null);
+        Polymer polymer = molecule.getPolymers().get(0);
+        int iRes = 0;
+        for (Residue residue : polymer.getResidues()) {
+            double[][] refValues = {{176.0 + 0.3 * iRes, 1.0}, {52.0 + 1.5 * iRes, 1.5}, {30.0 + 2.0 * iRes, 2.0}};
+            String[] names = {"C", "CA", "CB"};
+            for (int k = 0; k < names.length; k++) {
+                Atom atom = residue.getAtom(names[k]);
+                if (atom != null) {
+                    atom.setRefPPM(refValues[k][0]);
+                    atom.setRefError(refValues[k][1]);
+                }
+            }
+            iRes++;
+        }
+        return polymer;
+    }
+
+    /**
+     * Make the shifts of a run of residues, each offset from the reference
+     * by 0.6 scaled standard deviations in a random direction. The scores
+     * are chi-square densities, which are small for an exact match, so this
+     * keeps the run itself above the pOK limit.
+     */
+    static double[][] makeShifts(Polymer polymer, int start, int winSize, Random random) {
+        String[] atomNames = FragmentScorer.getMatchAtomNames();
+        double[][] shifts = new double[winSize][atomNames.length];
+        for (int j = 0; j < winSize; j++) {
+            Residue residue = polymer.getResidues().get(start + j);
+            for (int k = 0; k < atomNames.length; k++) {
+                Atom atom = residue.getAtom(atomNames[k]);
+                double value = 100.0;
+                if ((atom != null) && (atom.getRefPPM() != null)) {
+                    double offset = 0.6 * atom.getSDevRefPPM() * SDEV_MUL;
+                    value = atom.getRefPPM() + (random.nextBoolean() ? offset : -offset);
+                }
+                shifts[j][k] = value;
+            }
+        }
+        return shifts;
+    }
+
+    // the score of each start position calculated with scoreAtomPPM
+    static double[] scoreByResidue(Polymer polymer, double[][] shifts) {
+        String[] atomNames = FragmentScorer.getMatchAtomNames();
+        List<Residue> residues = polymer.getResidues();
+        int winSize = shifts.length;
+        double[] scores = new double[residues.size() - winSize + 1];
+        for (int i = 0; i < scores.length; i++) {
+            double pScore = 1.0;
+            for (int j = 0; j < winSize; j++) {
+                List<AtomShiftValue> values = new ArrayList<>();
+                for (int k = 0; k < atomNames.length; k++) {
+                    values.add(new AtomShiftValue(atomNames[k], shifts[j][k], null));
+                }
+                PPMScore ppmScore = FragmentScoring.scoreAtomPPM(POK, SDEV_MUL, residues.get(i + j), values);
+                if (!ppmScore.ok()) {
+                    pScore = FragmentScorer.REJECTED;
+                    break;
+                }
+                pScore *= ppmScore.getTotalScore();
+            }
+            scores[i] = pScore;
+        }
+        return scores;
+    }
+
+    @Test
+    public void testMatchesScoreAtomPPM() throws Exception {
+        Polymer polymer = buildPolymer();
+        FragmentScorer scorer = new FragmentScorer(polymer);
+        scorer.setPOK(POK);
+        scorer.setSDevMul(SDEV_MUL);
+        Random random = new Random(5);
+        int nAccepted = 0;
+        for (int winSize = 1; winSize <= 4; winSize++) {
+            for (int start = 0; start + winSize <= RESIDUES.size(); start++) {
+                double[][] shifts = makeShifts(polymer, start, winSize, random);
+                double[] expected = scoreByResidue(polymer, shifts);
+                double[] scores = scorer.scorePositions(shifts);
+                Assert.assertEquals(expected.length, scores.length);
+                for (int i = 0; i < scores.length; i++) {
+                    Assert.assertEquals(expected[i], scores[i], 1.0e-12);
+                    if (scores[i] != FragmentScorer.REJECTED) {
+                        nAccepted++;
+                    }
+                }
+                // the fragment's own position is accepted
+                Assert.assertTrue(scores[start] != FragmentScorer.REJECTED);
+            }
+        }
+        Assert.assertTrue(nAccepted > 0);
+    }
+
+    @Test
+    public void testParallelScoring() throws Exception {
+        Polymer polymer = buildPolymer();
+        FragmentScorer scorer = new FragmentScorer(polymer);
+        double[][] shifts = makeShifts(polymer, 3, 3, new Random(9));
+        double[] serial = scorer.scorePositions(shifts);
+        int threshold = FragmentScorer.parallelThreshold;
+        try {
+            FragmentScorer.parallelThreshold = 1;
+            Assert.assertArrayEquals(serial, scorer.scorePositions(shifts), 0.0);
+        } finally {
+            FragmentScorer.parallelThreshold = threshold;
+        }
+    }
+
+    @Test
+    public void testNormalizedScores() throws Exception {
+        Polymer polymer = buildPolymer();
+        FragmentScorer scorer = new FragmentScorer(polymer);
+        double[][] shifts = makeShifts(polymer, 4, 3, new Random(3));
+        double[] scores = scorer.scorePositions(shifts);
+        List<ResidueSeqScore> seqScores = scorer.score(shifts, scores);
+        Assert.assertTrue(scores[4] != FragmentScorer.REJECTED);
+        Assert.assertFalse(seqScores.isEmpty());
+        double sum = 0.0;
+        double last = Double.MAX_VALUE;
+        for (ResidueSeqScore seqScore : seqScores) {
+            Assert.assertEquals(3, seqScore.getNResidues());
+            int i = polymer.getResidues().indexOf(seqScore.getFirstResidue());
+            Assert.assertTrue(scores[i] != FragmentScorer.REJECTED);
+            Assert.assertTrue(seqScore.getScore() <= last);
+            last = seqScore.getScore();
+            sum += seqScore.getScore();
+        }
+        Assert.assertEquals(1.0, sum, 1.0e-12);
+    }
+
+    @Test
+    public void testLogScoreSkipsMissing() throws Exception {
+        Polymer polymer = buildPolymer();
+        FragmentScorer scorer = new FragmentScorer(polymer);
+        String[] atomNames = FragmentScorer.getMatchAtomNames();
+        Residue residue = polymer.getResidues().get(2);
+        double[] shifts = makeShifts(polymer, 2, 1, new Random(1))[0];
+        // only the first atom type is observed
+        double[] sysShifts = shifts.clone();
+        for (int k = 1; k < sysShifts.length; k++) {
+            sysShifts[k] = Double.NaN;
+        }
+        List<AtomShiftValue> values = new ArrayList<>();
+        values.add(new AtomShiftValue(atomNames[0], shifts[0], null));
+        PPMScore ppmScore = FragmentScoring.scoreAtomPPM(POK, SDEV_MUL, residue, values);
+        Assert.assertTrue(ppmScore.ok());
+        Assert.assertEquals(Math.log(ppmScore.getTotalScore()), scorer.logScore(2, sysShifts), 1.0e-12);
+
+        Arrays.fill(sysShifts, Double.NaN);
+        Assert.assertEquals(0.0, scorer.logScore(2, sysShifts), 0.0);
+    }
+}
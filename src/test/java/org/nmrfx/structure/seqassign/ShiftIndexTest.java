@@ -0,0 +1,118 @@
+package org.nmrfx.structure.seqassign;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ShiftIndexTest {
+
+    // shifts with repeated values and some items without a shift
+    static double[] makeShifts(long seed, int n) {
+        Random random = new Random(seed);
+        double[] values = new double[n];
+        for (int i = 0; i < n; i++) {
+            if (random.nextDouble() < 0.1) {
+                values[i] = Double.NaN;
+            } else if ((i > 0) && (random.nextDouble() < 0.1)) {
+                values[i] = values[random.nextInt(i)];
+            } else {
+                values[i] = 40.0 + 30.0 * random.nextDouble();
+            }
+        }
+        return values;
+    }
+
+    static int[] scan(double[] values, double shift, double halfWidth, boolean includeMissing) {
+        List<Integer> found = new ArrayList<>();
+        for (int i = 0; i < values.length; i++) {
+            if (Double.isNaN(values[i])) {
+                if (includeMissing) {
+                    found.add(i);
+                }
+            } else if (Math.abs(values[i] - shift) <= halfWidth) {
+                found.add(i);
+            }
+        }
+        return found.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    // apply the exact tolerance test to the items found with the index
+    static int[] filter(double[] values, int[] items, double shift, double halfWidth) {
+        return Arrays.stream(items)
+                .filter(i -> Double.isNaN(values[i]) || (Math.abs(values[i] - shift) <= halfWidth))
+                .toArray();
+    }
+
+    @Test
+    public void testFindMatchesScan() {
+        for (long seed = 1; seed <= 5; seed++) {
+            double[] values = makeShifts(seed, 500);
+            ShiftIndex index = new ShiftIndex(values);
+            Assert.assertEquals(values.length, index.size());
+            Random random = new Random(seed + 100);
+            for (int trial = 0; trial < 200; trial++) {
+                double shift;
+                if (trial % 4 == 0) {
+                    // centered on an item, so items lie at the window edge
+                    double value = values[random.nextInt(values.length)];
+                    shift = Double.isNaN(value) ? 55.0 : value + 0.5;
+                } else {
+                    shift = 35.0 + 40.0 * random.nextDouble();
+                }
+                double halfWidth = trial % 4 == 0 ? 0.5 : 2.0 * random.nextDouble();
+                for (boolean includeMissing : new boolean[]{false, true}) {
+                    int[] expected = scan(values, shift, halfWidth, includeMissing);
+                    int[] found = index.find(shift, halfWidth, includeMissing);
+                    for (int j = 1; j < found.length; j++) {
+                        Assert.assertTrue(found[j - 1] < found[j]);
+                    }
+                    Assert.assertArrayEquals(expected, filter(values, found, shift, halfWidth));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testSinglePrecisionEdge() {
+        // callers compare float peak shifts, which can be just outside the
+        // double precision window
+        Random random = new Random(7);
+        double[] values = new double[1000];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = (float) (100.0 + 30.0 * random.nextDouble());
+        }
+        ShiftIndex index = new ShiftIndex(values);
+        for (int i = 0; i < values.length; i++) {
+            float tol = 0.3f;
+            float shift = (float) values[i] + tol;
+            List<Integer> expected = new ArrayList<>();
+            for (int j = 0; j < values.length; j++) {
+                if (Math.abs((float) values[j] - shift) <= tol) {
+                    expected.add(j);
+                }
+            }
+            int[] found = index.find(shift, tol, false);
+            for (int item : expected) {
+                Assert.assertTrue(Arrays.binarySearch(found, item) >= 0);
+            }
+        }
+    }
+
+    @Test
+    public void testMissingAndRange() {
+        double[] values = {5.0, Double.NaN, 1.0, 3.0, Double.POSITIVE_INFINITY, 3.0};
+        ShiftIndex index = new ShiftIndex(values);
+        Assert.assertEquals(4.0, index.getRange(), 0.0);
+        Assert.assertArrayEquals(new int[]{3, 5}, index.find(3.0, 0.1, false));
+        Assert.assertArrayEquals(new int[]{1, 3, 4, 5}, index.find(3.0, 0.1, true));
+        Assert.assertArrayEquals(new int[0], index.find(10.0, 1.0, false));
+        Assert.assertArrayEquals(new int[]{0, 2, 3, 5}, index.find(3.0, 2.0, false));
+        Assert.assertEquals(0.0, new ShiftIndex(new double[]{2.0}).getRange(), 0.0);
+
+        List<String> names = Arrays.asList("a", "b", "c", "d", "e", "f");
+        Assert.assertEquals(Arrays.asList("b", "d", "e", "f"), ShiftIndex.select(names, index.find(3.0, 0.1, true)));
+    }
+}
@@ -0,0 +1,189 @@
+package org.nmrfx.structure.tools;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+import org.nmrfx.processor.datasets.peaks.Peak;
+import org.nmrfx.processor.datasets.peaks.PeakList;
+
+public class CSPSeriesTest {
+
+    static final String[] DIM_NAMES = {"H", "N"};
+    static final double[] TOLS = {0.05, 0.3};
+    static final double[] ALPHAS = {1.0, 5.0};
+
+    static PeakList makeList(String name, List<double[]> positions) {
+        PeakList peakList = new PeakList(name, DIM_NAMES.length);
+        for (int j = 0; j < DIM_NAMES.length; j++) {
+            peakList.getSpectralDim(j).setDimName(DIM_NAMES[j]);
+        }
+        for (double[] position : positions) {
+            Peak peak = peakList.getNewPeak();
+            for (int j = 0; j < position.length; j++) {
+                peak.getPeakDim(j).setChemShiftValue((float) position[j]);
+            }
+        }
+        return peakList;
+    }
+
+    static double[] getPPMs(Peak peak) {
+        double[] ppms = new double[DIM_NAMES.length];
+        for (int j = 0; j < ppms.length; j++) {
+            ppms[j] = peak.getPeakDim(j).getChemShiftValue();
+        }
+        return ppms;
+    }
+
+    static double distance(double[] ppms, double[] refPPMs) {
+        double sum = 0.0;
+        for (int j = 0; j < ppms.length; j++) {
+            double delta = ppms[j] - refPPMs[j];
+            sum += (delta / ALPHAS[j]) * (delta / ALPHAS[j]);
+        }
+        return Math.sqrt(sum);
+    }
+
+    // the nearest peak within the tolerances, found by checking every peak
+    // as in MCSAnalysis
+    static Peak scan(PeakList peakList, double[] refPPMs) {
+        double disMax = distance(TOLS, new double[TOLS.length]);
+        double minDis = disMax;
+        Peak best = null;
+        for (Peak peak : peakList.peaks()) {
+            double[] ppms = getPPMs(peak);
+            boolean ok = true;
+            for (int j = 0; j < ppms.length; j++) {
+                if (Math.abs(ppms[j] - refPPMs[j]) > TOLS[j]) {
+                    ok = false;
+                }
+            }
+            double dis = distance(ppms, refPPMs);
+            if (ok && (dis < minDis)) {
+                minDis = dis;
+                best = peak;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Make a reference list and a series of perturbed lists, with the peaks
+     * moved by random amounts comparable to the tolerances, some peaks
+     * missing and some extra peaks, in random order.
+     */
+    static List<PeakList> makeSeries(Random random, int nRefs, int nLists) {
+        List<double[]> refPositions = new ArrayList<>();
+        for (int i = 0; i < nRefs; i++) {
+            refPositions.add(new double[]{7.0 + 3.0 * random.nextDouble(), 105.0 + 25.0 * random.nextDouble()});
+        }
+        List<PeakList> peakLists = new ArrayList<>();
+        peakLists.add(makeList("ref", refPositions));
+        for (int iList = 0; iList < nLists; iList++) {
+            List<double[]> positions = new ArrayList<>();
+            for (double[] refPosition : refPositions) {
+                if (random.nextDouble() > 0.05) {
+                    positions.add(new double[]{refPosition[0] + 0.02 * random.nextGaussian(), refPosition[1] + 0.1 * random.nextGaussian()});
+                }
+            }
+            for (int i = 0; i < nRefs / 10; i++) {
+                positions.add(new double[]{7.0 + 3.0 * random.nextDouble(), 105.0 + 25.0 * random.nextDouble()});
+            }
+            Collections.shuffle(positions, random);
+            peakLists.add(makeList("point" + iList, positions));
+        }
+        return peakLists;
+    }
+
+    @Test
+    public void testMatchesScan() {
+        List<PeakList> peakLists = makeSeries(new Random(11), 300, 5);
+        PeakList refList = peakLists.get(0);
+        List<PeakList> series = peakLists.subList(1, peakLists.size());
+        CSPSeries cspSeries = new CSPSeries(refList, TOLS, ALPHAS, DIM_NAMES);
+        Assert.assertEquals(refList.peaks().size(), cspSeries.getNReferences());
+        CSPSeries.Result result = cspSeries.calc(series);
+        int nMatched = 0;
+        for (int iRef = 0; iRef < cspSeries.getNReferences(); iRef++) {
+            Peak refPeak = refList.peaks().get(iRef);
+            Assert.assertEquals(refPeak.getIdNum(), result.getId(iRef));
+            double[] refPPMs = getPPMs(refPeak);
+            Peak[] trajectory = result.getTrajectory(iRef);
+            double[] csps = result.getCSPs(iRef);
+            for (int iList = 0; iList < series.size(); iList++) {
+                Peak expected = scan(series.get(iList), refPPMs);
+                Assert.assertSame(expected, trajectory[iList]);
+                if (expected == null) {
+                    Assert.assertTrue(Double.isNaN(csps[iList]));
+                } else {
+                    Assert.assertEquals(distance(getPPMs(expected), refPPMs), csps[iList], 1.0e-12);
+                    nMatched++;
+                }
+            }
+        }
+        Assert.assertTrue(nMatched > 0);
+
+        int threshold = CSPSeries.parallelThreshold;
+        try {
+            CSPSeries.parallelThreshold = 1;
+            double[][] matrix = cspSeries.calc(series).getMatrix();
+            for (int iRef = 0; iRef < matrix.length; iRef++) {
+                Assert.assertArrayEquals(result.getCSPs(iRef), matrix[iRef], 0.0);
+            }
+        } finally {
+            CSPSeries.parallelThreshold = threshold;
+        }
+    }
+
+    @Test
+    public void testUnique() {
+        PeakList refList = makeList("ref", Arrays.asList(new double[]{8.0, 120.0}, new double[]{8.02, 120.0}));
+        PeakList peakList = makeList("point", Arrays.asList(new double[]{8.015, 120.0}, new double[]{7.97, 120.0}));
+        Peak near = peakList.peaks().get(0);
+        Peak far = peakList.peaks().get(1);
+        CSPSeries cspSeries = new CSPSeries(refList, TOLS, ALPHAS, DIM_NAMES);
+
+        // each reference takes its nearest peak
+        CSPSeries.Result result = cspSeries.calc(Collections.singletonList(peakList));
+        Assert.assertSame(near, result.getTrajectory(0)[0]);
+        Assert.assertSame(near, result.getTrajectory(1)[0]);
+
+        // the closer pair is accepted first
+        cspSeries.setUnique(true);
+        result = cspSeries.calc(Collections.singletonList(peakList));
+        Assert.assertSame(far, result.getTrajectory(0)[0]);
+        Assert.assertSame(near, result.getTrajectory(1)[0]);
+        Assert.assertEquals(0.03, result.getCSPs(0)[0], 1.0e-5);
+    }
+
+    @Test
+    public void testTracking() {
+        PeakList refList = makeList("ref", Collections.singletonList(new double[]{8.0, 120.0}));
+        // the peak moves less than the tolerance between points, but further
+        // over the whole titration
+        List<PeakList> series = new ArrayList<>();
+        int nPoints = 6;
+        for (int t = 1; t <= nPoints; t++) {
+            series.add(makeList("point" + t, Collections.singletonList(new double[]{8.0 + 0.03 * t, 120.0 + 0.1 * t})));
+        }
+        CSPSeries cspSeries = new CSPSeries(refList, TOLS, ALPHAS, DIM_NAMES);
+        double[] csps = cspSeries.calc(series).getCSPs(0);
+        Assert.assertFalse(Double.isNaN(csps[0]));
+        for (int t = 2; t <= nPoints; t++) {
+            Assert.assertTrue(Double.isNaN(csps[t - 1]));
+        }
+
+        cspSeries.setTrack(true);
+        CSPSeries.Result result = cspSeries.calc(series);
+        csps = result.getCSPs(0);
+        for (int t = 1; t <= nPoints; t++) {
+            Assert.assertSame(series.get(t - 1).peaks().get(0), result.getTrajectory(0)[t - 1]);
+            // measured from the reference, not the previous point
+            double expected = distance(new double[]{0.03 * t, 0.1 * t}, new double[2]);
+            Assert.assertEquals(expected, csps[t - 1], 1.0e-5);
+        }
+    }
+}
@@ -43,5 +43,57 @@ class TestStructGen(unittest.TestCase):
         err = refiner.calcDerivError(1.0e-5)
         self.assertAlmostEqual(0.0, err, 3)
 
+    def testLBFGS(self):
+        data = genYaml()
+        refiner=refine()
+        seed = 0
+        osfiles.setOutFiles(refiner,'tmp', seed)
+        refiner.setReportDump(False)
+        refiner.rootName = "temp"
+        refiner.loadFromYaml(data,seed)
+        refiner.setSeed(seed)
+        refiner.randomizeAngles()
+        refiner.setForces({'repel':0.5,'dis':1,'dih':5})
+        refiner.setPars({'useh':False,'dislim':refiner.disLim,'end':1000,'hardSphere':0.15,'shrinkValue':0.20})
+        startEnergy = refiner.energy()
+        startDeriv = GradientRefinement(refiner.dihedral).calcRMSDeriv()
+        refiner.lbfgsmin(nsteps=500,tolerance=1.0e-6)
+        endEnergy = refiner.energy()
+        endDeriv = GradientRefinement(refiner.dihedral).calcRMSDeriv()
+        self.assertLess(endEnergy, startEnergy)
+        self.assertLess(endDeriv, 0.1 * startDeriv)
+
+    def testReplicaExchange(self):
+        data = genYaml()
+        refiners = setupReplicas(data, 2, 0, 'tmp')
+        mol0 = refiners[0].molecule
+        mol1 = refiners[1].molecule
+        self.assertFalse(mol0 is mol1)
+        self.assertFalse(mol0.getEnergyCoords() is mol1.getEnergyCoords())
+        nExchanges = 10
+        rex = replicaExchange(refiners, 100.0, 400.0, nExchanges, 20)
+        temps = rex.getTemperatures()
+        self.assertEqual(2, len(temps))
+        self.assertAlmostEqual(100.0, temps[0], 6)
+        self.assertAlmostEqual(400.0, temps[1], 6)
+        ladder = ReplicaExchange.geometricLadder(100.0, 400.0, 3)
+        self.assertAlmostEqual(200.0, ladder[1], 6)
+        # each temperature is run by exactly one replica, at that temperature
+        rDyn0 = rex.getReplicaAt(0)
+        rDyn1 = rex.getReplicaAt(1)
+        self.assertFalse(rDyn0 is rDyn1)
+        self.assertAlmostEqual(temps[0], rDyn0.getBathTemp(), 6)
+        self.assertAlmostEqual(temps[1], rDyn1.getBathTemp(), 6)
+        # the single pair is tried on every other round
+        nAttempts = rex.getSwapAttempts()[0]
+        nAccepted = rex.getSwapsAccepted()[0]
+        self.assertEqual(nExchanges / 2, nAttempts)
+        ratios = rex.getAcceptanceRatios()
+        self.assertEqual(1, len(ratios))
+        self.assertAlmostEqual(float(nAccepted) / nAttempts, ratios[0], 9)
+        # an odd number of accepted swaps leaves the replicas exchanged
+        swapped = rDyn0.getMolecule() is mol1
+        self.assertEqual(swapped, (nAccepted % 2) == 1)
+
 if __name__ == '__main__':
     unittest.main()